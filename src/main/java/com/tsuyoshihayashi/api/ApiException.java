@@ -0,0 +1,21 @@
+package com.tsuyoshihayashi.api;
+
+import lombok.Getter;
+
+/**
+ * Exception thrown when API responds with an unsuccessful status
+ *
+ * @author Alexey Donov
+ */
+public final class ApiException extends RuntimeException {
+    /**
+     * HTTP status of the response
+     */
+    @Getter
+    private final int status;
+
+    public ApiException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
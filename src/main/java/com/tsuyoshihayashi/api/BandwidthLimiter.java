@@ -0,0 +1,191 @@
+package com.tsuyoshihayashi.api;
+
+import com.wowza.wms.application.WMSProperties;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.json.simple.JSONObject;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Object that limits the total bandwidth of the uploads with a token bucket,
+ * so the uploads leave headroom for the live traffic.
+ *
+ * The bucket is shared by all uploads. A write takes tokens for its bytes, going into debt if there are not enough,
+ * and the writing thread sleeps until the debt is repaid, so the concurrent uploads together stay within the rate.
+ *
+ * There is a single bucket for the whole server, not one per VHost: the uploads of all the VHosts go out
+ * through the same network interface and the same HTTP client, whose body writers use this bucket.
+ * It is configured by the properties of the VHost that starts an application first.
+ *
+ * @author Alexey Donov
+ */
+public final class BandwidthLimiter {
+    private static final String RATE_KEY = "uploadRateLimit";
+    private static final String BURST_KEY = "uploadRateBurst";
+
+    private static final long DEFAULT_RATE = 0;
+    private static final long DEFAULT_BURST = 1024 * 1024;
+
+    /**
+     * Singleton instance of the server, not limited until configured
+     */
+    private static final @NotNull BandwidthLimiter instance = new BandwidthLimiter(DEFAULT_RATE, DEFAULT_BURST);
+
+    private static boolean configured = false;
+
+    public static @NotNull BandwidthLimiter instance() {
+        return instance;
+    }
+
+    /**
+     * Set the limits of the shared instance from the VHost properties.
+     * Only the first call has effect, so the limits changed at runtime are kept when another application starts,
+     * and the properties of the other VHosts are ignored.
+     *
+     * @param hostProperties VHost properties
+     */
+    public static synchronized void configure(@NotNull WMSProperties hostProperties) {
+        if (configured) {
+            return;
+        }
+
+        instance.setLimit(hostProperties.getPropertyLong(RATE_KEY, DEFAULT_RATE), hostProperties.getPropertyLong(BURST_KEY, DEFAULT_BURST));
+        configured = true;
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(BandwidthLimiter.class);
+
+    private final @NotNull AtomicLong byteCount = new AtomicLong();
+    private final @NotNull AtomicLong throttledTime = new AtomicLong();
+
+    /**
+     * Bytes per second, 0 for no limit
+     */
+    private long rate;
+    private long burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param rate Bytes per second, 0 for no limit
+     * @param burst Number of bytes that can be sent at once after the uploads were idle
+     */
+    BandwidthLimiter(long rate, long burst) {
+        setLimit(rate, burst);
+        tokens = this.burst;
+    }
+
+    /**
+     * Change the limits. The uploads in progress continue with the new limits.
+     *
+     * @param rate Bytes per second, 0 for no limit
+     * @param burst Number of bytes that can be sent at once after the uploads were idle
+     */
+    public synchronized void setLimit(long rate, long burst) {
+        refill(System.nanoTime());
+
+        this.rate = Math.max(0, rate);
+        this.burst = Math.max(1, burst);
+        this.tokens = Math.min(tokens, this.burst);
+
+        logger.info(String.format("Upload bandwidth: %s, burst %d bytes", this.rate > 0 ? String.format("%d bytes/s", this.rate) : "not limited", this.burst));
+    }
+
+    /**
+     * @return Bytes per second, 0 for no limit
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * @return Number of bytes that can be sent at once after the uploads were idle
+     */
+    public synchronized long getBurst() {
+        return burst;
+    }
+
+    /**
+     * Take the tokens for the bytes, waiting if the uploads are over the limit
+     *
+     * @param bytes Number of bytes to send
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        byteCount.addAndGet(bytes);
+
+        final long wait;
+        synchronized (this) {
+            if (rate == 0) {
+                return;
+            }
+
+            refill(System.nanoTime());
+            tokens -= bytes;
+            wait = tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+
+        if (wait > 0) {
+            throttledTime.addAndGet(wait);
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+            }
+        }
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefill = now;
+    }
+
+    /**
+     * Wrap an output stream so the writes go through the limiter
+     *
+     * @param output Output stream
+     * @return Limited output stream
+     */
+    @NotNull OutputStream limit(@NotNull OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                acquire(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Create a JSON object describing the limits and the throttling so far
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized @NotNull JSONObject status() {
+        val result = new JSONObject();
+        result.put("rate", rate);
+        result.put("burst", burst);
+        result.put("bytes", byteCount.get());
+        result.put("throttled_ms", TimeUnit.NANOSECONDS.toMillis(throttledTime.get()));
+
+        return result;
+    }
+}
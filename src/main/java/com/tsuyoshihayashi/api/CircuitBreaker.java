@@ -0,0 +1,184 @@
+package com.tsuyoshihayashi.api;
+
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Object that stops the requests to an API that keeps failing:
+ * - Closed: requests are made, their outcomes are kept in a window of the last requests.
+ *   When the share of the failures in a full enough window reaches the threshold, the circuit opens.
+ * - Open: requests are not made until the open time passes, then the circuit becomes half-open
+ * - Half-open: a single probe request is made at a time. A successful probe closes the circuit, a failed one opens it again.
+ *
+ * @author Alexey Donov
+ */
+public final class CircuitBreaker {
+    /**
+     * Circuit state
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final @NotNull String name;
+    private final int minimumRequests;
+    private final double failureRate;
+    private final long openTime;
+
+    /**
+     * Outcomes of the last requests, true for a failure
+     */
+    private final @NotNull boolean[] window;
+    private int windowPosition = 0;
+    private int windowSize = 0;
+    private int windowFailures = 0;
+
+    private @NotNull State state = State.CLOSED;
+    private long openedAt = 0;
+    private boolean probing = false;
+
+    private long openCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * @param name Name of the protected API, for the log
+     * @param windowSize Number of the last requests the failure rate is calculated from
+     * @param minimumRequests Number of requests in the window needed to open the circuit
+     * @param failureRate Share of the failed requests that opens the circuit, from 0 to 1
+     * @param openTime Time the circuit stays open before a probe, in milliseconds
+     */
+    public CircuitBreaker(@NotNull String name, int windowSize, int minimumRequests, double failureRate, long openTime) {
+        this.name = name;
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumRequests = Math.max(1, Math.min(minimumRequests, window.length));
+        this.failureRate = failureRate;
+        this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+    }
+
+    /**
+     * Check whether a request can be made now. When it returns true, the outcome has to be reported
+     * with {@link #success()} or {@link #failure()}.
+     *
+     * @return true if the request can be made
+     */
+    public boolean allowRequest() {
+        return allowRequest(System.nanoTime());
+    }
+
+    synchronized boolean allowRequest(long now) {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        if (state == State.OPEN) {
+            if (now - openedAt < openTime) {
+                rejectedCount++;
+                return false;
+            }
+
+            state = State.HALF_OPEN;
+            logger.info(String.format("Circuit of %s is half-open, probing", name));
+        }
+
+        // Half-open circuit lets a single probe through at a time
+        if (probing) {
+            rejectedCount++;
+            return false;
+        }
+
+        probing = true;
+        return true;
+    }
+
+    /**
+     * Report a successful request
+     */
+    public void success() {
+        record(false, System.nanoTime());
+    }
+
+    /**
+     * Report a failed request
+     */
+    public void failure() {
+        record(true, System.nanoTime());
+    }
+
+    synchronized void record(boolean failed, long now) {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (failed) {
+                open(now);
+            } else {
+                state = State.CLOSED;
+                clearWindow();
+                logger.info(String.format("Circuit of %s is closed", name));
+            }
+            return;
+        }
+
+        if (state == State.OPEN) {
+            // Request that was allowed before the circuit opened
+            return;
+        }
+
+        if (windowSize == window.length) {
+            if (window[windowPosition]) {
+                windowFailures--;
+            }
+        } else {
+            windowSize++;
+        }
+        window[windowPosition] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowPosition = (windowPosition + 1) % window.length;
+
+        if (windowSize >= minimumRequests && windowFailures >= failureRate * windowSize) {
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+        openCount++;
+        clearWindow();
+        logger.warn(String.format("Circuit of %s is open for %d ms", name, TimeUnit.NANOSECONDS.toMillis(openTime)));
+    }
+
+    private void clearWindow() {
+        windowPosition = 0;
+        windowSize = 0;
+        windowFailures = 0;
+    }
+
+    public synchronized @NotNull State getState() {
+        return state;
+    }
+
+    /**
+     * Create a JSON object describing the circuit
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized @NotNull JSONObject status() {
+        val result = new JSONObject();
+        result.put("state", state.name().toLowerCase());
+        result.put("window_requests", windowSize);
+        result.put("window_failures", windowFailures);
+        result.put("opened", openCount);
+        result.put("rejected", rejectedCount);
+
+        return result;
+    }
+}
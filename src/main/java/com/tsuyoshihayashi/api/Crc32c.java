@@ -0,0 +1,53 @@
+package com.tsuyoshihayashi.api;
+
+import java.util.zip.Checksum;
+
+/**
+ * Object that calculates CRC-32C (Castagnoli), which is not available in Java 8
+ *
+ * @author Alexey Donov
+ */
+final class Crc32c implements Checksum {
+    /**
+     * Reversed Castagnoli polynomial
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int value = i;
+            for (int bit = 0; bit < 8; bit++) {
+                value = (value & 1) != 0 ? (value >>> 1) ^ POLYNOMIAL : value >>> 1;
+            }
+            TABLE[i] = value;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int value = crc;
+        for (int i = off; i < off + len; i++) {
+            value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xFF];
+        }
+        crc = value;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -1,10 +1,8 @@
 package com.tsuyoshihayashi.api;
 
 import org.jetbrains.annotations.NotNull;
-import org.json.simple.parser.JSONParser;
 
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 
 /**
  * Represents an abstract API endpoint
@@ -12,6 +10,9 @@ import javax.ws.rs.client.ClientBuilder;
  * @author Alexey Donov
  */
 abstract class Endpoint {
-    final @NotNull JSONParser parser = new JSONParser();
-    final @NotNull Client client = ClientBuilder.newClient();
+    final @NotNull Client client;
+
+    Endpoint(@NotNull Client client) {
+        this.client = client;
+    }
 }
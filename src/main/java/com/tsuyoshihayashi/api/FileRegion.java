@@ -0,0 +1,74 @@
+package com.tsuyoshihayashi.api;
+
+import lombok.Data;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Object that represents a byte range of a file to be sent in a request body.
+ *
+ * The bytes are read from a FileChannel into a fixed per-thread buffer while being written,
+ * so the memory used does not depend on the range size.
+ *
+ * @author Alexey Donov
+ */
+@Data
+public final class FileRegion {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Copy buffer, one per upload thread
+     */
+    private static final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final @NotNull File file;
+    private final long offset;
+    private final long length;
+
+    /**
+     * Create a region covering the whole file
+     *
+     * @param file File
+     */
+    public FileRegion(@NotNull File file) {
+        this(file, 0, file.length());
+    }
+
+    public FileRegion(@NotNull File file, long offset, long length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Write the bytes of the region
+     *
+     * @param output Output stream
+     * @throws IOException if the file could not be read or is shorter than the region
+     */
+    public void writeTo(@NotNull OutputStream output) throws IOException {
+        val bytes = buffer.get();
+
+        try (val channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            val byteBuffer = ByteBuffer.wrap(bytes);
+            long position = 0;
+            while (position < length) {
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(bytes.length, length - position));
+                val read = channel.read(byteBuffer, offset + position);
+                if (read < 0) {
+                    throw new IOException(String.format("File %s is shorter than expected", file));
+                }
+                output.write(bytes, 0, read);
+                position += read;
+            }
+        }
+    }
+}
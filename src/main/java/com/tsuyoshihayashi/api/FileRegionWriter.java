@@ -0,0 +1,36 @@
+package com.tsuyoshihayashi.api;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Object that lets Jersey client send {@link FileRegion} entities as raw bytes.
+ * The region is streamed directly to the connection output stream, within the upload bandwidth limit.
+ *
+ * @author Alexey Donov
+ */
+public final class FileRegionWriter implements MessageBodyWriter<FileRegion> {
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return FileRegion.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(FileRegion region, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return region.getLength();
+    }
+
+    @Override
+    public void writeTo(@NotNull FileRegion region, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, @NotNull OutputStream entityStream) throws IOException, WebApplicationException {
+        region.writeTo(BandwidthLimiter.instance().limit(entityStream));
+    }
+}
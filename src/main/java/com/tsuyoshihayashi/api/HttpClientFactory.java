@@ -0,0 +1,213 @@
+package com.tsuyoshihayashi.api;
+
+import com.wowza.wms.application.WMSProperties;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import com.wowza.wms.vhost.IVHost;
+import lombok.val;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.client.ClientConfig;
+import org.jetbrains.annotations.NotNull;
+import org.json.simple.JSONObject;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Object that provides a pooled HTTP client. The uploads and the record settings API requests have a client each,
+ * so the settings of a published stream never wait for a connection held by the uploads to the same host.
+ *
+ * Connections are kept alive in a pool with per-route limits, so the requests to the same host
+ * reuse the connections instead of paying TCP and TLS handshakes each time.
+ * A request waits for a pooled connection only for the lease timeout, then it fails and is repeated as a network error.
+ *
+ * Every VHost has clients of its own, configured by its properties.
+ *
+ * @author Alexey Donov
+ */
+public final class HttpClientFactory {
+    private static final String CONNECT_TIMEOUT_KEY = "httpConnectTimeout";
+    private static final String READ_TIMEOUT_KEY = "httpReadTimeout";
+    private static final String LEASE_TIMEOUT_KEY = "httpLeaseTimeout";
+    private static final String MAX_CONNECTIONS_KEY = "httpMaxConnections";
+    private static final String MAX_CONNECTIONS_PER_ROUTE_KEY = "httpMaxConnectionsPerRoute";
+    private static final String API_MAX_CONNECTIONS_KEY = "httpApiMaxConnections";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final int DEFAULT_READ_TIMEOUT = 60000;
+    private static final int DEFAULT_LEASE_TIMEOUT = 5000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int DEFAULT_API_MAX_CONNECTIONS = 16;
+
+    /**
+     * Pooled connections that were not used for this time are checked before being reused
+     */
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    /**
+     * Pooled connections that were not used for this time are closed, in seconds
+     */
+    private static final long IDLE_TIMEOUT = 30;
+
+    /**
+     * Instances of the uploads by VHost name
+     */
+    private static final @NotNull Map<String, HttpClientFactory> instances = new ConcurrentHashMap<>();
+
+    /**
+     * Instances of the record settings API requests by VHost name
+     */
+    private static final @NotNull Map<String, HttpClientFactory> apiInstances = new ConcurrentHashMap<>();
+
+    /**
+     * Get the instance of the uploads of a VHost. It is created by the first call, configured by the VHost properties.
+     *
+     * @param host VHost
+     * @return Instance of the VHost
+     */
+    public static @NotNull HttpClientFactory instance(@NotNull IVHost host) {
+        return instances.computeIfAbsent(host.getName(), name -> {
+            val hostProperties = host.getProperties();
+            val maxConnections = Math.max(1, hostProperties.getPropertyInt(MAX_CONNECTIONS_KEY, DEFAULT_MAX_CONNECTIONS));
+            val maxConnectionsPerRoute = Math.max(1, hostProperties.getPropertyInt(MAX_CONNECTIONS_PER_ROUTE_KEY, DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+
+            return fromProperties(hostProperties, String.format("Upload %s", name), maxConnections, maxConnectionsPerRoute);
+        });
+    }
+
+    /**
+     * Get the instance of the record settings API requests of a VHost. It is created by the first call, configured by the VHost properties.
+     *
+     * @param host VHost
+     * @return Instance of the VHost
+     */
+    public static @NotNull HttpClientFactory apiInstance(@NotNull IVHost host) {
+        return apiInstances.computeIfAbsent(host.getName(), name -> {
+            // All the requests go to the same host
+            val hostProperties = host.getProperties();
+            val maxConnections = Math.max(1, hostProperties.getPropertyInt(API_MAX_CONNECTIONS_KEY, DEFAULT_API_MAX_CONNECTIONS));
+
+            return fromProperties(hostProperties, String.format("API %s", name), maxConnections, maxConnections);
+        });
+    }
+
+    private static @NotNull HttpClientFactory fromProperties(@NotNull WMSProperties hostProperties, @NotNull String name, int maxConnections,
+                                                             int maxConnectionsPerRoute) {
+        val connectTimeout = Math.max(0, hostProperties.getPropertyInt(CONNECT_TIMEOUT_KEY, DEFAULT_CONNECT_TIMEOUT));
+        val readTimeout = Math.max(0, hostProperties.getPropertyInt(READ_TIMEOUT_KEY, DEFAULT_READ_TIMEOUT));
+        val leaseTimeout = Math.max(0, hostProperties.getPropertyInt(LEASE_TIMEOUT_KEY, DEFAULT_LEASE_TIMEOUT));
+
+        return new HttpClientFactory(name, connectTimeout, readTimeout, leaseTimeout, maxConnections, maxConnectionsPerRoute);
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(HttpClientFactory.class);
+
+    private final @NotNull AtomicLong requestCount = new AtomicLong();
+    private final @NotNull AtomicLong connectionCount = new AtomicLong();
+
+    private final @NotNull PoolingHttpClientConnectionManager connectionManager;
+    private final @NotNull CloseableHttpClient httpClient;
+    private final @NotNull Client client;
+
+    /**
+     * @param connectTimeout Connect timeout in milliseconds, 0 for none
+     * @param readTimeout Timeout of waiting for data in milliseconds, 0 for none
+     * @param maxConnections Maximum number of connections
+     * @param maxConnectionsPerRoute Maximum number of connections to a single host
+     */
+    HttpClientFactory(int connectTimeout, int readTimeout, int maxConnections, int maxConnectionsPerRoute) {
+        this("HTTP", connectTimeout, readTimeout, DEFAULT_LEASE_TIMEOUT, maxConnections, maxConnectionsPerRoute);
+    }
+
+    /**
+     * @param name Name of the client for the log
+     * @param connectTimeout Connect timeout in milliseconds, 0 for none
+     * @param readTimeout Timeout of waiting for data in milliseconds, 0 for none
+     * @param leaseTimeout Timeout of waiting for a pooled connection in milliseconds, 0 for none
+     * @param maxConnections Maximum number of connections
+     * @param maxConnectionsPerRoute Maximum number of connections to a single host
+     */
+    HttpClientFactory(@NotNull String name, int connectTimeout, int readTimeout, int leaseTimeout, int maxConnections, int maxConnectionsPerRoute) {
+        connectionManager = new PoolingHttpClientConnectionManager((route, config) -> {
+            connectionCount.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        });
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        val requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(readTimeout)
+            .setConnectionRequestTimeout(leaseTimeout)
+            .build();
+
+        httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .disableCookieManagement()
+            .evictExpiredConnections()
+            .evictIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS)
+            .build();
+
+        val connector = new PooledConnector(httpClient, requestConfig, requestCount);
+        client = ClientBuilder.newClient(new ClientConfig()
+            .connectorProvider((jerseyClient, configuration) -> connector)
+            .register(MultipartBodyWriter.class)
+            .register(FileRegionWriter.class));
+
+        logger.info(String.format("%s client: connect timeout %d ms, read timeout %d ms, lease timeout %d ms, %d connections, %d per host",
+            name, connectTimeout, readTimeout, leaseTimeout, maxConnections, maxConnectionsPerRoute));
+    }
+
+    /**
+     * @return Shared client
+     */
+    public @NotNull Client getClient() {
+        return client;
+    }
+
+    /**
+     * Create a JSON object describing the connection pool and its reuse
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull JSONObject status() {
+        val requests = requestCount.get();
+        val connections = connectionCount.get();
+        val stats = connectionManager.getTotalStats();
+
+        val result = new JSONObject();
+        result.put("requests", requests);
+        result.put("connections_opened", connections);
+        result.put("connections_reused", Math.max(0, requests - connections));
+        result.put("leased", stats.getLeased());
+        result.put("available", stats.getAvailable());
+        result.put("pending", stats.getPending());
+        result.put("max", stats.getMax());
+
+        return result;
+    }
+
+    /**
+     * Close the client and all pooled connections
+     */
+    void close() {
+        client.close();
+        try {
+            httpClient.close();
+        } catch (Exception e) {
+            logger.warn(String.format("Could not close HTTP client: %s", e.getMessage()));
+        }
+    }
+}
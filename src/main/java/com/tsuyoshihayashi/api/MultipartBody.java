@@ -0,0 +1,237 @@
+package com.tsuyoshihayashi.api;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import javax.ws.rs.core.MediaType;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Object that represents a multipart/form-data request body.
+ *
+ * Unlike Jersey FormDataMultiPart, files are not loaded into memory: they are streamed
+ * as {@link FileRegion} while the body is being written, so the memory used by an upload
+ * does not depend on the file size. The content length is known in advance,
+ * so the body can be sent in fixed length streaming mode.
+ *
+ * A file can be checksummed while it is written and the checksum sent in a field after it,
+ * so the file is read only once.
+ *
+ * @author Alexey Donov
+ */
+public final class MultipartBody {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DASHES = "--".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Single part of the body
+     */
+    private interface Part {
+        @NotNull byte[] getHeader();
+
+        long getContentLength();
+
+        void writeContentTo(@NotNull OutputStream output) throws IOException;
+    }
+
+    /**
+     * Content of a file part, written when the body is written
+     */
+    private interface Content {
+        void writeTo(@NotNull OutputStream output) throws IOException;
+    }
+
+    private final @NotNull String boundary = "RecordUploader".concat(UUID.randomUUID().toString().replace("-", ""));
+    private final @NotNull List<Part> parts = new ArrayList<>();
+
+    /**
+     * Add a text field
+     *
+     * @param name Field name
+     * @param value Field value
+     * @return This body
+     */
+    public @NotNull MultipartBody field(@NotNull String name, @NotNull String value) {
+        val header = String.format("Content-Disposition: form-data; name=\"%s\"\r\n\r\n", escape(name)).getBytes(StandardCharsets.UTF_8);
+        val content = value.getBytes(StandardCharsets.UTF_8);
+
+        parts.add(new Part() {
+            @Override
+            public @NotNull byte[] getHeader() {
+                return header;
+            }
+
+            @Override
+            public long getContentLength() {
+                return content.length;
+            }
+
+            @Override
+            public void writeContentTo(@NotNull OutputStream output) throws IOException {
+                output.write(content);
+            }
+        });
+
+        return this;
+    }
+
+    /**
+     * Add a file field
+     *
+     * @param name Field name
+     * @param file File
+     * @param contentType Content type of the file
+     * @return This body
+     */
+    public @NotNull MultipartBody file(@NotNull String name, @NotNull File file, @NotNull MediaType contentType) {
+        return file(name, file.getName(), new FileRegion(file), contentType);
+    }
+
+    /**
+     * Add a file field whose bytes are added to a checksum while they are written
+     *
+     * @param name Field name
+     * @param file File
+     * @param contentType Content type of the file
+     * @param checksum Checksum, to be sent with {@link #field(String, StreamChecksum)} after this field
+     * @return This body
+     */
+    public @NotNull MultipartBody file(@NotNull String name, @NotNull File file, @NotNull MediaType contentType, @NotNull StreamChecksum checksum) {
+        val region = new FileRegion(file);
+        return file(name, file.getName(), region.getLength(), contentType, output -> region.writeTo(checksum.tee(output)));
+    }
+
+    /**
+     * Add a file field with a part of a file
+     *
+     * @param name Field name
+     * @param fileName File name sent to the server
+     * @param region Part of the file
+     * @param contentType Content type of the file
+     * @return This body
+     */
+    public @NotNull MultipartBody file(@NotNull String name, @NotNull String fileName, @NotNull FileRegion region, @NotNull MediaType contentType) {
+        return file(name, fileName, region.getLength(), contentType, region::writeTo);
+    }
+
+    /**
+     * Add a file field with the content written by the given function
+     */
+    private @NotNull MultipartBody file(@NotNull String name, @NotNull String fileName, long length, @NotNull MediaType contentType, @NotNull Content content) {
+        val header = String.format("Content-Disposition: form-data; name=\"%s\"; filename=\"%s\"\r\nContent-Type: %s\r\n\r\n",
+            escape(name), escape(fileName), contentType).getBytes(StandardCharsets.UTF_8);
+
+        parts.add(new Part() {
+            @Override
+            public @NotNull byte[] getHeader() {
+                return header;
+            }
+
+            @Override
+            public long getContentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeContentTo(@NotNull OutputStream output) throws IOException {
+                content.writeTo(output);
+            }
+        });
+
+        return this;
+    }
+
+    /**
+     * Add a text field with the value of a checksum, taken when the field is written.
+     * The field has to follow the checksummed file field.
+     *
+     * @param name Field name
+     * @param checksum Checksum
+     * @return This body
+     */
+    public @NotNull MultipartBody field(@NotNull String name, @NotNull StreamChecksum checksum) {
+        val header = String.format("Content-Disposition: form-data; name=\"%s\"\r\n\r\n", escape(name)).getBytes(StandardCharsets.UTF_8);
+
+        parts.add(new Part() {
+            @Override
+            public @NotNull byte[] getHeader() {
+                return header;
+            }
+
+            @Override
+            public long getContentLength() {
+                return checksum.getValueLength();
+            }
+
+            @Override
+            public void writeContentTo(@NotNull OutputStream output) throws IOException {
+                output.write(checksum.getValue().getBytes(StandardCharsets.US_ASCII));
+            }
+        });
+
+        return this;
+    }
+
+    /**
+     * @return Media type with the boundary parameter
+     */
+    public @NotNull MediaType getMediaType() {
+        return new MediaType("multipart", "form-data", Collections.singletonMap("boundary", boundary));
+    }
+
+    /**
+     * @return Exact number of bytes that {@link #writeTo(OutputStream)} writes
+     */
+    public long getContentLength() {
+        val boundaryLength = boundary.getBytes(StandardCharsets.US_ASCII).length;
+        long result = 0;
+
+        for (val part : parts) {
+            result += DASHES.length + boundaryLength + CRLF.length + part.getHeader().length + part.getContentLength() + CRLF.length;
+        }
+
+        return result + DASHES.length + boundaryLength + DASHES.length + CRLF.length;
+    }
+
+    /**
+     * Write the body
+     *
+     * @param output Output stream
+     * @throws IOException if a file could not be read or the stream could not be written
+     */
+    public void writeTo(@NotNull OutputStream output) throws IOException {
+        val boundaryBytes = boundary.getBytes(StandardCharsets.US_ASCII);
+
+        for (val part : parts) {
+            output.write(DASHES);
+            output.write(boundaryBytes);
+            output.write(CRLF);
+            output.write(part.getHeader());
+            part.writeContentTo(output);
+            output.write(CRLF);
+        }
+
+        output.write(DASHES);
+        output.write(boundaryBytes);
+        output.write(DASHES);
+        output.write(CRLF);
+        output.flush();
+    }
+
+    /**
+     * Escape a value for use in a quoted header parameter
+     *
+     * @param value Parameter value
+     * @return Escaped value
+     */
+    private static @NotNull String escape(@NotNull String value) {
+        return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+}
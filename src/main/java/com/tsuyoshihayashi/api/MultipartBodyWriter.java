@@ -0,0 +1,36 @@
+package com.tsuyoshihayashi.api;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Object that lets Jersey client send {@link MultipartBody} entities.
+ * The body is streamed directly to the connection output stream, within the upload bandwidth limit.
+ *
+ * @author Alexey Donov
+ */
+public final class MultipartBodyWriter implements MessageBodyWriter<MultipartBody> {
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return MultipartBody.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(MultipartBody body, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return body.getContentLength();
+    }
+
+    @Override
+    public void writeTo(@NotNull MultipartBody body, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, @NotNull OutputStream entityStream) throws IOException, WebApplicationException {
+        body.writeTo(BandwidthLimiter.instance().limit(entityStream));
+    }
+}
@@ -0,0 +1,157 @@
+package com.tsuyoshihayashi.api;
+
+import lombok.val;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.spi.AsyncConnectorCallback;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.message.internal.Statuses;
+import org.jetbrains.annotations.NotNull;
+
+import javax.ws.rs.ProcessingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Object that sends Jersey client requests through a pooled Apache HTTP client.
+ *
+ * Request bodies are streamed: with a fixed length when the request has Content-Length header,
+ * otherwise in chunks. They are not buffered in memory to be sent.
+ * The connection is returned to the pool when the response body is read or closed.
+ * Connect and read timeouts set on a request with {@link ClientProperties} apply to that request only.
+ *
+ * @author Alexey Donov
+ */
+final class PooledConnector implements Connector {
+    private final @NotNull CloseableHttpClient httpClient;
+    private final @NotNull RequestConfig defaultConfig;
+    private final @NotNull AtomicLong requestCount;
+
+    /**
+     * @param httpClient Apache HTTP client, owned by the caller
+     * @param defaultConfig Request configuration of the HTTP client, used with the timeouts set on a request
+     * @param requestCount Counter incremented for each request
+     */
+    PooledConnector(@NotNull CloseableHttpClient httpClient, @NotNull RequestConfig defaultConfig, @NotNull AtomicLong requestCount) {
+        this.httpClient = httpClient;
+        this.defaultConfig = defaultConfig;
+        this.requestCount = requestCount;
+    }
+
+    @Override
+    public ClientResponse apply(ClientRequest request) {
+        val builder = RequestBuilder.create(request.getMethod()).setUri(request.getUri());
+
+        // Timeouts of a single request override the ones of the client
+        val connectTimeout = request.resolveProperty(ClientProperties.CONNECT_TIMEOUT, Integer.class);
+        val readTimeout = request.resolveProperty(ClientProperties.READ_TIMEOUT, Integer.class);
+        if (connectTimeout != null || readTimeout != null) {
+            val config = RequestConfig.copy(defaultConfig);
+            Optional.ofNullable(connectTimeout).ifPresent(config::setConnectTimeout);
+            Optional.ofNullable(readTimeout).ifPresent(config::setSocketTimeout);
+            builder.setConfig(config.build());
+        }
+
+        request.getStringHeaders().forEach((name, values) -> {
+            // Set by the HTTP client from the entity
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) || HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+                return;
+            }
+
+            values.forEach(value -> builder.addHeader(name, value));
+        });
+
+        if (request.hasEntity()) {
+            val contentLength = Optional.ofNullable(request.getHeaderString(HttpHeaders.CONTENT_LENGTH))
+                .map(Long::parseLong)
+                .orElse(-1L);
+
+            builder.setEntity(new AbstractHttpEntity() {
+                @Override
+                public boolean isRepeatable() {
+                    return false;
+                }
+
+                @Override
+                public long getContentLength() {
+                    return contentLength;
+                }
+
+                /**
+                 * The HTTP client sends a request entity with {@link #writeTo(OutputStream)} and does not read its content.
+                 * For anything else that does, the body is buffered. Like writing it, this can be done only once.
+                 */
+                @Override
+                public InputStream getContent() throws IOException {
+                    val buffer = new ByteArrayOutputStream();
+                    writeTo(buffer);
+                    return new ByteArrayInputStream(buffer.toByteArray());
+                }
+
+                @Override
+                public void writeTo(OutputStream output) throws IOException {
+                    request.setStreamProvider(length -> output);
+                    request.writeEntity();
+                }
+
+                @Override
+                public boolean isStreaming() {
+                    return false;
+                }
+            });
+        }
+
+        requestCount.incrementAndGet();
+
+        try {
+            val httpResponse = httpClient.execute(builder.build());
+            val statusLine = httpResponse.getStatusLine();
+
+            val response = new ClientResponse(Statuses.from(statusLine.getStatusCode(), statusLine.getReasonPhrase()), request);
+            for (val header : httpResponse.getAllHeaders()) {
+                response.getHeaders().add(header.getName(), header.getValue());
+            }
+
+            val entity = httpResponse.getEntity();
+            response.setEntityStream(entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]));
+
+            return response;
+        } catch (IOException e) {
+            throw new ProcessingException(e);
+        }
+    }
+
+    @Override
+    public Future<?> apply(ClientRequest request, AsyncConnectorCallback callback) {
+        try {
+            callback.response(apply(request));
+        } catch (Throwable e) {
+            callback.failure(e);
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public String getName() {
+        return "Pooled Apache HTTP client";
+    }
+
+    @Override
+    public void close() {
+        // The HTTP client is shared, it is closed by its owner
+    }
+}
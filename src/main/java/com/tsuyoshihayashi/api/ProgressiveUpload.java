@@ -0,0 +1,159 @@
+package com.tsuyoshihayashi.api;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import lombok.Data;
+import lombok.Getter;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Object that uploads a segment while it is being recorded.
+ *
+ * The bytes appended to the file are sent as they appear. The recorder may rewrite the beginning of the file
+ * when it closes it (MP4 box sizes, the moov atom moved to the front), so a checksum of every range sent is kept,
+ * and when the segment ends the ranges that changed are sent again before the rest of the file.
+ *
+ * @author Alexey Donov
+ */
+public final class ProgressiveUpload {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Byte range that was sent, with the checksum of its content
+     */
+    @Data
+    private static final class Range {
+        private final long offset;
+        private final long length;
+        private final long checksum;
+    }
+
+    private final @NotNull UploadEndpoint uploadEndpoint;
+    private final @NotNull String endpoint;
+    private final @NotNull String uploadId;
+    private final @NotNull File file;
+    private final @NotNull RecordSettings settings;
+    @Getter
+    private final @NotNull String idempotencyKey;
+    private final long chunkSize;
+
+    private final @NotNull List<Range> ranges = new ArrayList<>();
+    private long offset = 0;
+    private boolean finished = false;
+
+    @Getter
+    private long sentBytes = 0;
+    @Getter
+    private long resentBytes = 0;
+
+    ProgressiveUpload(@NotNull UploadEndpoint uploadEndpoint, @NotNull String endpoint, @NotNull String uploadId, @NotNull File file,
+                      @NotNull RecordSettings settings, @NotNull String idempotencyKey, long chunkSize) {
+        this.uploadEndpoint = uploadEndpoint;
+        this.endpoint = endpoint;
+        this.uploadId = uploadId;
+        this.file = file;
+        this.settings = settings;
+        this.idempotencyKey = idempotencyKey;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Send the bytes appended to the file being recorded since the last call
+     *
+     * @throws IOException if the file could not be read
+     */
+    public synchronized void sendAppended() throws IOException {
+        if (!finished) {
+            sendFrom(file, file.length(), "*");
+        }
+    }
+
+    /**
+     * Send the ranges the recorder rewrote and the rest of the file, then finish the upload.
+     * The file is deleted when API responds with a success status.
+     *
+     * @param finalFile Recorded file, possibly renamed
+     * @return Response from API as a string
+     * @throws IOException if the file could not be read
+     */
+    public synchronized @NotNull String finish(@NotNull File finalFile) throws IOException {
+        finished = true;
+
+        val length = finalFile.length();
+        for (val range : ranges) {
+            if (range.getOffset() + range.getLength() > length || checksum(finalFile, range.getOffset(), range.getLength()) != range.getChecksum()) {
+                val resent = Math.max(0, Math.min(range.getLength(), length - range.getOffset()));
+                if (resent > 0) {
+                    uploadEndpoint.putRange(endpoint, uploadId, settings, idempotencyKey, new FileRegion(finalFile, range.getOffset(), resent), "*");
+                    resentBytes += resent;
+                }
+            }
+        }
+
+        offset = Math.min(offset, length);
+        sendFrom(finalFile, length, Long.toString(length));
+
+        return uploadEndpoint.finishProgressive(endpoint, uploadId, finalFile, settings, idempotencyKey);
+    }
+
+    /**
+     * Abort the upload when the segment is not going to be uploaded, the server drops the bytes it received
+     */
+    public synchronized void abort() {
+        finished = true;
+        uploadEndpoint.abortProgressive(endpoint, uploadId, settings, idempotencyKey);
+    }
+
+    /**
+     * Send the file from the current offset in chunks
+     *
+     * @param source File to read
+     * @param length Number of bytes to send up to
+     * @param total Total size for the Content-Range header
+     */
+    private void sendFrom(@NotNull File source, long length, @NotNull String total) throws IOException {
+        while (offset < length) {
+            val chunkLength = Math.min(chunkSize, length - offset);
+            val checksum = checksum(source, offset, chunkLength);
+
+            uploadEndpoint.putRange(endpoint, uploadId, settings, idempotencyKey, new FileRegion(source, offset, chunkLength), total);
+
+            ranges.add(new Range(offset, chunkLength, checksum));
+            offset += chunkLength;
+            sentBytes += chunkLength;
+        }
+    }
+
+    /**
+     * Calculate CRC32 of a byte range of a file
+     */
+    private static long checksum(@NotNull File file, long offset, long length) throws IOException {
+        val crc = new CRC32();
+        val buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, length)));
+
+        try (val channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                val read = channel.read(buffer, offset + position);
+                if (read < 0) {
+                    break;
+                }
+                crc.update(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,323 @@
+package com.tsuyoshihayashi.api;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import com.wowza.wms.vhost.IVHost;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Object that keeps the record settings received from API by stream name, so the streams that publish again
+ * (flapping cameras, reconnects) do not ask API for the same settings every time:
+ * - Settings younger than the time to live are returned as they are
+ * - Older settings, up to the stale time, are returned as they are while they are refreshed in the background
+ * - Concurrent requests of the settings of the same stream share a single API request
+ * - Settings older than the stale time are dropped, so the streams that stopped publishing are forgotten
+ *
+ * Refreshes run on a few threads with a bounded queue. When the queue is full, the stale settings are returned
+ * without a refresh, and the next lookup tries again.
+ *
+ * @author Alexey Donov
+ */
+public final class RecordSettingsCache {
+    private static final String TTL_KEY = "settingsCacheTtl";
+    private static final String STALE_TTL_KEY = "settingsCacheStaleTtl";
+
+    private static final long DEFAULT_TTL = 60;
+    private static final long DEFAULT_STALE_TTL = 600;
+
+    private static final int REFRESH_THREADS = 2;
+    private static final int REFRESH_QUEUE_SIZE = 100;
+
+    /**
+     * Settings of a stream with the parameters they were requested with
+     */
+    private static final class Entry {
+        private final @NotNull RecordSettings settings;
+        private final @NotNull List<String> query;
+        private final long loaded;
+
+        private Entry(@NotNull RecordSettings settings, @NotNull List<String> query, long loaded) {
+            this.settings = settings;
+            this.query = query;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * Instances by VHost name
+     */
+    private static final @NotNull Map<String, RecordSettingsCache> instances = new ConcurrentHashMap<>();
+
+    /**
+     * Get the instance of a VHost. It is created by the first call, configured by the VHost properties.
+     *
+     * @param host VHost
+     * @return Instance of the VHost
+     */
+    public static @NotNull RecordSettingsCache instance(@NotNull IVHost host) {
+        return instances.computeIfAbsent(host.getName(), name -> {
+            val hostProperties = host.getProperties();
+            val ttl = TimeUnit.SECONDS.toNanos(Math.max(0, hostProperties.getPropertyLong(TTL_KEY, DEFAULT_TTL)));
+            val staleTtl = TimeUnit.SECONDS.toNanos(Math.max(0, hostProperties.getPropertyLong(STALE_TTL_KEY, DEFAULT_STALE_TTL)));
+
+            return new RecordSettingsCache(ttl, Math.max(ttl, staleTtl));
+        });
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(RecordSettingsCache.class);
+
+    private final long ttl;
+    private final long staleTtl;
+
+    private final @NotNull Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Requests in progress by stream name and parameters, shared by the concurrent lookups
+     */
+    private final @NotNull Map<List<Object>, CompletableFuture<RecordSettings>> loads = new ConcurrentHashMap<>();
+
+    private final @NotNull ThreadPoolExecutor refreshExecutor;
+
+    /**
+     * Time of the last removal of the expired settings, as returned by {@link System#nanoTime()}
+     */
+    private final @NotNull AtomicLong sweptAt = new AtomicLong(System.nanoTime());
+
+    private final @NotNull AtomicLong hitCount = new AtomicLong();
+    private final @NotNull AtomicLong staleHitCount = new AtomicLong();
+    private final @NotNull AtomicLong missCount = new AtomicLong();
+    private final @NotNull AtomicLong coalescedCount = new AtomicLong();
+    private final @NotNull AtomicLong refreshCount = new AtomicLong();
+    private final @NotNull AtomicLong invalidationCount = new AtomicLong();
+    private final @NotNull AtomicLong expirationCount = new AtomicLong();
+    private final @NotNull AtomicLong skippedRefreshCount = new AtomicLong();
+
+    /**
+     * @param ttl Time the settings are returned without asking API, in nanoseconds
+     * @param staleTtl Time the settings are returned while they are refreshed, in nanoseconds
+     */
+    RecordSettingsCache(long ttl, long staleTtl) {
+        this.ttl = ttl;
+        this.staleTtl = staleTtl;
+
+        val threadCounter = new AtomicInteger();
+        this.refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 1, TimeUnit.MINUTES,
+            new LinkedBlockingQueue<>(REFRESH_QUEUE_SIZE), runnable -> {
+                val thread = new Thread(runnable, String.format("settings-refresh-%d", threadCounter.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.refreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the settings of a stream, asking API only when the cached settings are too old
+     *
+     * @param streamName Stream name
+     * @param query Parameters of the API request, kept with the settings
+     * @param loader API request
+     * @return Record settings
+     * @throws RuntimeException if the API request failed
+     */
+    @NotNull RecordSettings get(@NotNull String streamName, @NotNull List<String> query, @NotNull Supplier<RecordSettings> loader) {
+        return get(streamName, query, loader, System.nanoTime());
+    }
+
+    @NotNull RecordSettings get(@NotNull String streamName, @NotNull List<String> query, @NotNull Supplier<RecordSettings> loader, long now) {
+        val entry = entries.get(streamName);
+        if (entry != null) {
+            val age = now - entry.loaded;
+            if (age < ttl) {
+                hitCount.incrementAndGet();
+                return entry.settings;
+            }
+
+            if (age < staleTtl) {
+                staleHitCount.incrementAndGet();
+                refresh(streamName, query, loader);
+                return entry.settings;
+            }
+        }
+
+        missCount.incrementAndGet();
+        try {
+            return load(streamName, query, loader, null).join();
+        } catch (CompletionException e) {
+            // Rethrow the exception of the API request, not wrapped
+            val cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+        }
+    }
+
+    /**
+     * Ask API for the settings, or join the request already in progress for the stream
+     *
+     * @param streamName Stream name
+     * @param query Parameters of the API request
+     * @param loader API request
+     * @param executor Executor of the request, null to run it in the calling thread
+     * @return Future settings
+     */
+    private @NotNull CompletableFuture<RecordSettings> load(@NotNull String streamName, @NotNull List<String> query,
+                                                            @NotNull Supplier<RecordSettings> loader, @Nullable ExecutorService executor) {
+        val key = Arrays.<Object>asList(streamName, query);
+        val future = new CompletableFuture<RecordSettings>();
+        val running = loads.putIfAbsent(key, future);
+        if (running != null) {
+            coalescedCount.incrementAndGet();
+            return running;
+        }
+
+        final Runnable request = () -> {
+            try {
+                val settings = loader.get();
+                store(streamName, new Entry(settings, query, System.nanoTime()));
+                future.complete(settings);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                loads.remove(key, future);
+            }
+        };
+
+        if (executor != null) {
+            try {
+                executor.execute(request);
+            } catch (RejectedExecutionException e) {
+                loads.remove(key, future);
+                future.completeExceptionally(e);
+            }
+        } else {
+            request.run();
+        }
+
+        return future;
+    }
+
+    /**
+     * Keep the settings received without a lookup, when they were requested for many streams at once
+     *
+     * @param streamName Stream name
+     * @param query Parameters of the API request
+     * @param settings Record settings
+     */
+    void put(@NotNull String streamName, @NotNull List<String> query, @NotNull RecordSettings settings) {
+        store(streamName, new Entry(settings, query, System.nanoTime()));
+    }
+
+    /**
+     * Keep the settings of a stream. Once per stale time, the settings that are older than it are dropped.
+     *
+     * @param streamName Stream name
+     * @param entry Settings
+     */
+    private void store(@NotNull String streamName, @NotNull Entry entry) {
+        entries.put(streamName, entry);
+
+        val swept = sweptAt.get();
+        if (entry.loaded - swept >= staleTtl && sweptAt.compareAndSet(swept, entry.loaded)) {
+            expire(entry.loaded);
+        }
+    }
+
+    /**
+     * Drop the settings that are too old to be returned
+     *
+     * @param now Current time in nanoseconds
+     */
+    void expire(long now) {
+        entries.forEach((streamName, entry) -> {
+            if (now - entry.loaded > staleTtl && entries.remove(streamName, entry)) {
+                expirationCount.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Check whether the cache has the settings of a stream that can be returned without asking API
+     *
+     * @param streamName Stream name
+     * @return true if the settings are younger than the time to live
+     */
+    boolean contains(@NotNull String streamName) {
+        val entry = entries.get(streamName);
+        return entry != null && System.nanoTime() - entry.loaded < ttl;
+    }
+
+    /**
+     * Refresh the stale settings in the background, keeping them if the API request fails
+     */
+    private void refresh(@NotNull String streamName, @NotNull List<String> query, @NotNull Supplier<RecordSettings> loader) {
+        if (loads.containsKey(Arrays.<Object>asList(streamName, query))) {
+            return;
+        }
+
+        refreshCount.incrementAndGet();
+        load(streamName, query, loader, refreshExecutor).whenComplete((settings, t) -> {
+            if (t instanceof RejectedExecutionException) {
+                skippedRefreshCount.incrementAndGet();
+            } else if (t != null) {
+                logger.warn(String.format("Could not refresh record settings of %s: %s", streamName, t.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Forget the settings of a stream if they were requested with other parameters
+     *
+     * @param streamName Stream name
+     * @param query Parameters of the API request that is going to be made
+     * @return true if the settings were forgotten
+     */
+    boolean invalidate(@NotNull String streamName, @NotNull List<String> query) {
+        val entry = entries.get(streamName);
+        if (entry == null || entry.query.equals(query) || !entries.remove(streamName, entry)) {
+            return false;
+        }
+
+        invalidationCount.incrementAndGet();
+        logger.info(String.format("Record settings of %s are requested with other parameters, asking API again", streamName));
+
+        return true;
+    }
+
+    /**
+     * Create a JSON object describing the cache
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull JSONObject status() {
+        val result = new JSONObject();
+        result.put("streams", entries.size());
+        result.put("hits", hitCount.get());
+        result.put("stale_hits", staleHitCount.get());
+        result.put("misses", missCount.get());
+        result.put("coalesced", coalescedCount.get());
+        result.put("refreshes", refreshCount.get());
+        result.put("invalidations", invalidationCount.get());
+        result.put("expirations", expirationCount.get());
+        result.put("skipped_refreshes", skippedRefreshCount.get());
+
+        return result;
+    }
+}
@@ -3,24 +3,60 @@ package com.tsuyoshihayashi.api;
 import com.tsuyoshihayashi.model.AliasProvider;
 import com.tsuyoshihayashi.model.CameraInfo;
 import com.tsuyoshihayashi.model.RecordSettings;
+import com.tsuyoshihayashi.model.RecordSettingsDecoder;
 import com.tsuyoshihayashi.model.TextAction;
 import com.wowza.wms.logging.WMSLogger;
 import com.wowza.wms.logging.WMSLoggerFactory;
 import com.wowza.wms.stream.IMediaStream;
+import com.wowza.wms.vhost.IVHost;
 import lombok.val;
+import org.glassfish.jersey.client.ClientProperties;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.ParseException;
 
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-
-import static com.tsuyoshihayashi.model.RecordSettings.fromJSON;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
- * Record settings API endpoint
+ * Record settings API endpoint.
+ *
+ * When a cache is given, the settings are requested from API only when the cached settings of the stream are too old.
+ * Asynchronous requests run on threads of the endpoint, so the caller (the publish notification) is not blocked by a slow API.
+ *
+ * When API fails or does not respond, the last settings received for the stream are used, if a settings store is given.
+ * A circuit breaker stops asking API while most of the requests fail, the stored settings are used meanwhile.
+ * The settings of a stream that API refuses are removed from the store.
+ *
+ * The settings requests stop reading a response after the timeout. An asynchronous request of a stream without stored settings
+ * is repeated once when API fails, and its future is completed when the settings arrive, even after the timeout.
+ * Asynchronous requests wait for a thread in a bounded queue, they fail at once when it is full.
+ *
+ * The settings of many streams can be prefetched into the cache, asking API for them in batches
+ * when it supports that, so the streams that publish right after a restart do not wait for API.
  *
  * @author Alexey Donov
  */
@@ -29,21 +65,261 @@ public final class RecordSettingsEndpoint extends Endpoint {
     private static final String API_TITLE_PARAMETER_NAME = "title";
     private static final String API_COMMENT_PARAMETER_NAME = "comment";
     private static final String API_ACTION_PARAMETER_NAME = "act";
+    private static final String API_BATCH_STREAM_NAME_PARAMETER_NAME = "n[]";
+
+    private static final String API_ENDPOINT_KEY = "apiEndpoint";
+    private static final String UPLOAD_REFERER_KEY = "uploadReferer";
+    private static final String TIMEOUT_KEY = "settingsTimeout";
+    private static final String STORE_PATH_KEY = "settingsStorePath";
+    private static final String CIRCUIT_WINDOW_KEY = "settingsCircuitWindow";
+    private static final String CIRCUIT_MINIMUM_REQUESTS_KEY = "settingsCircuitMinimumRequests";
+    private static final String CIRCUIT_FAILURE_RATE_KEY = "settingsCircuitFailureRate";
+    private static final String CIRCUIT_OPEN_TIME_KEY = "settingsCircuitOpenTime";
+    private static final String PREFETCH_BATCH_SIZE_KEY = "settingsPrefetchBatchSize";
+
+    private static final long DEFAULT_TIMEOUT = 10000;
+    private static final String DEFAULT_STORE_PATH = "/usr/local/WowzaStreamingEngine/settings-store";
+    private static final int DEFAULT_CIRCUIT_WINDOW = 20;
+    private static final int DEFAULT_CIRCUIT_MINIMUM_REQUESTS = 10;
+    private static final int DEFAULT_CIRCUIT_FAILURE_RATE = 50;
+    private static final long DEFAULT_CIRCUIT_OPEN_TIME = 30;
+    private static final int DEFAULT_PREFETCH_BATCH_SIZE = 100;
+
+    /**
+     * Parameters of the settings requests without title, comment and text action
+     */
+    private static final List<String> PLAIN_QUERY = Arrays.asList(null, null, null);
+
+    private static final int IO_THREADS = 16;
+
+    /**
+     * Maximum number of the asynchronous requests waiting for a thread
+     */
+    private static final int IO_QUEUE_SIZE = 1000;
+
+    /**
+     * Number of the attempts of an asynchronous request of a stream without stored settings
+     */
+    private static final int ASYNC_ATTEMPTS = 2;
+
+    /**
+     * Instances by VHost name
+     */
+    private static final @NotNull Map<String, RecordSettingsEndpoint> instances = new ConcurrentHashMap<>();
+
+    /**
+     * Get the instance of a VHost. It is created by the first call, configured by the VHost properties.
+     *
+     * @param host VHost
+     * @return Instance of the VHost
+     */
+    public static @NotNull RecordSettingsEndpoint instance(@NotNull IVHost host) {
+        return instances.computeIfAbsent(host.getName(), name -> {
+            val hostProperties = host.getProperties();
+            val timeout = Math.max(0, hostProperties.getPropertyLong(TIMEOUT_KEY, DEFAULT_TIMEOUT));
+
+            // Failure rate is configured in percent, open time in seconds
+            val circuitBreaker = new CircuitBreaker("record settings API",
+                hostProperties.getPropertyInt(CIRCUIT_WINDOW_KEY, DEFAULT_CIRCUIT_WINDOW),
+                hostProperties.getPropertyInt(CIRCUIT_MINIMUM_REQUESTS_KEY, DEFAULT_CIRCUIT_MINIMUM_REQUESTS),
+                Math.min(100, Math.max(1, hostProperties.getPropertyInt(CIRCUIT_FAILURE_RATE_KEY, DEFAULT_CIRCUIT_FAILURE_RATE))) / 100.0,
+                TimeUnit.SECONDS.toMillis(Math.max(1, hostProperties.getPropertyLong(CIRCUIT_OPEN_TIME_KEY, DEFAULT_CIRCUIT_OPEN_TIME))));
+
+            val storePath = hostProperties.getPropertyStr(STORE_PATH_KEY, DEFAULT_STORE_PATH);
+            val settingsStore = storePath.isEmpty() ? null : new SettingsStore(new File(storePath));
+
+            return new RecordSettingsEndpoint(HttpClientFactory.apiInstance(host).getClient(),
+                hostProperties.getPropertyStr(API_ENDPOINT_KEY), hostProperties.getPropertyStr(UPLOAD_REFERER_KEY, ""),
+                RecordSettingsCache.instance(host), timeout, circuitBreaker, settingsStore,
+                hostProperties.getPropertyInt(PREFETCH_BATCH_SIZE_KEY, DEFAULT_PREFETCH_BATCH_SIZE));
+        });
+    }
 
     private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(RecordSettingsEndpoint.class);
 
     private final @NotNull String endpoint;
     private final @NotNull String referer;
+    private final @Nullable RecordSettingsCache cache;
+    private final long timeout;
+    private final @Nullable CircuitBreaker circuitBreaker;
+    private final @Nullable SettingsStore settingsStore;
+    private final int batchSize;
+
+    /**
+     * Whether API answered a batch request, cleared when it did not understand one
+     */
+    private volatile boolean batchSupported = true;
+
+    /**
+     * Threads of the asynchronous requests, created on demand
+     */
+    private final @NotNull ThreadPoolExecutor ioExecutor;
+
+    /**
+     * Timer that fails the asynchronous requests that take too long
+     */
+    private final @NotNull ScheduledExecutorService timeoutTimer;
+
+    public RecordSettingsEndpoint(@NotNull Client client, @NotNull String endpoint, @NotNull String referer) {
+        this(client, endpoint, referer, null, DEFAULT_TIMEOUT, null, null, 1);
+    }
+
+    /**
+     * @param client HTTP client
+     * @param endpoint API URL
+     * @param referer Referer domain name sent with the uploads
+     * @param cache Cache of the record settings, null to ask API every time
+     * @param timeout Time to wait for an asynchronous request in milliseconds, 0 for no limit
+     * @param circuitBreaker Circuit breaker of the API requests, null to always ask API
+     * @param settingsStore Store of the last received settings used when API fails, null to fail
+     * @param batchSize Maximum number of streams in a prefetch request, 1 to prefetch every stream with its own request
+     */
+    public RecordSettingsEndpoint(@NotNull Client client, @NotNull String endpoint, @NotNull String referer, @Nullable RecordSettingsCache cache,
+                                  long timeout, @Nullable CircuitBreaker circuitBreaker, @Nullable SettingsStore settingsStore, int batchSize) {
+        super(client);
 
-    public RecordSettingsEndpoint(@NotNull String endpoint, @NotNull String referer) {
         this.endpoint = endpoint;
         this.referer = referer;
+        this.cache = cache;
+        this.timeout = timeout;
+        this.circuitBreaker = circuitBreaker;
+        this.settingsStore = settingsStore;
+        this.batchSize = Math.max(1, batchSize);
+
+        val threadCounter = new AtomicInteger();
+        this.ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(IO_QUEUE_SIZE), runnable -> {
+            val thread = new Thread(runnable, String.format("settings-io-%d", threadCounter.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ioExecutor.allowCoreThreadTimeOut(true);
+
+        this.timeoutTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            val thread = new Thread(runnable, "settings-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
+    /**
+     * Get record settings for the stream, from the cache if it has them
+     *
+     * @param stream Stream object
+     * @param title Title of the recording
+     * @param comment Comment of the recording
+     * @param textAction Text action
+     * @return Record settings object
+     */
     public @NotNull RecordSettings getRecordSettings(@NotNull IMediaStream stream, @Nullable String title, @Nullable String comment, @Nullable String textAction) {
+        return getRecordSettings(stream.getName(), title, comment, textAction);
+    }
+
+    private @NotNull RecordSettings getRecordSettings(@NotNull String streamName, @Nullable String title, @Nullable String comment,
+                                                      @Nullable String textAction) {
+        if (cache == null) {
+            return requestWithFallback(streamName, title, comment, textAction);
+        }
+
+        return cache.get(streamName, Arrays.asList(title, comment, textAction), () -> requestWithFallback(streamName, title, comment, textAction));
+    }
+
+    /**
+     * Ask API for the settings through the circuit breaker, using the stored settings when API fails
+     */
+    private @NotNull RecordSettings requestWithFallback(@NotNull String streamName, @Nullable String title, @Nullable String comment,
+                                                        @Nullable String textAction) {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            return fallback(streamName, new IllegalStateException("Record settings API circuit is open"));
+        }
+
+        try {
+            val settings = requestRecordSettings(streamName, title, comment, textAction);
+            Optional.ofNullable(circuitBreaker).ifPresent(CircuitBreaker::success);
+            Optional.ofNullable(settingsStore).ifPresent(store -> store.save(streamName, settings));
+
+            return settings;
+        } catch (RuntimeException e) {
+            if (!isApiFailure(e)) {
+                // API is working, it refused the request, the stream must not be recorded with its old settings
+                Optional.ofNullable(circuitBreaker).ifPresent(CircuitBreaker::success);
+                Optional.ofNullable(settingsStore).ifPresent(store -> store.delete(streamName));
+                throw e;
+            }
+
+            Optional.ofNullable(circuitBreaker).ifPresent(CircuitBreaker::failure);
+            return fallback(streamName, e);
+        }
+    }
+
+    /**
+     * Get the last settings received for the stream instead of a failed request
+     *
+     * @param streamName Stream name
+     * @param e Failure of the request, thrown if there are no stored settings
+     * @return Stored record settings
+     */
+    private @NotNull RecordSettings fallback(@NotNull String streamName, @NotNull RuntimeException e) {
+        val settings = stored(streamName, e.getMessage());
+        if (settings == null) {
+            throw e;
+        }
+
+        return settings;
+    }
+
+    /**
+     * Get the last settings received for the stream
+     *
+     * @param streamName Stream name
+     * @param reason Why API did not give the settings
+     * @return Stored record settings or null if there are none
+     */
+    private @Nullable RecordSettings stored(@NotNull String streamName, @Nullable String reason) {
+        val settings = settingsStore != null ? settingsStore.load(streamName) : null;
+        if (settings != null) {
+            logger.warn(String.format("Using the last known record settings of %s: %s", streamName, reason));
+        }
+
+        return settings;
+    }
+
+    /**
+     * Check whether a request failed because API is not available, as opposed to API refusing the request
+     *
+     * @param e Request exception
+     * @return true for network errors, timeouts, unreadable responses, 5xx and 429 responses,
+     * false for other error responses and for the responses without full settings
+     */
+    static boolean isApiFailure(@NotNull RuntimeException e) {
+        if (e instanceof WebApplicationException) {
+            val status = ((WebApplicationException) e).getResponse().getStatus();
+            return status >= 500 || status == 429;
+        }
+
+        // API answered, but not with the settings of the stream
+        return !(e instanceof IllegalArgumentException);
+    }
+
+    /**
+     * Forget the cached settings of the stream if they were requested with other parameters,
+     * so the next request asks API with the new ones
+     *
+     * @param streamName Stream name
+     * @param title Title of the recording
+     * @param comment Comment of the recording
+     * @param textAction Text action
+     */
+    public void invalidate(@NotNull String streamName, @Nullable String title, @Nullable String comment, @Nullable String textAction) {
+        if (cache != null) {
+            cache.invalidate(streamName, Arrays.asList(title, comment, textAction));
+        }
+    }
+
+    private @NotNull RecordSettings requestRecordSettings(@NotNull String streamName, @Nullable String title, @Nullable String comment,
+                                                          @Nullable String textAction) {
         try {
             WebTarget target = client.target(endpoint)
-                .queryParam(API_STREAM_NAME_PARAMETER_NAME, stream.getName());
+                .queryParam(API_STREAM_NAME_PARAMETER_NAME, streamName);
 
             if (textAction != null) {
                 target = target.queryParam(API_ACTION_PARAMETER_NAME, textAction);
@@ -57,29 +333,299 @@ public final class RecordSettingsEndpoint extends Endpoint {
 
             logger.info(String.format("API Request URL: %s", target.getUri()));
 
-            val responseText = target.request().get(String.class);
+            // The settings are read from the response as it arrives
+            try (val response = request(target).get(InputStream.class)) {
+                val settings = RecordSettingsDecoder.decode(response, referer);
+
+                logger.info(String.format("Record settings: %s", settings));
+
+                return settings;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Create a request that stops reading the response after the timeout
+     *
+     * @param target Request target
+     * @return Request builder
+     */
+    private @NotNull Invocation.Builder request(@NotNull WebTarget target) {
+        val request = target.request();
+        if (timeout > 0) {
+            request.property(ClientProperties.READ_TIMEOUT, (int) Math.min(Integer.MAX_VALUE, timeout));
+        }
 
-            logger.info(String.format("API Response: %s", responseText));
+        return request;
+    }
 
-            val response = (JSONObject) parser.parse(responseText);
-            val settings = fromJSON(response, referer);
+    /**
+     * Ask API to return record settings for the stream without blocking the calling thread.
+     *
+     * When API does not respond in time, the future is completed with the stored settings of the stream.
+     * Without stored settings, it is completed when API responds, the request of a stream not known before
+     * is repeated once if API fails.
+     *
+     * @param appInstanceName Application instance name of the stream
+     * @param stream Stream object
+     * @return Future record settings, failed if API refused the stream or did not give the settings
+     */
+    public @NotNull CompletableFuture<RecordSettings> getRecordSettingsAsync(@NotNull String appInstanceName, @NotNull IMediaStream stream) {
+        val streamName = stream.getName();
+        val result = new CompletableFuture<RecordSettings>();
+        val started = new AtomicBoolean();
 
-            logger.info(String.format("Record settings: %s", settings));
+        try {
+            ioExecutor.execute(() -> {
+                // Already answered with the stored settings while waiting for a thread
+                if (result.isDone()) {
+                    return;
+                }
 
-            return settings;
-        } catch (ParseException e) {
-            throw new RuntimeException(e);
+                started.set(true);
+                requestAsync(appInstanceName, streamName, result);
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn(String.format("Too many record settings requests waiting, not asking API for %s", streamName));
+            val settings = stored(streamName, "too many requests waiting");
+            if (settings != null) {
+                result.complete(settings);
+            } else {
+                result.completeExceptionally(e);
+            }
+
+            return result;
+        }
+
+        if (timeout > 0) {
+            val timer = timeoutTimer.schedule(() -> timedOut(streamName, result, started.get()), timeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((settings, t) -> timer.cancel(false));
+        }
+
+        return result;
+    }
+
+    /**
+     * Ask API for the settings of a stream on a thread of the endpoint, repeating the request of a stream without stored settings
+     *
+     * @param appInstanceName Application instance name of the stream
+     * @param streamName Stream name
+     * @param result Future record settings
+     */
+    private void requestAsync(@NotNull String appInstanceName, @NotNull String streamName, @NotNull CompletableFuture<RecordSettings> result) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                result.complete(getRecordSettings(appInstanceName, streamName));
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= ASYNC_ATTEMPTS || result.isDone() || !isApiFailure(e) || (circuitBreaker != null && circuitBreaker.getState() == CircuitBreaker.State.OPEN)) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+
+                logger.warn(String.format("Could not get record settings of %s, asking API again: %s", streamName, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Use the stored settings when API did not respond in time. Without them, the settings are waited for.
+     *
+     * @param streamName Stream name
+     * @param result Future record settings
+     * @param started Whether the request was sent, it is counted by the circuit breaker when it fails
+     */
+    private void timedOut(@NotNull String streamName, @NotNull CompletableFuture<RecordSettings> result, boolean started) {
+        if (result.isDone()) {
+            return;
+        }
+
+        if (!started) {
+            // The request is still waiting for a thread, API is too slow for the streams being published
+            Optional.ofNullable(circuitBreaker).ifPresent(CircuitBreaker::failure);
+        }
+
+        val reason = String.format("no response in %d ms", timeout);
+        val settings = stored(streamName, reason);
+        if (settings != null) {
+            result.complete(settings);
+        } else {
+            logger.warn(String.format("No record settings for %s in %d ms, the stream is recorded when they arrive", streamName, timeout));
+        }
+    }
+
+    /**
+     * Ask API for the settings of a stream in the background, so they are cached when the stream publishes
+     *
+     * @param appInstanceName Application instance name of the stream
+     * @param streamName Stream name
+     */
+    public void prefetch(@NotNull String appInstanceName, @NotNull String streamName) {
+        execute(() -> {
+            try {
+                getRecordSettings(appInstanceName, streamName);
+            } catch (Exception e) {
+                logger.warn(String.format("Could not prefetch record settings of %s: %s", streamName, e.getMessage()));
+            }
+        }, streamName);
+    }
+
+    /**
+     * Ask API for the settings of many streams in the background, in batches if API supports that.
+     * Streams with the settings in the cache are skipped.
+     *
+     * @param appInstanceName Application instance name of the streams
+     * @param streamNames Stream names
+     */
+    public void prefetch(@NotNull String appInstanceName, @NotNull Collection<String> streamNames) {
+        val names = streamNames.stream()
+            .distinct()
+            .filter(name -> cache == null || !cache.contains(name))
+            .collect(Collectors.toList());
+        if (names.isEmpty()) {
+            return;
+        }
+
+        logger.info(String.format("Prefetching record settings of %d streams", names.size()));
+
+        for (int i = 0; i < names.size(); i += batchSize) {
+            val batch = names.subList(i, Math.min(names.size(), i + batchSize));
+            execute(() -> prefetchBatch(appInstanceName, batch), String.format("%d streams", batch.size()));
         }
     }
 
+    /**
+     * Run a prefetch on a thread of the endpoint, skipping it when too many requests are waiting
+     *
+     * @param task Prefetch task
+     * @param description What is prefetched, for the log
+     */
+    private void execute(@NotNull Runnable task, @NotNull String description) {
+        try {
+            ioExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.warn(String.format("Too many record settings requests waiting, not prefetching %s", description));
+        }
+    }
+
+    /**
+     * Prefetch the settings of the streams that have stored settings, which are the streams recorded before
+     *
+     * @param appInstanceName Application instance name the streams are published to
+     */
+    public void prefetchStored(@NotNull String appInstanceName) {
+        Optional.ofNullable(settingsStore).map(SettingsStore::streamNames).ifPresent(streamNames -> prefetch(appInstanceName, streamNames));
+    }
+
+    private void prefetchBatch(@NotNull String appInstanceName, @NotNull List<String> streamNames) {
+        if (cache == null || !batchSupported || streamNames.size() == 1) {
+            streamNames.forEach(streamName -> prefetch(appInstanceName, streamName));
+            return;
+        }
+
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            logger.info(String.format("Record settings API circuit is open, not prefetching %d streams", streamNames.size()));
+            return;
+        }
+
+        final Map<String, RecordSettings> result;
+        try {
+            result = requestBatch(streamNames);
+            Optional.ofNullable(circuitBreaker).ifPresent(CircuitBreaker::success);
+        } catch (RuntimeException e) {
+            if (isApiFailure(e)) {
+                Optional.ofNullable(circuitBreaker).ifPresent(CircuitBreaker::failure);
+                logger.warn(String.format("Could not prefetch record settings of %d streams: %s", streamNames.size(), e.getMessage()));
+                return;
+            }
+
+            // API refused or did not understand the request
+            Optional.ofNullable(circuitBreaker).ifPresent(CircuitBreaker::success);
+            disableBatches(appInstanceName, streamNames, e.getMessage());
+            return;
+        }
+
+        if (result.isEmpty()) {
+            disableBatches(appInstanceName, streamNames, "no settings in the response");
+            return;
+        }
+
+        result.forEach((streamName, settings) -> {
+            cache.put(streamName, PLAIN_QUERY, settings);
+            Optional.ofNullable(settingsStore).ifPresent(store -> store.save(streamName, settings));
+        });
+
+        logger.info(String.format("Prefetched record settings of %d of %d streams", result.size(), streamNames.size()));
+    }
+
+    private void disableBatches(@NotNull String appInstanceName, @NotNull List<String> streamNames, @Nullable String reason) {
+        batchSupported = false;
+        logger.warn(String.format("Record settings API does not support batch requests (%s), prefetching streams one by one", reason));
+        streamNames.forEach(streamName -> prefetch(appInstanceName, streamName));
+    }
+
+    /**
+     * Ask API for the settings of many streams in a single request.
+     * The response is a JSON object with the settings of every known stream by stream name.
+     *
+     * @param streamNames Stream names
+     * @return Record settings by stream name, streams unknown to API are missing
+     */
+    private @NotNull Map<String, RecordSettings> requestBatch(@NotNull List<String> streamNames) {
+        WebTarget target = client.target(endpoint);
+        for (val streamName : streamNames) {
+            target = target.queryParam(API_BATCH_STREAM_NAME_PARAMETER_NAME, streamName);
+        }
+
+        logger.info(String.format("API Batch Request URL: %s", target.getUri()));
+
+        try (val response = request(target).get(InputStream.class)) {
+            val result = RecordSettingsDecoder.decodeAll(response, referer);
+            result.keySet().retainAll(streamNames);
+
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Create a JSON object describing the circuit breaker, the cache and the stored settings
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull JSONObject status() {
+        val result = new JSONObject();
+        Optional.ofNullable(circuitBreaker).ifPresent(breaker -> result.put("circuit", breaker.status()));
+        Optional.ofNullable(cache).ifPresent(settingsCache -> result.put("cache", settingsCache.status()));
+        Optional.ofNullable(settingsStore).ifPresent(store -> result.put("store", store.status()));
+
+        return result;
+    }
+
     /**
      * Ask API to return record settings for the stream
      *
+     * @param appInstanceName Application instance name of the stream
      * @param stream Stream object
      * @return Record settings object
      */
-    public @NotNull RecordSettings getRecordSettings(@NotNull IMediaStream stream) {
-        val cameraInfo = AliasProvider.instance().getCameraInfo(stream.getName());
+    public @NotNull RecordSettings getRecordSettings(@NotNull String appInstanceName, @NotNull IMediaStream stream) {
+        return getRecordSettings(appInstanceName, stream.getName());
+    }
+
+    /**
+     * Ask API to return record settings for the stream, with the parameters of its camera
+     *
+     * @param appInstanceName Application instance name of the stream
+     * @param streamName Stream name
+     * @return Record settings object
+     */
+    private @NotNull RecordSettings getRecordSettings(@NotNull String appInstanceName, @NotNull String streamName) {
+        val cameraInfo = AliasProvider.instance().getCameraInfo(appInstanceName, streamName);
 
         val textAction = Optional.ofNullable(cameraInfo)
             .map(CameraInfo::getTextAction)
@@ -95,6 +641,6 @@ public final class RecordSettingsEndpoint extends Endpoint {
             .map(CameraInfo::getComment)
             .orElse(null);
 
-        return getRecordSettings(stream, title, comment, textAction);
+        return getRecordSettings(streamName, title, comment, textAction);
     }
 }
@@ -0,0 +1,184 @@
+package com.tsuyoshihayashi.api;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Object that keeps the last record settings received from API for every stream on the disk,
+ * so the streams can be recorded with them while API is not available, also after a restart.
+ *
+ * Settings of a stream are kept in a JSON file named after the stream. A file is written only when the settings change.
+ *
+ * @author Alexey Donov
+ */
+public final class SettingsStore {
+    private static final String SETTINGS_KEY = "settings";
+    private static final String REFERER_KEY = "referer";
+    private static final String SUFFIX = ".json";
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(SettingsStore.class);
+
+    private final @NotNull File directory;
+
+    /**
+     * Settings known so far by stream name, read from the disk on first use
+     */
+    private final @NotNull Map<String, RecordSettings> settingsByStream = new ConcurrentHashMap<>();
+
+    private final @NotNull AtomicLong fallbackCount = new AtomicLong();
+
+    /**
+     * @param directory Directory of the settings files
+     */
+    public SettingsStore(@NotNull File directory) {
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error(String.format("Could not create record settings directory %s", directory));
+        }
+    }
+
+    /**
+     * Keep the settings received from API
+     *
+     * @param streamName Stream name
+     * @param settings Record settings
+     */
+    @SuppressWarnings("unchecked")
+    public void save(@NotNull String streamName, @NotNull RecordSettings settings) {
+        val previous = settingsByStream.put(streamName, settings);
+        if (settings.equals(previous)) {
+            return;
+        }
+
+        val json = new JSONObject();
+        json.put(SETTINGS_KEY, settings.toJSON());
+        json.put(REFERER_KEY, settings.getReferer());
+
+        try {
+            val file = file(streamName);
+            val temporary = new File(directory, file.getName().concat(".tmp"));
+            Files.write(temporary.toPath(), json.toJSONString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn(String.format("Could not save record settings of %s: %s", streamName, e.getMessage()));
+        }
+    }
+
+    /**
+     * Get the last settings received from API for a stream, to be used instead of a failed request
+     *
+     * @param streamName Stream name
+     * @return Record settings or null if they were never received
+     */
+    public @Nullable RecordSettings load(@NotNull String streamName) {
+        RecordSettings settings = settingsByStream.get(streamName);
+        if (settings == null) {
+            settings = read(streamName);
+            if (settings != null) {
+                settingsByStream.putIfAbsent(streamName, settings);
+            }
+        }
+
+        if (settings != null) {
+            fallbackCount.incrementAndGet();
+        }
+
+        return settings;
+    }
+
+    /**
+     * Forget the settings of a stream that API no longer gives settings for
+     *
+     * @param streamName Stream name
+     */
+    public void delete(@NotNull String streamName) {
+        settingsByStream.remove(streamName);
+
+        try {
+            Files.deleteIfExists(file(streamName).toPath());
+        } catch (IOException e) {
+            logger.warn(String.format("Could not delete record settings of %s: %s", streamName, e.getMessage()));
+        }
+    }
+
+    /**
+     * Get the names of the streams that have stored settings
+     *
+     * @return Stream names
+     */
+    public @NotNull List<String> streamNames() {
+        val files = Optional.ofNullable(directory.listFiles((dir, name) -> name.endsWith(SUFFIX))).orElse(new File[0]);
+        val result = new ArrayList<String>(files.length);
+        for (val file : files) {
+            val name = file.getName();
+            try {
+                result.add(URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), StandardCharsets.UTF_8.name()));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                logger.warn(String.format("Unexpected record settings file %s", name));
+            }
+        }
+
+        return result;
+    }
+
+    private @Nullable RecordSettings read(@NotNull String streamName) {
+        val file = file(streamName);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            val json = (JSONObject) new JSONParser().parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            return RecordSettings.fromJSON((JSONObject) json.get(SETTINGS_KEY), json.get(REFERER_KEY).toString());
+        } catch (Exception e) {
+            logger.warn(String.format("Could not read record settings of %s: %s", streamName, e.getMessage()));
+            return null;
+        }
+    }
+
+    private @NotNull File file(@NotNull String streamName) {
+        try {
+            return new File(directory, URLEncoder.encode(streamName, StandardCharsets.UTF_8.name()).concat(SUFFIX));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create a JSON object describing the store
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull JSONObject status() {
+        val result = new JSONObject();
+        result.put("streams", settingsByStream.size());
+        result.put("fallbacks", fallbackCount.get());
+
+        return result;
+    }
+}
@@ -0,0 +1,185 @@
+package com.tsuyoshihayashi.api;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+/**
+ * Object that calculates a checksum of the bytes written through it,
+ * so a file is checksummed in the same pass that sends it
+ *
+ * @author Alexey Donov
+ */
+public final class StreamChecksum {
+    /**
+     * Checksum algorithm
+     */
+    public enum Algorithm {
+        NONE,
+        SHA256,
+        CRC32C;
+
+        public static @NotNull Algorithm fromString(@NotNull String value) {
+            switch (value.toLowerCase().replace("-", "")) {
+                case "sha256":
+                    return SHA256;
+
+                case "crc32c":
+                    return CRC32C;
+
+                default:
+                    return NONE;
+            }
+        }
+
+        /**
+         * @return Algorithm name sent to the server
+         */
+        public @NotNull String getName() {
+            return name().toLowerCase();
+        }
+
+        /**
+         * @return New checksum or null for {@link #NONE}
+         */
+        @Nullable StreamChecksum create() {
+            switch (this) {
+                case SHA256:
+                    try {
+                        return new StreamChecksum(this, MessageDigest.getInstance("SHA-256"), null);
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(e);
+                    }
+
+                case CRC32C:
+                    return new StreamChecksum(this, null, new Crc32c());
+
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Stream that drops the bytes written to it, for the bytes that are only checksummed
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+            // No op
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) {
+            // No op
+        }
+    };
+
+    private final @NotNull Algorithm algorithm;
+    private final @Nullable MessageDigest digest;
+    private final @Nullable Checksum checksum;
+    private @Nullable String value = null;
+
+    private StreamChecksum(@NotNull Algorithm algorithm, @Nullable MessageDigest digest, @Nullable Checksum checksum) {
+        this.algorithm = algorithm;
+        this.digest = digest;
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return Algorithm name sent to the server
+     */
+    public @NotNull String getAlgorithmName() {
+        return algorithm.getName();
+    }
+
+    /**
+     * @return Length of {@link #getValue()}
+     */
+    public int getValueLength() {
+        return digest != null ? digest.getDigestLength() * 2 : 8;
+    }
+
+    private synchronized void update(@NotNull byte[] b, int off, int len) {
+        if (value != null) {
+            return;
+        }
+
+        if (digest != null) {
+            digest.update(b, off, len);
+        }
+        if (checksum != null) {
+            checksum.update(b, off, len);
+        }
+    }
+
+    /**
+     * Get the checksum as lowercase hexadecimal. The first call finishes the calculation,
+     * the bytes written after it are not included.
+     *
+     * @return Checksum
+     */
+    public synchronized @NotNull String getValue() {
+        if (value != null) {
+            return value;
+        }
+
+        final byte[] bytes;
+        if (digest != null) {
+            bytes = digest.digest();
+        } else {
+            val crc = checksum != null ? checksum.getValue() : 0;
+            bytes = new byte[]{(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc};
+        }
+
+        val result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            result[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+
+        value = new String(result);
+        return value;
+    }
+
+    /**
+     * Add the bytes of a file region to the checksum without sending them
+     *
+     * @param region File region
+     * @throws IOException if the file could not be read
+     */
+    void update(@NotNull FileRegion region) throws IOException {
+        region.writeTo(tee(DISCARD));
+    }
+
+    /**
+     * Wrap an output stream so the bytes written to it are added to the checksum
+     *
+     * @param output Output stream
+     * @return Checksumming output stream
+     */
+    @NotNull OutputStream tee(@NotNull OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                update(new byte[]{(byte) b}, 0, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                update(b, off, len);
+                out.write(b, off, len);
+            }
+        };
+    }
+}
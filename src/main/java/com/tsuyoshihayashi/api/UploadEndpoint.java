@@ -0,0 +1,761 @@
+package com.tsuyoshihayashi.api;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.Data;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Recorded segment upload API endpoint.
+ *
+ * Segments are sent as a single multipart/form-data request. When a checksum algorithm is configured,
+ * the file is checksummed while it is sent and the checksum follows it in the checksum field, with checksum_algorithm field.
+ * The server has to respond with JSON that has the same checksum in checksum key, otherwise the upload is repeated
+ * and the file is kept. Resumable, parallel and progressive uploads are verified against the checksum key
+ * of the upload result too, as described in their protocols.
+ *
+ * When the upload URL supports it:
+ * - Segments larger than the parallel threshold are split into byte ranges uploaded concurrently over separate connections
+ * - Segments larger than the resumable threshold are sent in chunks, so an interrupted upload continues
+ *   from the last chunk acknowledged by the server instead of starting from zero
+ *
+ * Resumable upload protocol:
+ * 1. The upload URL answers OPTIONS with "X-Resumable-Upload: 1" header if it supports resumable uploads
+ * 2. POST form with hash, hash2, title, comment, idempotency_key, file_name and file_size fields
+ *    and "X-Resumable-Upload: start" header returns {"upload_id": "...", "offset": 0}.
+ *    The same idempotency key returns the same upload with the offset acknowledged so far.
+ * 3. PUT ?upload_id=... with "Content-Range: bytes first-last/total" header and the chunk bytes
+ *    returns {"offset": acknowledged offset}
+ * 4. The response to the chunk that completes the file is the upload result
+ * When a checksum algorithm is configured, the start form has checksum_algorithm field and the upload result has
+ * the checksum of the whole file in checksum key, so does the start response of an upload that is already complete.
+ * The checksum is calculated from the acknowledged chunks.
+ *
+ * Parallel upload protocol:
+ * 1. The upload URL answers OPTIONS with "X-Parallel-Upload: 1" header if it supports parallel uploads
+ * 2. POST form with the same fields as the resumable upload and parts field, with "X-Parallel-Upload: start" header
+ *    returns {"upload_id": "...", "parts": [numbers of parts already received]}.
+ *    The same idempotency key returns the same upload, so a repeated attempt sends only the missing parts.
+ * 3. PUT ?upload_id=...&part=... with "Content-Range: bytes first-last/total" header and the part bytes, for each part concurrently
+ * 4. POST ?upload_id=... with "X-Parallel-Upload: commit" header assembles the file and returns the upload result.
+ *    When a checksum algorithm is configured, the commit form has checksum and checksum_algorithm fields,
+ *    and the upload result has the checksum of the assembled file in checksum key. The parts are sent out of order
+ *    and only the missing ones, so the checksum is calculated from the file before the commit.
+ *
+ * Progressive upload protocol, used to send a segment while it is being recorded:
+ * 1. The upload URL answers OPTIONS with "X-Progressive-Upload: 1" header if it supports progressive uploads
+ * 2. POST form with the same fields as the resumable upload, the size so far and the recorder file name,
+ *    with "X-Progressive-Upload: start" header returns {"upload_id": "..."}
+ * 3. PUT ?upload_id=... with "Content-Range: bytes first-last/*" header and the bytes appended since the last request.
+ *    A range that was already sent can be sent again, when the recorder rewrote it while closing the file,
+ *    the server overwrites it.
+ * 4. POST ?upload_id=... with "X-Progressive-Upload: finish" header and file_name and file_size fields
+ *    truncates the file to the final size and returns the upload result. Checksum and checksum_algorithm fields
+ *    and checksum key of the result are the same as in the parallel commit, the checksum is calculated from the final file
+ *    because the ranges rewritten by the recorder are sent again.
+ * 5. DELETE ?upload_id=... with "X-Progressive-Upload: abort" header drops the upload instead,
+ *    when the segment is not going to be uploaded
+ *
+ * Batch upload protocol, used to send several short segments of a stream in a single request:
+ * 1. The upload URL answers OPTIONS with "X-Batch-Upload: 1" header if it supports batch uploads
+ * 2. POST multipart/form-data with "X-Batch-Upload: 1" header, hash, hash2, comment and idempotency_key fields,
+ *    then for every segment a video_file part followed by segment_title and segment_idempotency_key fields,
+ *    and checksum field when a checksum algorithm is configured. The server responds with the upload result,
+ *    with the checksums of the received segments in checksums array, in the same order.
+ * When the upload URL does not support batch uploads, the segments are uploaded one by one.
+ *
+ * @author Alexey Donov
+ */
+public final class UploadEndpoint extends Endpoint {
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final String RESUMABLE_HEADER = "X-Resumable-Upload";
+    private static final String PARALLEL_HEADER = "X-Parallel-Upload";
+    private static final String PROGRESSIVE_HEADER = "X-Progressive-Upload";
+    private static final String BATCH_HEADER = "X-Batch-Upload";
+    private static final String START = "start";
+    private static final String COMMIT = "commit";
+    private static final String FINISH = "finish";
+    private static final String ABORT = "abort";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+    private static final String UPLOAD_ID_PARAMETER_NAME = "upload_id";
+    private static final String PART_PARAMETER_NAME = "part";
+    private static final String UPLOAD_ID_KEY = "upload_id";
+    private static final String OFFSET_KEY = "offset";
+    private static final String PARTS_KEY = "parts";
+    private static final String CHECKSUM_KEY = "checksum";
+    private static final String CHECKSUMS_KEY = "checksums";
+    private static final String CHECKSUM_ALGORITHM_KEY = "checksum_algorithm";
+
+    /**
+     * Upload modes supported by an upload URL
+     */
+    @Data
+    private static final class Capabilities {
+        private final boolean resumable;
+        private final boolean parallel;
+        private final boolean progressive;
+        private final boolean batch;
+    }
+
+    /**
+     * Object that takes the files after they were uploaded, instead of deleting them
+     */
+    public interface UploadedFiles {
+        /**
+         * Take an uploaded file
+         *
+         * @param file Uploaded file
+         * @param settings Record settings it was uploaded with
+         */
+        void uploaded(@NotNull File file, @NotNull RecordSettings settings);
+    }
+
+    private static final MediaType VIDEO_MP4 = new MediaType("video", "mp4");
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(UploadEndpoint.class);
+
+    private final @Nullable String overrideEndpoint;
+    private final long resumableThreshold;
+    private final long chunkSize;
+    private final int parallelParts;
+    private final long parallelThreshold;
+    private final @NotNull StreamChecksum.Algorithm checksumAlgorithm;
+    private final @Nullable UploadedFiles uploadedFiles;
+
+    /**
+     * Threads that upload the parts of parallel uploads, created on demand.
+     * There are as many as the parts of all the files uploaded at the same time.
+     */
+    private final @NotNull ExecutorService partExecutor;
+
+    /**
+     * Upload modes supported by the upload URLs that were asked
+     */
+    private final @NotNull Map<String, Capabilities> capabilities = new ConcurrentHashMap<>();
+
+    /**
+     * @param client HTTP client
+     * @param overrideEndpoint URL to upload to instead of the one from record settings
+     * @param resumableThreshold Files larger than this are uploaded in chunks, if the server supports it. 0 disables chunked uploads.
+     * @param chunkSize Size of a single chunk in bytes
+     * @param parallelParts Number of parts uploaded concurrently. 1 disables parallel uploads.
+     * @param parallelThreshold Files larger than this are uploaded in parallel parts, if the server supports it
+     */
+    public UploadEndpoint(@NotNull Client client, @Nullable String overrideEndpoint, long resumableThreshold, int chunkSize, int parallelParts, long parallelThreshold) {
+        this(client, overrideEndpoint, resumableThreshold, chunkSize, parallelParts, parallelThreshold, StreamChecksum.Algorithm.NONE, null, 1);
+    }
+
+    /**
+     * @param client HTTP client
+     * @param overrideEndpoint URL to upload to instead of the one from record settings
+     * @param resumableThreshold Files larger than this are uploaded in chunks, if the server supports it. 0 disables chunked uploads.
+     * @param chunkSize Size of a single chunk in bytes
+     * @param parallelParts Number of parts uploaded concurrently. 1 disables parallel uploads.
+     * @param parallelThreshold Files larger than this are uploaded in parallel parts, if the server supports it
+     * @param checksumAlgorithm Checksum of the uploaded files, verified against the server response
+     */
+    public UploadEndpoint(@NotNull Client client, @Nullable String overrideEndpoint, long resumableThreshold, int chunkSize, int parallelParts,
+                          long parallelThreshold, @NotNull StreamChecksum.Algorithm checksumAlgorithm) {
+        this(client, overrideEndpoint, resumableThreshold, chunkSize, parallelParts, parallelThreshold, checksumAlgorithm, null, 1);
+    }
+
+    /**
+     * @param client HTTP client
+     * @param overrideEndpoint URL to upload to instead of the one from record settings
+     * @param resumableThreshold Files larger than this are uploaded in chunks, if the server supports it. 0 disables chunked uploads.
+     * @param chunkSize Size of a single chunk in bytes
+     * @param parallelParts Number of parts uploaded concurrently. 1 disables parallel uploads.
+     * @param parallelThreshold Files larger than this are uploaded in parallel parts, if the server supports it
+     * @param checksumAlgorithm Checksum of the uploaded files, verified against the server response
+     * @param uploadedFiles Object that takes the uploaded files, null to delete them
+     * @param uploadThreads Maximum number of files uploaded at the same time
+     */
+    public UploadEndpoint(@NotNull Client client, @Nullable String overrideEndpoint, long resumableThreshold, int chunkSize, int parallelParts,
+                          long parallelThreshold, @NotNull StreamChecksum.Algorithm checksumAlgorithm, @Nullable UploadedFiles uploadedFiles,
+                          int uploadThreads) {
+        super(client);
+
+        this.overrideEndpoint = overrideEndpoint;
+        this.resumableThreshold = resumableThreshold;
+        this.chunkSize = chunkSize;
+        this.parallelParts = parallelParts;
+        this.parallelThreshold = parallelThreshold;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.uploadedFiles = uploadedFiles;
+
+        // Every upload thread waits for its parts, so there are never more parts waiting than the threads
+        val partThreads = Math.max(1, uploadThreads) * Math.max(1, parallelParts);
+        val threadCounter = new AtomicInteger();
+        val executor = new ThreadPoolExecutor(partThreads, partThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            val thread = new Thread(runnable, String.format("upload-part-%d", threadCounter.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.partExecutor = executor;
+    }
+
+    /**
+     * Upload a recorded file. The file is deleted, or passed to the object that takes the uploaded files,
+     * only when API responds with a success status.
+     *
+     * @param file File object
+     * @param settings RecordSettings object
+     * @param idempotencyKey Key that is the same for all attempts of the upload
+     * @return Response from API as a string
+     * @throws RuntimeException if the upload failed and has to be repeated
+     */
+    public @NotNull String upload(@NotNull File file, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        if (settings.getUploadURL() == null) {
+            return String.format("No upload URL for [%s], skipping upload", file);
+        }
+
+        if (!file.exists()) {
+            return String.format("File [%s] no longer exists, skipping upload", file);
+        }
+
+        val endpoint = Optional.ofNullable(overrideEndpoint).orElse(settings.getUploadURL());
+
+        val length = file.length();
+        final String response;
+        if (parallelParts > 1 && length > parallelThreshold && getCapabilities(endpoint).isParallel()) {
+            response = uploadParallel(endpoint, file, settings, idempotencyKey);
+        } else if (resumableThreshold > 0 && length > resumableThreshold && getCapabilities(endpoint).isResumable()) {
+            response = uploadResumable(endpoint, file, settings, idempotencyKey);
+        } else {
+            response = uploadMultipart(endpoint, file, settings, idempotencyKey);
+        }
+
+        uploaded(file, settings);
+
+        return response;
+    }
+
+    /**
+     * Upload several recorded files of the same stream in a single request, or one by one
+     * if the upload URL does not support batch uploads. The files are deleted, or passed to the object
+     * that takes the uploaded files, only when API responds with a success status.
+     *
+     * @param files Files by the idempotency keys of their own uploads, in the recording order
+     * @param settings Record settings of the stream
+     * @param idempotencyKey Key that is the same for all attempts of the batch upload
+     * @return Response from API as a string
+     * @throws RuntimeException if the upload failed and has to be repeated
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull String uploadBatch(@NotNull Map<String, File> files, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        if (settings.getUploadURL() == null) {
+            return String.format("No upload URL for %s, skipping upload", files.values());
+        }
+
+        val existing = new LinkedHashMap<String, File>();
+        files.forEach((key, file) -> {
+            if (file.exists()) {
+                existing.put(key, file);
+            }
+        });
+
+        val endpoint = Optional.ofNullable(overrideEndpoint).orElse(settings.getUploadURL());
+
+        if (existing.size() <= 1 || !getCapabilities(endpoint).isBatch()) {
+            val responses = new JSONArray();
+            existing.forEach((key, file) -> responses.add(upload(file, settings, key)));
+            return responses.toJSONString();
+        }
+
+        val body = new MultipartBody();
+        body.field("hash", settings.getHash());
+        body.field("hash2", settings.getHash2());
+        Optional.ofNullable(settings.getComment())
+            .ifPresent(comment -> body.field("comment", comment));
+        body.field("idempotency_key", idempotencyKey);
+
+        val checksums = new ArrayList<StreamChecksum>();
+        existing.forEach((key, file) -> {
+            val checksum = checksumAlgorithm.create();
+            if (checksum != null) {
+                body.file("video_file", file, VIDEO_MP4, checksum);
+                checksums.add(checksum);
+            } else {
+                body.file("video_file", file, VIDEO_MP4);
+            }
+            body.field("segment_title", Optional.ofNullable(settings.getTitle()).orElse(file.getName()));
+            body.field("segment_idempotency_key", key);
+            if (checksum != null) {
+                body.field(CHECKSUM_KEY, checksum);
+            }
+        });
+        if (!checksums.isEmpty()) {
+            body.field(CHECKSUM_ALGORITHM_KEY, checksums.get(0).getAlgorithmName());
+        }
+
+        logger.info(String.format("Uploading %d segments %s to %s in a single request", existing.size(),
+            existing.values().stream().map(File::getName).collect(Collectors.joining(", ")), endpoint));
+
+        val response = readSuccessfulResponse(client.target(endpoint)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(BATCH_HEADER, "1")
+            .header(HttpHeaders.CONTENT_LENGTH, body.getContentLength())
+            .post(Entity.entity(body, body.getMediaType())));
+
+        if (!checksums.isEmpty()) {
+            // The body is written, the checksums are final
+            val received = Optional.ofNullable(parseJSON(response).get(CHECKSUMS_KEY))
+                .filter(JSONArray.class::isInstance)
+                .map(JSONArray.class::cast)
+                .orElse(new JSONArray());
+            for (int i = 0; i < checksums.size(); i++) {
+                val sent = checksums.get(i).getValue();
+                if (i >= received.size() || !sent.equalsIgnoreCase(String.valueOf(received.get(i)))) {
+                    throw new RuntimeException(String.format("Checksum of segment %d of the batch does not match: sent %s, server has %s",
+                        i + 1, sent, i < received.size() ? received.get(i) : null));
+                }
+            }
+        }
+
+        existing.values().forEach(file -> uploaded(file, settings));
+
+        return response;
+    }
+
+    /**
+     * Upload the file in a single multipart request
+     */
+    private @NotNull String uploadMultipart(@NotNull String endpoint, @NotNull File file, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        val body = new MultipartBody();
+        body.field("hash", settings.getHash());
+        body.field("hash2", settings.getHash2());
+        body.field("title", Optional.ofNullable(settings.getTitle()).orElse(file.getName()));
+        Optional.ofNullable(settings.getComment())
+            .ifPresent(comment -> body.field("comment", comment));
+        body.field("idempotency_key", idempotencyKey);
+
+        val checksum = checksumAlgorithm.create();
+        if (checksum != null) {
+            body.file("video_file", file, VIDEO_MP4, checksum);
+            body.field(CHECKSUM_ALGORITHM_KEY, checksum.getAlgorithmName());
+            body.field(CHECKSUM_KEY, checksum);
+        } else {
+            body.file("video_file", file, VIDEO_MP4);
+        }
+
+        logger.info(String.format("Uploading segment %s to %s", file.getName(), endpoint));
+
+        val response = readSuccessfulResponse(client.target(endpoint)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(HttpHeaders.CONTENT_LENGTH, body.getContentLength())
+            .post(Entity.entity(body, body.getMediaType())));
+
+        if (checksum != null) {
+            // The body is written, the checksum is final
+            verifyChecksum(file, checksum, response);
+        }
+
+        return response;
+    }
+
+    /**
+     * Upload the file in chunks, starting from the offset acknowledged by the server
+     */
+    private @NotNull String uploadResumable(@NotNull String endpoint, @NotNull File file, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        val length = file.length();
+
+        val sessionResponse = readSuccessfulResponse(client.target(endpoint)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(RESUMABLE_HEADER, START)
+            .post(Entity.form(sessionForm(file, settings, idempotencyKey))));
+        val session = parseJSON(sessionResponse);
+        val uploadId = session.get(UPLOAD_ID_KEY).toString();
+        long offset = parseOffset(session);
+
+        logger.info(String.format("Uploading segment %s to %s in chunks, starting from %d of %d", file.getName(), endpoint, offset, length));
+
+        val checksum = checksumAlgorithm.create();
+        if (checksum != null && offset > 0) {
+            // The bytes acknowledged by the previous attempts are not sent again
+            updateChecksum(checksum, new FileRegion(file, 0, Math.min(offset, length)));
+        }
+
+        String result = null;
+        while (offset < length) {
+            val chunkLength = Math.min(chunkSize, length - offset);
+
+            val response = putRange(endpoint, uploadId, settings, idempotencyKey, new FileRegion(file, offset, chunkLength), Long.toString(length));
+
+            val acknowledged = parseOffset(parseJSON(response));
+            if (acknowledged <= offset) {
+                throw new RuntimeException(String.format("Upload %s made no progress at offset %d", uploadId, offset));
+            }
+
+            if (checksum != null) {
+                updateChecksum(checksum, new FileRegion(file, offset, Math.min(acknowledged, length) - offset));
+            }
+
+            offset = acknowledged;
+            result = response;
+        }
+
+        if (checksum != null) {
+            verifyChecksum(file, checksum, Optional.ofNullable(result).orElse(sessionResponse));
+        }
+
+        return Optional.ofNullable(result).orElse("Upload was already complete");
+    }
+
+    /**
+     * Send a byte range of a resumable or progressive upload
+     *
+     * @param endpoint Upload URL
+     * @param uploadId Upload identifier returned by the server
+     * @param settings Record settings
+     * @param idempotencyKey Key that is the same for all attempts of the upload
+     * @param region Byte range of the file
+     * @param total Total file size or "*" if it is not known yet
+     * @return Response from API as a string
+     */
+    @NotNull String putRange(@NotNull String endpoint, @NotNull String uploadId, @NotNull RecordSettings settings, @NotNull String idempotencyKey,
+                             @NotNull FileRegion region, @NotNull String total) {
+        return readSuccessfulResponse(client.target(endpoint)
+            .queryParam(UPLOAD_ID_PARAMETER_NAME, uploadId)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(CONTENT_RANGE_HEADER, String.format("bytes %d-%d/%s", region.getOffset(), region.getOffset() + region.getLength() - 1, total))
+            .header(HttpHeaders.CONTENT_LENGTH, region.getLength())
+            .put(Entity.entity(region, MediaType.APPLICATION_OCTET_STREAM_TYPE)));
+    }
+
+    /**
+     * Start uploading a segment that is still being recorded
+     *
+     * @param file File being recorded
+     * @param settings Record settings
+     * @param idempotencyKey Key that is the same for all attempts of the upload
+     * @return Progressive upload, or null if there is no upload URL or it does not support progressive uploads
+     */
+    public @Nullable ProgressiveUpload startProgressive(@NotNull File file, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        if (settings.getUploadURL() == null) {
+            return null;
+        }
+
+        val endpoint = Optional.ofNullable(overrideEndpoint).orElse(settings.getUploadURL());
+        if (!getCapabilities(endpoint).isProgressive()) {
+            return null;
+        }
+
+        val session = parseJSON(readSuccessfulResponse(client.target(endpoint)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(PROGRESSIVE_HEADER, START)
+            .post(Entity.form(sessionForm(file, settings, idempotencyKey)))));
+
+        logger.info(String.format("Uploading segment %s to %s while it is recorded", file.getName(), endpoint));
+
+        return new ProgressiveUpload(this, endpoint, session.get(UPLOAD_ID_KEY).toString(), file, settings, idempotencyKey, chunkSize);
+    }
+
+    /**
+     * Pass the uploaded file to the object that takes them or delete it
+     *
+     * @param file Uploaded file
+     * @param settings Record settings
+     */
+    private void uploaded(@NotNull File file, @NotNull RecordSettings settings) {
+        if (uploadedFiles != null) {
+            uploadedFiles.uploaded(file, settings);
+        } else if (!file.delete()) {
+            logger.warn(String.format("Could not delete %s", file));
+        }
+    }
+
+    /**
+     * Finish a progressive upload after all the bytes were sent
+     *
+     * @param endpoint Upload URL
+     * @param uploadId Upload identifier returned by the server
+     * @param file Final file
+     * @param settings Record settings
+     * @param idempotencyKey Key that is the same for all attempts of the upload
+     * @return Response from API as a string
+     */
+    @NotNull String finishProgressive(@NotNull String endpoint, @NotNull String uploadId, @NotNull File file, @NotNull RecordSettings settings,
+                                      @NotNull String idempotencyKey) {
+        val form = new Form();
+        form.param("file_name", file.getName());
+        form.param("file_size", Long.toString(file.length()));
+        val checksum = fileChecksum(file, form);
+
+        val response = readSuccessfulResponse(client.target(endpoint)
+            .queryParam(UPLOAD_ID_PARAMETER_NAME, uploadId)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(PROGRESSIVE_HEADER, FINISH)
+            .post(Entity.form(form)));
+
+        if (checksum != null) {
+            verifyChecksum(file, checksum, response);
+        }
+
+        uploaded(file, settings);
+
+        return response;
+    }
+
+    /**
+     * Abort a progressive upload of a segment that is not going to be uploaded, the server drops the bytes it received
+     *
+     * @param endpoint Upload URL
+     * @param uploadId Upload identifier returned by the server
+     * @param settings Record settings
+     * @param idempotencyKey Key that is the same for all attempts of the upload
+     */
+    void abortProgressive(@NotNull String endpoint, @NotNull String uploadId, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        readSuccessfulResponse(client.target(endpoint)
+            .queryParam(UPLOAD_ID_PARAMETER_NAME, uploadId)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(PROGRESSIVE_HEADER, ABORT)
+            .delete());
+    }
+
+    /**
+     * Upload the file in parts sent concurrently, skipping the parts the server already received
+     */
+    @SuppressWarnings("unchecked")
+    private @NotNull String uploadParallel(@NotNull String endpoint, @NotNull File file, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        val length = file.length();
+        val partSize = (length + parallelParts - 1) / parallelParts;
+        val partCount = (int) ((length + partSize - 1) / partSize);
+
+        val form = sessionForm(file, settings, idempotencyKey);
+        form.param(PARTS_KEY, Integer.toString(partCount));
+
+        val session = parseJSON(readSuccessfulResponse(client.target(endpoint)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(PARALLEL_HEADER, START)
+            .post(Entity.form(form))));
+        val uploadId = session.get(UPLOAD_ID_KEY).toString();
+        val receivedParts = new HashSet<String>();
+        Optional.ofNullable((JSONArray) session.get(PARTS_KEY))
+            .ifPresent(parts -> parts.forEach(part -> receivedParts.add(part.toString())));
+
+        logger.info(String.format("Uploading segment %s to %s in %d parallel parts, %d already received", file.getName(), endpoint, partCount, receivedParts.size()));
+
+        final List<CompletableFuture<Void>> parts = IntStream.range(0, partCount)
+            .filter(part -> !receivedParts.contains(Integer.toString(part)))
+            .mapToObj(part -> CompletableFuture.runAsync(() -> {
+                val offset = part * partSize;
+                val partLength = Math.min(partSize, length - offset);
+
+                readSuccessfulResponse(client.target(endpoint)
+                    .queryParam(UPLOAD_ID_PARAMETER_NAME, uploadId)
+                    .queryParam(PART_PARAMETER_NAME, part)
+                    .request()
+                    .header("Referer", settings.getReferer())
+                    .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+                    .header(CONTENT_RANGE_HEADER, String.format("bytes %d-%d/%d", offset, offset + partLength - 1, length))
+                    .header(HttpHeaders.CONTENT_LENGTH, partLength)
+                    .put(Entity.entity(new FileRegion(file, offset, partLength), MediaType.APPLICATION_OCTET_STREAM_TYPE)));
+            }, partExecutor))
+            .collect(Collectors.toList());
+
+        try {
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // The parts that were received are skipped by the next attempt
+            throw new RuntimeException(String.format("Part of upload %s failed: %s", uploadId, e.getCause().getMessage()), e.getCause());
+        }
+
+        val commitForm = new Form();
+        val checksum = fileChecksum(file, commitForm);
+
+        val response = readSuccessfulResponse(client.target(endpoint)
+            .queryParam(UPLOAD_ID_PARAMETER_NAME, uploadId)
+            .request()
+            .header("Referer", settings.getReferer())
+            .header(IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+            .header(PARALLEL_HEADER, COMMIT)
+            .post(Entity.form(commitForm)));
+
+        if (checksum != null) {
+            verifyChecksum(file, checksum, response);
+        }
+
+        return response;
+    }
+
+    /**
+     * Checksum the whole file and add the checksum to the form that completes the upload
+     *
+     * @param file Uploaded file
+     * @param form Form of the request that completes the upload
+     * @return Checksum, or null if no checksum algorithm is configured
+     */
+    private @Nullable StreamChecksum fileChecksum(@NotNull File file, @NotNull Form form) {
+        val checksum = checksumAlgorithm.create();
+        if (checksum != null) {
+            updateChecksum(checksum, new FileRegion(file));
+            form.param(CHECKSUM_ALGORITHM_KEY, checksum.getAlgorithmName());
+            form.param(CHECKSUM_KEY, checksum.getValue());
+        }
+
+        return checksum;
+    }
+
+    private static void updateChecksum(@NotNull StreamChecksum checksum, @NotNull FileRegion region) {
+        try {
+            checksum.update(region);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Compare the checksum of the sent file with the one the server calculated
+     *
+     * @param file Uploaded file
+     * @param checksum Checksum of the sent file
+     * @param response Upload result
+     * @throws RuntimeException if the checksums do not match, the upload has to be repeated
+     */
+    private static void verifyChecksum(@NotNull File file, @NotNull StreamChecksum checksum, @NotNull String response) {
+        val sent = checksum.getValue();
+        val received = Optional.ofNullable(parseJSON(response).get(CHECKSUM_KEY)).map(Object::toString).orElse(null);
+        if (!sent.equalsIgnoreCase(received)) {
+            throw new RuntimeException(String.format("Checksum of %s does not match: sent %s, server has %s", file.getName(), sent, received));
+        }
+    }
+
+    /**
+     * Create the form that starts a resumable, parallel or progressive upload
+     */
+    private @NotNull Form sessionForm(@NotNull File file, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        val form = new Form();
+        form.param("hash", settings.getHash());
+        form.param("hash2", settings.getHash2());
+        form.param("title", Optional.ofNullable(settings.getTitle()).orElse(file.getName()));
+        Optional.ofNullable(settings.getComment())
+            .ifPresent(comment -> form.param("comment", comment));
+        form.param("idempotency_key", idempotencyKey);
+        form.param("file_name", file.getName());
+        form.param("file_size", Long.toString(file.length()));
+        if (checksumAlgorithm != StreamChecksum.Algorithm.NONE) {
+            form.param(CHECKSUM_ALGORITHM_KEY, checksumAlgorithm.getName());
+        }
+
+        return form;
+    }
+
+    /**
+     * Ask the upload URL which upload modes it supports. The answer is remembered.
+     *
+     * @param endpoint Upload URL
+     * @return Supported upload modes
+     */
+    private @NotNull Capabilities getCapabilities(@NotNull String endpoint) {
+        val known = capabilities.get(endpoint);
+        if (known != null) {
+            return known;
+        }
+
+        try {
+            val response = client.target(endpoint).request().options();
+            response.close();
+
+            val result = new Capabilities("1".equals(response.getHeaderString(RESUMABLE_HEADER)),
+                "1".equals(response.getHeaderString(PARALLEL_HEADER)),
+                "1".equals(response.getHeaderString(PROGRESSIVE_HEADER)),
+                "1".equals(response.getHeaderString(BATCH_HEADER)));
+            capabilities.put(endpoint, result);
+            logger.info(String.format("Upload modes of %s: resumable %s, parallel %s, progressive %s, batch %s",
+                endpoint, result.isResumable(), result.isParallel(), result.isProgressive(), result.isBatch()));
+
+            return result;
+        } catch (Exception e) {
+            // Not remembered, the next upload will ask again
+            logger.warn(String.format("Could not check upload modes of %s: %s", endpoint, e.getMessage()));
+            return new Capabilities(false, false, false, false);
+        }
+    }
+
+    /**
+     * Stop the part upload threads
+     */
+    public void shutdown() {
+        partExecutor.shutdown();
+    }
+
+    /**
+     * Read the response body, failing if the status is not successful
+     *
+     * @param response Response
+     * @return Response body
+     * @throws ApiException if the status is not successful
+     */
+    private static @NotNull String readSuccessfulResponse(@NotNull Response response) {
+        val responseText = Optional.ofNullable(response.readEntity(String.class)).orElse("");
+
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            throw new ApiException(response.getStatus(), String.format("API responded with %d: %s", response.getStatus(), responseText));
+        }
+
+        return responseText;
+    }
+
+    static @NotNull JSONObject parseJSON(@NotNull String text) {
+        try {
+            // JSONParser is not thread safe, uploads run on several threads
+            return (JSONObject) new JSONParser().parse(text);
+        } catch (ParseException | ClassCastException e) {
+            throw new RuntimeException(String.format("Unexpected API response: %s", text), e);
+        }
+    }
+
+    static long parseOffset(@NotNull JSONObject json) {
+        return Long.parseLong(Optional.ofNullable(json.get(OFFSET_KEY)).map(Object::toString).orElse("0"));
+    }
+}
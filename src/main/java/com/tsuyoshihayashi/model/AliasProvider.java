@@ -1,67 +1,266 @@
 package com.tsuyoshihayashi.model;
 
 import com.wowza.wms.application.IApplicationInstance;
+import com.wowza.wms.application.WMSProperties;
 import com.wowza.wms.logging.WMSLogger;
 import com.wowza.wms.logging.WMSLoggerFactory;
 import com.wowza.wms.stream.IMediaStreamNameAliasProvider;
 import lombok.val;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONObject;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Object that provides RTSP camera URLs for stream names.
  *
+ * Camera information is kept in the stream registry by application instance and stream name. It is forgotten when:
+ * - The camera is stopped with cameractrl or its MediaCaster stream ends
+ * - The camera was not set or resolved for the idle time and its stream is not published
+ * - There are more cameras than the maximum, the least recently used ones are forgotten first
+ *
  * @author Alexey Donov
  */
 public final class AliasProvider implements IMediaStreamNameAliasProvider {
+    private static final String IDLE_TTL_KEY = "cameraIdleTtl";
+    private static final String MAX_CAMERAS_KEY = "cameraMaxCount";
+
+    private static final long DEFAULT_IDLE_TTL = 86400;
+    private static final int DEFAULT_MAX_CAMERAS = 10000;
+
+    /**
+     * Cameras are checked for the idle time at most this often, when a camera is set
+     */
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
     /**
      * Singleton instance
      */
-    private static @Nullable AliasProvider instance = null;
+    private static final @NotNull AliasProvider instance = new AliasProvider(StreamRegistry.instance(),
+        TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TTL), DEFAULT_MAX_CAMERAS);
+
+    private static boolean configured = false;
 
     public static @NotNull AliasProvider instance() {
-        if (instance == null) {
-            instance = new AliasProvider();
+        return instance;
+    }
+
+    /**
+     * Set the limits of the shared instance from the VHost properties. Only the first call has effect.
+     *
+     * @param hostProperties VHost properties
+     */
+    public static synchronized void configure(@NotNull WMSProperties hostProperties) {
+        if (configured) {
+            return;
         }
 
-        return instance;
+        instance.idleTtl = TimeUnit.SECONDS.toNanos(Math.max(0, hostProperties.getPropertyLong(IDLE_TTL_KEY, DEFAULT_IDLE_TTL)));
+        instance.maxCameras = Math.max(1, hostProperties.getPropertyInt(MAX_CAMERAS_KEY, DEFAULT_MAX_CAMERAS));
+        configured = true;
     }
 
     private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(AliasProvider.class);
 
     /**
-     * Map dictionary that stores associations of stream names with camera information objects
+     * Registry that stores associations of stream names with camera information objects
      */
-    private final @NotNull Map<String, CameraInfo> cameraInfos = new HashMap<>();
+    private final @NotNull StreamRegistry registry;
+
+    /**
+     * Time after which an unused camera is forgotten in nanoseconds, 0 for no limit
+     */
+    private volatile long idleTtl;
+    private volatile int maxCameras;
+
+    private final @NotNull AtomicInteger cameraCount = new AtomicInteger();
+    private final @NotNull AtomicLong lastSweep = new AtomicLong(System.nanoTime());
 
-    private AliasProvider() {
-        // No op
+    private final @NotNull AtomicLong stopCount = new AtomicLong();
+    private final @NotNull AtomicLong idleEvictionCount = new AtomicLong();
+    private final @NotNull AtomicLong capacityEvictionCount = new AtomicLong();
+    private final @NotNull AtomicLong resolveCount = new AtomicLong();
+    private final @NotNull AtomicLong unresolvedCount = new AtomicLong();
+
+    /**
+     * @param registry Stream registry
+     * @param idleTtl Time after which an unused camera is forgotten in nanoseconds, 0 for no limit
+     * @param maxCameras Maximum number of cameras
+     */
+    AliasProvider(@NotNull StreamRegistry registry, long idleTtl, int maxCameras) {
+        this.registry = registry;
+        this.idleTtl = idleTtl;
+        this.maxCameras = maxCameras;
     }
 
     /**
      * Get camera information object for the stream name
      *
+     * @param appInstanceName Application instance name
      * @param streamName Stream name
      * @return RTSP URL
      */
-    public @Nullable CameraInfo getCameraInfo(@NotNull String streamName) {
-        return cameraInfos.get(streamName);
+    public @Nullable CameraInfo getCameraInfo(@NotNull String appInstanceName, @NotNull String streamName) {
+        val state = registry.get(appInstanceName, streamName);
+        return state != null ? state.getCameraInfo() : null;
     }
 
     /**
      * Associate camera information object with a stream name
      *
+     * @param appInstanceName Application instance name
      * @param streamName Stream name
-     * @param info Camera information object
+     * @param info Camera information object, null to forget the camera
      */
-    public void setCameraInfo(@NotNull String streamName, @Nullable CameraInfo info) {
-        logger.info(String.format("Adding URL for camera: %s -> %s", streamName, info));
+    public void setCameraInfo(@NotNull String appInstanceName, @NotNull String streamName, @Nullable CameraInfo info) {
+        setCameraInfo(appInstanceName, streamName, info, System.nanoTime());
+    }
+
+    void setCameraInfo(@NotNull String appInstanceName, @NotNull String streamName, @Nullable CameraInfo info, long now) {
+        if (info != null) {
+            logger.info(String.format("Adding URL for camera: %s -> %s", streamName, info));
+        } else {
+            logger.info(String.format("Removing camera: %s", streamName));
+        }
+
+        val previous = change(appInstanceName, streamName, null, info, now);
+        if (info == null) {
+            if (previous != null) {
+                stopCount.incrementAndGet();
+            }
+            return;
+        }
+
+        sweep(now);
+        if (cameraCount.get() > maxCameras) {
+            evictLeastRecentlyUsed();
+        }
+    }
 
-        cameraInfos.put(streamName, info);
+    /**
+     * Forget the camera of a stream whose MediaCaster ended, unless the camera was replaced since
+     *
+     * @param appInstanceName Application instance name
+     * @param streamName Stream name
+     * @param info Camera information the MediaCaster was started with
+     */
+    public void cameraStopped(@NotNull String appInstanceName, @NotNull String streamName, @NotNull CameraInfo info) {
+        if (change(appInstanceName, streamName, info, null, System.nanoTime()) != null) {
+            stopCount.incrementAndGet();
+            logger.info(String.format("Camera of %s stopped, removing it", streamName));
+        }
+    }
+
+    /**
+     * Replace the camera information of a stream, keeping the number of cameras
+     *
+     * @param expected Camera information that is replaced, null to replace any
+     * @param info New camera information, null to forget the camera
+     * @return Replaced camera information, null if there was none or it was not the expected one
+     */
+    private @Nullable CameraInfo change(@NotNull String appInstanceName, @NotNull String streamName, @Nullable CameraInfo expected,
+                                       @Nullable CameraInfo info, long now) {
+        val replaced = new AtomicReference<CameraInfo>();
+        registry.update(appInstanceName, streamName, state -> {
+            val previous = state.getCameraInfo();
+            if (expected != null && previous != expected) {
+                return;
+            }
+
+            state.setCameraInfo(info);
+            state.setCameraUsed(now);
+            replaced.set(previous);
+
+            if (previous == null && info != null) {
+                cameraCount.incrementAndGet();
+            } else if (previous != null && info == null) {
+                cameraCount.decrementAndGet();
+            }
+        });
+
+        return replaced.get();
+    }
+
+    /**
+     * Forget the cameras not used for the idle time, whose streams are not published
+     *
+     * @param now Current time in nanoseconds
+     */
+    void sweep(long now) {
+        val last = lastSweep.get();
+        if (idleTtl == 0 || now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+
+        for (val state : registry.states()) {
+            val info = state.getCameraInfo();
+            if (info != null && !state.isPublished() && now - state.getCameraUsed() >= idleTtl
+                && change(state.getAppInstanceName(), state.getStreamName(), info, null, now) != null) {
+                idleEvictionCount.incrementAndGet();
+                logger.info(String.format("Camera of %s was not used for %d s, removing it", state.getStreamName(), TimeUnit.NANOSECONDS.toSeconds(idleTtl)));
+            }
+        }
+    }
+
+    /**
+     * Forget the least recently used cameras, the ones of the streams not published first,
+     * so that a tenth of the maximum is free
+     */
+    private synchronized void evictLeastRecentlyUsed() {
+        val surplus = cameraCount.get() - maxCameras * 9 / 10;
+        if (cameraCount.get() <= maxCameras || surplus <= 0) {
+            return;
+        }
+
+        val cameras = new ArrayList<StreamState>();
+        for (val state : registry.states()) {
+            if (state.getCameraInfo() != null) {
+                cameras.add(state);
+            }
+        }
+        cameras.sort(Comparator.comparing(StreamState::isPublished).thenComparingLong(StreamState::getCameraUsed));
+
+        int evicted = 0;
+        for (val state : cameras) {
+            if (evicted >= surplus) {
+                break;
+            }
+
+            val info = state.getCameraInfo();
+            if (info != null && change(state.getAppInstanceName(), state.getStreamName(), info, null, System.nanoTime()) != null) {
+                evicted++;
+            }
+        }
+
+        capacityEvictionCount.addAndGet(evicted);
+        logger.warn(String.format("More than %d cameras, removed %d least recently used", maxCameras, evicted));
+    }
+
+    /**
+     * Create a JSON object describing the cameras and the evictions
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull JSONObject status() {
+        val result = new JSONObject();
+        result.put("cameras", cameraCount.get());
+        result.put("max_cameras", maxCameras);
+        result.put("idle_ttl_s", TimeUnit.NANOSECONDS.toSeconds(idleTtl));
+        result.put("stopped", stopCount.get());
+        result.put("idle_evictions", idleEvictionCount.get());
+        result.put("capacity_evictions", capacityEvictionCount.get());
+        result.put("resolves", resolveCount.get());
+        result.put("unresolved", unresolvedCount.get());
+
+        return result;
     }
 
     /**
@@ -85,11 +284,30 @@ public final class AliasProvider implements IMediaStreamNameAliasProvider {
      */
     @Override
     public String resolveStreamAlias(IApplicationInstance instance, String name) {
-        val info = getCameraInfo(name);
+        val appInstanceName = StreamRegistry.appInstanceName(instance);
+        val resolved = new AtomicReference<CameraInfo>();
+
+        // Camera is marked used as a change of the stream, not in between other changes. Unknown streams are not locked
+        if (registry.get(appInstanceName, name) != null) {
+            registry.update(appInstanceName, name, state -> {
+                resolved.set(state.getCameraInfo());
+                if (state.getCameraInfo() != null) {
+                    state.setCameraUsed(System.nanoTime());
+                }
+            });
+        }
+
+        val info = resolved.get();
+        if (info == null) {
+            unresolvedCount.incrementAndGet();
+            logger.debug(String.format("No camera information for %s", name));
+            return null;
+        }
 
-        logger.info(String.format("Resolving camera information: %s -> %s", name, info));
+        resolveCount.incrementAndGet();
+        logger.debug(String.format("Resolving camera information: %s -> %s", name, info));
 
-        return Optional.ofNullable(info)
+        return Optional.of(info)
             .map(CameraInfo::getUrl)
             .orElse(null);
     }
@@ -0,0 +1,173 @@
+package com.tsuyoshihayashi.model;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+
+/**
+ * Object that represents a compiled record file name format.
+ *
+ * Format fields:
+ * - N: segment number, every occurrence
+ * - DD, HH, II, SS: day, hour, minute and second of the segment start on the first occurrence,
+ *   of the segment end on the second occurrence. Further occurrences are kept as is.
+ *
+ * The format is parsed once into a sequence of literal runs and fields, scanned left to right,
+ * which gives the same names as the replaceAll and replaceFirst calls used before.
+ * Numbers are written as ASCII digits regardless of the default locale.
+ *
+ * @author Alexey Donov
+ */
+public final class FileNameTemplate {
+    private static final byte LITERAL = 0;
+    private static final byte NUMBER = 1;
+    private static final byte START_DAY = 2;
+    private static final byte START_HOUR = 3;
+    private static final byte START_MINUTE = 4;
+    private static final byte START_SECOND = 5;
+    private static final byte END_DAY = 6;
+    private static final byte END_HOUR = 7;
+    private static final byte END_MINUTE = 8;
+    private static final byte END_SECOND = 9;
+
+    /**
+     * Two letter fields in the order of the field codes, the end field code is the start code + 4
+     */
+    private static final String[] TIME_FIELDS = {"DD", "HH", "II", "SS"};
+
+    private final @NotNull byte[] fields;
+    private final @NotNull String[] literals;
+
+    private FileNameTemplate(@NotNull byte[] fields, @NotNull String[] literals) {
+        this.fields = fields;
+        this.literals = literals;
+    }
+
+    /**
+     * Compile a file name format
+     *
+     * @param format File name format received from API
+     * @return Compiled template
+     */
+    public static @NotNull FileNameTemplate compile(@NotNull String format) {
+        val fields = new ArrayList<Byte>();
+        val literals = new ArrayList<String>();
+        val occurrences = new int[TIME_FIELDS.length];
+        val literal = new StringBuilder();
+
+        int position = 0;
+        while (position < format.length()) {
+            byte field = LITERAL;
+            int length = 1;
+
+            if (format.charAt(position) == 'N') {
+                field = NUMBER;
+            } else {
+                for (int i = 0; i < TIME_FIELDS.length; i++) {
+                    if (occurrences[i] < 2 && format.startsWith(TIME_FIELDS[i], position)) {
+                        field = (byte) (START_DAY + i + 4 * occurrences[i]);
+                        occurrences[i]++;
+                        length = 2;
+                        break;
+                    }
+                }
+            }
+
+            if (field == LITERAL) {
+                literal.append(format.charAt(position));
+            } else {
+                if (literal.length() > 0) {
+                    fields.add(LITERAL);
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                }
+                fields.add(field);
+                literals.add(null);
+            }
+
+            position += length;
+        }
+
+        if (literal.length() > 0) {
+            fields.add(LITERAL);
+            literals.add(literal.toString());
+        }
+
+        val fieldArray = new byte[fields.size()];
+        for (int i = 0; i < fieldArray.length; i++) {
+            fieldArray[i] = fields.get(i);
+        }
+
+        return new FileNameTemplate(fieldArray, literals.toArray(new String[0]));
+    }
+
+    /**
+     * Append the file name of a segment
+     *
+     * @param builder String builder
+     * @param number Segment number
+     * @param start Segment start time
+     * @param end Segment end time
+     */
+    public void appendTo(@NotNull StringBuilder builder, int number, @NotNull DateTime start, @NotNull DateTime end) {
+        for (int i = 0; i < fields.length; i++) {
+            switch (fields[i]) {
+                case LITERAL:
+                    builder.append(literals[i]);
+                    break;
+                case NUMBER:
+                    builder.append(number);
+                    break;
+                case START_DAY:
+                    appendTwoDigits(builder, start.getDayOfMonth());
+                    break;
+                case START_HOUR:
+                    appendTwoDigits(builder, start.getHourOfDay());
+                    break;
+                case START_MINUTE:
+                    appendTwoDigits(builder, start.getMinuteOfHour());
+                    break;
+                case START_SECOND:
+                    appendTwoDigits(builder, start.getSecondOfMinute());
+                    break;
+                case END_DAY:
+                    appendTwoDigits(builder, end.getDayOfMonth());
+                    break;
+                case END_HOUR:
+                    appendTwoDigits(builder, end.getHourOfDay());
+                    break;
+                case END_MINUTE:
+                    appendTwoDigits(builder, end.getMinuteOfHour());
+                    break;
+                case END_SECOND:
+                    appendTwoDigits(builder, end.getSecondOfMinute());
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+    }
+
+    /**
+     * Create the file name of a segment
+     *
+     * @param number Segment number
+     * @param start Segment start time
+     * @param end Segment end time
+     * @return File name
+     */
+    public @NotNull String render(int number, @NotNull DateTime start, @NotNull DateTime end) {
+        val builder = new StringBuilder();
+        appendTo(builder, number, start, end);
+        return builder.toString();
+    }
+
+    private static void appendTwoDigits(@NotNull StringBuilder builder, int value) {
+        if (value < 10) {
+            builder.append('0');
+        }
+        builder.append(value);
+    }
+}
@@ -2,12 +2,15 @@ package com.tsuyoshihayashi.model;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.val;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 
-import java.util.*;
-import java.util.stream.Stream;
+import java.util.Optional;
 
 /**
  * Object that represents record settings received from API
@@ -16,16 +19,18 @@ import java.util.stream.Stream;
  */
 @Data
 @AllArgsConstructor
+@EqualsAndHashCode(exclude = "fileNameTemplate")
+@ToString(exclude = "fileNameTemplate")
 public final class RecordSettings {
-    private static final String FILE_NAME_FORMAT_KEY = "record_name";
-    private static final String LIMIT_KEY = "limit";
-    private static final String UPLOAD_URL_KEY = "place";
-    private static final String HASH_KEY = "hash";
-    private static final String HASH2_KEY = "hash2";
-    private static final String AUTO_RECORD_KEY = "manual_start";
-    private static final String TITLE_KEY = "title";
-    private static final String COMMENT_KEY = "comment";
-    private static final String ACTION_KEY = "act";
+    static final String FILE_NAME_FORMAT_KEY = "record_name";
+    static final String LIMIT_KEY = "limit";
+    static final String UPLOAD_URL_KEY = "place";
+    static final String HASH_KEY = "hash";
+    static final String HASH2_KEY = "hash2";
+    static final String AUTO_RECORD_KEY = "manual_start";
+    static final String TITLE_KEY = "title";
+    static final String COMMENT_KEY = "comment";
+    static final String ACTION_KEY = "act";
 
     private final @NotNull String fileNameFormat;
     private final long limit;
@@ -38,6 +43,12 @@ public final class RecordSettings {
     private @Nullable String comment;
     private @Nullable String action;
 
+    /**
+     * File name format compiled on first use
+     */
+    @Getter(lazy = true)
+    private final @NotNull FileNameTemplate fileNameTemplate = FileNameTemplate.compile(fileNameFormat);
+
     /**
      * Create an instance from JSON response
      *
@@ -46,28 +57,64 @@ public final class RecordSettings {
      * @return Record settings from the JSON
      */
     public static @NotNull RecordSettings fromJSON(@NotNull JSONObject json, @NotNull String referer) {
-        if (Stream.of(FILE_NAME_FORMAT_KEY, LIMIT_KEY, HASH_KEY, HASH2_KEY)
-            .map(json::get)
-            .anyMatch(Objects::isNull)) {
+        val settings = create(text(json, FILE_NAME_FORMAT_KEY), text(json, LIMIT_KEY), text(json, UPLOAD_URL_KEY), text(json, HASH_KEY),
+            text(json, HASH2_KEY), text(json, AUTO_RECORD_KEY), referer, text(json, TITLE_KEY), text(json, COMMENT_KEY), text(json, ACTION_KEY));
+        if (settings == null) {
             throw new IllegalArgumentException("JSON Object is not full");
         }
 
-        boolean manualStart = false;
-        try {
-            manualStart = json.containsKey(AUTO_RECORD_KEY) && Integer.parseInt(json.get(AUTO_RECORD_KEY).toString()) == 1;
-        } catch (NumberFormatException ignore) {
-            // No op
+        return settings;
+    }
+
+    private static @Nullable String text(@NotNull JSONObject json, @NotNull String key) {
+        val value = json.get(key);
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Create an instance from the text of the API response fields
+     *
+     * @return Record settings or null if the required fields are missing
+     * @throws NumberFormatException if the limit is not a number
+     */
+    static @Nullable RecordSettings create(@Nullable String fileNameFormat, @Nullable String limit, @Nullable String uploadURL,
+                                           @Nullable String hash, @Nullable String hash2, @Nullable String manualStart, @NotNull String referer,
+                                           @Nullable String title, @Nullable String comment, @Nullable String action) {
+        if (fileNameFormat == null || limit == null || hash == null || hash2 == null) {
+            return null;
+        }
+
+        boolean manual = false;
+        if (manualStart != null) {
+            try {
+                manual = Integer.parseInt(manualStart) == 1;
+            } catch (NumberFormatException ignore) {
+                // No op
+            }
         }
 
-        return new RecordSettings(json.get(FILE_NAME_FORMAT_KEY).toString(),
-            Long.parseLong(json.get(LIMIT_KEY).toString()),
-            !manualStart,
-            Optional.ofNullable(json.get(UPLOAD_URL_KEY)).map(Object::toString).orElse(null),
-            json.get(HASH_KEY).toString(),
-            json.get(HASH2_KEY).toString(),
-            referer,
-            Optional.ofNullable(json.get(TITLE_KEY)).map(Object::toString).orElse(null),
-            Optional.ofNullable(json.get(COMMENT_KEY)).map(Object::toString).orElse(null),
-            Optional.ofNullable(json.get(ACTION_KEY)).map(Object::toString).orElse(null));
+        return new RecordSettings(fileNameFormat, Long.parseLong(limit), !manual, uploadURL, hash, hash2, referer, title, comment, action);
+    }
+
+    /**
+     * Create a JSON object in the same format as the API response.
+     * Referer is not included, it has to be passed to {@link #fromJSON(JSONObject, String)} separately.
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull JSONObject toJSON() {
+        val json = new JSONObject();
+        json.put(FILE_NAME_FORMAT_KEY, fileNameFormat);
+        json.put(LIMIT_KEY, limit);
+        json.put(AUTO_RECORD_KEY, autoRecord ? 0 : 1);
+        json.put(HASH_KEY, hash);
+        json.put(HASH2_KEY, hash2);
+        Optional.ofNullable(uploadURL).ifPresent(value -> json.put(UPLOAD_URL_KEY, value));
+        Optional.ofNullable(title).ifPresent(value -> json.put(TITLE_KEY, value));
+        Optional.ofNullable(comment).ifPresent(value -> json.put(COMMENT_KEY, value));
+        Optional.ofNullable(action).ifPresent(value -> json.put(ACTION_KEY, value));
+
+        return json;
     }
 }
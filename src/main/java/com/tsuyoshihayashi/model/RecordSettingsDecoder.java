@@ -0,0 +1,526 @@
+package com.tsuyoshihayashi.model;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Object that reads record settings from an API response as it arrives, without building a JSON tree:
+ * - Only the fields of the record settings are kept, other fields are skipped whatever they contain
+ * - Field names are compared in place, values are kept as text and converted as {@link RecordSettings#fromJSON} does
+ * - The response is read in UTF-8 through a small buffer
+ *
+ * Settings with an object or an array in place of a settings field are refused.
+ *
+ * @author Alexey Donov
+ */
+public final class RecordSettingsDecoder {
+    private static final int BUFFER_SIZE = 512;
+
+    private static final String[] FIELDS = {RecordSettings.FILE_NAME_FORMAT_KEY, RecordSettings.LIMIT_KEY, RecordSettings.UPLOAD_URL_KEY,
+        RecordSettings.HASH_KEY, RecordSettings.HASH2_KEY, RecordSettings.AUTO_RECORD_KEY, RecordSettings.TITLE_KEY, RecordSettings.COMMENT_KEY,
+        RecordSettings.ACTION_KEY};
+    private static final int FILE_NAME_FORMAT = 0;
+    private static final int LIMIT = 1;
+    private static final int UPLOAD_URL = 2;
+    private static final int HASH = 3;
+    private static final int HASH2 = 4;
+    private static final int MANUAL_START = 5;
+    private static final int TITLE = 6;
+    private static final int COMMENT = 7;
+    private static final int ACTION = 8;
+
+    private final @NotNull InputStream input;
+    private final @NotNull byte[] buffer = new byte[BUFFER_SIZE];
+    private int length = 0;
+    private int position = 0;
+    private long offset = 0;
+
+    /**
+     * Text of the last string or number
+     */
+    private final @NotNull StringBuilder text = new StringBuilder();
+
+    /**
+     * Values of the settings fields of the current object, in the order of {@link #FIELDS}
+     */
+    private final @NotNull String[] values = new String[FIELDS.length];
+
+    private RecordSettingsDecoder(@NotNull InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Read record settings from an API response
+     *
+     * @param input Response body, not closed
+     * @param referer Referer domain name that made the request
+     * @return Record settings
+     * @throws IOException if the response could not be read
+     * @throws IllegalArgumentException if the response is not valid JSON or not full settings
+     */
+    public static @NotNull RecordSettings decode(@NotNull InputStream input, @NotNull String referer) throws IOException {
+        val decoder = new RecordSettingsDecoder(input);
+        decoder.expect(decoder.nextToken(), '{');
+        decoder.readSettings();
+        decoder.expectEnd();
+
+        val settings = decoder.create(referer);
+        if (settings == null) {
+            throw new IllegalArgumentException("JSON Object is not full");
+        }
+
+        return settings;
+    }
+
+    /**
+     * Read record settings from an API response text
+     *
+     * @param json Response text
+     * @param referer Referer domain name that made the request
+     * @return Record settings
+     * @throws IllegalArgumentException if the response is not valid JSON or not full settings
+     */
+    public static @NotNull RecordSettings decode(@NotNull String json, @NotNull String referer) {
+        try {
+            return decode(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), referer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read the record settings of many streams from an API response, a JSON object with settings by stream name.
+     * Entries that are not full settings are skipped.
+     *
+     * @param input Response body, not closed
+     * @param referer Referer domain name that made the request
+     * @return Record settings by stream name
+     * @throws IOException if the response could not be read
+     * @throws IllegalArgumentException if the response is not a valid JSON object
+     */
+    public static @NotNull Map<String, RecordSettings> decodeAll(@NotNull InputStream input, @NotNull String referer) throws IOException {
+        val decoder = new RecordSettingsDecoder(input);
+        val result = new HashMap<String, RecordSettings>();
+
+        decoder.expect(decoder.nextToken(), '{');
+        int c = decoder.nextToken();
+        if (c != '}') {
+            while (true) {
+                decoder.expect(c, '"');
+                decoder.readString();
+                val streamName = decoder.text.toString();
+                decoder.expect(decoder.nextToken(), ':');
+
+                if (decoder.peekToken() == '{') {
+                    decoder.nextToken();
+                    decoder.readSettings();
+                    try {
+                        val settings = decoder.create(referer);
+                        if (settings != null) {
+                            result.put(streamName, settings);
+                        }
+                    } catch (NumberFormatException ignore) {
+                        // Not settings
+                    }
+                } else {
+                    decoder.skipValue(decoder.nextToken());
+                }
+
+                c = decoder.nextToken();
+                if (c == '}') {
+                    break;
+                }
+                decoder.expect(c, ',');
+                c = decoder.nextToken();
+            }
+        }
+        decoder.expectEnd();
+
+        return result;
+    }
+
+    /**
+     * Read the fields of a settings object, after its opening brace
+     */
+    private void readSettings() throws IOException {
+        Arrays.fill(values, null);
+
+        int c = nextToken();
+        if (c == '}') {
+            return;
+        }
+
+        while (true) {
+            expect(c, '"');
+            readString();
+            val field = field();
+            expect(nextToken(), ':');
+
+            c = nextToken();
+            if (field < 0) {
+                skipValue(c);
+            } else {
+                values[field] = readScalar(c);
+            }
+
+            c = nextToken();
+            if (c == '}') {
+                return;
+            }
+            expect(c, ',');
+            c = nextToken();
+        }
+    }
+
+    /**
+     * Find the settings field named by the last string
+     *
+     * @return Field index or -1 for other fields
+     */
+    private int field() {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].contentEquals(text)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Create the settings from the fields read, converted the same way as {@link RecordSettings#fromJSON}
+     *
+     * @param referer Referer domain name
+     * @return Record settings or null if the required fields are missing
+     */
+    private @Nullable RecordSettings create(@NotNull String referer) {
+        return RecordSettings.create(values[FILE_NAME_FORMAT], values[LIMIT], values[UPLOAD_URL], values[HASH], values[HASH2],
+            values[MANUAL_START], referer, values[TITLE], values[COMMENT], values[ACTION]);
+    }
+
+    /**
+     * Read a string, number, boolean or null value
+     *
+     * @param c First character of the value
+     * @return Value as text, null for null
+     */
+    private @Nullable String readScalar(int c) throws IOException {
+        switch (c) {
+            case '"':
+                readString();
+                return text.toString();
+
+            case 't':
+                readLiteral("rue");
+                return "true";
+
+            case 'f':
+                readLiteral("alse");
+                return "false";
+
+            case 'n':
+                readLiteral("ull");
+                return null;
+
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    return text.toString();
+                }
+
+                throw error(c, "a value");
+        }
+    }
+
+    /**
+     * Skip a value of any type
+     *
+     * @param c First character of the value
+     */
+    private void skipValue(int c) throws IOException {
+        if (c == '{' || c == '[') {
+            val close = c == '{' ? '}' : ']';
+            c = nextToken();
+            if (c == close) {
+                return;
+            }
+
+            while (true) {
+                if (close == '}') {
+                    expect(c, '"');
+                    readString();
+                    expect(nextToken(), ':');
+                    c = nextToken();
+                }
+                skipValue(c);
+
+                c = nextToken();
+                if (c == close) {
+                    return;
+                }
+                expect(c, ',');
+                c = nextToken();
+            }
+        }
+
+        readScalar(c);
+    }
+
+    /**
+     * Read a string after its opening quote into {@link #text}
+     */
+    private void readString() throws IOException {
+        text.setLength(0);
+
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c < 0) {
+                throw error(c, "end of string");
+            }
+
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        text.append((char) c);
+                        break;
+                    case 'b':
+                        text.append('\b');
+                        break;
+                    case 'f':
+                        text.append('\f');
+                        break;
+                    case 'n':
+                        text.append('\n');
+                        break;
+                    case 'r':
+                        text.append('\r');
+                        break;
+                    case 't':
+                        text.append('\t');
+                        break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            val digit = Character.digit(next(), 16);
+                            if (digit < 0) {
+                                throw error(c, "hexadecimal digit");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        text.append((char) code);
+                        break;
+                    default:
+                        throw error(c, "escape character");
+                }
+            } else if (c < 0x80) {
+                text.append((char) c);
+            } else {
+                readMultibyte(c);
+            }
+        }
+    }
+
+    /**
+     * Decode a UTF-8 sequence of more than one byte, invalid sequences become the replacement character
+     *
+     * @param first First byte of the sequence
+     */
+    private void readMultibyte(int first) throws IOException {
+        final int count;
+        int code;
+        if ((first & 0xE0) == 0xC0) {
+            count = 1;
+            code = first & 0x1F;
+        } else if ((first & 0xF0) == 0xE0) {
+            count = 2;
+            code = first & 0x0F;
+        } else if ((first & 0xF8) == 0xF0) {
+            count = 3;
+            code = first & 0x07;
+        } else {
+            text.append('\uFFFD');
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            val c = peek();
+            if ((c & 0xC0) != 0x80) {
+                text.append('\uFFFD');
+                return;
+            }
+            next();
+            code = (code << 6) | (c & 0x3F);
+        }
+
+        if (Character.isValidCodePoint(code)) {
+            text.appendCodePoint(code);
+        } else {
+            text.append('\uFFFD');
+        }
+    }
+
+    /**
+     * Read a number into {@link #text}, following the JSON number grammar
+     *
+     * @param first First character of the number
+     */
+    private void readNumber(int first) throws IOException {
+        text.setLength(0);
+
+        int c = first;
+        if (c == '-') {
+            text.append('-');
+            c = next();
+        }
+
+        // No leading zeros
+        if (c == '0') {
+            text.append('0');
+        } else if (c >= '1' && c <= '9') {
+            text.append((char) c);
+            readDigits();
+        } else {
+            throw error(c, "a digit");
+        }
+
+        if (peek() == '.') {
+            text.append((char) next());
+            readDigit();
+            readDigits();
+        }
+
+        c = peek();
+        if (c == 'e' || c == 'E') {
+            text.append((char) next());
+
+            c = peek();
+            if (c == '+' || c == '-') {
+                text.append((char) next());
+            }
+
+            readDigit();
+            readDigits();
+        }
+    }
+
+    private void readDigit() throws IOException {
+        val c = next();
+        if (c < '0' || c > '9') {
+            throw error(c, "a digit");
+        }
+
+        text.append((char) c);
+    }
+
+    private void readDigits() throws IOException {
+        while (true) {
+            val c = peek();
+            if (c < '0' || c > '9') {
+                return;
+            }
+
+            text.append((char) next());
+        }
+    }
+
+    private void readLiteral(@NotNull String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            val c = next();
+            if (c != rest.charAt(i)) {
+                throw error(c, rest.substring(i));
+            }
+        }
+    }
+
+    private void expect(int c, char expected) {
+        if (c != expected) {
+            throw error(c, String.valueOf(expected));
+        }
+    }
+
+    private void expectEnd() throws IOException {
+        val c = nextToken();
+        if (c >= 0) {
+            throw error(c, "end of response");
+        }
+    }
+
+    private @NotNull IllegalArgumentException error(int c, @NotNull String expected) {
+        return new IllegalArgumentException(String.format("Unexpected %s at position %d, expected %s",
+            c < 0 ? "end of response" : String.format("'%c'", (char) c), offset + position - 1, expected));
+    }
+
+    /**
+     * Read the next character that is not white space
+     *
+     * @return Character or -1 at the end
+     */
+    private int nextToken() throws IOException {
+        while (true) {
+            val c = next();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Get the next character that is not white space without reading it
+     *
+     * @return Character or -1 at the end
+     */
+    private int peekToken() throws IOException {
+        while (true) {
+            val c = peek();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+            next();
+        }
+    }
+
+    private int next() throws IOException {
+        if (position == length && !fill()) {
+            return -1;
+        }
+
+        return buffer[position++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (position == length && !fill()) {
+            return -1;
+        }
+
+        return buffer[position] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        offset += length;
+        position = 0;
+        length = 0;
+
+        val count = input.read(buffer);
+        if (count <= 0) {
+            return false;
+        }
+
+        length = count;
+        return true;
+    }
+}
@@ -0,0 +1,139 @@
+package com.tsuyoshihayashi.model;
+
+import com.wowza.wms.application.IApplicationInstance;
+import lombok.Data;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Object that keeps the state of the streams by application instance and stream name,
+ * shared by the HTTP providers, the stream and recorder listeners and the alias provider which run on different threads.
+ *
+ * Reading is lock-free. Changes of a stream are applied one at a time, and a state left with nothing to keep
+ * (not published, recorded or pulled from a camera) is removed by the same change, so the registry does not grow with
+ * the streams that are gone.
+ *
+ * @author Alexey Donov
+ */
+public final class StreamRegistry {
+    /**
+     * Application instance of the streams started with cameractrl and recordctrl
+     */
+    public static final String DEFAULT_APP_INSTANCE_NAME = "live/_definst_";
+
+    private static final @NotNull StreamRegistry instance = new StreamRegistry();
+
+    public static @NotNull StreamRegistry instance() {
+        return instance;
+    }
+
+    @Data
+    private static final class Key {
+        private final @NotNull String appInstanceName;
+        private final @NotNull String streamName;
+    }
+
+    private final @NotNull Map<Key, StreamState> states = new ConcurrentHashMap<>();
+
+    StreamRegistry() {
+        // No op
+    }
+
+    /**
+     * Get the name of an application instance as used by the registry
+     *
+     * @param appInstance Application instance
+     * @return Application name and instance name
+     */
+    public static @NotNull String appInstanceName(@NotNull IApplicationInstance appInstance) {
+        return String.format("%s/%s", appInstance.getApplication().getName(), appInstance.getName());
+    }
+
+    /**
+     * Get the state of a stream
+     *
+     * @param appInstanceName Application instance name
+     * @param streamName Stream name
+     * @return Stream state or null if nothing is kept for the stream
+     */
+    public @Nullable StreamState get(@NotNull String appInstanceName, @NotNull String streamName) {
+        return states.get(new Key(appInstanceName, streamName));
+    }
+
+    /**
+     * Change the state of a stream, creating it if needed. The state is removed if there is nothing left to keep.
+     *
+     * @param appInstanceName Application instance name
+     * @param streamName Stream name
+     * @param change Change of the state, not run concurrently with other changes of the stream
+     * @return Stream state, null if it was removed
+     */
+    public @Nullable StreamState update(@NotNull String appInstanceName, @NotNull String streamName, @NotNull Consumer<StreamState> change) {
+        return states.compute(new Key(appInstanceName, streamName), (key, state) -> {
+            val result = state != null ? state : new StreamState(appInstanceName, streamName);
+            change.accept(result);
+
+            return result.isIdle() ? null : result;
+        });
+    }
+
+    /**
+     * Forget what the application instance that stopped kept about its streams, except the cameras they are pulled from.
+     * Media Casters of the instance are gone with it.
+     *
+     * @param appInstanceName Application instance name
+     */
+    public void reset(@NotNull String appInstanceName) {
+        for (val key : states.keySet()) {
+            if (key.appInstanceName.equals(appInstanceName)) {
+                update(key.appInstanceName, key.streamName, state -> {
+                    state.setPublished(false);
+                    state.setMediaCaster(null);
+                    state.setRecorder(null);
+                    state.setRecordSettings(null);
+                    state.setUploadPriority(null);
+                    state.setPublisher(null);
+                });
+            }
+        }
+    }
+
+    /**
+     * Get the states of all kept streams
+     *
+     * @return Unmodifiable view of the states, changing while it is iterated
+     */
+    public @NotNull Collection<StreamState> states() {
+        return Collections.unmodifiableCollection(states.values());
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    /**
+     * Create a JSON object describing the kept streams
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public @NotNull JSONObject status() {
+        val streams = new JSONArray();
+        states.values().forEach(state -> streams.add(state.toJSON()));
+
+        val result = new JSONObject();
+        result.put("count", states.size());
+        result.put("streams", streams);
+
+        return result;
+    }
+}
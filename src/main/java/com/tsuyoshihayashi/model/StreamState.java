@@ -0,0 +1,98 @@
+package com.tsuyoshihayashi.model;
+
+import com.wowza.wms.livestreamrecord.manager.IStreamRecorder;
+import com.wowza.wms.mediacaster.IMediaCaster;
+import com.wowza.wms.pushpublish.protocol.rtmp.PushPublishRTMP;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Object that keeps what the module knows about a single stream of an application instance.
+ * Fields are read without locking from any thread, they are changed through {@link StreamRegistry#update}.
+ *
+ * @author Alexey Donov
+ */
+@Getter
+@Setter
+public final class StreamState {
+    private final @NotNull String appInstanceName;
+    private final @NotNull String streamName;
+
+    /**
+     * Camera the stream is pulled from, set by cameractrl
+     */
+    private volatile @Nullable CameraInfo cameraInfo;
+
+    /**
+     * Time the camera was last set or resolved, from {@link System#nanoTime()}
+     */
+    private volatile long cameraUsed;
+
+    /**
+     * Media Caster pulling the stream, set from the Media Caster notifications
+     */
+    private volatile @Nullable IMediaCaster mediaCaster;
+
+    /**
+     * Record settings of the current recording
+     */
+    private volatile @Nullable RecordSettings recordSettings;
+
+    /**
+     * Upload priority of the current recording, by name
+     */
+    private volatile @Nullable String uploadPriority;
+
+    private volatile @Nullable IStreamRecorder recorder;
+
+    /**
+     * Push to the publish host
+     */
+    private volatile @Nullable PushPublishRTMP publisher;
+
+    private volatile boolean published;
+
+    private final @NotNull AtomicLong publishCount = new AtomicLong();
+    private final @NotNull AtomicLong segmentCount = new AtomicLong();
+
+    StreamState(@NotNull String appInstanceName, @NotNull String streamName) {
+        this.appInstanceName = appInstanceName;
+        this.streamName = streamName;
+    }
+
+    /**
+     * Check whether the state can be forgotten: the stream is not published, recorded or pulled from a camera
+     *
+     * @return true if nothing is kept for the stream
+     */
+    boolean isIdle() {
+        return !published && cameraInfo == null && mediaCaster == null && recorder == null && recordSettings == null && publisher == null;
+    }
+
+    /**
+     * Create a JSON object describing the stream state
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull JSONObject toJSON() {
+        val result = new JSONObject();
+        result.put("app_instance", appInstanceName);
+        result.put("stream", streamName);
+        result.put("published", published);
+        result.put("camera", cameraInfo != null);
+        result.put("pulling", mediaCaster != null);
+        result.put("recording", recorder != null);
+        result.put("pushing", publisher != null);
+        result.put("publishes", publishCount.get());
+        result.put("segments", segmentCount.get());
+
+        return result;
+    }
+}
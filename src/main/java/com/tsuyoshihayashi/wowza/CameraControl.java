@@ -1,20 +1,20 @@
 package com.tsuyoshihayashi.wowza;
 
+import com.tsuyoshihayashi.api.RecordSettingsEndpoint;
 import com.tsuyoshihayashi.model.AliasProvider;
 import com.tsuyoshihayashi.model.CameraInfo;
+import com.tsuyoshihayashi.model.StreamRegistry;
 import com.tsuyoshihayashi.model.TextAction;
-import com.wowza.wms.application.ApplicationInstance;
+import com.wowza.wms.application.IApplicationInstance;
 import com.wowza.wms.http.IHTTPRequest;
 import com.wowza.wms.http.IHTTPResponse;
 import com.wowza.wms.logging.WMSLogger;
 import com.wowza.wms.logging.WMSLoggerFactory;
-import com.wowza.wms.mediacaster.MediaCasterStreamItem;
-import com.wowza.wms.mediacaster.MediaCasterStreamMap;
 import com.wowza.wms.vhost.IVHost;
 import lombok.val;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
 import java.util.Optional;
 
 /**
@@ -26,6 +26,8 @@ import java.util.Optional;
  * Stopping a stream
  * http://hostname:1936/cameractrl?a=stop&s=streamname
  *
+ * Cameras are streamed to the live/_definst_ application instance, another one is chosen with app=application/instance
+ *
  * @author Alexey Donov
  */
 public final class CameraControl extends Control {
@@ -66,8 +68,14 @@ public final class CameraControl extends Control {
                 return;
             }
 
-            val application = host.getApplication("live");
-            val instance = application.getAppInstance(ApplicationInstance.DEFAULT_APPINSTANCE_NAME);
+            // Ensure that the application instance is running
+            val appInstanceName = appInstanceName(request);
+            val instance = getAppInstance(host, appInstanceName);
+            if (instance == null) {
+                logger.warn(String.format("No %s application instance", appInstanceName));
+                writeResponse(response, 404, String.format("No %s application instance", appInstanceName));
+                return;
+            }
 
             switch (action) {
                 case ACTION_START:
@@ -78,12 +86,12 @@ public final class CameraControl extends Control {
                         return;
                     }
 
-                    // If there is already a stream with this name, stop it
-                    Optional.ofNullable(instance.getMediaCasterStreams())
-                        .map(MediaCasterStreamMap::getMediaCasterStreamItems)
-                        .map(List::stream)
-                        .flatMap(stream -> stream.map(MediaCasterStreamItem::getMediaCasterId).filter(streamName::equals).findAny())
-                        .ifPresent(instance::stopMediaCasterStream);
+                    // If there is already a stream with this name, stop it. Running casters are kept by the camera listener
+                    val state = StreamRegistry.instance().get(appInstanceName, streamName);
+                    val restart = state != null && state.getMediaCaster() != null;
+                    if (restart) {
+                        instance.stopMediaCasterStream(streamName);
+                    }
 
                     // Set the camera info object for the stream name
                     val title = request.getParameter(TITLE_PARAMETER_NAME);
@@ -98,18 +106,29 @@ public final class CameraControl extends Control {
                         }
                     }
                     val info = new CameraInfo(url, title, comment, textAction);
-                    AliasProvider.instance().setCameraInfo(streamName, info);
+                    AliasProvider.instance().setCameraInfo(appInstanceName, streamName, info);
+
+                    // Ask API for the record settings while the camera connects, with the parameters of the camera
+                    val recordSettingsEndpoint = RecordSettingsEndpoint.instance(host);
+                    recordSettingsEndpoint.invalidate(streamName, title, comment,
+                        Optional.ofNullable(textAction).map(TextAction::toString).map(String::toLowerCase).orElse(null));
+                    recordSettingsEndpoint.prefetch(appInstanceName, streamName);
 
                     // Start the streaming
                     logger.info(String.format("Starting camera stream=%s url=%s", streamName, url));
-                    instance.startMediaCasterStream(streamName, "rtp");
+                    if (!instance.startMediaCasterStream(streamName, "rtp") && !restart) {
+                        // A caster the listener did not see, as one started before the module
+                        instance.stopMediaCasterStream(streamName);
+                        instance.startMediaCasterStream(streamName, "rtp");
+                    }
                     break;
 
                 case ACTION_STOP:
                     logger.info(String.format("Stopping camera stream=%s", streamName));
 
-                    // Stop the streaming
+                    // Stop the streaming, the camera is no longer needed
                     instance.stopMediaCasterStream(streamName);
+                    AliasProvider.instance().setCameraInfo(appInstanceName, streamName, null);
                     break;
 
                 default:
@@ -122,4 +141,21 @@ public final class CameraControl extends Control {
             writeResponse(response, 500, e.getMessage());
         }
     }
+
+    /**
+     * Find the running application instance
+     *
+     * @param host Virtual host
+     * @param appInstanceName Application instance name, application/instance
+     * @return Application instance, null if there is no such application instance
+     */
+    private static @Nullable IApplicationInstance getAppInstance(@NotNull IVHost host, @NotNull String appInstanceName) {
+        val separator = appInstanceName.indexOf('/');
+        if (separator < 0) {
+            return null;
+        }
+
+        val application = host.getApplication(appInstanceName.substring(0, separator));
+        return application != null ? application.getAppInstance(appInstanceName.substring(separator + 1)) : null;
+    }
 }
@@ -0,0 +1,66 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.model.AliasProvider;
+import com.tsuyoshihayashi.model.CameraInfo;
+import com.tsuyoshihayashi.model.StreamRegistry;
+import com.wowza.wms.application.IApplicationInstance;
+import com.wowza.wms.mediacaster.IMediaCaster;
+import com.wowza.wms.mediacaster.MediaCasterNotifyBase;
+import com.wowza.wms.stream.IMediaStream;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Object that listens to the camera streams pulled by Media Caster:
+ * - Running Media Casters are kept in the stream registry, so cameractrl finds the caster of a stream without a scan
+ * - Camera of a stream that ended is forgotten. A camera started again with cameractrl under the same name is kept,
+ *   even if the old stream ends after that.
+ *
+ * @author Alexey Donov
+ */
+final class CameraListener extends MediaCasterNotifyBase {
+    private final @NotNull String appInstanceName;
+    private final @NotNull StreamRegistry registry = StreamRegistry.instance();
+
+    /**
+     * Camera each running Media Caster was started with
+     */
+    private final @NotNull Map<IMediaCaster, CameraInfo> cameras = new ConcurrentHashMap<>();
+
+    CameraListener(@NotNull IApplicationInstance instance) {
+        super();
+
+        this.appInstanceName = StreamRegistry.appInstanceName(instance);
+    }
+
+    @Override
+    public void onMediaCasterCreate(IMediaCaster caster, IMediaStream stream) {
+        val streamName = caster.getMediaCasterId();
+        registry.update(appInstanceName, streamName, state -> state.setMediaCaster(caster));
+
+        val info = AliasProvider.instance().getCameraInfo(appInstanceName, streamName);
+        if (info != null) {
+            cameras.put(caster, info);
+        }
+    }
+
+    @Override
+    public void onMediaCasterDestroy(IMediaCaster caster) {
+        val streamName = caster.getMediaCasterId();
+
+        // The caster that replaced this one may have been created already
+        registry.update(appInstanceName, streamName, state -> {
+            if (state.getMediaCaster() == caster) {
+                state.setMediaCaster(null);
+            }
+        });
+
+        val info = cameras.remove(caster);
+        if (info != null) {
+            AliasProvider.instance().cameraStopped(appInstanceName, streamName, info);
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.tsuyoshihayashi.wowza;
 
+import com.tsuyoshihayashi.model.StreamRegistry;
 import com.wowza.wms.http.HTTPProvider2Base;
 import com.wowza.wms.http.IHTTPRequest;
 import com.wowza.wms.http.IHTTPResponse;
 import com.wowza.wms.logging.WMSLogger;
+import lombok.val;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
@@ -24,6 +26,22 @@ abstract class Control extends HTTPProvider2Base {
      */
     static final String ACTION_PARAMETER_NAME = "a";
 
+    /**
+     * Application instance parameter of the requests about the services of an application instance
+     */
+    static final String APP_INSTANCE_PARAMETER_NAME = "app";
+
+    /**
+     * Get the application instance the request is about
+     *
+     * @param request HTTP request
+     * @return Application instance name, {@link StreamRegistry#DEFAULT_APP_INSTANCE_NAME} if not given
+     */
+    @NotNull String appInstanceName(@NotNull IHTTPRequest request) {
+        val appInstanceName = request.getParameter(APP_INSTANCE_PARAMETER_NAME);
+        return appInstanceName != null && !appInstanceName.isEmpty() ? appInstanceName : StreamRegistry.DEFAULT_APP_INSTANCE_NAME;
+    }
+
     void logRequest(@NotNull IHTTPRequest request, @NotNull WMSLogger logger) {
         logger.info(String.format("Request registered: %s %s, params: %s", request.getMethod(), request.getPath(), request.getParameterMap()));
     }
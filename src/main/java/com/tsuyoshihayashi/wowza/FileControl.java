@@ -25,12 +25,23 @@ import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
  * Manually deleting a file
  * http://hostname:1935/filectrl?a=delete&f=filename.mp4
  *
+ * Uploading an uploaded file again from the segment cache, the stream is needed if more than one stream has a file of that name
+ * http://hostname:1935/filectrl?a=reupload&f=filename.mp4&s=streamname
+ *
+ * Segment cache status
+ * http://hostname:1935/filectrl?a=cache
+ *
+ * Segment cache requests are about the live/_definst_ application instance, another one is chosen with app=application/instance
+ *
  * @author Alexey Donov
  */
 public final class FileControl extends Control {
     private static final String ACTION_LIST = "list";
     private static final String ACTION_DELETE = "delete";
+    private static final String ACTION_REUPLOAD = "reupload";
+    private static final String ACTION_CACHE = "cache";
     private static final String FILE_PARAMETER_NAME = "f";
+    private static final String STREAM_PARAMETER_NAME = "s";
 
     private static final String CONTENT_ROOT = "/usr/local/WowzaStreamingEngine/content";
 
@@ -107,6 +118,37 @@ public final class FileControl extends Control {
                     writeOkResponse(response);
                     return;
 
+                case ACTION_REUPLOAD:
+                case ACTION_CACHE:
+                    val pipeline = UploadPipeline.forAppInstance(appInstanceName(request));
+                    val cacheStatus = pipeline != null ? pipeline.cacheStatus() : null;
+                    if (pipeline == null || cacheStatus == null) {
+                        writeResponse(response, 503, "Segment cache is not enabled");
+                        return;
+                    }
+
+                    if (ACTION_CACHE.equals(action)) {
+                        writeResponse(response, 200, cacheStatus.toJSONString(), APPLICATION_JSON);
+                        return;
+                    }
+
+                    // Upload a single file again
+                    // Ensure that file name parameter is present in the request
+                    val cachedFileName = request.getParameter(FILE_PARAMETER_NAME);
+                    if (cachedFileName == null || cachedFileName.isEmpty()) {
+                        writeBadRequestResponse(response);
+                        return;
+                    }
+
+                    val streamName = request.getParameter(STREAM_PARAMETER_NAME);
+                    if (!pipeline.reupload(streamName != null && !streamName.isEmpty() ? streamName : null, new File(cachedFileName).getName())) {
+                        writeResponse(response, 404, String.format("File %s is not in the segment cache or the upload queue is full", cachedFileName));
+                        return;
+                    }
+
+                    writeOkResponse(response);
+                    return;
+
                 default:
                     writeBadRequestResponse(response);
                     break;
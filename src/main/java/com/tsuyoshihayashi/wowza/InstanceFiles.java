@@ -0,0 +1,54 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.model.StreamRegistry;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Object that names the state files and directories of an application instance, so that the instances sharing
+ * the same configured path (application properties are shared by the instances) do not write the same file
+ *
+ * @author Alexey Donov
+ */
+final class InstanceFiles {
+    private static final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(InstanceFiles.class);
+
+    private InstanceFiles() {
+        // No op
+    }
+
+    /**
+     * Get the file of an application instance: the instance name is added to the configured file name,
+     * upload-journal.log of live/_definst_ becomes upload-journal-live-_definst_.log.
+     * For the default instance, a file or a directory at the configured path left by an earlier version is moved to the new name.
+     *
+     * @param path Configured path
+     * @param appInstanceName Application instance name
+     * @return File of the application instance
+     */
+    static @NotNull File forAppInstance(@NotNull String path, @NotNull String appInstanceName) {
+        val configured = new File(path);
+        val name = configured.getName();
+        val extension = name.lastIndexOf('.');
+        val suffix = "-".concat(appInstanceName.replaceAll("[^A-Za-z0-9_.-]", "-"));
+        val instanceName = extension > 0 ? name.substring(0, extension) + suffix + name.substring(extension) : name + suffix;
+        val result = new File(configured.getParentFile(), instanceName);
+
+        if (StreamRegistry.DEFAULT_APP_INSTANCE_NAME.equals(appInstanceName) && configured.exists() && !result.exists()) {
+            try {
+                Files.move(configured.toPath(), result.toPath());
+                logger.info(String.format("Moved %s to %s", configured, result));
+            } catch (IOException e) {
+                logger.warn(String.format("Could not move %s to %s: %s", configured, result, e.getMessage()));
+            }
+        }
+
+        return result;
+    }
+}
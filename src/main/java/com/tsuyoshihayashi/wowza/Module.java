@@ -1,11 +1,16 @@
 package com.tsuyoshihayashi.wowza;
 
+import com.tsuyoshihayashi.api.BandwidthLimiter;
+import com.tsuyoshihayashi.api.HttpClientFactory;
+import com.tsuyoshihayashi.api.RecordSettingsEndpoint;
 import com.tsuyoshihayashi.model.AliasProvider;
+import com.tsuyoshihayashi.model.StreamRegistry;
 import com.wowza.wms.application.IApplicationInstance;
 import com.wowza.wms.module.IModuleOnApp;
 import com.wowza.wms.module.IModuleOnStream;
 import com.wowza.wms.module.ModuleBase;
 import com.wowza.wms.stream.IMediaStream;
+import lombok.val;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -13,33 +18,56 @@ import java.util.Optional;
 
 /**
  * Wowza module object that sets up:
- * - Stream alias provider
- * - Stream listener
+ * - Stream alias provider and camera listener
+ * - Stream listener and record settings of the known streams
+ * - Admission of the automatic record starts
  * - Record manager
+ * - Upload pipeline of the application instance
  *
  * @author Alexey Donov
  */
 public final class Module extends ModuleBase implements IModuleOnApp, IModuleOnStream {
-    private static final String UPLOAD_OVERRIDE_ENDPOINT_KEY = "uploadOverrideEndpoint";
-
     private @Nullable StreamListener streamListener = null;
-    private final @NotNull RecordManagerListener recordManagerListener = new RecordManagerListener();
+    private @Nullable CameraListener cameraListener = null;
+    private @Nullable UploadPipeline uploadPipeline = null;
+    private @Nullable RecordAdmission recordAdmission = null;
+    private @Nullable RecordManagerListener recordManagerListener = null;
 
     // IModuleOnApp
 
     /**
-     * Set up record listener, stream listener and alias provider fo the application instance
+     * Set up record listener, stream listener and alias provider fo the application instance.
+     * Uploads that were pending when the application stopped are resumed.
      *
      * @param instance Live application instance
      */
     @Override
     public void onAppStart(IApplicationInstance instance) {
-        RecorderListener.uploadOverrideEndpoint = instance.getProperties().getPropertyStr(UPLOAD_OVERRIDE_ENDPOINT_KEY);
+        val host = instance.getVHost();
+        BandwidthLimiter.configure(host.getProperties());
+        val client = HttpClientFactory.instance(host).getClient();
+        val appInstanceName = StreamRegistry.appInstanceName(instance);
+        val pipeline = UploadPipeline.fromProperties(instance.getProperties(), appInstanceName, client);
+        pipeline.resume();
+        UploadPipeline.register(appInstanceName, pipeline);
+        uploadPipeline = pipeline;
+
+        val admission = RecordAdmission.fromProperties(instance.getProperties(), appInstanceName);
+        RecordAdmission.register(appInstanceName, admission);
+        recordAdmission = admission;
+        streamListener = new StreamListener(instance, admission);
+
+        // Cameras reconnect right after a restart, have their settings ready before they publish
+        RecordSettingsEndpoint.instance(host).prefetchStored(appInstanceName);
 
-        streamListener = new StreamListener(instance);
+        recordManagerListener = new RecordManagerListener(appInstanceName, pipeline);
         instance.getVHost().getLiveStreamRecordManager().addListener(recordManagerListener);
 
+        AliasProvider.configure(host.getProperties());
         instance.setStreamNameAliasProvider(AliasProvider.instance());
+
+        cameraListener = new CameraListener(instance);
+        instance.addMediaCasterListener(cameraListener);
     }
 
     /**
@@ -50,7 +78,23 @@ public final class Module extends ModuleBase implements IModuleOnApp, IModuleOnS
     @Override
     public void onAppStop(IApplicationInstance instance) {
         streamListener = null;
-        instance.getVHost().getLiveStreamRecordManager().removeListener(recordManagerListener);
+        Optional.ofNullable(cameraListener).ifPresent(instance::removeMediaCasterListener);
+        cameraListener = null;
+        StreamRegistry.instance().reset(StreamRegistry.appInstanceName(instance));
+        Optional.ofNullable(recordManagerListener).ifPresent(instance.getVHost().getLiveStreamRecordManager()::removeListener);
+        recordManagerListener = null;
+
+        Optional.ofNullable(uploadPipeline).ifPresent(pipeline -> {
+            UploadPipeline.unregister(StreamRegistry.appInstanceName(instance), pipeline);
+            pipeline.shutdown();
+        });
+        uploadPipeline = null;
+
+        Optional.ofNullable(recordAdmission).ifPresent(admission -> {
+            RecordAdmission.unregister(StreamRegistry.appInstanceName(instance), admission);
+            admission.shutdown();
+        });
+        recordAdmission = null;
     }
 
     // IModuleOnStream
@@ -0,0 +1,215 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.api.ProgressiveUpload;
+import com.tsuyoshihayashi.api.UploadEndpoint;
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.Getter;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Object that tails the files of the segments being recorded and sends the appended bytes to the upload URL,
+ * so when a segment ends only its last seconds and the parts the recorder rewrote are left to upload.
+ *
+ * Each segment file is checked with a fixed delay. When the upload URL does not support progressive uploads,
+ * the segment is left for the regular upload.
+ *
+ * @author Alexey Donov
+ */
+final class ProgressiveUploads {
+    /**
+     * Segment file being tailed
+     */
+    static final class Tail {
+        private final @NotNull File file;
+        private final @NotNull RecordSettings settings;
+        @Getter
+        private final @NotNull String idempotencyKey;
+        /**
+         * Progressive upload, null until the upload URL accepted it
+         */
+        @Getter
+        private volatile @Nullable ProgressiveUpload upload = null;
+        private volatile boolean unsupported = false;
+        private volatile @Nullable ScheduledFuture<?> future = null;
+
+        private Tail(@NotNull File file, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+            this.file = file;
+            this.settings = settings;
+            this.idempotencyKey = idempotencyKey;
+        }
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(ProgressiveUploads.class);
+
+    private final @NotNull UploadEndpoint uploadEndpoint;
+    private final long interval;
+    private final @NotNull ScheduledExecutorService timer;
+
+    /**
+     * Segments being tailed by the recorder file path
+     */
+    private final @NotNull Map<String, Tail> tails = new ConcurrentHashMap<>();
+
+    private final @NotNull AtomicLong sentBytes = new AtomicLong();
+    private final @NotNull AtomicLong resentBytes = new AtomicLong();
+    private final @NotNull AtomicLong abortedCount = new AtomicLong();
+
+    /**
+     * @param uploadEndpoint Upload API endpoint
+     * @param interval Delay between the checks of a file, in milliseconds
+     * @param threads Number of threads sending the appended bytes
+     */
+    ProgressiveUploads(@NotNull UploadEndpoint uploadEndpoint, long interval, int threads) {
+        this.uploadEndpoint = uploadEndpoint;
+        this.interval = interval;
+        this.timer = Executors.newScheduledThreadPool(threads, UploadExecutor.threadFactory("upload-tail"));
+    }
+
+    /**
+     * Start tailing a segment file
+     *
+     * @param path Recorder file path
+     * @param settings Record settings of the stream
+     * @param idempotencyKey Key of the upload, also used by the regular upload of the segment
+     */
+    void start(@NotNull String path, @NotNull RecordSettings settings, @NotNull String idempotencyKey) {
+        val tail = new Tail(new File(path), settings, idempotencyKey);
+        val previous = tails.put(path, tail);
+        if (previous != null) {
+            cancel(previous);
+        }
+
+        tail.future = timer.scheduleWithFixedDelay(() -> send(tail), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the bytes appended to the file since the last check
+     *
+     * @param tail Segment file
+     */
+    private void send(@NotNull Tail tail) {
+        if (tail.unsupported) {
+            return;
+        }
+
+        try {
+            if (tail.upload == null) {
+                tail.upload = uploadEndpoint.startProgressive(tail.file, tail.settings, tail.idempotencyKey);
+                if (tail.upload == null) {
+                    tail.unsupported = true;
+                    return;
+                }
+            }
+
+            val upload = tail.upload;
+            val before = upload.getSentBytes();
+            upload.sendAppended();
+            sentBytes.addAndGet(upload.getSentBytes() - before);
+        } catch (Exception e) {
+            // The bytes that were not acknowledged are sent by the next check or when the segment ends
+            logger.warn(String.format("Progressive upload of %s failed: %s", tail.file, e.getMessage()));
+        }
+    }
+
+    /**
+     * Stop tailing a segment file, when the segment ended
+     *
+     * @param path Recorder file path
+     * @return Tailed segment or null if the file was not tailed
+     */
+    @Nullable Tail stop(@NotNull String path) {
+        val tail = tails.remove(path);
+        if (tail != null) {
+            cancel(tail);
+        }
+
+        return tail;
+    }
+
+    private static void cancel(@NotNull Tail tail) {
+        val future = tail.future;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Abort the upload of a stopped segment that is not going to be uploaded, so the server does not keep it.
+     * The request is sent from the tailing threads, after a check of the file that may still be running.
+     *
+     * @param tail Stopped segment
+     */
+    void abort(@NotNull Tail tail) {
+        try {
+            timer.execute(() -> {
+                val upload = tail.upload;
+                if (upload == null) {
+                    return;
+                }
+
+                try {
+                    upload.abort();
+                    abortedCount.incrementAndGet();
+                } catch (Exception e) {
+                    logger.warn(String.format("Could not abort progressive upload of %s: %s", tail.file, e.getMessage()));
+                }
+            });
+        } catch (RejectedExecutionException ignore) {
+            // Shut down
+        }
+    }
+
+    /**
+     * Send the rest of the segment and finish its upload
+     *
+     * @param upload Progressive upload
+     * @param file Renamed segment file
+     * @return Response from API as a string
+     * @throws IOException if the file could not be read
+     */
+    @NotNull String finish(@NotNull ProgressiveUpload upload, @NotNull File file) throws IOException {
+        val before = upload.getSentBytes();
+        try {
+            return upload.finish(file);
+        } finally {
+            sentBytes.addAndGet(upload.getSentBytes() - before);
+            resentBytes.addAndGet(upload.getResentBytes());
+        }
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Create a JSON object describing the progressive uploads
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull JSONObject status() {
+        val result = new JSONObject();
+        result.put("active", tails.size());
+        result.put("sent_bytes", sentBytes.get());
+        result.put("resent_bytes", resentBytes.get());
+        result.put("aborted", abortedCount.get());
+
+        return result;
+    }
+}
@@ -0,0 +1,416 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.wowza.wms.application.WMSProperties;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Object that smooths the automatic record starts of the streams that publish at once, as after a restart:
+ * - Only a limited number of starts (settings request and recorder start) run at the same time
+ * - Starts that had to wait are spread by a random delay, so they do not hit API and the disk together
+ * - Streams that were recorded shortly before the start of the application go first
+ *
+ * Time from publishing to recording is kept for every stream.
+ * Streams being recorded are written to a state file, which is read at the next start to find the streams recorded before.
+ * The file is written in the background, at most once per {@link #WRITE_DELAY} milliseconds, and when the admission stops.
+ *
+ * Every application instance has an admission scheduler and a state file of its own.
+ *
+ * @author Alexey Donov
+ */
+final class RecordAdmission {
+    private static final String MAX_STARTS_KEY = "recordStartConcurrency";
+    private static final String JITTER_KEY = "recordStartJitter";
+    private static final String STATE_PATH_KEY = "recordStatePath";
+    private static final String PRIORITY_WINDOW_KEY = "recordPriorityWindow";
+
+    private static final int DEFAULT_MAX_STARTS = 8;
+    private static final long DEFAULT_JITTER = 500;
+    private static final String DEFAULT_STATE_PATH = "/usr/local/WowzaStreamingEngine/logs/record-state.json";
+    private static final long DEFAULT_PRIORITY_WINDOW = 600;
+
+    /**
+     * Delay in milliseconds of writing the state file after a change, the changes made meanwhile are written together
+     */
+    private static final long WRITE_DELAY = 1000;
+
+    /**
+     * Running admission schedulers by application instance name, for the HTTP providers
+     */
+    private static final @NotNull Map<String, RecordAdmission> admissions = new ConcurrentHashMap<>();
+
+    /**
+     * Record start waiting for admission
+     */
+    private static final class Ticket {
+        private final @NotNull String streamName;
+        private final boolean priority;
+        private final long sequence;
+        private final long submitted;
+        private final boolean contended;
+        private final @NotNull Supplier<CompletableFuture<Boolean>> start;
+
+        private Ticket(@NotNull String streamName, boolean priority, long sequence, long submitted, boolean contended,
+                       @NotNull Supplier<CompletableFuture<Boolean>> start) {
+            this.streamName = streamName;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.submitted = submitted;
+            this.contended = contended;
+            this.start = start;
+        }
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(RecordAdmission.class);
+
+    private final int maxStarts;
+    private final long jitter;
+    private final @Nullable File stateFile;
+    private final long priorityWindow;
+
+    /**
+     * Priority streams first, then in the order of publishing
+     */
+    private final @NotNull PriorityQueue<Ticket> queue = new PriorityQueue<>(
+        Comparator.<Ticket, Boolean>comparing(ticket -> !ticket.priority).thenComparingLong(ticket -> ticket.sequence));
+    private int running = 0;
+    private long sequence = 0;
+
+    /**
+     * Time the streams were last seen recording, in milliseconds since epoch
+     */
+    private final @NotNull Map<String, Long> recordedStreams = new HashMap<>();
+
+    /**
+     * Streams recorded before the application started, that have not published yet
+     */
+    private final @NotNull Map<String, Long> priorityStreams = new HashMap<>();
+
+    /**
+     * Time from publishing to recording of the published streams, in milliseconds
+     */
+    private final @NotNull Map<String, Long> startTimes = new ConcurrentHashMap<>();
+
+    private final @NotNull StageStatistics startStatistics = new StageStatistics();
+    private final @NotNull StageStatistics waitStatistics = new StageStatistics();
+
+    private final @NotNull ScheduledExecutorService scheduler;
+
+    /**
+     * Whether writing the state file is scheduled
+     */
+    private boolean writeScheduled = false;
+
+    /**
+     * Create the admission scheduler configured by the application properties
+     *
+     * @param properties Application properties
+     * @param appInstanceName Application instance name, every instance has a state file of its own
+     * @return Record admission scheduler
+     */
+    static @NotNull RecordAdmission fromProperties(@NotNull WMSProperties properties, @NotNull String appInstanceName) {
+        val statePath = properties.getPropertyStr(STATE_PATH_KEY, DEFAULT_STATE_PATH);
+
+        return new RecordAdmission(Math.max(1, properties.getPropertyInt(MAX_STARTS_KEY, DEFAULT_MAX_STARTS)),
+            Math.max(0, properties.getPropertyLong(JITTER_KEY, DEFAULT_JITTER)),
+            statePath.isEmpty() ? null : InstanceFiles.forAppInstance(statePath, appInstanceName),
+            TimeUnit.SECONDS.toMillis(Math.max(0, properties.getPropertyLong(PRIORITY_WINDOW_KEY, DEFAULT_PRIORITY_WINDOW))));
+    }
+
+    /**
+     * Get the running admission scheduler of an application instance
+     *
+     * @param appInstanceName Application instance name
+     * @return Record admission scheduler or null if the instance is not running
+     */
+    static @Nullable RecordAdmission forAppInstance(@NotNull String appInstanceName) {
+        return admissions.get(appInstanceName);
+    }
+
+    /**
+     * Make the admission scheduler of a started application instance available to the HTTP providers
+     *
+     * @param appInstanceName Application instance name
+     * @param admission Record admission scheduler
+     */
+    static void register(@NotNull String appInstanceName, @NotNull RecordAdmission admission) {
+        admissions.put(appInstanceName, admission);
+    }
+
+    /**
+     * Forget the admission scheduler of a stopped application instance
+     *
+     * @param appInstanceName Application instance name
+     * @param admission Record admission scheduler
+     */
+    static void unregister(@NotNull String appInstanceName, @NotNull RecordAdmission admission) {
+        admissions.remove(appInstanceName, admission);
+    }
+
+    /**
+     * @param maxStarts Maximum number of record starts running at the same time
+     * @param jitter Maximum random delay of a start that had to wait, in milliseconds
+     * @param stateFile File of the streams being recorded, null to keep them only in memory
+     * @param priorityWindow Streams recorded within this time before the start go first, in milliseconds
+     */
+    RecordAdmission(int maxStarts, long jitter, @Nullable File stateFile, long priorityWindow) {
+        this.maxStarts = maxStarts;
+        this.jitter = jitter;
+        this.stateFile = stateFile;
+        this.priorityWindow = priorityWindow;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            val thread = new Thread(runnable, "record-admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        readState();
+    }
+
+    /**
+     * Queue the record start of a published stream
+     *
+     * @param streamName Stream name
+     * @param start Record start, completed with true when the recording started and false when it was not needed
+     */
+    void submit(@NotNull String streamName, @NotNull Supplier<CompletableFuture<Boolean>> start) {
+        synchronized (this) {
+            // The stream published again before its start was admitted
+            queue.removeIf(ticket -> ticket.streamName.equals(streamName));
+
+            val priority = priorityStreams.remove(streamName) != null;
+            val contended = running >= maxStarts || !queue.isEmpty();
+            queue.add(new Ticket(streamName, priority, sequence++, System.nanoTime(), contended, start));
+
+            if (contended) {
+                logger.info(String.format("Record start of %s is queued (%d running, %d waiting)%s",
+                    streamName, running, queue.size(), priority ? ", recorded before restart" : ""));
+            }
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Forget the stream that stopped publishing, its start is not going to be admitted
+     *
+     * @param streamName Stream name
+     */
+    void cancel(@NotNull String streamName) {
+        synchronized (this) {
+            queue.removeIf(ticket -> ticket.streamName.equals(streamName));
+        }
+        startTimes.remove(streamName);
+    }
+
+    /**
+     * Admit the waiting starts while there are free slots
+     */
+    private void dispatch() {
+        while (true) {
+            final Ticket ticket;
+            synchronized (this) {
+                if (running >= maxStarts || queue.isEmpty()) {
+                    return;
+                }
+
+                ticket = queue.poll();
+                running++;
+            }
+
+            val delay = ticket.contended && jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0;
+            try {
+                scheduler.schedule(() -> run(ticket), delay, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Shut down
+                synchronized (this) {
+                    running--;
+                }
+                return;
+            }
+        }
+    }
+
+    private void run(@NotNull Ticket ticket) {
+        waitStatistics.recordSince(ticket.submitted);
+
+        CompletableFuture<Boolean> future;
+        try {
+            future = ticket.start.get();
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        future.whenComplete((started, t) -> {
+            if (t == null && Boolean.TRUE.equals(started)) {
+                val nanos = System.nanoTime() - ticket.submitted;
+                startStatistics.record(nanos);
+                startTimes.put(ticket.streamName, TimeUnit.NANOSECONDS.toMillis(nanos));
+                recording(ticket.streamName);
+            }
+
+            synchronized (this) {
+                running--;
+            }
+            dispatch();
+        });
+    }
+
+    /**
+     * Remember that the stream is being recorded
+     *
+     * @param streamName Stream name
+     */
+    synchronized void recording(@NotNull String streamName) {
+        recordedStreams.put(streamName, System.currentTimeMillis());
+        scheduleWrite();
+    }
+
+    /**
+     * Remember the time the stream stopped being recorded, it still goes first if it publishes soon after a restart
+     *
+     * @param streamName Stream name
+     */
+    synchronized void stopped(@NotNull String streamName) {
+        if (recordedStreams.containsKey(streamName)) {
+            recording(streamName);
+        }
+    }
+
+    private void readState() {
+        if (stateFile == null || !stateFile.isFile()) {
+            return;
+        }
+
+        val since = System.currentTimeMillis() - priorityWindow;
+        try {
+            val state = (JSONObject) new JSONParser().parse(new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8));
+            for (val entry : ((Map<?, ?>) state).entrySet()) {
+                val time = Long.parseLong(entry.getValue().toString());
+                if (time >= since) {
+                    recordedStreams.put(entry.getKey().toString(), time);
+                    priorityStreams.put(entry.getKey().toString(), time);
+                }
+            }
+            logger.info(String.format("%d streams were recorded before the start", priorityStreams.size()));
+        } catch (Exception e) {
+            logger.warn(String.format("Could not read record state %s: %s", stateFile, e.getMessage()));
+        }
+    }
+
+    /**
+     * Write the state file after the delay, unless it is already scheduled. Must be called with the lock held.
+     */
+    private void scheduleWrite() {
+        if (stateFile == null || writeScheduled) {
+            return;
+        }
+
+        try {
+            scheduler.schedule(this::writeState, WRITE_DELAY, TimeUnit.MILLISECONDS);
+            writeScheduled = true;
+        } catch (Exception e) {
+            // Shut down, the state is written by the shutdown
+        }
+    }
+
+    /**
+     * Write the streams recorded recently to the state file, the file is written outside of the lock
+     */
+    @SuppressWarnings("unchecked")
+    private void writeState() {
+        if (stateFile == null) {
+            return;
+        }
+
+        val state = new JSONObject();
+        synchronized (this) {
+            writeScheduled = false;
+
+            // Streams not recorded for long would never get priority again
+            val since = System.currentTimeMillis() - priorityWindow;
+            recordedStreams.values().removeIf(time -> time < since);
+            state.putAll(recordedStreams);
+        }
+
+        synchronized (stateFile) {
+            try {
+                val parent = stateFile.getAbsoluteFile().getParentFile();
+                if (parent != null) {
+                    Files.createDirectories(parent.toPath());
+                }
+
+                val temporary = new File(stateFile.getPath().concat(".tmp"));
+                Files.write(temporary.toPath(), state.toJSONString().getBytes(StandardCharsets.UTF_8));
+                Files.move(temporary.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.warn(String.format("Could not write record state %s: %s", stateFile, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Stop admitting the record starts and write the state file
+     */
+    void shutdown() {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+
+        scheduler.shutdownNow();
+        writeState();
+    }
+
+    /**
+     * Create a JSON object describing the running and waiting starts and the time from publishing to recording
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    synchronized @NotNull JSONObject status() {
+        val waiting = new JSONArray();
+        queue.stream()
+            .sorted(queue.comparator())
+            .map(ticket -> ticket.streamName)
+            .forEach(waiting::add);
+
+        val streams = new JSONObject();
+        streams.putAll(startTimes);
+
+        val result = new JSONObject();
+        result.put("max_starts", maxStarts);
+        result.put("running", running);
+        result.put("waiting", waiting);
+        result.put("priority_streams", priorityStreams.size());
+        result.put("queue_wait", waitStatistics.toJSON());
+        result.put("publish_to_record", startStatistics.toJSON());
+        result.put("publish_to_record_ms", streams);
+
+        return result;
+    }
+}
@@ -1,19 +1,31 @@
 package com.tsuyoshihayashi.wowza;
 
+import com.tsuyoshihayashi.model.StreamRegistry;
 import com.wowza.wms.livestreamrecord.manager.IStreamRecorder;
 import com.wowza.wms.livestreamrecord.manager.LiveStreamRecordManagerActionNotifyBase;
 import org.jetbrains.annotations.NotNull;
 
 /**
- * Object that adds a record listener to new recorders
+ * Object that adds a record listener to the new recorders of an application instance.
+ * The record manager is shared by the VHost, recorders of the other instances are left to their own listeners.
  *
  * @author Alexey Donov
  */
 final class RecordManagerListener extends LiveStreamRecordManagerActionNotifyBase {
-    private final @NotNull RecorderListener recorderListener = new RecorderListener();
+    private final @NotNull String appInstanceName;
+    private final @NotNull RecorderListener recorderListener;
+
+    RecordManagerListener(@NotNull String appInstanceName, @NotNull UploadPipeline uploadPipeline) {
+        super();
+
+        this.appInstanceName = appInstanceName;
+        this.recorderListener = new RecorderListener(uploadPipeline);
+    }
 
     @Override
     public void onCreateRecord(IStreamRecorder recorder) {
-        recorder.addListener(recorderListener);
+        if (appInstanceName.equals(StreamRegistry.appInstanceName(recorder.getAppInstance()))) {
+            recorder.addListener(recorderListener);
+        }
     }
 }
@@ -14,6 +14,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import static com.tsuyoshihayashi.wowza.StreamConstants.RECORD_SETTINGS_KEY;
+import static com.tsuyoshihayashi.wowza.StreamConstants.UPLOAD_PRIORITY_KEY;
 
 /**
  * Object that handles requests that control stream recording
@@ -34,22 +35,10 @@ public final class RecorderControl extends Control {
     private static final String COMMENT_PARAMETER_NAME = "comment";
     private static final String TEXT_ACTION_PARAMETER_NAME = "act";
 
-    private static final String API_ENDPOINT_KEY = "apiEndpoint";
-    private static final String UPLOAD_REFERER_KEY = "uploadReferer";
-
     private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(RecorderControl.class);
 
-    private @Nullable RecordSettingsEndpoint recordSettingsEndpoint;
-
     private @NotNull RecordSettingsEndpoint getRecordSettingsEndpoint(IVHost host) {
-        if (recordSettingsEndpoint == null) {
-            val hostProperties = host.getProperties();
-            val apiEndpoint = hostProperties.getPropertyStr(API_ENDPOINT_KEY);
-            val uploadReferer = hostProperties.getPropertyStr(UPLOAD_REFERER_KEY);
-            recordSettingsEndpoint = new RecordSettingsEndpoint(apiEndpoint, uploadReferer);
-        }
-
-        return recordSettingsEndpoint;
+        return RecordSettingsEndpoint.instance(host);
     }
 
     @Override
@@ -99,9 +88,14 @@ public final class RecorderControl extends Control {
                 val comment = request.getParameter(COMMENT_PARAMETER_NAME);
                 val textAction = request.getParameter(TEXT_ACTION_PARAMETER_NAME);
 
-                val settings = getRecordSettingsEndpoint(host).getRecordSettings(stream, title, comment, textAction);
+                // Settings cached with other title, comment or text action are requested again
+                val settingsEndpoint = getRecordSettingsEndpoint(host);
+                settingsEndpoint.invalidate(streamName, title, comment, textAction);
+
+                val settings = settingsEndpoint.getRecordSettings(stream, title, comment, textAction);
                 val streamProperties = stream.getProperties();
                 streamProperties.setProperty(RECORD_SETTINGS_KEY, settings);
+                streamProperties.setProperty(UPLOAD_PRIORITY_KEY, UploadPriority.MANUAL);
 
                 // Create stream recorder parameters from the settings
                 val parameters = new StreamRecorderParameters(instance);
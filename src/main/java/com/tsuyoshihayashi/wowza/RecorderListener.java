@@ -2,41 +2,47 @@ package com.tsuyoshihayashi.wowza;
 
 import com.tsuyoshihayashi.model.SegmentInfo;
 import com.tsuyoshihayashi.model.RecordSettings;
+import com.tsuyoshihayashi.model.StreamRegistry;
+import com.tsuyoshihayashi.model.StreamState;
 import com.wowza.wms.livestreamrecord.manager.IStreamRecorder;
 import com.wowza.wms.livestreamrecord.manager.StreamRecorderActionNotifyBase;
 import com.wowza.wms.logging.WMSLogger;
 import com.wowza.wms.logging.WMSLoggerFactory;
 import lombok.val;
-import org.glassfish.jersey.media.multipart.FormDataMultiPart;
-import org.glassfish.jersey.media.multipart.MultiPartFeature;
-import org.glassfish.jersey.media.multipart.file.FileDataBodyPart;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.core.MediaType;
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Optional;
 
 import static com.tsuyoshihayashi.wowza.StreamConstants.RECORD_SETTINGS_KEY;
-import static java.util.concurrent.CompletableFuture.completedFuture;
-import static java.util.concurrent.CompletableFuture.runAsync;
+import static com.tsuyoshihayashi.wowza.StreamConstants.UPLOAD_PRIORITY_KEY;
 
 /**
- * Object that listens to events in stream recorder
+ * Object that listens to events in the stream recorders of an application instance
  *
  * @author Alexey Donov
  */
 final class RecorderListener extends StreamRecorderActionNotifyBase {
     private static final WMSLogger logger = WMSLoggerFactory.getLogger(RecorderListener.class);
-    private static final Client client = ClientBuilder.newBuilder().register(MultiPartFeature.class).build();
-    private static final Map<String, RecordSettings> streamRecordSettings = new HashMap<>();
 
-    static @Nullable String uploadOverrideEndpoint = null;
+    private static final StreamRegistry registry = StreamRegistry.instance();
+
+    /**
+     * Builder for the new file names, reused by the renaming thread
+     */
+    private static final ThreadLocal<StringBuilder> nameBuilder = ThreadLocal.withInitial(StringBuilder::new);
+
+    /**
+     * Pipeline that renames and uploads the segments of the application instance
+     */
+    private final @NotNull UploadPipeline uploadPipeline;
+
+    RecorderListener(@NotNull UploadPipeline uploadPipeline) {
+        super();
+
+        this.uploadPipeline = uploadPipeline;
+    }
 
     /**
      * Get the record settings from a stream being recorded
@@ -45,7 +51,27 @@ final class RecorderListener extends StreamRecorderActionNotifyBase {
      * @return RecordSettings object
      */
     private static @Nullable RecordSettings getRecordSettings(@NotNull IStreamRecorder recorder) {
-        return streamRecordSettings.get(recorder.getStreamName());
+        return Optional.ofNullable(getStreamState(recorder)).map(StreamState::getRecordSettings).orElse(null);
+    }
+
+    /**
+     * Get the upload priority of a stream being recorded
+     *
+     * @param recorder Stream recorder
+     * @return Upload priority, {@link UploadPriority#AUTO} if not known
+     */
+    private static @NotNull UploadPriority getUploadPriority(@NotNull IStreamRecorder recorder) {
+        return UploadPriority.fromString(Optional.ofNullable(getStreamState(recorder)).map(StreamState::getUploadPriority).orElse(null));
+    }
+
+    /**
+     * Get the state of the stream being recorded
+     *
+     * @param recorder Stream recorder
+     * @return Stream state or null if the stream is not known
+     */
+    private static @Nullable StreamState getStreamState(@NotNull IStreamRecorder recorder) {
+        return registry.get(StreamRegistry.appInstanceName(recorder.getAppInstance()), recorder.getStreamName());
     }
 
     /**
@@ -79,80 +105,18 @@ final class RecorderListener extends StreamRecorderActionNotifyBase {
         val end = segmentInfo.getSegmentEndTime();
         val start = end.minus(segmentInfo.getSegmentDuration());
 
-        val newName = recordSettings.getFileNameFormat()
-            .replaceAll("N", String.format("%d", segmentInfo.getSegmentNumber()))
-            .replaceFirst("DD", String.format("%02d", start.getDayOfMonth()))
-            .replaceFirst("HH", String.format("%02d", start.getHourOfDay()))
-            .replaceFirst("II", String.format("%02d", start.getMinuteOfHour()))
-            .replaceFirst("SS", String.format("%02d", start.getSecondOfMinute()))
-            .replaceFirst("DD", String.format("%02d", end.getDayOfMonth()))
-            .replaceFirst("HH", String.format("%02d", end.getHourOfDay()))
-            .replaceFirst("II", String.format("%02d", end.getMinuteOfHour()))
-            .replaceFirst("SS", String.format("%02d", end.getSecondOfMinute()));
-
-        return String.format("%s/%s", segmentInfo.getStoragePath(), newName);
-    }
-
-    /**
-     * Renames the file from a temporary name to a final name
-     *
-     * @param oldFile Temporary file
-     * @param newFileName Final file name
-     * @return File object with a final name
-     */
-    private static @NotNull File renameFile(@NotNull File oldFile, @NotNull String newFileName) {
-        val newFile = new File(newFileName);
-
-        if (!oldFile.renameTo(newFile)) {
-            throw new RuntimeException("Could not move file");
-        }
-
-        return newFile;
-    }
-
-    /**
-     * Uploads a recorded file
-     *
-     * @param file File object
-     * @param settings RecordSettings object
-     * @return Response from API as a string
-     */
-    private static @NotNull String uploadFile(@NotNull File file, @NotNull RecordSettings settings) {
-        if (settings.getUploadURL() == null) {
-            return String.format("No upload URL for [%s], skipping upload", file);
-        }
+        val builder = nameBuilder.get();
+        builder.setLength(0);
+        builder.append(segmentInfo.getStoragePath()).append('/');
+        recordSettings.getFileNameTemplate().appendTo(builder, segmentInfo.getSegmentNumber(), start, end);
 
-        val form = new FormDataMultiPart();
-        form.field("hash", settings.getHash());
-        form.field("hash2", settings.getHash2());
-        form.field("title", Optional.ofNullable(settings.getTitle()).orElse(file.getName()));
-        Optional.ofNullable(settings.getComment())
-            .ifPresent(comment -> form.field("comment", comment));
-        form.bodyPart(new FileDataBodyPart("video_file", file, new MediaType("video", "mp4")));
-
-        val endpoint = Optional.ofNullable(uploadOverrideEndpoint).orElse(settings.getUploadURL());
-
-        logger.info(String.format("Uploading segment %s to %s", file.getName(), endpoint));
-
-        try {
-            val response = client.target(endpoint)
-                .request()
-                .header("Referer", settings.getReferer())
-                .post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE))
-                .readEntity(String.class);
-            if (!file.delete()) {
-                logger.warn(String.format("Could not delete %s", file));
-            }
-            return response;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return builder.toString();
     }
 
     // StreamRecorderActionNotify
 
     /**
-     * When the record is started, save the record settings locally
+     * When the record is started, save the record settings and the upload priority locally
      *
      * @param recorder Stream recorder
      */
@@ -166,8 +130,13 @@ final class RecorderListener extends StreamRecorderActionNotifyBase {
 
         val properties = stream.getProperties();
         val settings = (RecordSettings) properties.getProperty(RECORD_SETTINGS_KEY);
+        val priority = properties.getProperty(UPLOAD_PRIORITY_KEY);
 
-        streamRecordSettings.put(recorder.getStreamName(), settings);
+        registry.update(StreamRegistry.appInstanceName(recorder.getAppInstance()), recorder.getStreamName(), state -> {
+            state.setRecorder(recorder);
+            state.setRecordSettings(settings);
+            state.setUploadPriority((priority instanceof UploadPriority ? (UploadPriority) priority : UploadPriority.AUTO).name());
+        });
     }
 
     /**
@@ -177,37 +146,38 @@ final class RecorderListener extends StreamRecorderActionNotifyBase {
      */
     @Override
     public void onStopRecorder(IStreamRecorder recorder) {
-        streamRecordSettings.remove(recorder.getStreamName());
+        registry.update(StreamRegistry.appInstanceName(recorder.getAppInstance()), recorder.getStreamName(), state -> {
+            state.setRecorder(null);
+            state.setRecordSettings(null);
+            state.setUploadPriority(null);
+        });
     }
 
     /**
-     * When a segment is finished recording, rename the file and upload it
+     * When a segment starts recording, let the upload pipeline send it while it is recorded
      *
      * @param recorder Stream recorder
      */
     @Override
-    public void onSegmentEnd(IStreamRecorder recorder) {
-        // Fetch the segment information
-        val segmentInfo = getSegmentInfo(recorder);
-        val segmentInfoFuture = completedFuture(segmentInfo);
-
-        // Fetch the record settings
-        val recordSettings = getRecordSettings(recorder);
-        val recordSettingsFuture = completedFuture(recordSettings);
-
-        runAsync(() -> logger.info("Segment finished"));
-
-        // Fetch the temporary file
-        val oldFileFuture = segmentInfoFuture.thenApply(RecorderListener::getRecordedFile);
+    public void onSegmentStart(IStreamRecorder recorder) {
+        uploadPipeline.segmentStarted(recorder.getCurrentFile(), getRecordSettings(recorder));
+    }
 
-        // Generate final file name according to the rules
-        val newFileNameFuture = recordSettingsFuture.thenCombine(segmentInfoFuture, RecorderListener::createNewName);
+    /**
+     * When a segment is finished recording, hand it off to the upload pipeline.
+     * Renaming and uploading happen on the pipeline threads, this method only enqueues the segment.
+     *
+     * @param recorder Stream recorder
+     */
+    @Override
+    public void onSegmentEnd(IStreamRecorder recorder) {
+        val handOffStart = System.nanoTime();
 
-        // Rename the file
-        val newFileFuture = oldFileFuture.thenCombine(newFileNameFuture, RecorderListener::renameFile);
+        val state = getStreamState(recorder);
+        if (state != null) {
+            state.getSegmentCount().incrementAndGet();
+        }
 
-        // Upload it and log the response
-        newFileFuture.thenCombineAsync(recordSettingsFuture, RecorderListener::uploadFile)
-            .thenAcceptAsync(response -> logger.info(String.format("Upload response: %s", response)));
+        uploadPipeline.submit(recorder.getStreamName(), getSegmentInfo(recorder), getRecordSettings(recorder), getUploadPriority(recorder), handOffStart);
     }
 }
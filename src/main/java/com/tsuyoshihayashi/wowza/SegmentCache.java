@@ -0,0 +1,408 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.api.UploadEndpoint;
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.Data;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Object that keeps the uploaded segments in a local directory, so the platform can ask for a segment again
+ * (reprocessing, a failed transcode) and it is uploaded from the disk.
+ *
+ * The directory is limited by its total size and by the age of the segments.
+ * The least recently used segments are evicted first. Record settings of each segment are kept next to it
+ * in a small JSON file, so the segments left from the previous run can be uploaded again too.
+ *
+ * Segments are kept in a directory of their stream, so the segments of different streams with the same name
+ * do not replace each other. Segments left in the cache directory itself by an earlier version have no stream.
+ * Files are moved into the cache outside of the lock, only the index is updated under it.
+ *
+ * @author Alexey Donov
+ */
+final class SegmentCache implements UploadEndpoint.UploadedFiles {
+    private static final String SETTINGS_SUFFIX = ".settings.json";
+    private static final String SETTINGS_KEY = "settings";
+    private static final String REFERER_KEY = "referer";
+
+    /**
+     * Segment in the cache
+     */
+    @Data
+    static final class Entry {
+        private final @NotNull String streamName;
+        private final @NotNull File file;
+        private final @Nullable RecordSettings settings;
+        private final long size;
+        private final long time;
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(SegmentCache.class);
+
+    private final @NotNull File directory;
+    private final long maxSize;
+    private final long maxAge;
+
+    /**
+     * Streams of the segments being uploaded by file
+     */
+    private final @NotNull Map<File, String> uploadingStreams = new ConcurrentHashMap<>();
+
+    /**
+     * Segments by stream name and file name, from the least recently used
+     */
+    private final @NotNull LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param directory Cache directory
+     * @param maxSize Maximum total size of the segments in bytes
+     * @param maxAge Maximum age of a segment in milliseconds, 0 for no limit
+     */
+    SegmentCache(@NotNull File directory, long maxSize, long maxAge) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Create the cache directory and index the segments left in it, from the oldest
+     */
+    synchronized void open() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error(String.format("Could not create segment cache directory %s", directory));
+            return;
+        }
+
+        val found = new ArrayList<Entry>();
+        list("", directory, found);
+        for (val streamDirectory : Optional.ofNullable(directory.listFiles(File::isDirectory)).orElse(new File[0])) {
+            val streamName = decode(streamDirectory.getName());
+            if (streamName != null) {
+                list(streamName, streamDirectory, found);
+            }
+        }
+
+        found.sort(Comparator.comparingLong(Entry::getTime));
+        found.forEach(this::add);
+
+        evict(System.currentTimeMillis());
+
+        if (!entries.isEmpty()) {
+            logger.info(String.format("Segment cache has %d file(s), %d byte(s)", entries.size(), size));
+        }
+    }
+
+    /**
+     * Index the segments of a stream directory and delete the record settings left without a segment
+     *
+     * @param streamName Stream name, empty for the cache directory itself
+     * @param streamDirectory Directory of the stream segments
+     * @param found Indexed segments
+     */
+    private void list(@NotNull String streamName, @NotNull File streamDirectory, @NotNull List<Entry> found) {
+        val files = Optional.ofNullable(streamDirectory.listFiles(File::isFile)).orElse(new File[0]);
+        for (val file : files) {
+            if (!file.getName().endsWith(SETTINGS_SUFFIX)) {
+                found.add(new Entry(streamName, file, readSettings(file), file.length(), file.lastModified()));
+            } else if (!new File(streamDirectory, file.getName().substring(0, file.getName().length() - SETTINGS_SUFFIX.length())).isFile()) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Remember the stream of a segment before it is uploaded, so it is cached with the other segments of the stream
+     *
+     * @param file Segment file
+     * @param streamName Stream name
+     */
+    void uploading(@NotNull File file, @NotNull String streamName) {
+        uploadingStreams.put(file, streamName);
+    }
+
+    /**
+     * Forget the stream of a segment after the upload, whether it succeeded or not
+     *
+     * @param file Segment file
+     */
+    void uploadFinished(@NotNull File file) {
+        uploadingStreams.remove(file);
+    }
+
+    /**
+     * Move an uploaded segment into the cache, evicting the least recently used segments if it is full
+     *
+     * @param file Uploaded file
+     * @param settings Record settings it was uploaded with
+     */
+    @Override
+    public void uploaded(@NotNull File file, @NotNull RecordSettings settings) {
+        val streamName = streamName(file);
+        val target = new File(streamDirectory(streamName), file.getName());
+        try {
+            if (!target.equals(file)) {
+                Files.createDirectories(target.getParentFile().toPath());
+                Files.move(file.toPath(), target.toPath(), REPLACE_EXISTING);
+            }
+            writeSettings(target, settings);
+        } catch (IOException e) {
+            logger.warn(String.format("Could not move %s to the segment cache: %s", file, e.getMessage()));
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return;
+        }
+
+        val now = System.currentTimeMillis();
+        //noinspection ResultOfMethodCallIgnored
+        target.setLastModified(now);
+        val length = target.length();
+
+        synchronized (this) {
+            add(new Entry(streamName, target, settings, length, now));
+            evict(now);
+        }
+    }
+
+    /**
+     * Take a segment out of the cache to upload it again. The segment goes back to the cache when it is uploaded,
+     * or with {@link #uploadAbandoned(File, RecordSettings)} when its upload fails.
+     *
+     * @param streamName Stream name, null to find the segment in any stream
+     * @param name File name
+     * @return Segment or null if it is not in the cache, the name is used by more than one stream or its record settings are not known
+     */
+    synchronized @Nullable Entry take(@Nullable String streamName, @NotNull String name) {
+        evict(System.currentTimeMillis());
+
+        val entry = streamName != null ? entries.get(key(streamName, name)) : find(name);
+        if (entry == null || entry.getSettings() == null || !entry.getFile().exists()) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        remove(key(entry));
+
+        return entry;
+    }
+
+    /**
+     * Put a segment taken out of the cache back into it when its upload is abandoned,
+     * so the file left in the cache directory is counted and evicted again. Other files are ignored.
+     *
+     * @param file Segment file
+     * @param settings Record settings of the segment
+     */
+    void uploadAbandoned(@NotNull File file, @NotNull RecordSettings settings) {
+        val streamName = cachedStreamName(file);
+        if (streamName == null || !file.isFile()) {
+            return;
+        }
+
+        val entry = new Entry(streamName, file, settings, file.length(), file.lastModified());
+        synchronized (this) {
+            add(entry);
+            evict(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Find the only segment with the file name
+     *
+     * @param name File name
+     * @return Segment or null if there is none or more than one
+     */
+    private @Nullable Entry find(@NotNull String name) {
+        Entry result = null;
+        for (val entry : entries.values()) {
+            if (!entry.getFile().getName().equals(name)) {
+                continue;
+            }
+
+            if (result != null) {
+                logger.warn(String.format("Segment %s is cached for more than one stream, the stream has to be given", name));
+                return null;
+            }
+            result = entry;
+        }
+
+        return result;
+    }
+
+    private void add(@NotNull Entry entry) {
+        remove(key(entry));
+        entries.put(key(entry), entry);
+        size += entry.getSize();
+    }
+
+    private void remove(@NotNull String key) {
+        val entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.getSize();
+        }
+    }
+
+    private static @NotNull String key(@NotNull Entry entry) {
+        return key(entry.getStreamName(), entry.getFile().getName());
+    }
+
+    /**
+     * File names have no slashes, so the key is unique even if the stream name has them
+     */
+    private static @NotNull String key(@NotNull String streamName, @NotNull String name) {
+        return streamName.concat("/").concat(name);
+    }
+
+    /**
+     * Get the stream of an uploaded segment. A segment uploaded again from the cache stays in its stream directory.
+     *
+     * @param file Uploaded file
+     * @return Stream name, empty if not known
+     */
+    private @NotNull String streamName(@NotNull File file) {
+        return Optional.ofNullable(cachedStreamName(file)).orElseGet(() -> Optional.ofNullable(uploadingStreams.get(file)).orElse(""));
+    }
+
+    /**
+     * Get the stream of a segment from its directory in the cache
+     *
+     * @param file Segment file
+     * @return Stream name, empty for the cache directory itself, null if the file is not in the cache directory
+     */
+    private @Nullable String cachedStreamName(@NotNull File file) {
+        val parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && parent.equals(directory.getAbsoluteFile())) {
+            return "";
+        }
+        if (parent != null && directory.getAbsoluteFile().equals(parent.getParentFile())) {
+            return Optional.ofNullable(decode(parent.getName())).orElse("");
+        }
+
+        return null;
+    }
+
+    private @NotNull File streamDirectory(@NotNull String streamName) {
+        if (streamName.isEmpty()) {
+            return directory;
+        }
+
+        try {
+            return new File(directory, URLEncoder.encode(streamName, StandardCharsets.UTF_8.name()));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static @Nullable String decode(@NotNull String directoryName) {
+        try {
+            return URLDecoder.decode(directoryName, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Delete the segments that are too old, then the least recently used ones until the cache fits its size
+     *
+     * @param now Current time in milliseconds
+     */
+    private void evict(long now) {
+        val iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            val entry = iterator.next();
+            if (size <= maxSize && (maxAge <= 0 || now - entry.getTime() <= maxAge)) {
+                // Recently used entries are not necessarily newer, the age of the rest still has to be checked
+                if (maxAge <= 0) {
+                    break;
+                }
+                continue;
+            }
+
+            iterator.remove();
+            size -= entry.getSize();
+            evictionCount++;
+            delete(entry.getFile());
+        }
+    }
+
+    private static void delete(@NotNull File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        sidecar(file).delete();
+    }
+
+    private static @NotNull File sidecar(@NotNull File file) {
+        return new File(file.getParentFile(), file.getName().concat(SETTINGS_SUFFIX));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeSettings(@NotNull File file, @NotNull RecordSettings settings) throws IOException {
+        val json = new JSONObject();
+        json.put(SETTINGS_KEY, settings.toJSON());
+        json.put(REFERER_KEY, settings.getReferer());
+
+        Files.write(sidecar(file).toPath(), json.toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private @Nullable RecordSettings readSettings(@NotNull File file) {
+        val sidecar = sidecar(file);
+        if (!sidecar.isFile()) {
+            return null;
+        }
+
+        try {
+            val json = (JSONObject) new JSONParser().parse(new String(Files.readAllBytes(sidecar.toPath()), StandardCharsets.UTF_8));
+            return RecordSettings.fromJSON((JSONObject) json.get(SETTINGS_KEY), json.get(REFERER_KEY).toString());
+        } catch (Exception e) {
+            logger.warn(String.format("Could not read record settings of the cached %s: %s", file, e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Create a JSON object describing the cache
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    synchronized @NotNull JSONObject status() {
+        val result = new JSONObject();
+        result.put("files", entries.size());
+        result.put("size", size);
+        result.put("max_size", maxSize);
+        result.put("hits", hitCount);
+        result.put("misses", missCount);
+        result.put("evictions", evictionCount);
+
+        return result;
+    }
+}
@@ -0,0 +1,57 @@
+package com.tsuyoshihayashi.wowza;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Object that accumulates latency of a single upload pipeline stage
+ *
+ * @author Alexey Donov
+ */
+final class StageStatistics {
+    private final @NotNull LongAdder count = new LongAdder();
+    private final @NotNull LongAdder totalNanos = new LongAdder();
+    private final @NotNull AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Record the duration of a stage that started at the given moment
+     *
+     * @param startNanos Stage start as returned by {@link System#nanoTime()}
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record the duration of a stage
+     *
+     * @param nanos Stage duration in nanoseconds
+     */
+    void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Create a JSON object with the count, average and maximum durations
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull JSONObject toJSON() {
+        val total = count.sum();
+
+        val result = new JSONObject();
+        result.put("count", total);
+        result.put("avg_us", total == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / total));
+        result.put("max_us", TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+
+        return result;
+    }
+}
@@ -8,4 +8,9 @@ interface StreamConstants {
      * The name of the property that stores record settings in the stream object
      */
     String RECORD_SETTINGS_KEY = "RECORD_SETTINGS";
+
+    /**
+     * The name of the property that stores the upload priority of the recording in the stream object
+     */
+    String UPLOAD_PRIORITY_KEY = "UPLOAD_PRIORITY";
 }
@@ -1,6 +1,7 @@
 package com.tsuyoshihayashi.wowza;
 
 import com.tsuyoshihayashi.api.RecordSettingsEndpoint;
+import com.tsuyoshihayashi.model.StreamRegistry;
 import com.wowza.wms.application.*;
 import com.wowza.wms.livestreamrecord.manager.IStreamRecorderConstants;
 import com.wowza.wms.livestreamrecord.manager.StreamRecorderParameters;
@@ -15,9 +16,11 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.tsuyoshihayashi.wowza.StreamConstants.RECORD_SETTINGS_KEY;
-import static java.util.concurrent.CompletableFuture.completedFuture;
+import static com.tsuyoshihayashi.wowza.StreamConstants.UPLOAD_PRIORITY_KEY;
 
 /**
  * Object that listens to the events in the streams
@@ -26,23 +29,30 @@ import static java.util.concurrent.CompletableFuture.completedFuture;
  */
 final class StreamListener extends MediaStreamActionNotifyBase {
     private static final String API_ENDPOINT_KEY = "apiEndpoint";
-    private static final String UPLOAD_REFERER_KEY = "uploadReferer";
     private static final String PUSH_HOST_KEY = "pushHost";
     private static final String PUSH_APP_KEY = "pushApp";
-    private static final String PUBLISHER_PROPERTY_NAME = "publisher";
 
     private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(StreamListener.class);
 
     private final @NotNull IApplicationInstance instance;
+    private final @NotNull String appInstanceName;
+    private final @NotNull StreamRegistry registry = StreamRegistry.instance();
     private final @Nullable String pushHost;
     private final @Nullable String pushApp;
 
     private final @NotNull RecordSettingsEndpoint recordSettingsEndpoint;
 
-    StreamListener(@NotNull IApplicationInstance instance) {
+    /**
+     * Scheduler of the automatic record starts of the application instance
+     */
+    private final @NotNull RecordAdmission recordAdmission;
+
+    StreamListener(@NotNull IApplicationInstance instance, @NotNull RecordAdmission recordAdmission) {
         super();
 
         this.instance = instance;
+        this.recordAdmission = recordAdmission;
+        this.appInstanceName = StreamRegistry.appInstanceName(instance);
 
         val instanceProperties = instance.getProperties();
         this.pushHost = instanceProperties.getPropertyStr(PUSH_HOST_KEY);
@@ -51,17 +61,17 @@ final class StreamListener extends MediaStreamActionNotifyBase {
         val host = instance.getVHost();
         val hostProperties = host.getProperties();
 
-        val apiEndpoint = hostProperties.getPropertyStr(API_ENDPOINT_KEY);
-        val uploadReferer = hostProperties.getPropertyStr(UPLOAD_REFERER_KEY, "");
-        recordSettingsEndpoint = new RecordSettingsEndpoint(apiEndpoint, uploadReferer);
+        recordSettingsEndpoint = RecordSettingsEndpoint.instance(host);
 
-        logger.info(String.format("API Endpoint: %s", apiEndpoint));
+        logger.info(String.format("API Endpoint: %s", hostProperties.getPropertyStr(API_ENDPOINT_KEY)));
     }
 
     // IMediaStreamActionNotify
 
     /**
      * When the stream is published, fetch the record settings from API and process according to them.
+     * The settings are fetched in the background, the recording starts when they arrive.
+     * When many streams publish at once, the record starts wait for admission.
      * The stream is also pushed to the publish host.
      *
      * @param stream Stream object
@@ -71,26 +81,12 @@ final class StreamListener extends MediaStreamActionNotifyBase {
      */
     @Override
     public void onPublish(IMediaStream stream, String name, boolean record, boolean append) {
-        completedFuture(stream)
-            // Fetch the record settings
-            .thenApply(recordSettingsEndpoint::getRecordSettings)
-            .thenAccept(settings -> {
-                // Store the settings in the stream object
-                stream.getProperties().setProperty(RECORD_SETTINGS_KEY, settings);
+        registry.update(appInstanceName, name, state -> {
+            state.setPublished(true);
+            state.getPublishCount().incrementAndGet();
+        });
 
-                if (settings.isAutoRecord()) {
-                    // If the stream recording should start immediately, do so
-                    val parameters = new StreamRecorderParameters(instance);
-                    parameters.fileFormat = IStreamRecorderConstants.FORMAT_MP4;
-                    parameters.segmentationType = IStreamRecorderConstants.SEGMENT_BY_DURATION;
-                    parameters.segmentDuration = settings.getLimit() * 60 * 1000;
-                    parameters.startOnKeyFrame = true;
-                    parameters.recordData = true;
-                    parameters.outputPath = instance.getStreamStoragePath();
-
-                    instance.getVHost().getLiveStreamRecordManager().startRecording(instance, name, parameters);
-                }
-            }).whenComplete((v, t) -> logger.error(t.getMessage()));
+        recordAdmission.submit(name, () -> startRecording(stream, name));
 
         // Pushing the stream to the publish host
         Optional.ofNullable(pushHost)
@@ -113,13 +109,57 @@ final class StreamListener extends MediaStreamActionNotifyBase {
                     publisher.setDebugPackets(false);
 
                     publisher.connect();
-                    stream.getProperties().setProperty(PUBLISHER_PROPERTY_NAME, publisher);
+                    registry.update(appInstanceName, name, state -> state.setPublisher(publisher));
                 } catch (LicensingException e) {
                     logger.error("No license for PushPublish");
                 }
             });
     }
 
+    /**
+     * Fetch the record settings of the stream and start recording if they say so
+     *
+     * @param stream Stream object
+     * @param name Stream name
+     * @return Future completed with true if the recording started
+     */
+    private @NotNull CompletableFuture<Boolean> startRecording(@NotNull IMediaStream stream, @NotNull String name) {
+        // Fetch the record settings
+        return recordSettingsEndpoint.getRecordSettingsAsync(appInstanceName, stream)
+            .thenApply(settings -> {
+                // The stream may have stopped while API was answering
+                if (instance.getStreams().getStream(name) != stream) {
+                    logger.info(String.format("Stream %s is no longer published, ignoring its record settings", name));
+                    return false;
+                }
+
+                // Store the settings in the stream object
+                stream.getProperties().setProperty(RECORD_SETTINGS_KEY, settings);
+
+                if (!settings.isAutoRecord()) {
+                    return false;
+                }
+
+                stream.getProperties().setProperty(UPLOAD_PRIORITY_KEY, UploadPriority.AUTO);
+
+                // If the stream recording should start immediately, do so
+                val parameters = new StreamRecorderParameters(instance);
+                parameters.fileFormat = IStreamRecorderConstants.FORMAT_MP4;
+                parameters.segmentationType = IStreamRecorderConstants.SEGMENT_BY_DURATION;
+                parameters.segmentDuration = settings.getLimit() * 60 * 1000;
+                parameters.startOnKeyFrame = true;
+                parameters.recordData = true;
+                parameters.outputPath = instance.getStreamStoragePath();
+
+                instance.getVHost().getLiveStreamRecordManager().startRecording(instance, name, parameters);
+                return true;
+            }).whenComplete((started, t) -> {
+                if (t != null) {
+                    logger.error(String.format("Could not process record settings of %s: %s", name, t.getMessage()));
+                }
+            });
+    }
+
     /**
      * When the stream publishing stops, the recorder is stopped (if there was one)
      * and pushing to publish host is stopped.
@@ -133,11 +173,15 @@ final class StreamListener extends MediaStreamActionNotifyBase {
     public void onUnPublish(IMediaStream stream, String name, boolean record, boolean append) {
         instance.getVHost().getLiveStreamRecordManager().stopRecording(instance, name);
 
-        Optional.ofNullable(stream.getProperties().getProperty(PUBLISHER_PROPERTY_NAME))
-            .map(PushPublishRTMP.class::cast)
-            .ifPresent(publisher -> {
-                publisher.disconnect();
-                stream.getProperties().remove(PUBLISHER_PROPERTY_NAME);
-            });
+        recordAdmission.cancel(name);
+        recordAdmission.stopped(name);
+
+        val publisher = new AtomicReference<PushPublishRTMP>();
+        registry.update(appInstanceName, name, state -> {
+            publisher.set(state.getPublisher());
+            state.setPublisher(null);
+            state.setPublished(false);
+        });
+        Optional.ofNullable(publisher.get()).ifPresent(PushPublishRTMP::disconnect);
     }
 }
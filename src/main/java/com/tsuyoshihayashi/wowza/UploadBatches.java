@@ -0,0 +1,172 @@
+package com.tsuyoshihayashi.wowza;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Object that groups consecutive short segments of the same stream, so they are uploaded in a single request.
+ *
+ * A batch is passed on when it has the maximum number of segments or bytes, or when its first segment
+ * has waited for the batch window. A segment that can not join the batch of its stream
+ * (different record settings or priority) passes the batch on and starts a new one.
+ *
+ * @author Alexey Donov
+ */
+final class UploadBatches {
+    /**
+     * Segments of a stream waiting to be uploaded together
+     */
+    private static final class Batch {
+        private final @NotNull List<UploadJob> jobs = new ArrayList<>();
+        private long size = 0;
+    }
+
+    private final int maxFiles;
+    private final long maxSize;
+    private final long window;
+    private final @NotNull Consumer<List<UploadJob>> sink;
+    private final @NotNull ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(UploadExecutor.threadFactory("upload-batch"));
+
+    /**
+     * Batches being collected by stream name
+     */
+    private final @NotNull Map<String, Batch> batches = new HashMap<>();
+
+    private long batchCount = 0;
+    private long segmentCount = 0;
+
+    /**
+     * @param maxFiles Maximum number of segments in a batch
+     * @param maxSize Maximum total size of the segments in a batch, in bytes
+     * @param window Maximum time the first segment of a batch waits for the others, in milliseconds
+     * @param sink Receiver of the complete batches
+     */
+    UploadBatches(int maxFiles, long maxSize, long window, @NotNull Consumer<List<UploadJob>> sink) {
+        this.maxFiles = maxFiles;
+        this.maxSize = maxSize;
+        this.window = window;
+        this.sink = sink;
+    }
+
+    /**
+     * Check whether a segment is short enough to be uploaded in a batch
+     *
+     * @param size Segment size in bytes
+     * @return true if the segment can be added
+     */
+    boolean accepts(long size) {
+        return size < maxSize;
+    }
+
+    /**
+     * Add a segment to the batch of its stream
+     *
+     * @param job Upload of the segment
+     */
+    synchronized void add(@NotNull UploadJob job) {
+        val size = job.getFile().length();
+
+        Batch batch = batches.get(job.getStreamName());
+        if (batch != null && (!fits(batch, job) || batch.size + size > maxSize)) {
+            pass(job.getStreamName(), batch);
+            batch = null;
+        }
+
+        if (batch == null) {
+            val created = new Batch();
+            batch = created;
+            batches.put(job.getStreamName(), created);
+            timer.schedule(() -> expire(job.getStreamName(), created), window, TimeUnit.MILLISECONDS);
+        }
+
+        batch.jobs.add(job);
+        batch.size += size;
+
+        if (batch.jobs.size() >= maxFiles || batch.size >= maxSize) {
+            pass(job.getStreamName(), batch);
+        }
+    }
+
+    /**
+     * Check whether the segment can be uploaded together with the batch
+     */
+    private static boolean fits(@NotNull Batch batch, @NotNull UploadJob job) {
+        val first = batch.jobs.get(0);
+        return first.getPriority() == job.getPriority()
+            && first.getSettings().getHash().equals(job.getSettings().getHash())
+            && first.getSettings().getHash2().equals(job.getSettings().getHash2())
+            && Objects.equals(first.getSettings().getUploadURL(), job.getSettings().getUploadURL())
+            && Objects.equals(first.getSettings().getComment(), job.getSettings().getComment());
+    }
+
+    /**
+     * Pass the batch on when the window of its first segment is over
+     *
+     * @param streamName Stream name
+     * @param batch Batch that was started with the window
+     */
+    private synchronized void expire(@NotNull String streamName, @NotNull Batch batch) {
+        if (batches.get(streamName) == batch) {
+            pass(streamName, batch);
+        }
+    }
+
+    /**
+     * Pass on the batch of the stream now, so a segment uploaded alone does not go before it
+     *
+     * @param streamName Stream name
+     */
+    synchronized void flush(@NotNull String streamName) {
+        val batch = batches.get(streamName);
+        if (batch != null) {
+            pass(streamName, batch);
+        }
+    }
+
+    private void pass(@NotNull String streamName, @NotNull Batch batch) {
+        batches.remove(streamName, batch);
+        batchCount++;
+        segmentCount += batch.jobs.size();
+        sink.accept(batch.jobs);
+    }
+
+    /**
+     * Stop collecting batches. The segments of the batches being collected are in the journal
+     * and are uploaded on the next start.
+     */
+    synchronized void shutdown() {
+        timer.shutdownNow();
+        batches.clear();
+    }
+
+    /**
+     * Number of batches passed on so far
+     */
+    synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Number of segments in the batches passed on so far
+     */
+    synchronized long getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Number of segments waiting in the batches being collected
+     */
+    synchronized int getWaitingCount() {
+        return batches.values().stream().mapToInt(batch -> batch.jobs.size()).sum();
+    }
+}
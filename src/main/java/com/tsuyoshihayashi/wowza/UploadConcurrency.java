@@ -0,0 +1,257 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.wowza.wms.application.WMSProperties;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.Data;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Object that adapts the number of concurrent uploads to what the upload API can take,
+ * with additive increase and multiplicative decrease (AIMD).
+ *
+ * Finished uploads are collected into windows of at least as many uploads as the current limit.
+ * At the end of each window:
+ * - Too many failures caused by the server (5xx, 429 or network errors) halve the limit
+ * - Latency per megabyte much higher than the best one seen lowers the limit by a quarter
+ * - Throughput lower than in the previous window after an increase takes the increase back
+ * - Otherwise the limit grows by one
+ *
+ * The limit stays within the configured bounds and is applied as the number of upload threads.
+ *
+ * @author Alexey Donov
+ */
+final class UploadConcurrency {
+    private static final String MIN_THREADS_KEY = "uploadMinThreads";
+    private static final String MAX_THREADS_KEY = "uploadMaxThreads";
+
+    private static final int DEFAULT_MIN_THREADS = 1;
+
+    /**
+     * Minimum number of uploads in a window
+     */
+    private static final int MIN_WINDOW = 4;
+
+    /**
+     * Share of failed uploads in a window above which the limit is decreased
+     */
+    private static final double MAX_ERROR_RATE = 0.1;
+
+    /**
+     * Latency above the baseline multiplied by this is treated as congestion
+     */
+    private static final double LATENCY_TOLERANCE = 2;
+
+    /**
+     * The baseline latency is raised by this factor each window, so it follows a lasting change of the network
+     */
+    private static final double BASELINE_DRIFT = 1.05;
+
+    private static final double ERROR_DECREASE = 0.5;
+    private static final double LATENCY_DECREASE = 0.75;
+
+    /**
+     * Uploads smaller than this are counted as this size when the latency per megabyte is calculated,
+     * so the fixed request overhead of small segments does not look like congestion
+     */
+    private static final long MIN_LATENCY_SIZE = 1024 * 1024;
+
+    private static final int HISTORY_SIZE = 100;
+
+    /**
+     * Single change of the limit
+     */
+    @Data
+    private static final class Change {
+        private final long time;
+        private final int limit;
+        private final @NotNull String reason;
+        private final long throughput;
+        private final double latency;
+
+        @SuppressWarnings("unchecked")
+        @NotNull JSONObject toJSON() {
+            val result = new JSONObject();
+            result.put("time", time);
+            result.put("limit", limit);
+            result.put("reason", reason);
+            result.put("throughput", throughput);
+            result.put("latency_ms_per_mb", latency);
+
+            return result;
+        }
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(UploadConcurrency.class);
+
+    private final @NotNull UploadExecutor executor;
+    private final int minLimit;
+    private final int maxLimit;
+    private int limit;
+
+    private final @NotNull Deque<Change> history = new ArrayDeque<>();
+
+    // Current window
+    private long windowStart;
+    private int samples = 0;
+    private int errors = 0;
+    private long bytes = 0;
+    private double latencySum = 0;
+
+    private long previousThroughput = -1;
+    private boolean increased = false;
+
+    /**
+     * Best latency per megabyte seen so far, in milliseconds, 0 until known
+     */
+    private double baseline = 0;
+
+    /**
+     * @param executor Upload executor whose number of threads is controlled
+     * @param minLimit Minimum number of concurrent uploads
+     * @param maxLimit Maximum number of concurrent uploads
+     */
+    UploadConcurrency(@NotNull UploadExecutor executor, int minLimit, int maxLimit) {
+        this.executor = executor;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, executor.getThreads()));
+        this.windowStart = System.nanoTime();
+
+        executor.setThreads(limit);
+        history.add(new Change(System.currentTimeMillis(), limit, "start", 0, 0));
+    }
+
+    /**
+     * Create a controller configured by the application properties.
+     * The maximum defaults to the number of upload threads, so by default the limit only drops under errors and recovers.
+     *
+     * @param properties Application instance properties
+     * @param executor Upload executor whose number of threads is controlled
+     * @return Concurrency controller
+     */
+    static @NotNull UploadConcurrency fromProperties(@NotNull WMSProperties properties, @NotNull UploadExecutor executor) {
+        val minLimit = properties.getPropertyInt(MIN_THREADS_KEY, DEFAULT_MIN_THREADS);
+        val maxLimit = properties.getPropertyInt(MAX_THREADS_KEY, executor.getThreads());
+
+        return new UploadConcurrency(executor, minLimit, maxLimit);
+    }
+
+    /**
+     * Record a successful upload
+     *
+     * @param size Uploaded bytes
+     * @param nanos Upload duration in nanoseconds
+     */
+    void success(long size, long nanos) {
+        record(size, nanos, false, System.nanoTime());
+    }
+
+    /**
+     * Record an upload that failed because of the server or the network
+     */
+    void failure() {
+        record(0, 0, true, System.nanoTime());
+    }
+
+    /**
+     * Record a finished upload and adjust the limit at the end of the window
+     *
+     * @param size Uploaded bytes
+     * @param nanos Upload duration in nanoseconds
+     * @param failed Whether the upload failed because of the server or the network
+     * @param now Current moment as returned by {@link System#nanoTime()}
+     */
+    synchronized void record(long size, long nanos, boolean failed, long now) {
+        samples++;
+        if (failed) {
+            errors++;
+        } else {
+            bytes += size;
+            latencySum += (double) TimeUnit.NANOSECONDS.toMicros(nanos) / 1000 * MIN_LATENCY_SIZE / Math.max(size, MIN_LATENCY_SIZE);
+        }
+
+        if (samples < Math.max(MIN_WINDOW, limit)) {
+            return;
+        }
+
+        val throughput = bytes * TimeUnit.SECONDS.toNanos(1) / Math.max(1, now - windowStart);
+        val successes = samples - errors;
+        val latency = successes > 0 ? latencySum / successes : 0;
+
+        if (errors > samples * MAX_ERROR_RATE) {
+            update((int) (limit * ERROR_DECREASE), "errors", throughput, latency);
+        } else if (baseline > 0 && latency > baseline * LATENCY_TOLERANCE) {
+            update((int) (limit * LATENCY_DECREASE), "latency", throughput, latency);
+        } else if (increased && throughput < previousThroughput) {
+            update(limit - 1, "throughput", throughput, latency);
+        } else {
+            update(limit + 1, "increase", throughput, latency);
+        }
+
+        if (successes > 0) {
+            baseline = baseline > 0 ? Math.min(latency, baseline * BASELINE_DRIFT) : latency;
+        }
+
+        previousThroughput = throughput;
+        windowStart = now;
+        samples = 0;
+        errors = 0;
+        bytes = 0;
+        latencySum = 0;
+    }
+
+    private void update(int newLimit, @NotNull String reason, long throughput, double latency) {
+        newLimit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+        increased = newLimit > limit;
+        if (newLimit == limit) {
+            return;
+        }
+
+        logger.info(String.format("Upload concurrency %d -> %d (%s, %d bytes/s, %.1f ms/MB)", limit, newLimit, reason, throughput, latency));
+
+        limit = newLimit;
+        executor.setThreads(limit);
+
+        history.add(new Change(System.currentTimeMillis(), limit, reason, throughput, latency));
+        while (history.size() > HISTORY_SIZE) {
+            history.removeFirst();
+        }
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Create a JSON object describing the limit and its recent changes
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    synchronized @NotNull JSONObject status() {
+        val changes = new JSONArray();
+        history.forEach(change -> changes.add(change.toJSON()));
+
+        val result = new JSONObject();
+        result.put("limit", limit);
+        result.put("min", minLimit);
+        result.put("max", maxLimit);
+        result.put("baseline_ms_per_mb", baseline);
+        result.put("window_samples", samples);
+        result.put("history", changes);
+
+        return result;
+    }
+}
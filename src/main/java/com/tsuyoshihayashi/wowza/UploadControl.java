@@ -0,0 +1,193 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.api.BandwidthLimiter;
+import com.tsuyoshihayashi.api.HttpClientFactory;
+import com.tsuyoshihayashi.api.RecordSettingsEndpoint;
+import com.tsuyoshihayashi.model.AliasProvider;
+import com.tsuyoshihayashi.model.StreamRegistry;
+import com.wowza.wms.http.IHTTPRequest;
+import com.wowza.wms.http.IHTTPResponse;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import com.wowza.wms.vhost.IVHost;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.json.simple.JSONObject;
+
+import java.util.Optional;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+
+/**
+ * Object that handles requests about the state of segment uploads
+ *
+ * Upload queue status
+ * http://hostname:1935/uploadctrl?a=status
+ *
+ * Abandoned uploads, whose files are kept until they are uploaded again or dropped
+ * http://hostname:1935/uploadctrl?a=failed
+ * http://hostname:1935/uploadctrl?a=retry&id=uploadid
+ * http://hostname:1935/uploadctrl?a=drop&id=uploadid
+ *
+ * Current number of concurrent uploads and its recent changes
+ * http://hostname:1935/uploadctrl?a=concurrency
+ *
+ * HTTP connection pool status of the uploads and of the record settings API
+ * http://hostname:1935/uploadctrl?a=http
+ *
+ * Automatic record starts waiting for admission and time from publishing to recording
+ * http://hostname:1935/uploadctrl?a=admission
+ *
+ * State of the published, recorded and camera streams
+ * http://hostname:1935/uploadctrl?a=streams
+ *
+ * Number of known cameras and how many were forgotten
+ * http://hostname:1935/uploadctrl?a=cameras
+ *
+ * Record settings API circuit breaker, settings cache and last known settings status
+ * http://hostname:1935/uploadctrl?a=settings
+ *
+ * Upload bandwidth limit status, or change of the limit in bytes per second (0 for no limit) and the burst size in bytes
+ * http://hostname:1935/uploadctrl?a=bandwidth
+ * http://hostname:1935/uploadctrl?a=bandwidth&rate=1000000&burst=1000000
+ *
+ * Upload queue, failed upload and concurrency requests are about the live/_definst_ application instance,
+ * another one is chosen with app=application/instance
+ *
+ * @author Alexey Donov
+ */
+public final class UploadControl extends Control {
+    private static final String ACTION_STATUS = "status";
+    private static final String ACTION_FAILED = "failed";
+    private static final String ACTION_RETRY = "retry";
+    private static final String ACTION_DROP = "drop";
+    private static final String ACTION_CONCURRENCY = "concurrency";
+    private static final String ACTION_HTTP = "http";
+    private static final String ACTION_SETTINGS = "settings";
+    private static final String ACTION_ADMISSION = "admission";
+    private static final String ACTION_STREAMS = "streams";
+    private static final String ACTION_CAMERAS = "cameras";
+    private static final String ACTION_BANDWIDTH = "bandwidth";
+    private static final String RATE_PARAMETER_NAME = "rate";
+    private static final String BURST_PARAMETER_NAME = "burst";
+    private static final String ID_PARAMETER_NAME = "id";
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(UploadControl.class);
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void onHTTPRequest(IVHost host, IHTTPRequest request, IHTTPResponse response) {
+        logRequest(request, logger);
+
+        try {
+            // Ensure that this is a GET request
+            if (!"GET".equals(request.getMethod())) {
+                writeBadRequestResponse(response);
+                return;
+            }
+
+            // Ensure that action parameter is present in the request
+            val action = request.getParameter(ACTION_PARAMETER_NAME);
+            if (action == null || action.isEmpty()) {
+                writeBadRequestResponse(response);
+                return;
+            }
+
+            switch (action) {
+                case ACTION_STATUS:
+                case ACTION_CONCURRENCY:
+                    val pipeline = Optional.ofNullable(UploadPipeline.forAppInstance(appInstanceName(request)));
+                    if (!pipeline.isPresent()) {
+                        writeResponse(response, 503, "Upload pipeline is not running");
+                        return;
+                    }
+
+                    val status = ACTION_STATUS.equals(action) ? pipeline.get().status() : pipeline.get().concurrencyStatus();
+                    writeResponse(response, 200, status.toJSONString(), APPLICATION_JSON);
+                    break;
+
+                case ACTION_FAILED:
+                case ACTION_RETRY:
+                case ACTION_DROP:
+                    val failedPipeline = UploadPipeline.forAppInstance(appInstanceName(request));
+                    if (failedPipeline == null) {
+                        writeResponse(response, 503, "Upload pipeline is not running");
+                        return;
+                    }
+
+                    if (ACTION_FAILED.equals(action)) {
+                        writeResponse(response, 200, failedPipeline.failedStatus().toJSONString(), APPLICATION_JSON);
+                        return;
+                    }
+
+                    // Ensure that upload identifier parameter is present in the request
+                    val id = request.getParameter(ID_PARAMETER_NAME);
+                    if (id == null || id.isEmpty()) {
+                        writeBadRequestResponse(response);
+                        return;
+                    }
+
+                    if (!(ACTION_RETRY.equals(action) ? failedPipeline.retryFailed(id) : failedPipeline.dropFailed(id))) {
+                        writeResponse(response, 404, String.format("Upload %s is not failed", id));
+                        return;
+                    }
+
+                    writeOkResponse(response);
+                    break;
+
+                case ACTION_HTTP:
+                    val http = new JSONObject();
+                    http.put("uploads", HttpClientFactory.instance(host).status());
+                    http.put("api", HttpClientFactory.apiInstance(host).status());
+                    writeResponse(response, 200, http.toJSONString(), APPLICATION_JSON);
+                    break;
+
+                case ACTION_SETTINGS:
+                    writeResponse(response, 200, RecordSettingsEndpoint.instance(host).status().toJSONString(), APPLICATION_JSON);
+                    break;
+
+                case ACTION_ADMISSION:
+                    val admission = Optional.ofNullable(RecordAdmission.forAppInstance(appInstanceName(request)));
+                    if (!admission.isPresent()) {
+                        writeResponse(response, 503, "Record admission is not running");
+                        return;
+                    }
+
+                    writeResponse(response, 200, admission.get().status().toJSONString(), APPLICATION_JSON);
+                    break;
+
+                case ACTION_STREAMS:
+                    writeResponse(response, 200, StreamRegistry.instance().status().toJSONString(), APPLICATION_JSON);
+                    break;
+
+                case ACTION_CAMERAS:
+                    writeResponse(response, 200, AliasProvider.instance().status().toJSONString(), APPLICATION_JSON);
+                    break;
+
+                case ACTION_BANDWIDTH:
+                    val limiter = BandwidthLimiter.instance();
+                    val rate = request.getParameter(RATE_PARAMETER_NAME);
+                    if (rate != null) {
+                        try {
+                            val burst = Optional.ofNullable(request.getParameter(BURST_PARAMETER_NAME))
+                                .map(Long::parseLong)
+                                .orElse(limiter.getBurst());
+                            limiter.setLimit(Long.parseLong(rate), burst);
+                        } catch (NumberFormatException e) {
+                            writeBadRequestResponse(response);
+                            return;
+                        }
+                    }
+
+                    writeResponse(response, 200, limiter.status().toJSONString(), APPLICATION_JSON);
+                    break;
+
+                default:
+                    writeBadRequestResponse(response);
+                    break;
+            }
+        } catch (Exception e) {
+            writeResponse(response, 500, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.wowza.wms.application.WMSProperties;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Object that runs segment uploads on a dedicated thread pool,
+ * so that uploads never run on the common fork-join pool shared with Wowza.
+ *
+ * Tasks of the pool are the lane dispatches of {@link UploadScheduler}, which bounds the number of uploads
+ * waiting or repeated by the queue size and applies the overflow policy. The pool queue is not bounded itself,
+ * a dispatch is never dropped, or a lane would stay busy forever.
+ *
+ * @author Alexey Donov
+ */
+final class UploadExecutor implements Executor {
+    private static final String THREADS_KEY = "uploadThreads";
+    private static final String QUEUE_SIZE_KEY = "uploadQueueSize";
+    private static final String OVERFLOW_POLICY_KEY = "uploadOverflowPolicy";
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * What to do with a new upload when the queue is full
+     */
+    enum OverflowPolicy {
+        /**
+         * New upload is rejected, the segment file stays on disk
+         */
+        REJECT,
+        /**
+         * The oldest waiting upload of the same stream is dropped to make room for the new one
+         */
+        DISCARD_OLDEST;
+
+        static @NotNull OverflowPolicy fromString(@NotNull String value) {
+            switch (value.toLowerCase()) {
+                case "discardoldest":
+                case "discard_oldest":
+                    return DISCARD_OLDEST;
+
+                default:
+                    return REJECT;
+            }
+        }
+    }
+
+    private final @NotNull ThreadPoolExecutor pool;
+    private final @NotNull OverflowPolicy overflowPolicy;
+    private final int queueSize;
+
+    private final @NotNull AtomicLong rejectedCount = new AtomicLong();
+    private final @NotNull AtomicLong discardedCount = new AtomicLong();
+
+    UploadExecutor(int threads, int queueSize, @NotNull OverflowPolicy overflowPolicy) {
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+        this.pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), threadFactory("upload"), this::onShutdown);
+    }
+
+    /**
+     * Create an executor configured by the application properties
+     *
+     * @param properties Application instance properties
+     * @return Upload executor
+     */
+    static @NotNull UploadExecutor fromProperties(@NotNull WMSProperties properties) {
+        val threads = Math.max(1, properties.getPropertyInt(THREADS_KEY, DEFAULT_THREADS));
+        val queueSize = Math.max(1, properties.getPropertyInt(QUEUE_SIZE_KEY, DEFAULT_QUEUE_SIZE));
+        val overflowPolicy = OverflowPolicy.fromString(properties.getPropertyStr(OVERFLOW_POLICY_KEY, OverflowPolicy.REJECT.name()));
+
+        return new UploadExecutor(threads, queueSize, overflowPolicy);
+    }
+
+    /**
+     * Create a thread factory for named daemon threads
+     *
+     * @param prefix Thread name prefix
+     * @return Thread factory
+     */
+    static @NotNull ThreadFactory threadFactory(@NotNull String prefix) {
+        val counter = new AtomicInteger();
+
+        return runnable -> {
+            val thread = new Thread(runnable, String.format("%s-%d", prefix, counter.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Refuse a task after the executor is shut down, the queue is not bounded so it is the only reason
+     *
+     * @param task Task
+     * @param executor Thread pool
+     */
+    private void onShutdown(@NotNull Runnable task, @NotNull ThreadPoolExecutor executor) {
+        rejectedCount.incrementAndGet();
+        throw new RejectedExecutionException("Upload executor is shut down");
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+        pool.execute(command);
+    }
+
+    /**
+     * Stop accepting new uploads. Uploads that are already queued are still processed.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * @return Number of upload threads
+     */
+    int getThreads() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Change the number of upload threads. When the number is lowered,
+     * the uploads in progress are finished and the extra threads stop after them.
+     *
+     * @param threads Number of upload threads
+     */
+    synchronized void setThreads(int threads) {
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    int getQueueSize() {
+        return queueSize;
+    }
+
+    @NotNull OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    void countRejected() {
+        rejectedCount.incrementAndGet();
+    }
+
+    void countDiscarded() {
+        discardedCount.incrementAndGet();
+    }
+
+    /**
+     * Create a JSON object describing the executor state
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull JSONObject status() {
+        val result = new JSONObject();
+        result.put("threads", pool.getMaximumPoolSize());
+        result.put("active", pool.getActiveCount());
+        result.put("queued", getQueueDepth());
+        result.put("queue_size", queueSize);
+        result.put("overflow_policy", overflowPolicy.name().toLowerCase());
+        result.put("completed", pool.getCompletedTaskCount());
+        result.put("rejected", rejectedCount.get());
+        result.put("discarded", discardedCount.get());
+
+        return result;
+    }
+}
@@ -0,0 +1,29 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * Object that stores a pending upload of a recorded segment
+ *
+ * @author Alexey Donov
+ */
+@Data
+@AllArgsConstructor
+final class UploadJob {
+    /**
+     * Unique upload identifier, sent to API as an idempotency key so the repeated uploads can be recognized
+     */
+    private final @NotNull String id;
+    private final @NotNull String streamName;
+    private final int segmentNumber;
+    private final @NotNull File file;
+    private final @NotNull RecordSettings settings;
+    private final @NotNull UploadPriority priority;
+    private int attempt;
+    private long nextAttemptTime;
+}
@@ -0,0 +1,358 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Object that keeps an append-only on-disk journal of pending uploads, so that
+ * uploads survive Wowza restarts.
+ *
+ * Every change is written as a single JSON line and synced to disk:
+ * - add: a new upload with the file path, record settings and priority
+ * - retry: the upload failed and will be repeated later
+ * - failed: the upload was abandoned, the file is kept until it is uploaded again or dropped by request
+ * - done: the upload is finished, or the failed upload is dropped
+ *
+ * When the journal is opened it is replayed and compacted, so it contains only pending and failed uploads.
+ * It is also compacted while running, when most of its lines are about uploads that are done.
+ * A line torn by a crash is ignored.
+ *
+ * @author Alexey Donov
+ */
+final class UploadJournal {
+    private static final String OPERATION_KEY = "op";
+    private static final String OPERATION_ADD = "add";
+    private static final String OPERATION_RETRY = "retry";
+    private static final String OPERATION_FAILED = "failed";
+    private static final String OPERATION_DONE = "done";
+    private static final String ID_KEY = "id";
+    private static final String STREAM_KEY = "stream";
+    private static final String SEGMENT_KEY = "segment";
+    private static final String FILE_KEY = "file";
+    private static final String SETTINGS_KEY = "settings";
+    private static final String REFERER_KEY = "referer";
+    private static final String PRIORITY_KEY = "priority";
+    private static final String ATTEMPT_KEY = "attempt";
+    private static final String NEXT_ATTEMPT_KEY = "next";
+
+    /**
+     * Journal is rewritten with only the pending uploads when it has more lines than this
+     * and more than {@link #COMPACT_RATIO} lines per pending upload
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+    private static final int COMPACT_RATIO = 4;
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(UploadJournal.class);
+
+    private final @NotNull File file;
+    private final @NotNull Map<String, UploadJob> pending = new LinkedHashMap<>();
+    private final @NotNull Map<String, UploadJob> failed = new LinkedHashMap<>();
+    private @Nullable FileChannel channel = null;
+    private int lines = 0;
+
+    UploadJournal(@NotNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the journal, compact it and open it for appending
+     *
+     * @return Pending uploads ordered by stream and segment number
+     */
+    synchronized @NotNull List<UploadJob> open() {
+        pending.clear();
+        failed.clear();
+
+        if (file.exists()) {
+            try {
+                val parser = new JSONParser();
+                for (val line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    try {
+                        replay((JSONObject) parser.parse(line));
+                    } catch (ParseException | ClassCastException | IllegalArgumentException | NullPointerException e) {
+                        logger.warn(String.format("Skipping broken upload journal entry: %s", line));
+                    }
+                }
+            } catch (IOException e) {
+                logger.error(String.format("Could not read upload journal %s: %s", file, e.getMessage()));
+            }
+        }
+
+        compact();
+
+        val result = new ArrayList<UploadJob>(pending.values());
+        result.sort(Comparator.comparing(UploadJob::getStreamName).thenComparingInt(UploadJob::getSegmentNumber));
+
+        return result;
+    }
+
+    /**
+     * Apply a single journal entry to the pending uploads
+     *
+     * @param entry Journal entry
+     */
+    private void replay(@NotNull JSONObject entry) {
+        val id = entry.get(ID_KEY).toString();
+
+        switch (entry.get(OPERATION_KEY).toString()) {
+            case OPERATION_ADD:
+                failed.remove(id);
+                pending.put(id, job(entry));
+                break;
+
+            case OPERATION_RETRY:
+                val job = pending.get(id);
+                if (job != null) {
+                    job.setAttempt(Integer.parseInt(entry.get(ATTEMPT_KEY).toString()));
+                    job.setNextAttemptTime(Long.parseLong(entry.get(NEXT_ATTEMPT_KEY).toString()));
+                }
+                break;
+
+            case OPERATION_FAILED:
+                // The entry describes the whole upload, it is all that is left of it after compaction
+                pending.remove(id);
+                failed.put(id, job(entry));
+                break;
+
+            case OPERATION_DONE:
+                pending.remove(id);
+                failed.remove(id);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown journal operation");
+        }
+    }
+
+    /**
+     * Read the upload from an add or failed entry
+     *
+     * @param entry Journal entry
+     * @return Upload
+     */
+    private static @NotNull UploadJob job(@NotNull JSONObject entry) {
+        return new UploadJob(entry.get(ID_KEY).toString(),
+            entry.get(STREAM_KEY).toString(),
+            Integer.parseInt(entry.get(SEGMENT_KEY).toString()),
+            new File(entry.get(FILE_KEY).toString()),
+            RecordSettings.fromJSON((JSONObject) entry.get(SETTINGS_KEY), entry.get(REFERER_KEY).toString()),
+            UploadPriority.fromString((String) entry.get(PRIORITY_KEY)),
+            Integer.parseInt(entry.get(ATTEMPT_KEY).toString()),
+            Long.parseLong(entry.get(NEXT_ATTEMPT_KEY).toString()));
+    }
+
+    /**
+     * Rewrite the journal so that it contains only the pending and failed uploads
+     */
+    private void compact() {
+        close();
+
+        try {
+            val parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+
+            val temporary = new File(file.getPath().concat(".tmp"));
+            try (val output = FileChannel.open(temporary.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+                for (val job : pending.values()) {
+                    write(output, jobEntry(OPERATION_ADD, job));
+                }
+                for (val job : failed.values()) {
+                    write(output, jobEntry(OPERATION_FAILED, job));
+                }
+                output.force(true);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            channel = FileChannel.open(file.toPath(), CREATE, WRITE, APPEND);
+            lines = pending.size() + failed.size();
+        } catch (IOException e) {
+            logger.error(String.format("Could not open upload journal %s, uploads will not survive restart: %s", file, e.getMessage()));
+        }
+    }
+
+    /**
+     * Record a new pending upload
+     *
+     * @param job Upload
+     */
+    synchronized void add(@NotNull UploadJob job) {
+        failed.remove(job.getId());
+        pending.put(job.getId(), job);
+        append(jobEntry(OPERATION_ADD, job));
+    }
+
+    /**
+     * Record a failed attempt of the upload
+     *
+     * @param job Upload with updated attempt count and next attempt time
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void retry(@NotNull UploadJob job) {
+        val entry = new JSONObject();
+        entry.put(OPERATION_KEY, OPERATION_RETRY);
+        entry.put(ID_KEY, job.getId());
+        entry.put(ATTEMPT_KEY, job.getAttempt());
+        entry.put(NEXT_ATTEMPT_KEY, job.getNextAttemptTime());
+
+        append(entry);
+    }
+
+    /**
+     * Record that the upload was abandoned. It is no longer pending, but it is kept until it is added again or done.
+     *
+     * @param job Upload
+     */
+    synchronized void failed(@NotNull UploadJob job) {
+        pending.remove(job.getId());
+        failed.put(job.getId(), job);
+        append(jobEntry(OPERATION_FAILED, job));
+    }
+
+    /**
+     * Record that the upload is no longer pending or failed
+     *
+     * @param job Upload
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void done(@NotNull UploadJob job) {
+        pending.remove(job.getId());
+        failed.remove(job.getId());
+
+        // On a busy node there are always pending uploads, the journal must not grow until the next restart
+        if (lines >= COMPACT_THRESHOLD && lines >= (long) (pending.size() + failed.size()) * COMPACT_RATIO) {
+            compact();
+            return;
+        }
+
+        val entry = new JSONObject();
+        entry.put(OPERATION_KEY, OPERATION_DONE);
+        entry.put(ID_KEY, job.getId());
+
+        append(entry);
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return Abandoned uploads in the order they failed
+     */
+    synchronized @NotNull List<UploadJob> getFailed() {
+        return new ArrayList<>(failed.values());
+    }
+
+    /**
+     * Make an abandoned upload pending again, with its attempts starting over
+     *
+     * @param id Upload identifier
+     * @return Upload or null if there is no failed upload with this identifier
+     */
+    synchronized @Nullable UploadJob restore(@NotNull String id) {
+        val job = failed.get(id);
+        if (job != null) {
+            job.setAttempt(0);
+            job.setNextAttemptTime(0);
+            add(job);
+        }
+        return job;
+    }
+
+    /**
+     * Forget an abandoned upload
+     *
+     * @param id Upload identifier
+     * @return Upload or null if there is no failed upload with this identifier
+     */
+    synchronized @Nullable UploadJob drop(@NotNull String id) {
+        val job = failed.get(id);
+        if (job != null) {
+            done(job);
+        }
+        return job;
+    }
+
+    /**
+     * Close the journal file
+     */
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+                // No op
+            }
+            channel = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private @NotNull JSONObject jobEntry(@NotNull String operation, @NotNull UploadJob job) {
+        val entry = new JSONObject();
+        entry.put(OPERATION_KEY, operation);
+        entry.put(ID_KEY, job.getId());
+        entry.put(STREAM_KEY, job.getStreamName());
+        entry.put(SEGMENT_KEY, job.getSegmentNumber());
+        entry.put(FILE_KEY, job.getFile().getPath());
+        entry.put(SETTINGS_KEY, job.getSettings().toJSON());
+        entry.put(REFERER_KEY, job.getSettings().getReferer());
+        entry.put(PRIORITY_KEY, job.getPriority().name().toLowerCase());
+        entry.put(ATTEMPT_KEY, job.getAttempt());
+        entry.put(NEXT_ATTEMPT_KEY, job.getNextAttemptTime());
+
+        return entry;
+    }
+
+    /**
+     * Append an entry to the journal and sync it to disk
+     *
+     * @param entry Journal entry
+     */
+    private void append(@NotNull JSONObject entry) {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            write(channel, entry);
+            channel.force(false);
+            lines++;
+        } catch (IOException e) {
+            logger.error(String.format("Could not write upload journal %s: %s", file, e.getMessage()));
+        }
+    }
+
+    private static void write(@NotNull FileChannel channel, @NotNull JSONObject entry) throws IOException {
+        val buffer = ByteBuffer.wrap(entry.toJSONString().concat("\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,762 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.api.ApiException;
+import com.tsuyoshihayashi.api.ProgressiveUpload;
+import com.tsuyoshihayashi.api.StreamChecksum;
+import com.tsuyoshihayashi.api.UploadEndpoint;
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.tsuyoshihayashi.model.SegmentInfo;
+import com.wowza.wms.application.WMSProperties;
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.tsuyoshihayashi.wowza.RecorderListener.createNewName;
+import static com.tsuyoshihayashi.wowza.RecorderListener.getRecordedFile;
+
+/**
+ * Object that processes finished segments outside of the recorder notification thread:
+ * - The segment is handed off to a single preparation thread that renames the file
+ * - The renamed file is recorded in the upload journal and handed off to the upload lane of its stream,
+ *   lanes are served by priority and fairly across the tenants
+ * - A failed upload is repeated with exponential backoff and jitter, until it succeeds or runs out of attempts.
+ *   An upload rejected by the server is not repeated. The file of an abandoned upload is kept
+ *   and the upload is recorded as failed in the journal, until it is uploaded again or dropped by request.
+ * - Optionally, segments are uploaded while they are recorded, and the upload only finishes them
+ * - Optionally, consecutive short segments of a stream are uploaded together in a single request
+ * - Optionally, uploaded segments are kept in a local cache and can be uploaded again from it
+ * - The number of concurrent uploads follows the observed throughput, latency and server errors
+ *
+ * The preparation thread is single, so segments are renamed and put into the lanes in the order they were recorded.
+ * Uploads that were pending when Wowza stopped are read from the journal and resumed on application start.
+ *
+ * Every application instance has a pipeline of its own, running from the start to the stop of the instance.
+ *
+ * @author Alexey Donov
+ */
+final class UploadPipeline {
+    private static final String JOURNAL_PATH_KEY = "uploadJournalPath";
+    private static final String MAX_ATTEMPTS_KEY = "uploadMaxAttempts";
+    private static final String RETRY_DELAY_KEY = "uploadRetryDelay";
+    private static final String MAX_RETRY_DELAY_KEY = "uploadMaxRetryDelay";
+    private static final String OVERRIDE_ENDPOINT_KEY = "uploadOverrideEndpoint";
+    private static final String RESUMABLE_THRESHOLD_KEY = "uploadResumableThreshold";
+    private static final String CHUNK_SIZE_KEY = "uploadChunkSize";
+    private static final String PARALLEL_PARTS_KEY = "uploadParallelParts";
+    private static final String PARALLEL_THRESHOLD_KEY = "uploadParallelThreshold";
+    private static final String TENANT_WEIGHTS_KEY = "uploadTenantWeights";
+    private static final String PROGRESSIVE_INTERVAL_KEY = "uploadProgressiveInterval";
+    private static final String CHECKSUM_KEY = "uploadChecksum";
+    private static final String CACHE_DIRECTORY_KEY = "uploadCacheDirectory";
+    private static final String CACHE_SIZE_KEY = "uploadCacheSize";
+    private static final String CACHE_MAX_AGE_KEY = "uploadCacheMaxAge";
+    private static final String BATCH_FILES_KEY = "uploadBatchFiles";
+    private static final String BATCH_MAX_SIZE_KEY = "uploadBatchMaxSize";
+    private static final String BATCH_WINDOW_KEY = "uploadBatchWindow";
+
+    private static final String DEFAULT_JOURNAL_PATH = "/usr/local/WowzaStreamingEngine/logs/upload-journal.log";
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+    private static final long DEFAULT_RETRY_DELAY = 30;
+    private static final long DEFAULT_MAX_RETRY_DELAY = 60 * 60;
+    private static final long DEFAULT_RESUMABLE_THRESHOLD = 0;
+    private static final int DEFAULT_CHUNK_SIZE = 8;
+    private static final int MAX_CHUNK_SIZE = 1024;
+    private static final int DEFAULT_PARALLEL_PARTS = 1;
+    private static final long DEFAULT_PARALLEL_THRESHOLD = 64;
+    private static final long DEFAULT_PROGRESSIVE_INTERVAL = 0;
+    private static final String DEFAULT_CACHE_DIRECTORY = "/usr/local/WowzaStreamingEngine/upload-cache";
+    private static final long DEFAULT_CACHE_SIZE = 0;
+    private static final long DEFAULT_CACHE_MAX_AGE = 24;
+    private static final int DEFAULT_BATCH_FILES = 1;
+    private static final long DEFAULT_BATCH_MAX_SIZE = 16;
+    private static final long DEFAULT_BATCH_WINDOW = 300;
+
+    private static final int PREPARE_QUEUE_SIZE = 10000;
+
+    /**
+     * Running pipelines by application instance name, for the HTTP providers
+     */
+    private static final @NotNull Map<String, UploadPipeline> pipelines = new ConcurrentHashMap<>();
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(UploadPipeline.class);
+
+    private final @NotNull ThreadPoolExecutor prepareExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(PREPARE_QUEUE_SIZE), UploadExecutor.threadFactory("segment"));
+    private final @NotNull UploadExecutor uploadExecutor;
+    private final @NotNull UploadScheduler uploadScheduler;
+    private final @NotNull UploadConcurrency uploadConcurrency;
+    private final @NotNull UploadJournal journal;
+    private final @NotNull UploadEndpoint uploadEndpoint;
+    private final @Nullable ProgressiveUploads progressiveUploads;
+    private final @Nullable SegmentCache segmentCache;
+    private final @Nullable UploadBatches uploadBatches;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+
+    private final @NotNull StageStatistics handOffStatistics = new StageStatistics();
+    private final @NotNull StageStatistics prepareWaitStatistics = new StageStatistics();
+    private final @NotNull StageStatistics renameStatistics = new StageStatistics();
+    private final @NotNull StageStatistics uploadWaitStatistics = new StageStatistics();
+    private final @NotNull StageStatistics uploadStatistics = new StageStatistics();
+
+    /**
+     * Progressive uploads of the ended segments waiting to be finished, by upload job identifier
+     */
+    private final @NotNull Map<String, ProgressiveUpload> progressiveUploadsToFinish = new ConcurrentHashMap<>();
+
+    private final @NotNull AtomicLong succeededCount = new AtomicLong();
+    private final @NotNull AtomicLong retriedCount = new AtomicLong();
+    private final @NotNull AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param uploadExecutor Upload executor
+     * @param uploadConcurrency Controller of the number of upload threads
+     * @param tenantWeights Weights of the tenants by record settings hash
+     * @param journal Upload journal
+     * @param uploadEndpoint Upload API endpoint
+     * @param progressiveUploads Uploads of the segments being recorded, null if disabled
+     * @param segmentCache Cache of the uploaded segments, null if disabled
+     * @param batchFiles Maximum number of short segments of a stream uploaded in a single request, 1 disables batches
+     * @param batchMaxSize Maximum total size of the segments uploaded in a single request, in bytes
+     * @param batchWindow Maximum time a segment waits for the others of its batch, in milliseconds
+     * @param maxAttempts Number of attempts after which the upload is abandoned
+     * @param retryDelay Delay before the first repeated attempt, in milliseconds
+     * @param maxRetryDelay Maximum delay between the attempts, in milliseconds
+     */
+    UploadPipeline(@NotNull UploadExecutor uploadExecutor, @NotNull UploadConcurrency uploadConcurrency, @NotNull Map<String, Integer> tenantWeights,
+                   @NotNull UploadJournal journal, @NotNull UploadEndpoint uploadEndpoint, @Nullable ProgressiveUploads progressiveUploads,
+                   @Nullable SegmentCache segmentCache, int batchFiles, long batchMaxSize, long batchWindow,
+                   int maxAttempts, long retryDelay, long maxRetryDelay) {
+        this.uploadExecutor = uploadExecutor;
+        this.uploadScheduler = new UploadScheduler(uploadExecutor, tenantWeights);
+        this.uploadConcurrency = uploadConcurrency;
+        this.journal = journal;
+        this.uploadEndpoint = uploadEndpoint;
+        this.progressiveUploads = progressiveUploads;
+        this.segmentCache = segmentCache;
+        this.uploadBatches = batchFiles > 1 ? new UploadBatches(batchFiles, batchMaxSize, batchWindow, this::scheduleBatch) : null;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    /**
+     * Create a pipeline configured by the application properties
+     *
+     * @param properties Application instance properties
+     * @param appInstanceName Application instance name, every instance has a journal of its own
+     * @param client HTTP client
+     * @return Upload pipeline
+     */
+    static @NotNull UploadPipeline fromProperties(@NotNull WMSProperties properties, @NotNull String appInstanceName, @NotNull Client client) {
+        val journal = new UploadJournal(InstanceFiles.forAppInstance(properties.getPropertyStr(JOURNAL_PATH_KEY, DEFAULT_JOURNAL_PATH), appInstanceName));
+        val maxAttempts = Math.max(1, properties.getPropertyInt(MAX_ATTEMPTS_KEY, DEFAULT_MAX_ATTEMPTS));
+        val retryDelay = TimeUnit.SECONDS.toMillis(Math.max(1, properties.getPropertyLong(RETRY_DELAY_KEY, DEFAULT_RETRY_DELAY)));
+        val maxRetryDelay = TimeUnit.SECONDS.toMillis(Math.max(1, properties.getPropertyLong(MAX_RETRY_DELAY_KEY, DEFAULT_MAX_RETRY_DELAY)));
+
+        // Sizes are configured in megabytes
+        val resumableThreshold = Math.max(0, properties.getPropertyLong(RESUMABLE_THRESHOLD_KEY, DEFAULT_RESUMABLE_THRESHOLD)) * 1024 * 1024;
+        val chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(1, properties.getPropertyInt(CHUNK_SIZE_KEY, DEFAULT_CHUNK_SIZE))) * 1024 * 1024;
+        val parallelParts = Math.max(1, properties.getPropertyInt(PARALLEL_PARTS_KEY, DEFAULT_PARALLEL_PARTS));
+        val parallelThreshold = Math.max(0, properties.getPropertyLong(PARALLEL_THRESHOLD_KEY, DEFAULT_PARALLEL_THRESHOLD)) * 1024 * 1024;
+        val checksumAlgorithm = StreamChecksum.Algorithm.fromString(properties.getPropertyStr(CHECKSUM_KEY, StreamChecksum.Algorithm.NONE.name()));
+
+        // Cache size is configured in megabytes, the age in hours
+        val cacheSize = Math.max(0, properties.getPropertyLong(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE)) * 1024 * 1024;
+        val cacheMaxAge = TimeUnit.HOURS.toMillis(Math.max(0, properties.getPropertyLong(CACHE_MAX_AGE_KEY, DEFAULT_CACHE_MAX_AGE)));
+        val segmentCache = cacheSize > 0
+            ? new SegmentCache(InstanceFiles.forAppInstance(properties.getPropertyStr(CACHE_DIRECTORY_KEY, DEFAULT_CACHE_DIRECTORY), appInstanceName),
+                cacheSize, cacheMaxAge)
+            : null;
+        Optional.ofNullable(segmentCache).ifPresent(SegmentCache::open);
+
+        val uploadExecutor = UploadExecutor.fromProperties(properties);
+        val uploadConcurrency = UploadConcurrency.fromProperties(properties, uploadExecutor);
+
+        val uploadEndpoint = new UploadEndpoint(client, properties.getPropertyStr(OVERRIDE_ENDPOINT_KEY), resumableThreshold, chunkSize,
+            parallelParts, parallelThreshold, checksumAlgorithm, segmentCache, uploadConcurrency.getMaxLimit());
+
+        val batchFiles = Math.max(1, properties.getPropertyInt(BATCH_FILES_KEY, DEFAULT_BATCH_FILES));
+        val batchMaxSize = Math.max(1, properties.getPropertyLong(BATCH_MAX_SIZE_KEY, DEFAULT_BATCH_MAX_SIZE)) * 1024 * 1024;
+        val batchWindow = TimeUnit.SECONDS.toMillis(Math.max(1, properties.getPropertyLong(BATCH_WINDOW_KEY, DEFAULT_BATCH_WINDOW)));
+
+        val tenantWeights = parseTenantWeights(properties.getPropertyStr(TENANT_WEIGHTS_KEY, ""));
+
+        val progressiveInterval = TimeUnit.SECONDS.toMillis(Math.max(0, properties.getPropertyLong(PROGRESSIVE_INTERVAL_KEY, DEFAULT_PROGRESSIVE_INTERVAL)));
+        val progressiveUploads = progressiveInterval > 0 ? new ProgressiveUploads(uploadEndpoint, progressiveInterval, uploadExecutor.getThreads()) : null;
+
+        return new UploadPipeline(uploadExecutor, uploadConcurrency, tenantWeights, journal, uploadEndpoint, progressiveUploads,
+            segmentCache, batchFiles, batchMaxSize, batchWindow, maxAttempts, retryDelay, Math.max(retryDelay, maxRetryDelay));
+    }
+
+    /**
+     * Get the running pipeline of an application instance
+     *
+     * @param appInstanceName Application instance name
+     * @return Upload pipeline or null if the instance is not running
+     */
+    static @Nullable UploadPipeline forAppInstance(@NotNull String appInstanceName) {
+        return pipelines.get(appInstanceName);
+    }
+
+    /**
+     * Make the pipeline of a started application instance available to the HTTP providers
+     *
+     * @param appInstanceName Application instance name
+     * @param pipeline Upload pipeline
+     */
+    static void register(@NotNull String appInstanceName, @NotNull UploadPipeline pipeline) {
+        pipelines.put(appInstanceName, pipeline);
+    }
+
+    /**
+     * Forget the pipeline of a stopped application instance
+     *
+     * @param appInstanceName Application instance name
+     * @param pipeline Upload pipeline
+     */
+    static void unregister(@NotNull String appInstanceName, @NotNull UploadPipeline pipeline) {
+        pipelines.remove(appInstanceName, pipeline);
+    }
+
+    /**
+     * Parse the tenant weights
+     *
+     * @param value Comma separated list of hash:weight pairs
+     * @return Weights by record settings hash
+     */
+    static @NotNull Map<String, Integer> parseTenantWeights(@NotNull String value) {
+        val result = new HashMap<String, Integer>();
+
+        for (val item : value.split(",")) {
+            val separator = item.lastIndexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+
+            try {
+                result.put(item.substring(0, separator).trim(), Math.max(1, Integer.parseInt(item.substring(separator + 1).trim())));
+            } catch (NumberFormatException ignore) {
+                // No op
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the pending uploads from the journal and put them into the lanes
+     */
+    void resume() {
+        val jobs = journal.open();
+        if (!jobs.isEmpty()) {
+            logger.info(String.format("Resuming %d pending upload(s)", jobs.size()));
+        }
+
+        jobs.forEach(this::schedule);
+    }
+
+    /**
+     * Upload a segment from the cache again, when the platform asks for it
+     *
+     * @param streamName Stream of the segment, null if the file name is used by a single stream
+     * @param fileName Segment file name
+     * @return true if the segment was in the cache and its upload is scheduled, false if it was not or the upload queue is full
+     */
+    boolean reupload(@Nullable String streamName, @NotNull String fileName) {
+        val entry = segmentCache != null ? segmentCache.take(streamName, fileName) : null;
+        if (entry == null || entry.getSettings() == null) {
+            return false;
+        }
+
+        logger.info(String.format("Uploading %s again from the segment cache", entry.getFile()));
+
+        // The segment has a lane of its own, it is not a part of a recording in progress
+        val job = new UploadJob(UUID.randomUUID().toString(), entry.getFile().getName(), 0, entry.getFile(), entry.getSettings(),
+            UploadPriority.MANUAL, 0, System.currentTimeMillis());
+        journal.add(job);
+        if (!schedule(job)) {
+            // The segment stays in the cache instead of waiting for the next start
+            journal.done(job);
+            segmentCache.uploadAbandoned(entry.getFile(), entry.getSettings());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Calculate the delay before the next attempt: exponential backoff with random jitter
+     *
+     * @param attempt Number of failed attempts so far, starting from 1
+     * @return Delay in milliseconds
+     */
+    long backoff(int attempt) {
+        val exponential = retryDelay << Math.min(attempt - 1, 30);
+        val delay = exponential > 0 ? Math.min(maxRetryDelay, exponential) : maxRetryDelay;
+
+        // Half of the delay is fixed, the other half is random, so the uploads that failed together do not retry together
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Start uploading a segment while it is recorded, if progressive uploads are enabled
+     *
+     * @param path Recorder file path of the segment
+     * @param settings Record settings of the stream
+     */
+    void segmentStarted(@NotNull String path, @Nullable RecordSettings settings) {
+        if (progressiveUploads != null && settings != null) {
+            progressiveUploads.start(path, settings, UUID.randomUUID().toString());
+        }
+    }
+
+    /**
+     * Hand off a finished segment. This method only enqueues the segment and returns immediately.
+     *
+     * @param streamName Stream name
+     * @param segmentInfo Segment information
+     * @param settings Record settings of the stream
+     * @param priority Upload priority of the recording
+     * @param handOffStart Moment the recorder notification was received, as returned by {@link System#nanoTime()}
+     */
+    void submit(@NotNull String streamName, @NotNull SegmentInfo segmentInfo, @Nullable RecordSettings settings,
+                @NotNull UploadPriority priority, long handOffStart) {
+        val queued = System.nanoTime();
+
+        try {
+            prepareExecutor.execute(() -> prepare(streamName, segmentInfo, settings, priority, queued));
+        } catch (RejectedExecutionException e) {
+            logger.error(String.format("Segment queue is full, %s is not uploaded", segmentInfo.getCurrentFile()));
+        }
+
+        handOffStatistics.recordSince(handOffStart);
+    }
+
+    /**
+     * Rename the segment file and pass it to the upload lane of the stream
+     *
+     * @param streamName Stream name
+     * @param segmentInfo Segment information
+     * @param settings Record settings of the stream
+     * @param priority Upload priority of the recording
+     * @param queued Moment the segment was queued
+     */
+    private void prepare(@NotNull String streamName, @NotNull SegmentInfo segmentInfo, @Nullable RecordSettings settings,
+                         @NotNull UploadPriority priority, long queued) {
+        prepareWaitStatistics.recordSince(queued);
+
+        val tail = progressiveUploads != null ? progressiveUploads.stop(segmentInfo.getCurrentFile()) : null;
+
+        if (settings == null) {
+            logger.warn(String.format("No record settings for %s, leaving the file as is", segmentInfo.getCurrentFile()));
+            abortProgressive(tail);
+            return;
+        }
+
+        val renameStart = System.nanoTime();
+        val file = getRecordedFile(segmentInfo);
+        val newFile = new File(createNewName(settings, segmentInfo));
+        val renamed = file.renameTo(newFile);
+        renameStatistics.recordSince(renameStart);
+
+        if (!renamed) {
+            logger.error(String.format("Could not move %s to %s", file, newFile));
+            abortProgressive(tail);
+            return;
+        }
+
+        // The progressive upload and the regular upload of the segment share the idempotency key
+        val id = tail != null ? tail.getIdempotencyKey() : UUID.randomUUID().toString();
+        val progressiveUpload = tail != null ? tail.getUpload() : null;
+        if (progressiveUpload != null) {
+            progressiveUploadsToFinish.put(id, progressiveUpload);
+        }
+
+        val job = new UploadJob(id, streamName, segmentInfo.getSegmentNumber(), newFile, settings, priority, 0, System.currentTimeMillis());
+        journal.add(job);
+
+        if (uploadBatches == null) {
+            schedule(job);
+        } else if (progressiveUpload == null && uploadBatches.accepts(newFile.length())) {
+            uploadBatches.add(job);
+        } else {
+            uploadBatches.flush(streamName);
+            schedule(job);
+        }
+    }
+
+    /**
+     * Abort the progressive upload of a segment that is not going to be uploaded
+     *
+     * @param tail Tailed segment, null if it was not tailed
+     */
+    private void abortProgressive(@Nullable ProgressiveUploads.Tail tail) {
+        if (tail != null && progressiveUploads != null) {
+            progressiveUploads.abort(tail);
+        }
+    }
+
+    /**
+     * Put the batch of segments into the lane of their stream
+     *
+     * @param jobs Uploads of the segments
+     */
+    private void scheduleBatch(@NotNull List<UploadJob> jobs) {
+        if (jobs.size() == 1) {
+            schedule(jobs.get(0));
+            return;
+        }
+
+        val first = jobs.get(0);
+        val cost = jobs.stream().mapToLong(job -> job.getFile().length()).sum();
+        val queued = System.nanoTime();
+        try {
+            uploadScheduler.submit(first.getStreamName(), first.getSettings().getHash(), first.getPriority(), cost, () -> uploadBatch(jobs, queued));
+        } catch (RejectedExecutionException e) {
+            logger.error(String.format("Upload of %d segments of %s is rejected, they will be resumed on restart: %s",
+                jobs.size(), first.getStreamName(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Put the upload into the lane of its stream
+     *
+     * @param job Upload
+     * @return true if the upload is scheduled, false if it is rejected and left to be resumed on restart
+     */
+    private boolean schedule(@NotNull UploadJob job) {
+        val queued = System.nanoTime();
+        try {
+            uploadScheduler.submit(job.getStreamName(), job.getSettings().getHash(), job.getPriority(), job.getFile().length(), () -> upload(job, queued));
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.error(String.format("Upload of %s is rejected, it will be resumed on restart: %s", job.getFile(), e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Upload the renamed segment file
+     *
+     * @param job Upload
+     * @param queued Moment the upload was queued
+     * @return {@link UploadScheduler#DONE} or the delay before the next attempt
+     */
+    private long upload(@NotNull UploadJob job, long queued) {
+        val wait = job.getNextAttemptTime() - System.currentTimeMillis();
+        if (wait > 0) {
+            return wait;
+        }
+
+        if (job.getAttempt() == 0) {
+            uploadWaitStatistics.recordSince(queued);
+        }
+
+        val size = job.getFile().length();
+        val uploadStart = System.nanoTime();
+
+        // A failed progressive upload is not finished again, the next attempt uploads the whole file
+        val progressiveUpload = progressiveUploadsToFinish.remove(job.getId());
+        Optional.ofNullable(segmentCache).ifPresent(cache -> cache.uploading(job.getFile(), job.getStreamName()));
+        try {
+            final String response;
+            if (progressiveUpload != null && progressiveUploads != null) {
+                response = progressiveUploads.finish(progressiveUpload, job.getFile());
+            } else {
+                response = uploadEndpoint.upload(job.getFile(), job.getSettings(), job.getId());
+
+                // Finishing a progressive upload says nothing about the upload throughput
+                uploadConcurrency.success(size, System.nanoTime() - uploadStart);
+            }
+            logger.info(String.format("Upload response: %s", response));
+
+            succeededCount.incrementAndGet();
+            journal.done(job);
+            return UploadScheduler.DONE;
+        } catch (Exception e) {
+            if (isOverload(e)) {
+                uploadConcurrency.failure();
+            }
+
+            job.setAttempt(job.getAttempt() + 1);
+
+            if (job.getAttempt() >= maxAttempts || isRejection(e)) {
+                logger.error(String.format("Upload of %s failed %d time(s), giving up, the file is kept: %s", job.getFile(), job.getAttempt(), e.getMessage()));
+                failedCount.incrementAndGet();
+                journal.failed(job);
+
+                // A segment uploaded again from the cache goes back to it
+                Optional.ofNullable(segmentCache).ifPresent(cache -> cache.uploadAbandoned(job.getFile(), job.getSettings()));
+                return UploadScheduler.DONE;
+            }
+
+            val delay = backoff(job.getAttempt());
+            logger.warn(String.format("Upload of %s failed (attempt %d), retrying in %d s: %s", job.getFile(), job.getAttempt(), TimeUnit.MILLISECONDS.toSeconds(delay), e.getMessage()));
+
+            job.setNextAttemptTime(System.currentTimeMillis() + delay);
+            retriedCount.incrementAndGet();
+            journal.retry(job);
+            return delay;
+        } finally {
+            Optional.ofNullable(segmentCache).ifPresent(cache -> cache.uploadFinished(job.getFile()));
+            uploadStatistics.recordSince(uploadStart);
+        }
+    }
+
+    /**
+     * Upload a batch of segments in a single request. When it fails, the segments are uploaded one by one
+     * before the later segments of the stream.
+     *
+     * @param jobs Uploads of the segments
+     * @param queued Moment the batch was queued
+     * @return {@link UploadScheduler#DONE}
+     */
+    private long uploadBatch(@NotNull List<UploadJob> jobs, long queued) {
+        uploadWaitStatistics.recordSince(queued);
+
+        val files = new LinkedHashMap<String, File>();
+        jobs.forEach(job -> files.put(job.getId(), job.getFile()));
+
+        // The same segments always make the same batch key
+        val id = UUID.nameUUIDFromBytes(String.join(",", files.keySet()).getBytes(StandardCharsets.UTF_8)).toString();
+
+        val size = files.values().stream().mapToLong(File::length).sum();
+        val uploadStart = System.nanoTime();
+
+        Optional.ofNullable(segmentCache).ifPresent(cache -> jobs.forEach(job -> cache.uploading(job.getFile(), job.getStreamName())));
+        try {
+            val response = uploadEndpoint.uploadBatch(files, jobs.get(0).getSettings(), id);
+            logger.info(String.format("Upload response: %s", response));
+
+            uploadConcurrency.success(size, System.nanoTime() - uploadStart);
+            succeededCount.addAndGet(jobs.size());
+            jobs.forEach(journal::done);
+        } catch (Exception e) {
+            if (isOverload(e)) {
+                uploadConcurrency.failure();
+            }
+
+            logger.warn(String.format("Upload of %d segments of %s in a single request failed, uploading them one by one: %s",
+                jobs.size(), jobs.get(0).getStreamName(), e.getMessage()));
+
+            val nextAttemptTime = System.currentTimeMillis() + backoff(1);
+            for (val job : jobs) {
+                job.setAttempt(1);
+                job.setNextAttemptTime(nextAttemptTime);
+                retriedCount.incrementAndGet();
+                journal.retry(job);
+            }
+
+            // The segments go back to the head of the lane in their order, before the segments recorded after them
+            for (int i = jobs.size() - 1; i >= 0; i--) {
+                val job = jobs.get(i);
+                val requeued = System.nanoTime();
+                uploadScheduler.submitFirst(job.getStreamName(), job.getSettings().getHash(), job.getPriority(), job.getFile().length(),
+                    () -> upload(job, requeued));
+            }
+        } finally {
+            Optional.ofNullable(segmentCache).ifPresent(cache -> files.values().forEach(cache::uploadFinished));
+            uploadStatistics.recordSince(uploadStart);
+        }
+
+        return UploadScheduler.DONE;
+    }
+
+    /**
+     * Check whether an upload failed because the server or the network is overloaded,
+     * as opposed to a rejection of the upload itself
+     *
+     * @param e Upload exception
+     * @return true for 5xx and 429 responses, network errors and timeouts
+     */
+    static boolean isOverload(@NotNull Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException) {
+                val status = ((ApiException) cause).getStatus();
+                return status >= 500 || status == 429;
+            }
+            if (cause instanceof ProcessingException || cause instanceof IOException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check whether the server refused the upload itself, so repeating it would not help
+     *
+     * @param e Upload exception
+     * @return true for 4xx responses other than 408 and 429
+     */
+    static boolean isRejection(@NotNull Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException) {
+                val status = ((ApiException) cause).getStatus();
+                return status >= 400 && status < 500 && status != 408 && status != 429;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Upload an abandoned segment again
+     *
+     * @param id Upload identifier
+     * @return true if the upload is scheduled, false if there is no such failed upload or its file is gone
+     */
+    boolean retryFailed(@NotNull String id) {
+        val job = journal.restore(id);
+        if (job == null) {
+            return false;
+        }
+
+        if (!job.getFile().exists()) {
+            logger.warn(String.format("File %s of the failed upload is gone", job.getFile()));
+            journal.done(job);
+            return false;
+        }
+
+        logger.info(String.format("Uploading %s again by request", job.getFile()));
+        schedule(job);
+
+        return true;
+    }
+
+    /**
+     * Delete the file of an abandoned upload and forget it
+     *
+     * @param id Upload identifier
+     * @return true if the upload was failed
+     */
+    boolean dropFailed(@NotNull String id) {
+        val job = journal.drop(id);
+        if (job == null) {
+            return false;
+        }
+
+        logger.info(String.format("Deleting %s of the failed upload by request", job.getFile()));
+        //noinspection ResultOfMethodCallIgnored
+        job.getFile().delete();
+
+        return true;
+    }
+
+    /**
+     * Create a JSON array describing the abandoned uploads
+     *
+     * @return JSON array
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull JSONArray failedStatus() {
+        val result = new JSONArray();
+        journal.getFailed().forEach(job -> {
+            val item = new JSONObject();
+            item.put("id", job.getId());
+            item.put("stream", job.getStreamName());
+            item.put("segment", job.getSegmentNumber());
+            item.put("file", job.getFile().getPath());
+            item.put("size", job.getFile().length());
+            item.put("attempts", job.getAttempt());
+            result.add(item);
+        });
+
+        return result;
+    }
+
+    /**
+     * Stop accepting new segments and close the journal.
+     * Uploads that are still running are finished, the rest are resumed from the journal on the next start.
+     */
+    void shutdown() {
+        prepareExecutor.shutdown();
+        Optional.ofNullable(uploadBatches).ifPresent(UploadBatches::shutdown);
+        Optional.ofNullable(progressiveUploads).ifPresent(ProgressiveUploads::shutdown);
+        uploadScheduler.shutdown();
+        uploadExecutor.shutdown();
+        uploadEndpoint.shutdown();
+        journal.close();
+    }
+
+    /**
+     * Create a JSON object describing the upload concurrency limit and its recent changes
+     *
+     * @return JSON object
+     */
+    @NotNull JSONObject concurrencyStatus() {
+        return uploadConcurrency.status();
+    }
+
+    /**
+     * Create a JSON object describing the segment cache
+     *
+     * @return JSON object or null if the cache is disabled
+     */
+    @Nullable JSONObject cacheStatus() {
+        return segmentCache != null ? segmentCache.status() : null;
+    }
+
+    /**
+     * Create a JSON object describing the pipeline state
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull JSONObject status() {
+        val stages = new JSONObject();
+        stages.put("hand_off", handOffStatistics.toJSON());
+        stages.put("prepare_wait", prepareWaitStatistics.toJSON());
+        stages.put("rename", renameStatistics.toJSON());
+        stages.put("upload_wait", uploadWaitStatistics.toJSON());
+        stages.put("upload", uploadStatistics.toJSON());
+
+        val result = new JSONObject();
+        result.put("segments_queued", prepareExecutor.getQueue().size());
+        result.put("uploads", uploadExecutor.status());
+        result.put("concurrency", uploadConcurrency.getLimit());
+        result.put("lanes", uploadScheduler.status());
+        Optional.ofNullable(progressiveUploads).ifPresent(uploads -> result.put("progressive", uploads.status()));
+        Optional.ofNullable(segmentCache).ifPresent(cache -> result.put("cache", cache.status()));
+        Optional.ofNullable(uploadBatches).ifPresent(batches -> {
+            val batchStatus = new JSONObject();
+            batchStatus.put("batches", batches.getBatchCount());
+            batchStatus.put("segments", batches.getSegmentCount());
+            batchStatus.put("waiting", batches.getWaitingCount());
+            result.put("batches", batchStatus);
+        });
+        result.put("journal_pending", journal.getPendingCount());
+        result.put("journal_failed", journal.getFailed().size());
+        result.put("succeeded", succeededCount.get());
+        result.put("retried", retriedCount.get());
+        result.put("failed", failedCount.get());
+        result.put("stages", stages);
+
+        return result;
+    }
+}
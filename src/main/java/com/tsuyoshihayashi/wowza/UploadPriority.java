@@ -0,0 +1,24 @@
+package com.tsuyoshihayashi.wowza;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Priority class of the uploads of a recording, in the order the classes are served
+ *
+ * @author Alexey Donov
+ */
+enum UploadPriority {
+    /**
+     * Recording started with recordctrl, somebody is waiting for it
+     */
+    MANUAL,
+    /**
+     * Recording started automatically when the stream was published
+     */
+    AUTO;
+
+    static @NotNull UploadPriority fromString(@Nullable String value) {
+        return MANUAL.name().equalsIgnoreCase(value) ? MANUAL : AUTO;
+    }
+}
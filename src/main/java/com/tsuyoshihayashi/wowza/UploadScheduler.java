@@ -0,0 +1,463 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Object that schedules uploads in per-stream lanes:
+ * - Uploads of the same stream run one at a time, in the order they were submitted,
+ *   so segment N of a stream is finished before segment N+1 starts
+ * - Lanes of different streams run in parallel on the upload executor,
+ *   up to the number of upload threads
+ * - When a thread is free, it takes the next upload of the waiting lanes:
+ *   manual recordings before automatic ones, then the tenant (record settings hash) that received
+ *   the least service for its weight (weighted fair queuing by uploaded bytes),
+ *   then the streams of that tenant in turn, so a tenant with many cameras does not block the others
+ * - An upload that asks to be repeated keeps its lane busy until the retry delay passes,
+ *   without holding an upload thread. It still counts towards the queue size.
+ *
+ * @author Alexey Donov
+ */
+final class UploadScheduler {
+    /**
+     * Value returned by an upload that does not need to be repeated
+     */
+    static final long DONE = -1;
+
+    /**
+     * Length of the tenant key shown in the status, the key is an API credential
+     */
+    private static final int TENANT_KEY_PREFIX = 8;
+
+    /**
+     * Single upload in a stream lane
+     */
+    interface Upload {
+        /**
+         * Perform the upload
+         *
+         * @return {@link #DONE} or the delay in milliseconds after which the upload has to be repeated
+         */
+        long run();
+    }
+
+    /**
+     * Upload waiting in a lane with its scheduling attributes
+     */
+    private static final class Entry {
+        private final @NotNull Upload upload;
+        private final @NotNull Tenant tenant;
+        private final @NotNull UploadPriority priority;
+        private final long cost;
+
+        private Entry(@NotNull Upload upload, @NotNull Tenant tenant, @NotNull UploadPriority priority, long cost) {
+            this.upload = upload;
+            this.tenant = tenant;
+            this.priority = priority;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Uploads waiting in a single stream lane
+     */
+    private static final class Lane {
+        private final @NotNull String streamName;
+        private final @NotNull Deque<Entry> uploads = new ArrayDeque<>();
+
+        /**
+         * Whether the lane is in a ready queue of its tenant
+         */
+        private boolean ready = false;
+
+        /**
+         * Upload of the lane that is running or waiting for a retry
+         */
+        private @Nullable Entry running = null;
+
+        private Lane(@NotNull String streamName) {
+            this.streamName = streamName;
+        }
+    }
+
+    /**
+     * Uploads of streams sharing the same record settings hash
+     */
+    private static final class Tenant {
+        private final @NotNull String key;
+        private final int weight;
+
+        /**
+         * Lanes waiting for a thread, by priority
+         */
+        private final @NotNull Deque<Lane>[] ready;
+
+        /**
+         * Number of waiting uploads, by priority
+         */
+        private final @NotNull int[] depths = new int[UploadPriority.values().length];
+
+        /**
+         * Bytes served so far divided by the weight, in the scheduler virtual time
+         */
+        private double virtualTime = 0;
+
+        private long servedCount = 0;
+        private long servedBytes = 0;
+
+        @SuppressWarnings("unchecked")
+        private Tenant(@NotNull String key, int weight) {
+            this.key = key;
+            this.weight = weight;
+            this.ready = new Deque[UploadPriority.values().length];
+            for (int i = 0; i < ready.length; i++) {
+                ready[i] = new ArrayDeque<>();
+            }
+        }
+
+        private int getPending() {
+            int result = 0;
+            for (val depth : depths) {
+                result += depth;
+            }
+            return result;
+        }
+    }
+
+    private final @NotNull WMSLogger logger = WMSLoggerFactory.getLogger(UploadScheduler.class);
+
+    private final @NotNull UploadExecutor executor;
+    private final @NotNull Map<String, Integer> tenantWeights;
+    private final @NotNull Map<String, Lane> lanes = new HashMap<>();
+    private final @NotNull Map<String, Tenant> tenants = new HashMap<>();
+    private final @NotNull ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(UploadExecutor.threadFactory("upload-retry"));
+
+    private int pending = 0;
+
+    /**
+     * Virtual time of the last upload taken, a tenant that becomes active again starts from it
+     * instead of getting credit for the time it was idle
+     */
+    private double virtualTime = 0;
+
+    UploadScheduler(@NotNull UploadExecutor executor) {
+        this(executor, Collections.emptyMap());
+    }
+
+    /**
+     * @param executor Upload executor
+     * @param tenantWeights Weights of the tenants by record settings hash, 1 if not listed
+     */
+    UploadScheduler(@NotNull UploadExecutor executor, @NotNull Map<String, Integer> tenantWeights) {
+        this.executor = executor;
+        this.tenantWeights = tenantWeights;
+    }
+
+    /**
+     * Add an upload to the lane of the stream
+     *
+     * @param streamName Stream name
+     * @param tenant Tenant key, the record settings hash
+     * @param priority Upload priority
+     * @param cost Size of the upload in bytes
+     * @param upload Upload
+     * @throws RejectedExecutionException when there are too many pending uploads
+     */
+    void submit(@NotNull String streamName, @NotNull String tenant, @NotNull UploadPriority priority, long cost, @NotNull Upload upload) {
+        add(streamName, tenant, priority, cost, upload, false);
+    }
+
+    /**
+     * Put an upload back at the head of the lane of the stream, before the uploads submitted after it,
+     * e.g. a segment of a failed batch. The upload was accepted before, so the queue size is not checked again.
+     *
+     * @param streamName Stream name
+     * @param tenant Tenant key, the record settings hash
+     * @param priority Upload priority
+     * @param cost Size of the upload in bytes
+     * @param upload Upload
+     */
+    void submitFirst(@NotNull String streamName, @NotNull String tenant, @NotNull UploadPriority priority, long cost, @NotNull Upload upload) {
+        add(streamName, tenant, priority, cost, upload, true);
+    }
+
+    private void add(@NotNull String streamName, @NotNull String tenant, @NotNull UploadPriority priority, long cost, @NotNull Upload upload,
+                     boolean first) {
+        synchronized (this) {
+            if (!first && pending >= executor.getQueueSize()) {
+                if (executor.getOverflowPolicy() != UploadExecutor.OverflowPolicy.DISCARD_OLDEST || !discardOldest(streamName)) {
+                    executor.countRejected();
+                    throw new RejectedExecutionException("Upload queue is full");
+                }
+            }
+
+            val entryTenant = tenants.computeIfAbsent(tenant, key -> new Tenant(key, Math.max(1, tenantWeights.getOrDefault(key, 1))));
+            if (entryTenant.getPending() == 0) {
+                entryTenant.virtualTime = Math.max(entryTenant.virtualTime, virtualTime);
+            }
+            entryTenant.depths[priority.ordinal()]++;
+            pending++;
+
+            val lane = lanes.computeIfAbsent(streamName, Lane::new);
+            val entry = new Entry(upload, entryTenant, priority, Math.max(1, cost));
+            if (first) {
+                lane.uploads.addFirst(entry);
+            } else {
+                lane.uploads.addLast(entry);
+            }
+            if (!makeReady(lane)) {
+                return;
+            }
+        }
+
+        executor.execute(this::runNext);
+    }
+
+    /**
+     * Put the lane into the ready queue of the tenant of its first upload
+     *
+     * @param lane Lane
+     * @return true if the lane became ready and needs a thread
+     */
+    private boolean makeReady(@NotNull Lane lane) {
+        val next = lane.uploads.peekFirst();
+        if (lane.running != null || lane.ready || next == null) {
+            return false;
+        }
+
+        next.tenant.ready[next.priority.ordinal()].addLast(lane);
+        lane.ready = true;
+        return true;
+    }
+
+    /**
+     * Drop the oldest waiting upload of the stream to make room for a new one
+     *
+     * @param streamName Stream name
+     * @return true if an upload was dropped
+     */
+    private boolean discardOldest(@NotNull String streamName) {
+        val lane = lanes.get(streamName);
+        val discarded = lane != null ? lane.uploads.pollFirst() : null;
+        if (discarded == null) {
+            return false;
+        }
+
+        discarded.tenant.depths[discarded.priority.ordinal()]--;
+        pending--;
+        if (lane.uploads.isEmpty() && lane.ready) {
+            // A lane that is not empty stays queued where its previous first upload put it
+            discarded.tenant.ready[discarded.priority.ordinal()].remove(lane);
+            lane.ready = false;
+            lanes.remove(streamName);
+        }
+
+        executor.countDiscarded();
+        logger.warn(String.format("Upload queue is full, discarding the oldest upload of %s", streamName));
+
+        return true;
+    }
+
+    /**
+     * Take the first upload of the best waiting lane
+     *
+     * @return Lane with the upload to run or null if no lane is waiting
+     */
+    private synchronized @Nullable Lane takeNext() {
+        for (val priority : UploadPriority.values()) {
+            Tenant best = null;
+            for (val tenant : tenants.values()) {
+                if (!tenant.ready[priority.ordinal()].isEmpty() && (best == null || tenant.virtualTime < best.virtualTime)) {
+                    best = tenant;
+                }
+            }
+
+            if (best == null) {
+                continue;
+            }
+
+            val lane = best.ready[priority.ordinal()].pollFirst();
+            val entry = lane.uploads.pollFirst();
+            lane.ready = false;
+            lane.running = entry;
+
+            entry.tenant.depths[entry.priority.ordinal()]--;
+            pending--;
+
+            virtualTime = Math.max(virtualTime, entry.tenant.virtualTime);
+            entry.tenant.virtualTime += (double) entry.cost / entry.tenant.weight;
+            entry.tenant.servedCount++;
+            entry.tenant.servedBytes += entry.cost;
+
+            return lane;
+        }
+
+        return null;
+    }
+
+    /**
+     * Take the best waiting lane and run its first upload
+     */
+    private void runNext() {
+        val lane = takeNext();
+        if (lane != null && lane.running != null) {
+            run(lane, lane.running);
+        }
+    }
+
+    /**
+     * Run the upload, then either let the lane wait for a thread again
+     * or repeat the upload after the delay it asked for
+     *
+     * @param lane Lane
+     * @param entry Upload
+     */
+    private void run(@NotNull Lane lane, @NotNull Entry entry) {
+        long retryDelay = DONE;
+        try {
+            retryDelay = entry.upload.run();
+        } catch (RuntimeException e) {
+            logger.error(String.format("Upload of %s failed: %s", lane.streamName, e.getMessage()));
+        }
+
+        if (retryDelay < 0) {
+            final boolean ready;
+            synchronized (this) {
+                lane.running = null;
+                ready = makeReady(lane);
+                if (lane.uploads.isEmpty()) {
+                    lanes.remove(lane.streamName, lane);
+                }
+            }
+
+            if (ready) {
+                dispatch(lane);
+            }
+            return;
+        }
+
+        // The upload waiting for its retry counts towards the queue size, so the retry always finds room
+        synchronized (this) {
+            pending++;
+        }
+
+        try {
+            retryTimer.schedule(() -> retry(lane, entry), retryDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            requeue(lane, entry, e);
+        }
+    }
+
+    /**
+     * Repeat the upload of the lane that waited for the retry delay
+     *
+     * @param lane Lane
+     * @param entry Upload
+     */
+    private void retry(@NotNull Lane lane, @NotNull Entry entry) {
+        try {
+            executor.execute(() -> {
+                synchronized (this) {
+                    pending--;
+                }
+                run(lane, entry);
+            });
+        } catch (RejectedExecutionException e) {
+            requeue(lane, entry, e);
+        }
+    }
+
+    /**
+     * Put the repeated upload that could not run back at the head of its lane,
+     * so the lane is not left busy and its next uploads are not stuck behind it
+     *
+     * @param lane Lane
+     * @param entry Upload
+     * @param e Reason the upload could not run
+     */
+    private void requeue(@NotNull Lane lane, @NotNull Entry entry, @NotNull RejectedExecutionException e) {
+        logger.warn(String.format("Retry of %s could not run: %s", lane.streamName, e.getMessage()));
+
+        final boolean ready;
+        synchronized (this) {
+            entry.tenant.depths[entry.priority.ordinal()]++;
+            lane.uploads.addFirst(entry);
+            lane.running = null;
+            lanes.putIfAbsent(lane.streamName, lane);
+            ready = makeReady(lane);
+        }
+
+        if (ready) {
+            dispatch(lane);
+        }
+    }
+
+    /**
+     * Ask for a thread for the lane that became ready. If there is none, the lane stays ready
+     * and is taken by the next free thread.
+     *
+     * @param lane Lane
+     */
+    private void dispatch(@NotNull Lane lane) {
+        try {
+            executor.execute(this::runNext);
+        } catch (RejectedExecutionException e) {
+            logger.warn(String.format("Upload lane of %s is waiting: %s", lane.streamName, e.getMessage()));
+        }
+    }
+
+    /**
+     * Stop repeating uploads
+     */
+    void shutdown() {
+        retryTimer.shutdown();
+    }
+
+    /**
+     * Create a JSON object describing the lanes and the tenants
+     *
+     * @return JSON object
+     */
+    @SuppressWarnings("unchecked")
+    synchronized @NotNull JSONObject status() {
+        val depths = new JSONObject();
+        lanes.forEach((name, lane) -> depths.put(name, lane.uploads.size()));
+
+        val tenantList = new JSONArray();
+        tenants.values().forEach(tenant -> {
+            val tenantStatus = new JSONObject();
+            tenantStatus.put("tenant", tenant.key.substring(0, Math.min(TENANT_KEY_PREFIX, tenant.key.length())));
+            tenantStatus.put("weight", tenant.weight);
+            tenantStatus.put("pending", tenant.getPending());
+            for (val priority : UploadPriority.values()) {
+                tenantStatus.put(priority.name().toLowerCase(), tenant.depths[priority.ordinal()]);
+            }
+            tenantStatus.put("uploads", tenant.servedCount);
+            tenantStatus.put("bytes", tenant.servedBytes);
+            tenantList.add(tenantStatus);
+        });
+
+        val result = new JSONObject();
+        result.put("pending", pending);
+        result.put("lanes", lanes.size());
+        result.put("lane_depths", depths);
+        result.put("tenants", tenantList);
+
+        return result;
+    }
+}
@@ -0,0 +1,95 @@
+package com.tsuyoshihayashi.api;
+
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+/**
+ * Testing the upload bandwidth limiter
+ *
+ * @author Alexey Donov
+ */
+public class BandwidthLimiterTest extends TestCase {
+    private static final int RATE = 2 * 1024 * 1024;
+    private static final int BURST = 64 * 1024;
+
+    /**
+     * Writes are not delayed without a limit
+     */
+    public void testNotLimited() throws IOException {
+        val limiter = new BandwidthLimiter(0, BURST);
+
+        val start = System.nanoTime();
+        write(limiter, 16 * RATE);
+
+        assertTrue(System.nanoTime() - start < 500_000_000L);
+        assertEquals(0L, limiter.status().get("throttled_ms"));
+    }
+
+    /**
+     * A single writer is held to the rate after the burst
+     */
+    public void testRate() throws IOException {
+        val limiter = new BandwidthLimiter(RATE, BURST);
+
+        val start = System.nanoTime();
+        write(limiter, RATE);
+        val elapsed = System.nanoTime() - start;
+
+        // (RATE - BURST) / RATE seconds at least
+        assertTrue(elapsed > 900_000_000L * (RATE - BURST) / RATE);
+        assertTrue(elapsed < 3_000_000_000L);
+    }
+
+    /**
+     * Concurrent writers share the rate
+     */
+    public void testConcurrent() {
+        val limiter = new BandwidthLimiter(RATE, BURST);
+        val executor = Executors.newFixedThreadPool(4);
+
+        val start = System.nanoTime();
+        val writers = IntStream.range(0, 4)
+            .mapToObj(i -> CompletableFuture.runAsync(() -> {
+                try {
+                    write(limiter, RATE / 4);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, executor))
+            .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(writers).join();
+        val elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        assertTrue(elapsed > 900_000_000L * (RATE - BURST) / RATE);
+        assertEquals((long) RATE, limiter.status().get("bytes"));
+    }
+
+    /**
+     * Changing the limit takes effect immediately
+     */
+    public void testSetLimit() throws IOException {
+        val limiter = new BandwidthLimiter(1024, BURST);
+        limiter.setLimit(0, BURST);
+
+        val start = System.nanoTime();
+        write(limiter, RATE);
+
+        assertTrue(System.nanoTime() - start < 500_000_000L);
+        assertEquals(0L, limiter.getRate());
+    }
+
+    private static void write(BandwidthLimiter limiter, int length) throws IOException {
+        val output = limiter.limit(new ByteArrayOutputStream());
+        val buffer = new byte[16 * 1024];
+        for (int written = 0; written < length; written += buffer.length) {
+            output.write(buffer, 0, Math.min(buffer.length, length - written));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.tsuyoshihayashi.model.RecordSettings;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.ws.rs.client.Client;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.tsuyoshihayashi.api.StubServer.read;
+import static com.tsuyoshihayashi.api.StubServer.respond;
+
+/**
+ * Testing the batch upload against a local server
+ *
+ * @author Alexey Donov
+ */
+public class BatchUploadTest extends TestCase {
+    private static final Pattern VIDEO_FILE = Pattern.compile("name=\"video_file\"");
+    private static final Pattern SEGMENT_KEY = Pattern.compile("name=\"segment_idempotency_key\"\r\n\r\n([^\r]+)\r\n");
+
+    private StubServer server;
+    private Client client;
+    private final LinkedHashMap<String, File> files = new LinkedHashMap<>();
+
+    // Server state
+    private boolean batch = true;
+    private final List<String> requests = new ArrayList<>();
+    private final List<String> segmentKeys = new ArrayList<>();
+    private int videoFiles = 0;
+
+    @Override
+    protected void setUp() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            val file = File.createTempFile("segment", ".mp4");
+            Files.write(file.toPath(), new byte[1000 * i]);
+            files.put("key" + i, file);
+        }
+
+        server = new StubServer("/upload", this::handle);
+        client = server.getClient();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+        //noinspection ResultOfMethodCallIgnored
+        files.values().forEach(File::delete);
+    }
+
+    /**
+     * All the segments are sent in a single request
+     */
+    public void testBatch() {
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, 1024 * 1024, 1, 0);
+        uploadEndpoint.uploadBatch(files, settings(), "batch");
+        uploadEndpoint.shutdown();
+
+        assertEquals(1, requests.size());
+        assertEquals("batch", requests.get(0));
+        assertEquals(3, videoFiles);
+        assertEquals(new ArrayList<>(files.keySet()), segmentKeys);
+        files.values().forEach(file -> assertFalse(file.exists()));
+    }
+
+    /**
+     * Upload URL that does not support batch uploads receives the segments one by one
+     */
+    public void testNotSupported() {
+        batch = false;
+
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, 1024 * 1024, 1, 0);
+        uploadEndpoint.uploadBatch(files, settings(), "batch");
+        uploadEndpoint.shutdown();
+
+        assertEquals(new ArrayList<>(files.keySet()), requests);
+        assertEquals(3, videoFiles);
+        files.values().forEach(file -> assertFalse(file.exists()));
+    }
+
+    private RecordSettings settings() {
+        return server.settings(1);
+    }
+
+    private synchronized void handle(HttpExchange exchange) throws IOException {
+        val body = new String(read(exchange.getRequestBody()), StandardCharsets.ISO_8859_1);
+
+        if ("OPTIONS".equals(exchange.getRequestMethod())) {
+            if (batch) {
+                exchange.getResponseHeaders().add("X-Batch-Upload", "1");
+            }
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            requests.add(exchange.getRequestHeaders().getFirst("Idempotency-Key"));
+
+            val videoFile = VIDEO_FILE.matcher(body);
+            while (videoFile.find()) {
+                videoFiles++;
+            }
+            val segmentKey = SEGMENT_KEY.matcher(body);
+            while (segmentKey.find()) {
+                segmentKeys.add(segmentKey.group(1));
+            }
+
+            respond(exchange, "{}");
+        }
+
+        exchange.close();
+    }
+}
@@ -0,0 +1,224 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.tsuyoshihayashi.model.RecordSettings;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.ws.rs.client.Client;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+import static com.tsuyoshihayashi.api.StubServer.read;
+import static com.tsuyoshihayashi.api.StubServer.respond;
+
+/**
+ * Testing the checksum verification of the uploads against a local server
+ *
+ * @author Alexey Donov
+ */
+public class ChecksumUploadTest extends TestCase {
+    private static final Pattern CHECKSUM_FIELD = Pattern.compile("(?s).*name=\"checksum\"\r\n\r\n([0-9a-f]+)\r\n.*");
+    private static final Pattern ALGORITHM_FIELD = Pattern.compile(".*checksum_algorithm=(\\w+).*");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private StubServer server;
+    private Client client;
+    private File file;
+
+    // Server state
+    private boolean corrupt = false;
+    private String capability = null;
+    private StreamChecksum.Algorithm algorithm = StreamChecksum.Algorithm.NONE;
+    private byte[] received = new byte[0];
+
+    @Override
+    protected void setUp() throws Exception {
+        val content = new byte[100 * 1024 + 3];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+
+        file = File.createTempFile("segment", ".mp4");
+        Files.write(file.toPath(), content);
+
+        server = new StubServer("/upload", this::handle);
+        client = server.getClient();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * The file is deleted when the server has the same checksum
+     */
+    public void testMatch() {
+        for (val algorithm : new StreamChecksum.Algorithm[]{StreamChecksum.Algorithm.SHA256, StreamChecksum.Algorithm.CRC32C}) {
+            val uploadEndpoint = new UploadEndpoint(client, null, 0, 1024 * 1024, 1, 0, algorithm);
+            uploadEndpoint.upload(file, settings(), "key");
+            uploadEndpoint.shutdown();
+
+            assertFalse(file.exists());
+            setUpFile();
+        }
+    }
+
+    /**
+     * The file is kept when the server has a different checksum
+     */
+    public void testMismatch() {
+        corrupt = true;
+
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, 1024 * 1024, 1, 0, StreamChecksum.Algorithm.SHA256);
+        try {
+            uploadEndpoint.upload(file, settings(), "key");
+            fail("Upload with a wrong checksum must fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("does not match"));
+        }
+        uploadEndpoint.shutdown();
+
+        assertTrue(file.exists());
+    }
+
+    /**
+     * File sent in chunks is verified against the checksum the server calculated from the chunks
+     */
+    public void testResumable() {
+        capability = "X-Resumable-Upload";
+        assertVerified(new UploadEndpoint(client, null, 1, 16 * 1024, 1, 0, StreamChecksum.Algorithm.SHA256));
+    }
+
+    /**
+     * File sent in parts is verified against the checksum the server calculated from the assembled file
+     */
+    public void testParallel() {
+        capability = "X-Parallel-Upload";
+        assertVerified(new UploadEndpoint(client, null, 0, 1024 * 1024, 4, 1, StreamChecksum.Algorithm.CRC32C));
+    }
+
+    /**
+     * File sent while it was recorded is verified against the checksum the server calculated from the final file
+     */
+    public void testProgressive() throws IOException {
+        capability = "X-Progressive-Upload";
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, 16 * 1024, 1, 0, StreamChecksum.Algorithm.SHA256);
+
+        corrupt = true;
+        try {
+            Objects.requireNonNull(uploadEndpoint.startProgressive(file, settings(), "key")).finish(file);
+            fail("Upload with a wrong checksum must fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("does not match"));
+        }
+        assertTrue(file.exists());
+
+        corrupt = false;
+        received = new byte[0];
+        Objects.requireNonNull(uploadEndpoint.startProgressive(file, settings(), "key")).finish(file);
+        uploadEndpoint.shutdown();
+
+        assertFalse(file.exists());
+    }
+
+    /**
+     * The file is kept when the server has a different checksum, and deleted when it has the same one
+     */
+    private void assertVerified(UploadEndpoint uploadEndpoint) {
+        corrupt = true;
+        try {
+            uploadEndpoint.upload(file, settings(), "key");
+            fail("Upload with a wrong checksum must fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("does not match"));
+        }
+        assertTrue(file.exists());
+
+        corrupt = false;
+        received = new byte[0];
+        uploadEndpoint.upload(file, settings(), "key");
+        uploadEndpoint.shutdown();
+
+        assertFalse(file.exists());
+    }
+
+    private void setUpFile() {
+        try {
+            Files.write(file.toPath(), new byte[]{1, 2, 3});
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private RecordSettings settings() {
+        return server.settings(10);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        val bytes = read(exchange.getRequestBody());
+        val body = new String(bytes, StandardCharsets.ISO_8859_1);
+        val headers = exchange.getRequestHeaders();
+        val mode = Optional.ofNullable(headers.getFirst("X-Resumable-Upload"))
+            .orElse(Optional.ofNullable(headers.getFirst("X-Parallel-Upload")).orElse(headers.getFirst("X-Progressive-Upload")));
+
+        if ("OPTIONS".equals(exchange.getRequestMethod())) {
+            if (capability != null) {
+                exchange.getResponseHeaders().add(capability, "1");
+            }
+            exchange.sendResponseHeaders(200, -1);
+        } else if ("PUT".equals(exchange.getRequestMethod())) {
+            val matcher = CONTENT_RANGE.matcher(headers.getFirst("Content-Range"));
+            assertTrue(matcher.matches());
+            val first = Integer.parseInt(matcher.group(1));
+            if (received.length < first + bytes.length) {
+                received = Arrays.copyOf(received, first + bytes.length);
+            }
+            System.arraycopy(bytes, 0, received, first, bytes.length);
+
+            // The response to the chunk that completes the resumable upload is the upload result
+            val complete = String.valueOf(first + bytes.length).equals(matcher.group(3));
+            respond(exchange, String.format("{\"offset\":%d%s}", first + bytes.length,
+                complete ? String.format(",\"checksum\":\"%s\"", checksum()) : ""));
+        } else if ("start".equals(mode)) {
+            val matcher = ALGORITHM_FIELD.matcher(body);
+            assertTrue(matcher.matches());
+            algorithm = StreamChecksum.Algorithm.fromString(matcher.group(1));
+            respond(exchange, "{\"upload_id\":\"upload\",\"offset\":0,\"parts\":[]}");
+        } else if ("commit".equals(mode) || "finish".equals(mode)) {
+            // The client sends its checksum too, a real server may refuse the upload right away
+            assertTrue(body.contains("checksum="));
+            if ("finish".equals(mode)) {
+                received = Arrays.copyOf(received, Integer.parseInt(body.replaceAll(".*file_size=(\\d+).*", "$1")));
+            }
+            respond(exchange, String.format("{\"checksum\":\"%s\"}", checksum()));
+        } else {
+            // Echo the checksum sent by the client, a real server calculates it from the received file
+            val matcher = CHECKSUM_FIELD.matcher(body);
+            val checksum = matcher.matches() ? matcher.group(1) : "";
+            respond(exchange, String.format("{\"checksum\":\"%s\"}", corrupt ? "0" + checksum.substring(1) : checksum));
+        }
+
+        exchange.close();
+    }
+
+    /**
+     * Calculate the checksum of the received bytes, as the server does
+     */
+    private String checksum() throws IOException {
+        val checksum = Objects.requireNonNull(algorithm.create());
+        checksum.tee(new ByteArrayOutputStream()).write(received);
+        val value = checksum.getValue();
+        return corrupt ? (value.startsWith("0") ? "1" : "0") + value.substring(1) : value;
+    }
+}
@@ -0,0 +1,72 @@
+package com.tsuyoshihayashi.api;
+
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testing the circuit breaker states
+ *
+ * @author Alexey Donov
+ */
+public class CircuitBreakerTest extends TestCase {
+    private static final long OPEN_TIME = 1000;
+
+    /**
+     * The circuit opens only when enough requests failed
+     */
+    public void testOpen() {
+        val circuitBreaker = new CircuitBreaker("test", 10, 4, 0.5, OPEN_TIME);
+
+        circuitBreaker.record(true, 0);
+        circuitBreaker.record(true, 0);
+        circuitBreaker.record(true, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        circuitBreaker.record(false, 0);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest(0));
+    }
+
+    /**
+     * The failure rate is calculated from the last requests only
+     */
+    public void testWindow() {
+        val circuitBreaker = new CircuitBreaker("test", 4, 4, 0.5, OPEN_TIME);
+
+        circuitBreaker.record(true, 0);
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.record(false, 0);
+        }
+        circuitBreaker.record(true, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        circuitBreaker.record(true, 0);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    /**
+     * After the open time a single probe is allowed, its outcome closes or opens the circuit
+     */
+    public void testProbe() {
+        val openTime = TimeUnit.MILLISECONDS.toNanos(OPEN_TIME);
+        val circuitBreaker = new CircuitBreaker("test", 1, 1, 1, OPEN_TIME);
+
+        circuitBreaker.record(true, 0);
+        assertFalse(circuitBreaker.allowRequest(openTime - 1));
+
+        assertTrue(circuitBreaker.allowRequest(openTime));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest(openTime));
+
+        circuitBreaker.record(true, openTime);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest(openTime * 2 - 1));
+
+        assertTrue(circuitBreaker.allowRequest(openTime * 2));
+        circuitBreaker.record(false, openTime * 2);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest(openTime * 2));
+    }
+}
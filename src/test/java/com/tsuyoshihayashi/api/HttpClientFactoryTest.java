@@ -0,0 +1,99 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Testing the pooled HTTP client
+ *
+ * @author Alexey Donov
+ */
+public class HttpClientFactoryTest extends TestCase {
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String endpoint;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws IOException {
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            val current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignore) {
+                // No op
+            }
+            inFlight.decrementAndGet();
+
+            val bytes = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        server.start();
+        endpoint = String.format("http://localhost:%d/", server.getAddress().getPort());
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdown();
+    }
+
+    /**
+     * Sequential requests to the same host use a single connection
+     */
+    public void testReuse() {
+        val factory = new HttpClientFactory(5000, 5000, 10, 10);
+        try {
+            for (int i = 0; i < 5; i++) {
+                assertEquals("ok", factory.getClient().target(endpoint).request().get(String.class));
+            }
+
+            val status = factory.status();
+            assertEquals(5L, status.get("requests"));
+            assertEquals(1L, status.get("connections_opened"));
+            assertEquals(4L, status.get("connections_reused"));
+            assertEquals(0, status.get("leased"));
+            assertEquals(1, status.get("available"));
+        } finally {
+            factory.close();
+        }
+    }
+
+    /**
+     * Concurrent requests to the same host are limited by the per route limit
+     */
+    public void testRouteLimit() {
+        val factory = new HttpClientFactory(5000, 5000, 10, 2);
+        val executor = Executors.newFixedThreadPool(6);
+        try {
+            val requests = IntStream.range(0, 6)
+                .mapToObj(i -> CompletableFuture.supplyAsync(() -> factory.getClient().target(endpoint).request().get(String.class), executor))
+                .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(requests).join();
+
+            assertEquals(2, maxInFlight.get());
+            assertEquals(2L, factory.status().get("connections_opened"));
+        } finally {
+            executor.shutdown();
+            factory.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpServer;
+import lombok.val;
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
+import org.glassfish.jersey.media.multipart.MultiPartFeature;
+import org.glassfish.jersey.media.multipart.file.FileDataBodyPart;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap allocation of a segment upload: Jersey FormDataMultiPart against the streaming {@link MultipartBody}.
+ * Both upload the same file to a local server that discards the body.
+ *
+ * Run the main method and compare gc.alloc.rate.norm (bytes per upload).
+ * Bytes per GB uploaded = gc.alloc.rate.norm * 1024 / FILE_SIZE_MB.
+ *
+ * @author Alexey Donov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx512m"})
+public class MultipartBodyBenchmark {
+    private static final int FILE_SIZE_MB = 64;
+    private static final MediaType VIDEO_MP4 = new MediaType("video", "mp4");
+
+    private HttpServer server;
+    private String endpoint;
+    private File file;
+    private Client formDataClient;
+    private HttpClientFactory httpClientFactory;
+    private Client streamingClient;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("segment", ".mp4");
+        try (val output = new RandomAccessFile(file, "rw")) {
+            output.setLength(FILE_SIZE_MB * 1024L * 1024L);
+        }
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            val buffer = new byte[64 * 1024];
+            try (val input = exchange.getRequestBody()) {
+                //noinspection StatementWithEmptyBody
+                while (input.read(buffer) >= 0) {
+                    // Discard
+                }
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        endpoint = String.format("http://localhost:%d/upload", server.getAddress().getPort());
+
+        // Client the uploads used before MultipartBody
+        formDataClient = ClientBuilder.newBuilder().register(MultiPartFeature.class).build();
+
+        // Client the uploads use
+        httpClientFactory = new HttpClientFactory(10000, 60000, 10, 10);
+        streamingClient = httpClientFactory.getClient();
+    }
+
+    @TearDown
+    public void tearDown() {
+        formDataClient.close();
+        httpClientFactory.close();
+        server.stop(0);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Benchmark
+    public int formDataMultiPart() {
+        val form = new FormDataMultiPart();
+        form.field("hash", "hash");
+        form.field("hash2", "hash2");
+        form.field("title", file.getName());
+        form.bodyPart(new FileDataBodyPart("video_file", file, VIDEO_MP4));
+
+        return formDataClient.target(endpoint)
+            .request()
+            .post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE))
+            .getStatus();
+    }
+
+    @Benchmark
+    public int multipartBody() {
+        val body = new MultipartBody();
+        body.field("hash", "hash");
+        body.field("hash2", "hash2");
+        body.field("title", file.getName());
+        body.file("video_file", file, VIDEO_MP4);
+
+        return streamingClient.target(endpoint)
+            .request()
+            .header(HttpHeaders.CONTENT_LENGTH, body.getContentLength())
+            .post(Entity.entity(body, body.getMediaType()))
+            .getStatus();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(MultipartBodyBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,117 @@
+package com.tsuyoshihayashi.api;
+
+import junit.framework.TestCase;
+import lombok.val;
+import org.jvnet.mimepull.MIMEMessage;
+
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Testing the streaming multipart body
+ *
+ * @author Alexey Donov
+ */
+public class MultipartBodyTest extends TestCase {
+    private File file;
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws Exception {
+        // Larger than the copy buffer and not a multiple of it
+        content = new byte[200 * 1024 + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        file = File.createTempFile("segment", ".mp4");
+        Files.write(file.toPath(), content);
+    }
+
+    @Override
+    protected void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Written body has the announced length and is parsed back into the same fields and file
+     */
+    public void testWriteTo() throws IOException {
+        val body = new MultipartBody()
+            .field("hash", "hash")
+            .field("title", "タイトル")
+            .file("video_file", file, new MediaType("video", "mp4"));
+
+        val output = new ByteArrayOutputStream();
+        body.writeTo(output);
+        val bytes = output.toByteArray();
+
+        assertEquals(body.getContentLength(), bytes.length);
+
+        val message = new MIMEMessage(new ByteArrayInputStream(bytes), body.getMediaType().getParameters().get("boundary"));
+        val parts = message.getAttachments();
+        assertEquals(3, parts.size());
+        assertEquals("hash", new String(read(parts.get(0).read()), StandardCharsets.UTF_8));
+        assertEquals("タイトル", new String(read(parts.get(1).read()), StandardCharsets.UTF_8));
+        assertTrue(Arrays.equals(content, read(parts.get(2).read())));
+        assertTrue(parts.get(2).getHeader("Content-Disposition").get(0).contains(String.format("filename=\"%s\"", file.getName())));
+    }
+
+    /**
+     * Checksum field carries the checksum of the file written before it
+     */
+    public void testChecksum() throws Exception {
+        val checksum = StreamChecksum.Algorithm.SHA256.create();
+        assertNotNull(checksum);
+
+        val body = new MultipartBody()
+            .file("video_file", file, new MediaType("video", "mp4"), checksum)
+            .field("checksum", checksum);
+
+        val output = new ByteArrayOutputStream();
+        body.writeTo(output);
+        val bytes = output.toByteArray();
+
+        assertEquals(body.getContentLength(), bytes.length);
+
+        val expected = new StringBuilder();
+        for (val b : MessageDigest.getInstance("SHA-256").digest(content)) {
+            expected.append(String.format("%02x", b));
+        }
+
+        val message = new MIMEMessage(new ByteArrayInputStream(bytes), body.getMediaType().getParameters().get("boundary"));
+        val parts = message.getAttachments();
+        assertTrue(Arrays.equals(content, read(parts.get(0).read())));
+        assertEquals(expected.toString(), new String(read(parts.get(1).read()), StandardCharsets.US_ASCII));
+        assertEquals(expected.toString(), checksum.getValue());
+    }
+
+    /**
+     * CRC-32C check value
+     */
+    public void testCrc32c() {
+        val crc = new Crc32c();
+        val bytes = "123456789".getBytes(StandardCharsets.US_ASCII);
+        crc.update(bytes, 0, bytes.length);
+        assertEquals(0xE3069283L, crc.getValue());
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        val output = new ByteArrayOutputStream();
+        val buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,172 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.tsuyoshihayashi.model.RecordSettings;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.ws.rs.client.Client;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.tsuyoshihayashi.api.StubServer.read;
+import static com.tsuyoshihayashi.api.StubServer.respond;
+
+/**
+ * Testing the parallel upload against a local server
+ *
+ * @author Alexey Donov
+ */
+public class ParallelUploadTest extends TestCase {
+    private static final int PARTS = 4;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private StubServer server;
+    private Client client;
+    private File file;
+    private byte[] content;
+
+    // Server state
+    private volatile int failPart = -1;
+    private final Map<Integer, byte[]> parts = new TreeMap<>();
+    private final List<Integer> sentParts = new ArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private byte[] committed = null;
+
+    @Override
+    protected void setUp() throws Exception {
+        content = new byte[256 * 1024 + 5];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 17);
+        }
+
+        file = File.createTempFile("segment", ".mp4");
+        Files.write(file.toPath(), content);
+
+        server = new StubServer("/upload", this::handle, Executors.newCachedThreadPool());
+        client = server.getClient();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Parts are sent concurrently and the failed part alone is repeated
+     */
+    public void testParallel() {
+        failPart = 2;
+
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, 1024 * 1024, PARTS, 1);
+        try {
+            uploadEndpoint.upload(file, settings(), "key");
+            fail("Upload with a failed part must fail");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+
+        assertTrue(file.exists());
+        assertNull(committed);
+        assertTrue(maxInFlight.get() > 1);
+
+        synchronized (this) {
+            sentParts.clear();
+        }
+        uploadEndpoint.upload(file, settings(), "key");
+        uploadEndpoint.shutdown();
+
+        assertFalse(file.exists());
+        assertEquals(Arrays.asList(2), sentParts);
+        assertTrue(Arrays.equals(content, committed));
+    }
+
+    /**
+     * Files not larger than the threshold are sent in a single request
+     */
+    public void testSmallFile() {
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, 1024 * 1024, PARTS, content.length);
+        uploadEndpoint.upload(file, settings(), "key");
+        uploadEndpoint.shutdown();
+
+        assertFalse(file.exists());
+        assertTrue(sentParts.isEmpty());
+        assertNull(committed);
+    }
+
+    private RecordSettings settings() {
+        return server.settings(10);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        val body = read(exchange.getRequestBody());
+        val query = String.valueOf(exchange.getRequestURI().getQuery());
+        val mode = exchange.getRequestHeaders().getFirst("X-Parallel-Upload");
+
+        if ("OPTIONS".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().add("X-Parallel-Upload", "1");
+            exchange.sendResponseHeaders(200, -1);
+        } else if ("PUT".equals(exchange.getRequestMethod())) {
+            val matcher = CONTENT_RANGE.matcher(exchange.getRequestHeaders().getFirst("Content-Range"));
+            assertTrue(matcher.matches());
+            assertEquals(Long.parseLong(matcher.group(2)) - Long.parseLong(matcher.group(1)) + 1, body.length);
+            val part = Integer.parseInt(query.replaceAll(".*part=(\\d+).*", "$1"));
+
+            // Hold the part for a while, so the parts overlap
+            val current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignore) {
+                // No op
+            }
+            inFlight.decrementAndGet();
+
+            synchronized (this) {
+                sentParts.add(part);
+                if (part == failPart) {
+                    failPart = -1;
+                    exchange.sendResponseHeaders(500, -1);
+                } else {
+                    parts.put(part, body);
+                    exchange.sendResponseHeaders(200, -1);
+                }
+            }
+        } else if ("start".equals(mode)) {
+            final String received;
+            synchronized (this) {
+                received = parts.keySet().stream().map(Object::toString).collect(Collectors.joining(","));
+            }
+            respond(exchange, String.format("{\"upload_id\":\"upload\",\"parts\":[%s]}", received));
+        } else if ("commit".equals(mode)) {
+            assertTrue(query.contains("upload_id=upload"));
+            val output = new ByteArrayOutputStream();
+            synchronized (this) {
+                assertEquals(PARTS, parts.size());
+                for (val part : parts.values()) {
+                    output.write(part);
+                }
+            }
+            committed = output.toByteArray();
+            respond(exchange, "{}");
+        } else {
+            respond(exchange, "{}");
+        }
+
+        exchange.close();
+    }
+}
@@ -0,0 +1,176 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.tsuyoshihayashi.model.RecordSettings;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.ws.rs.client.Client;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import static com.tsuyoshihayashi.api.StubServer.read;
+import static com.tsuyoshihayashi.api.StubServer.respond;
+
+/**
+ * Testing the progressive upload against a local server
+ *
+ * @author Alexey Donov
+ */
+public class ProgressiveUploadTest extends TestCase {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private StubServer server;
+    private Client client;
+    private File file;
+    private File renamed;
+
+    // Server state
+    private boolean progressive = true;
+    private byte[] received = new byte[0];
+    private long receivedBytes = 0;
+    private String finishedName = null;
+    private boolean aborted = false;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("recording", ".mp4");
+        renamed = new File(file.getPath() + ".renamed");
+
+        server = new StubServer("/upload", this::handle);
+        client = server.getClient();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        renamed.delete();
+    }
+
+    /**
+     * Appended bytes are sent during the recording, at the end only the rewritten range and the rest are sent
+     */
+    public void testProgressive() throws IOException {
+        val content = new byte[3 * CHUNK_SIZE + 77];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 13);
+        }
+
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, CHUNK_SIZE, 1, 0);
+        val upload = uploadEndpoint.startProgressive(file, settings(), "key");
+        assertNotNull(upload);
+
+        // Recording in progress
+        append(content, 0, CHUNK_SIZE + 10);
+        upload.sendAppended();
+        append(content, CHUNK_SIZE + 10, 2 * CHUNK_SIZE);
+        upload.sendAppended();
+        assertEquals(3 * CHUNK_SIZE + 10, upload.getSentBytes());
+
+        // Recorder closes the file, fixing the header
+        append(content, 3 * CHUNK_SIZE + 10, 67);
+        content[4] = 42;
+        try (val output = new RandomAccessFile(file, "rw")) {
+            output.seek(4);
+            output.write(42);
+        }
+        assertTrue(file.renameTo(renamed));
+
+        upload.finish(renamed);
+        uploadEndpoint.shutdown();
+
+        assertFalse(renamed.exists());
+        assertEquals(renamed.getName(), finishedName);
+        assertTrue(Arrays.equals(content, Arrays.copyOf(received, content.length)));
+        assertEquals(CHUNK_SIZE, upload.getResentBytes());
+        assertEquals(content.length + CHUNK_SIZE, receivedBytes);
+    }
+
+    /**
+     * Upload of a segment that is not going to be uploaded is dropped by the server, the file is kept
+     */
+    public void testAbort() throws IOException {
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, CHUNK_SIZE, 1, 0);
+        val upload = uploadEndpoint.startProgressive(file, settings(), "key");
+        assertNotNull(upload);
+
+        append(new byte[100], 0, 100);
+        upload.sendAppended();
+        upload.abort();
+        uploadEndpoint.shutdown();
+
+        assertTrue(aborted);
+        assertTrue(file.exists());
+        assertNull(finishedName);
+    }
+
+    /**
+     * Upload URL that does not support progressive uploads is left for the regular upload
+     */
+    public void testNotSupported() {
+        progressive = false;
+
+        val uploadEndpoint = new UploadEndpoint(client, null, 0, CHUNK_SIZE, 1, 0);
+        assertNull(uploadEndpoint.startProgressive(file, settings(), "key"));
+        uploadEndpoint.shutdown();
+    }
+
+    private RecordSettings settings() {
+        return server.settings(10);
+    }
+
+    private void append(byte[] content, int offset, int length) throws IOException {
+        Files.write(file.toPath(), Arrays.copyOfRange(content, offset, offset + length), StandardOpenOption.APPEND);
+    }
+
+    private synchronized void handle(HttpExchange exchange) throws IOException {
+        val body = read(exchange.getRequestBody());
+        val mode = exchange.getRequestHeaders().getFirst("X-Progressive-Upload");
+
+        if ("OPTIONS".equals(exchange.getRequestMethod())) {
+            if (progressive) {
+                exchange.getResponseHeaders().add("X-Progressive-Upload", "1");
+            }
+            exchange.sendResponseHeaders(200, -1);
+        } else if ("PUT".equals(exchange.getRequestMethod())) {
+            val matcher = CONTENT_RANGE.matcher(exchange.getRequestHeaders().getFirst("Content-Range"));
+            assertTrue(matcher.matches());
+            val first = Integer.parseInt(matcher.group(1));
+            assertEquals(Integer.parseInt(matcher.group(2)) - first + 1, body.length);
+            assertTrue(body.length <= CHUNK_SIZE);
+
+            if (received.length < first + body.length) {
+                received = Arrays.copyOf(received, first + body.length);
+            }
+            System.arraycopy(body, 0, received, first, body.length);
+            receivedBytes += body.length;
+            respond(exchange, String.format("{\"offset\":%d}", first + body.length));
+        } else if ("start".equals(mode)) {
+            respond(exchange, "{\"upload_id\":\"upload\"}");
+        } else if ("DELETE".equals(exchange.getRequestMethod())) {
+            assertEquals("abort", mode);
+            assertTrue(exchange.getRequestURI().getQuery().contains("upload_id=upload"));
+            aborted = true;
+            respond(exchange, "{}");
+        } else if ("finish".equals(mode)) {
+            val form = new String(body, StandardCharsets.UTF_8);
+            finishedName = form.replaceAll(".*file_name=([^&]*).*", "$1");
+            received = Arrays.copyOf(received, Integer.parseInt(form.replaceAll(".*file_size=(\\d+).*", "$1")));
+            respond(exchange, "{}");
+        } else {
+            respond(exchange, "{}");
+        }
+
+        exchange.close();
+    }
+}
@@ -0,0 +1,177 @@
+package com.tsuyoshihayashi.api;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.wowza.wms.application.WMSProperties;
+import com.wowza.wms.vhost.IVHost;
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Testing the record settings cache
+ *
+ * @author Alexey Donov
+ */
+public class RecordSettingsCacheTest extends TestCase {
+    private static final long TTL = TimeUnit.SECONDS.toNanos(60);
+    private static final long STALE_TTL = TimeUnit.SECONDS.toNanos(600);
+    private static final List<String> QUERY = Arrays.asList(null, null, null);
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private RecordSettingsCache cache;
+
+    @Override
+    protected void setUp() {
+        cache = new RecordSettingsCache(TTL, STALE_TTL);
+    }
+
+    /**
+     * Fresh settings are returned without asking API
+     */
+    public void testHit() {
+        val first = cache.get("stream", QUERY, loader("first"));
+        val second = cache.get("stream", QUERY, loader("second"));
+
+        assertEquals("first", first.getTitle());
+        assertSame(first, second);
+        assertEquals(1, requestCount.get());
+        assertEquals(1L, cache.status().get("hits"));
+        assertEquals(1L, cache.status().get("misses"));
+    }
+
+    /**
+     * Stale settings are returned while they are refreshed in the background, expired ones are requested again
+     */
+    public void testStale() throws Exception {
+        cache.get("stream", QUERY, loader("first"));
+
+        val stale = cache.get("stream", QUERY, loader("second"), System.nanoTime() + TTL);
+        assertEquals("first", stale.getTitle());
+
+        for (int i = 0; i < 100 && requestCount.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(10);
+        assertEquals("second", cache.get("stream", QUERY, loader("third")).getTitle());
+
+        val expired = cache.get("stream", QUERY, loader("fourth"), System.nanoTime() + STALE_TTL);
+        assertEquals("fourth", expired.getTitle());
+        assertEquals(3, requestCount.get());
+        assertEquals(1L, cache.status().get("stale_hits"));
+        assertEquals(1L, cache.status().get("refreshes"));
+    }
+
+    /**
+     * Concurrent lookups of the same stream share a single API request
+     */
+    public void testCoalescing() throws Exception {
+        val started = new CountDownLatch(1);
+        val release = new CountDownLatch(1);
+        val results = Collections.synchronizedList(new ArrayList<RecordSettings>());
+
+        val threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            val thread = new Thread(() -> results.add(cache.get("stream", QUERY, () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return loader("shared").get();
+            })));
+            threads.add(thread);
+            thread.start();
+        }
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        release.countDown();
+        for (val thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(8, results.size());
+        assertEquals(1, requestCount.get());
+        results.forEach(settings -> assertSame(results.get(0), settings));
+    }
+
+    /**
+     * Failed request is reported to all the waiting lookups and is not cached
+     */
+    public void testFailure() {
+        try {
+            cache.get("stream", QUERY, () -> {
+                throw new IllegalStateException("API is down");
+            });
+            fail("Failed request must be rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("API is down", e.getMessage());
+        }
+
+        assertEquals("first", cache.get("stream", QUERY, loader("first")).getTitle());
+    }
+
+    /**
+     * Settings requested with other parameters are forgotten
+     */
+    public void testInvalidate() {
+        cache.get("stream", QUERY, loader("first"));
+
+        assertFalse(cache.invalidate("stream", QUERY));
+        assertTrue(cache.invalidate("stream", Arrays.asList("title", null, null)));
+
+        assertEquals("second", cache.get("stream", Arrays.asList("title", null, null), loader("second")).getTitle());
+        assertEquals(1L, cache.status().get("invalidations"));
+    }
+
+    /**
+     * Settings older than the stale time are dropped, also when the cache has no stale time
+     */
+    public void testExpire() {
+        cache.get("old", QUERY, loader("old"));
+        cache.expire(System.nanoTime() + TTL);
+        assertEquals(1, cache.status().get("streams"));
+
+        cache.expire(System.nanoTime() + STALE_TTL);
+        assertEquals(0, cache.status().get("streams"));
+        assertEquals(1L, cache.status().get("expirations"));
+
+        val uncached = new RecordSettingsCache(0, 0);
+        uncached.get("first", QUERY, loader("first"));
+        uncached.get("second", QUERY, loader("second"));
+        assertEquals(1, uncached.status().get("streams"));
+    }
+
+    /**
+     * Every VHost has a cache of its own
+     */
+    public void testVHostInstances() {
+        val first = RecordSettingsCache.instance(host("first"));
+
+        assertSame(first, RecordSettingsCache.instance(host("first")));
+        assertNotSame(first, RecordSettingsCache.instance(host("second")));
+    }
+
+    private Supplier<RecordSettings> loader(String title) {
+        return () -> {
+            requestCount.incrementAndGet();
+            return new RecordSettings("N.mp4", 10, true, "http://localhost/upload", "hash", "hash2", "referer", title, null, null);
+        };
+    }
+
+    private static IVHost host(String name) {
+        val properties = new WMSProperties();
+        return (IVHost) Proxy.newProxyInstance(IVHost.class.getClassLoader(), new Class<?>[]{IVHost.class},
+            (proxy, method, args) -> "getName".equals(method.getName()) ? name : "getProperties".equals(method.getName()) ? properties : null);
+    }
+}
@@ -0,0 +1,274 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.tsuyoshihayashi.model.AliasProvider;
+import com.tsuyoshihayashi.model.CameraInfo;
+import com.tsuyoshihayashi.model.RecordSettings;
+import com.wowza.wms.stream.IMediaStream;
+import junit.framework.TestCase;
+import lombok.val;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import javax.ws.rs.ProcessingException;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.tsuyoshihayashi.api.StubServer.respond;
+
+/**
+ * Testing the asynchronous record settings requests against a local server
+ *
+ * @author Alexey Donov
+ */
+public class RecordSettingsEndpointTest extends TestCase {
+    private static final String APP_INSTANCE = "live/_definst_";
+
+    private StubServer server;
+    private String endpoint;
+
+    // Server state
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile int status = 200;
+    private volatile boolean batchSupported = true;
+    private volatile boolean refused = false;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger batchRequestCount = new AtomicInteger();
+    private volatile String lastQuery;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer("/api", this::handle);
+        endpoint = server.getEndpoint();
+    }
+
+    @Override
+    protected void tearDown() {
+        release.countDown();
+        server.stop();
+    }
+
+    /**
+     * The request does not block the caller, the settings arrive later
+     */
+    public void testAsync() throws Exception {
+        val recordSettingsEndpoint = new RecordSettingsEndpoint(server.getClient(), endpoint, "referer", null, 5000, null, null, 1);
+
+        val future = recordSettingsEndpoint.getRecordSettingsAsync(APP_INSTANCE, stream("camera"));
+        assertFalse(future.isDone());
+
+        release.countDown();
+        val settings = future.get(5, TimeUnit.SECONDS);
+        assertEquals("camera", settings.getTitle());
+        assertEquals("referer", settings.getReferer());
+    }
+
+    /**
+     * The request that takes too long stops reading the response and is repeated once,
+     * it fails when API does not respond to the repeated request either
+     */
+    public void testTimeout() throws Exception {
+        val circuitBreaker = new CircuitBreaker("test", 10, 10, 0.5, 60000);
+        val recordSettingsEndpoint = new RecordSettingsEndpoint(server.getClient(), endpoint, "referer", null, 100,
+            circuitBreaker, null, 1);
+
+        try {
+            recordSettingsEndpoint.getRecordSettingsAsync(APP_INSTANCE, stream("camera")).get(5, TimeUnit.SECONDS);
+            fail("Request must time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ProcessingException);
+        }
+
+        assertEquals(2, ((Number) circuitBreaker.status().get("window_failures")).intValue());
+    }
+
+    /**
+     * The stored settings are used when API does not respond in time
+     */
+    public void testTimeoutFallback() throws Exception {
+        val store = new SettingsStore(Files.createTempDirectory("settings-store").toFile());
+        store.save("camera", RecordSettings.fromJSON((JSONObject) new JSONParser().parse(settings("stored")), "referer"));
+        val recordSettingsEndpoint = new RecordSettingsEndpoint(server.getClient(), endpoint, "referer", null, 100, null, store, 1);
+
+        assertEquals("stored", recordSettingsEndpoint.getRecordSettingsAsync(APP_INSTANCE, stream("camera")).get(5, TimeUnit.SECONDS).getTitle());
+    }
+
+    /**
+     * The stored settings of a stream that API refuses are removed
+     */
+    public void testRefused() throws Exception {
+        release.countDown();
+        val directory = Files.createTempDirectory("settings-store").toFile();
+        val recordSettingsEndpoint = new RecordSettingsEndpoint(server.getClient(), endpoint, "referer", null, 5000,
+            null, new SettingsStore(directory), 1);
+
+        assertEquals("camera", recordSettingsEndpoint.getRecordSettings(APP_INSTANCE, stream("camera")).getTitle());
+
+        refused = true;
+        try {
+            recordSettingsEndpoint.getRecordSettings(APP_INSTANCE, stream("camera"));
+            fail("Request must fail");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        assertNull(new SettingsStore(directory).load("camera"));
+    }
+
+    /**
+     * The last received settings are used when API fails, and instead of asking API while the circuit is open
+     */
+    public void testFallback() throws Exception {
+        release.countDown();
+        val directory = Files.createTempDirectory("settings-store").toFile();
+        val circuitBreaker = new CircuitBreaker("test", 2, 2, 0.5, 60000);
+        val recordSettingsEndpoint = new RecordSettingsEndpoint(server.getClient(), endpoint, "referer", null, 5000,
+            circuitBreaker, new SettingsStore(directory), 1);
+
+        assertEquals("camera", recordSettingsEndpoint.getRecordSettings(APP_INSTANCE, stream("camera")).getTitle());
+
+        status = 503;
+        assertEquals("camera", recordSettingsEndpoint.getRecordSettings(APP_INSTANCE, stream("camera")).getTitle());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertEquals("camera", recordSettingsEndpoint.getRecordSettings(APP_INSTANCE, stream("camera")).getTitle());
+
+        // Stream never seen before has nothing to fall back to
+        try {
+            recordSettingsEndpoint.getRecordSettings(APP_INSTANCE, stream("other"));
+            fail("Request must fail");
+        } catch (IllegalStateException ignored) {
+        }
+
+        // Settings survive a restart
+        val settings = new SettingsStore(directory).load("camera");
+        assertNotNull(settings);
+        assertEquals("camera", settings.getTitle());
+        assertEquals("referer", settings.getReferer());
+    }
+
+    /**
+     * Settings of many streams are requested together, streams unknown to API are left out
+     */
+    public void testBatchPrefetch() throws Exception {
+        release.countDown();
+        val cache = new RecordSettingsCache(TimeUnit.MINUTES.toNanos(1), TimeUnit.MINUTES.toNanos(10));
+        val recordSettingsEndpoint = new RecordSettingsEndpoint(server.getClient(), endpoint, "referer", cache, 5000, null, null, 2);
+
+        recordSettingsEndpoint.prefetch(APP_INSTANCE, Arrays.asList("a", "b", "c", "unknown"));
+        awaitCached(cache, "a", "b", "c");
+
+        assertEquals(2, batchRequestCount.get());
+        assertEquals(2, requestCount.get());
+        assertFalse(cache.contains("unknown"));
+        assertEquals("b", recordSettingsEndpoint.getRecordSettings(APP_INSTANCE, stream("b")).getTitle());
+        assertEquals(2, requestCount.get());
+
+        // Cached streams are not requested again
+        recordSettingsEndpoint.prefetch(APP_INSTANCE, Arrays.asList("a", "b"));
+        Thread.sleep(100);
+        assertEquals(2, requestCount.get());
+    }
+
+    /**
+     * When API does not support batch requests, the streams are requested one by one
+     */
+    public void testBatchNotSupported() throws Exception {
+        release.countDown();
+        batchSupported = false;
+        val cache = new RecordSettingsCache(TimeUnit.MINUTES.toNanos(1), TimeUnit.MINUTES.toNanos(10));
+        val recordSettingsEndpoint = new RecordSettingsEndpoint(server.getClient(), endpoint, "referer", cache, 5000, null, null, 3);
+
+        recordSettingsEndpoint.prefetch(APP_INSTANCE, Arrays.asList("a", "b", "c"));
+        awaitCached(cache, "a", "b", "c");
+        assertEquals(1, batchRequestCount.get());
+
+        recordSettingsEndpoint.prefetch(APP_INSTANCE, Arrays.asList("d", "e"));
+        awaitCached(cache, "d", "e");
+        assertEquals(1, batchRequestCount.get());
+    }
+
+    private static void awaitCached(RecordSettingsCache cache, String... streamNames) throws InterruptedException {
+        val deadline = System.currentTimeMillis() + 5000;
+        while (!Arrays.stream(streamNames).allMatch(cache::contains)) {
+            assertTrue("Settings must be prefetched", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The camera of the stream is looked up in the application instance the stream is published to
+     */
+    public void testCameraOfAppInstance() {
+        val recordSettingsEndpoint = new RecordSettingsEndpoint(server.getClient(), endpoint, "referer", null, 0, null, null, 1);
+        release.countDown();
+
+        AliasProvider.instance().setCameraInfo("other/_definst_", "camera", new CameraInfo("rtsp://camera/stream", "Camera", null, null));
+        try {
+            recordSettingsEndpoint.getRecordSettings(APP_INSTANCE, stream("camera"));
+            assertFalse(lastQuery.contains("title="));
+
+            recordSettingsEndpoint.getRecordSettings("other/_definst_", stream("camera"));
+            assertTrue(lastQuery.contains("title=Camera"));
+        } finally {
+            AliasProvider.instance().setCameraInfo("other/_definst_", "camera", null);
+        }
+    }
+
+    private static IMediaStream stream(String name) {
+        return (IMediaStream) Proxy.newProxyInstance(IMediaStream.class.getClassLoader(), new Class<?>[]{IMediaStream.class},
+            (proxy, method, args) -> "getName".equals(method.getName()) ? name : null);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        requestCount.incrementAndGet();
+
+        val query = exchange.getRequestURI().getQuery();
+        lastQuery = query;
+        if (query.contains("n[]=")) {
+            batchRequestCount.incrementAndGet();
+            if (!batchSupported) {
+                exchange.sendResponseHeaders(400, -1);
+                exchange.close();
+                return;
+            }
+
+            val response = Arrays.stream(query.split("&"))
+                .map(parameter -> parameter.substring("n[]=".length()))
+                .filter(name -> !"unknown".equals(name))
+                .map(name -> String.format("\"%s\":%s", name, settings(name)))
+                .collect(Collectors.joining(",", "{", "}"));
+            respond(exchange, response);
+            return;
+        }
+
+        if (status != 200) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+
+        if (refused) {
+            respond(exchange, "{}");
+            return;
+        }
+
+        respond(exchange, settings(query.replaceAll(".*n=([^&]*).*", "$1")));
+    }
+
+    private static String settings(String name) {
+        return String.format("{\"record_name\":\"N.mp4\",\"limit\":10,\"hash\":\"hash\",\"hash2\":\"hash2\",\"title\":\"%s\"}", name);
+    }
+}
@@ -0,0 +1,170 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.tsuyoshihayashi.model.RecordSettings;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.ws.rs.client.Client;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.tsuyoshihayashi.api.StubServer.read;
+import static com.tsuyoshihayashi.api.StubServer.respond;
+
+/**
+ * Testing the resumable upload against a local server
+ *
+ * @author Alexey Donov
+ */
+public class ResumableUploadTest extends TestCase {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private StubServer server;
+    private Client client;
+    private File file;
+    private byte[] content;
+
+    // Server state
+    private boolean resumable = true;
+    private int failChunk = -1;
+    private int optionsCount = 0;
+    private int multipartCount = 0;
+    private final List<Long> chunkOffsets = new ArrayList<>();
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    @Override
+    protected void setUp() throws Exception {
+        content = new byte[5 * CHUNK_SIZE + 123];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+
+        file = File.createTempFile("segment", ".mp4");
+        Files.write(file.toPath(), content);
+
+        server = new StubServer("/upload", this::handle);
+        client = server.getClient();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Interrupted upload continues from the offset the server acknowledged
+     */
+    public void testResume() {
+        failChunk = 2;
+
+        val uploadEndpoint = new UploadEndpoint(client, null, 1, CHUNK_SIZE, 1, 0);
+        try {
+            uploadEndpoint.upload(file, settings(), "key");
+            fail("Interrupted upload must fail");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+
+        assertTrue(file.exists());
+        val acknowledged = received.size();
+        assertEquals(2 * CHUNK_SIZE + CHUNK_SIZE / 2, acknowledged);
+
+        chunkOffsets.clear();
+        uploadEndpoint.upload(file, settings(), "key");
+
+        assertFalse(file.exists());
+        assertTrue(Arrays.equals(content, received.toByteArray()));
+        assertEquals(Long.valueOf(acknowledged), chunkOffsets.get(0));
+        assertEquals(1, optionsCount);
+        assertEquals(0, multipartCount);
+    }
+
+    /**
+     * Files not larger than the threshold are sent in a single request
+     */
+    public void testSmallFile() {
+        new UploadEndpoint(client, null, content.length, CHUNK_SIZE, 1, 0).upload(file, settings(), "key");
+
+        assertFalse(file.exists());
+        assertEquals(0, optionsCount);
+        assertEquals(1, multipartCount);
+    }
+
+    /**
+     * Servers that do not support resumable uploads receive a single request
+     */
+    public void testNotSupported() {
+        resumable = false;
+
+        val uploadEndpoint = new UploadEndpoint(client, null, 1, CHUNK_SIZE, 1, 0);
+        uploadEndpoint.upload(file, settings(), "key");
+
+        assertFalse(file.exists());
+        assertEquals(1, optionsCount);
+        assertEquals(1, multipartCount);
+        assertTrue(chunkOffsets.isEmpty());
+    }
+
+    private RecordSettings settings() {
+        return server.settings(10);
+    }
+
+    private synchronized void handle(HttpExchange exchange) throws IOException {
+        val body = read(exchange.getRequestBody());
+
+        switch (exchange.getRequestMethod()) {
+            case "OPTIONS":
+                optionsCount++;
+                if (resumable) {
+                    exchange.getResponseHeaders().add("X-Resumable-Upload", "1");
+                }
+                exchange.sendResponseHeaders(200, -1);
+                break;
+
+            case "POST":
+                if ("start".equals(exchange.getRequestHeaders().getFirst("X-Resumable-Upload"))) {
+                    respond(exchange, String.format("{\"upload_id\":\"upload\",\"offset\":%d}", received.size()));
+                } else {
+                    multipartCount++;
+                    respond(exchange, "{}");
+                }
+                break;
+
+            case "PUT":
+                val matcher = CONTENT_RANGE.matcher(exchange.getRequestHeaders().getFirst("Content-Range"));
+                assertTrue(matcher.matches());
+                assertTrue(exchange.getRequestURI().getQuery().contains("upload_id=upload"));
+
+                val first = Long.parseLong(matcher.group(1));
+                assertEquals(received.size(), first);
+                assertEquals(Long.parseLong(matcher.group(2)) - first + 1, body.length);
+                chunkOffsets.add(first);
+
+                if (chunkOffsets.size() - 1 == failChunk) {
+                    // Keep a part of the chunk and drop the connection
+                    failChunk = -1;
+                    received.write(body, 0, body.length / 2);
+                    break;
+                }
+
+                received.write(body);
+                respond(exchange, String.format("{\"offset\":%d}", received.size()));
+                break;
+
+            default:
+                exchange.sendResponseHeaders(405, -1);
+        }
+
+        exchange.close();
+    }
+}
@@ -0,0 +1,120 @@
+package com.tsuyoshihayashi.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.tsuyoshihayashi.model.RecordSettings;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.ws.rs.client.Client;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Object that plays the API server in the tests, with a pooled HTTP client connected to it
+ *
+ * @author Alexey Donov
+ */
+final class StubServer {
+    private final @NotNull HttpServer server;
+    private final @Nullable ExecutorService executor;
+    private final @NotNull HttpClientFactory httpClientFactory;
+    private final @NotNull String endpoint;
+
+    /**
+     * Start a server handling the requests one by one
+     *
+     * @param path Path of the endpoint
+     * @param handler Request handler
+     * @throws IOException if the server can't be started
+     */
+    StubServer(@NotNull String path, @NotNull HttpHandler handler) throws IOException {
+        this(path, handler, null);
+    }
+
+    /**
+     * Start a server
+     *
+     * @param path Path of the endpoint
+     * @param handler Request handler
+     * @param executor Executor handling the requests, shut down with the server, or null to handle them one by one
+     * @throws IOException if the server can't be started
+     */
+    StubServer(@NotNull String path, @NotNull HttpHandler handler, @Nullable ExecutorService executor) throws IOException {
+        this.executor = executor;
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", handler);
+        server.start();
+        endpoint = String.format("http://localhost:%d%s", server.getAddress().getPort(), path);
+
+        httpClientFactory = new HttpClientFactory(5000, 5000, 10, 10);
+    }
+
+    @NotNull String getEndpoint() {
+        return endpoint;
+    }
+
+    @NotNull Client getClient() {
+        return httpClientFactory.getClient();
+    }
+
+    /**
+     * Close the client and stop the server
+     */
+    void stop() {
+        httpClientFactory.close();
+        server.stop(0);
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Create the record settings uploading to the server
+     *
+     * @param limit Segment limit
+     * @return Record settings
+     */
+    @NotNull RecordSettings settings(int limit) {
+        return new RecordSettings("N.mp4", limit, true, endpoint, "hash", "hash2", "localhost", "title", null, null);
+    }
+
+    /**
+     * Send a successful response and finish the exchange
+     *
+     * @param exchange HTTP exchange
+     * @param text Response body
+     * @throws IOException if the response can't be sent
+     */
+    static void respond(@NotNull HttpExchange exchange, @NotNull String text) throws IOException {
+        val bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    /**
+     * Read a request body completely
+     *
+     * @param input Request body stream
+     * @return Request body
+     * @throws IOException if the body can't be read
+     */
+    static @NotNull byte[] read(@NotNull InputStream input) throws IOException {
+        val output = new ByteArrayOutputStream();
+        val buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
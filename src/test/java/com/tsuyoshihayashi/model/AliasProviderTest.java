@@ -0,0 +1,89 @@
+package com.tsuyoshihayashi.model;
+
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testing the bounds of the camera registry
+ *
+ * @author Alexey Donov
+ */
+public class AliasProviderTest extends TestCase {
+    private static final String APP_INSTANCE = "live/_definst_";
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private final StreamRegistry registry = new StreamRegistry();
+
+    private static CameraInfo camera(String name) {
+        return new CameraInfo("rtsp://camera/" + name, null, null, null);
+    }
+
+    /**
+     * Cameras not used for the idle time are forgotten, unless their streams are published
+     */
+    public void testIdleEviction() {
+        val provider = new AliasProvider(registry, HOUR, 100);
+        val start = System.nanoTime();
+
+        provider.setCameraInfo(APP_INSTANCE, "idle", camera("idle"), start);
+        provider.setCameraInfo(APP_INSTANCE, "published", camera("published"), start);
+        registry.update(APP_INSTANCE, "published", state -> state.setPublished(true));
+        provider.setCameraInfo(APP_INSTANCE, "recent", camera("recent"), start + HOUR / 2);
+
+        provider.setCameraInfo(APP_INSTANCE, "new", camera("new"), start + HOUR + 1);
+
+        assertNull(provider.getCameraInfo(APP_INSTANCE, "idle"));
+        assertNull(registry.get(APP_INSTANCE, "idle"));
+        assertNotNull(provider.getCameraInfo(APP_INSTANCE, "published"));
+        assertNotNull(provider.getCameraInfo(APP_INSTANCE, "recent"));
+        assertNotNull(provider.getCameraInfo(APP_INSTANCE, "new"));
+        assertEquals(3, provider.status().get("cameras"));
+        assertEquals(1L, provider.status().get("idle_evictions"));
+    }
+
+    /**
+     * Above the maximum, the least recently used cameras of the streams not published are forgotten first
+     */
+    public void testCapacityEviction() {
+        val provider = new AliasProvider(registry, 0, 10);
+        val start = System.nanoTime();
+
+        registry.update(APP_INSTANCE, "camera0", state -> state.setPublished(true));
+        for (int i = 0; i < 11; i++) {
+            provider.setCameraInfo(APP_INSTANCE, "camera" + i, camera("camera" + i), start + i);
+        }
+
+        assertEquals(9, provider.status().get("cameras"));
+        assertEquals(2L, provider.status().get("capacity_evictions"));
+        assertNotNull(provider.getCameraInfo(APP_INSTANCE, "camera0"));
+        assertNull(provider.getCameraInfo(APP_INSTANCE, "camera1"));
+        assertNull(provider.getCameraInfo(APP_INSTANCE, "camera2"));
+        assertNotNull(provider.getCameraInfo(APP_INSTANCE, "camera3"));
+    }
+
+    /**
+     * Ended camera stream forgets its camera unless it was started again, cameras of application instances are separate
+     */
+    public void testStopped() {
+        val provider = new AliasProvider(registry, 0, 100);
+        val first = camera("first");
+        val second = camera("second");
+
+        provider.setCameraInfo(APP_INSTANCE, "stream", first, System.nanoTime());
+        provider.setCameraInfo("other/_definst_", "stream", first, System.nanoTime());
+        provider.setCameraInfo(APP_INSTANCE, "stream", second, System.nanoTime());
+
+        provider.cameraStopped(APP_INSTANCE, "stream", first);
+        assertSame(second, provider.getCameraInfo(APP_INSTANCE, "stream"));
+        assertEquals(2, provider.status().get("cameras"));
+
+        provider.cameraStopped(APP_INSTANCE, "stream", second);
+        provider.setCameraInfo("other/_definst_", "stream", null, System.nanoTime());
+        assertNull(provider.getCameraInfo(APP_INSTANCE, "stream"));
+        assertEquals(0, provider.status().get("cameras"));
+        assertEquals(2L, provider.status().get("stopped"));
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,88 @@
+package com.tsuyoshihayashi.model;
+
+import com.wowza.wms.mediacaster.IMediaCaster;
+import lombok.val;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up the running Media Caster of a stream on cameractrl start: a scan of the caster list
+ * against the stream registry kept by the camera listener. Start also sets the camera of the stream.
+ *
+ * Run the main method and compare the average time per start at the number of cameras.
+ *
+ * @author Alexey Donov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CameraLookupBenchmark {
+    private static final String APP_INSTANCE = StreamRegistry.DEFAULT_APP_INSTANCE_NAME;
+
+    @Param({"1500", "10000"})
+    public int cameras;
+
+    /**
+     * Ids of the running casters, copied on every lookup as MediaCasterStreamMap.getMediaCasterStreamItems does
+     */
+    private final List<String> casterIds = new ArrayList<>();
+
+    private final StreamRegistry registry = new StreamRegistry();
+    private AliasProvider provider;
+    private CameraInfo info;
+
+    @Setup
+    public void setUp() {
+        provider = new AliasProvider(registry, 0, cameras * 2);
+        info = new CameraInfo("rtsp://camera/stream", null, null, null);
+
+        val caster = (IMediaCaster) Proxy.newProxyInstance(IMediaCaster.class.getClassLoader(),
+            new Class<?>[]{IMediaCaster.class}, (proxy, method, args) -> null);
+        for (int i = 0; i < cameras; i++) {
+            val streamName = "camera" + i;
+            casterIds.add(streamName);
+            provider.setCameraInfo(APP_INSTANCE, streamName, info, System.nanoTime());
+            registry.update(APP_INSTANCE, streamName, state -> state.setMediaCaster(caster));
+        }
+    }
+
+    private String streamName() {
+        return "camera" + ThreadLocalRandom.current().nextInt(cameras);
+    }
+
+    @Benchmark
+    public boolean scan() {
+        val streamName = streamName();
+        val running = new ArrayList<>(casterIds).stream().anyMatch(streamName::equals);
+        provider.setCameraInfo(APP_INSTANCE, streamName, info, System.nanoTime());
+        return running;
+    }
+
+    @Benchmark
+    public boolean index() {
+        val streamName = streamName();
+        val state = registry.get(APP_INSTANCE, streamName);
+        val running = state != null && state.getMediaCaster() != null;
+        provider.setCameraInfo(APP_INSTANCE, streamName, info, System.nanoTime());
+        return running;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(CameraLookupBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
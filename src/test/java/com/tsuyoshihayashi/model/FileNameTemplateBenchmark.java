@@ -0,0 +1,54 @@
+package com.tsuyoshihayashi.model;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Segment file name creation: replacement calls against the compiled {@link FileNameTemplate}.
+ *
+ * Run the main method and compare the time and gc.alloc.rate.norm (bytes per name).
+ *
+ * @author Alexey Donov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileNameTemplateBenchmark {
+    private static final String FORMAT = "test!2017_08_25_13_37_16-N-DD_HH_II_SS-DD_HH_II_SS.mp4";
+    private static final String STORAGE_PATH = "/usr/local/WowzaStreamingEngine/content";
+
+    private final DateTime end = new DateTime(2017, 8, 25, 13, 7, 6);
+    private final DateTime start = end.minus(600000);
+    private final FileNameTemplate template = FileNameTemplate.compile(FORMAT);
+    private final StringBuilder builder = new StringBuilder();
+    private int number = 0;
+
+    @Benchmark
+    public String replace() {
+        return String.format("%s/%s", STORAGE_PATH, FileNameTemplateTest.replace(FORMAT, number++, start, end));
+    }
+
+    @Benchmark
+    public String template() {
+        builder.setLength(0);
+        builder.append(STORAGE_PATH).append('/');
+        template.appendTo(builder, number++, start, end);
+        return builder.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(FileNameTemplateBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,82 @@
+package com.tsuyoshihayashi.model;
+
+import junit.framework.TestCase;
+import lombok.val;
+import org.joda.time.DateTime;
+
+import java.util.Random;
+
+/**
+ * Testing compiled file name formats against the replacement calls they replace
+ *
+ * @author Alexey Donov
+ */
+public class FileNameTemplateTest extends TestCase {
+    private static final DateTime END = new DateTime(2017, 8, 25, 13, 7, 6);
+    private static final DateTime START = END.minus(600000);
+
+    /**
+     * File name formats used in production and the names they produced
+     */
+    public void testGolden() {
+        assertEquals("test!2017_08_25_13_37_16-5-25_12_57_06-25_13_07_06.mp4",
+            FileNameTemplate.compile("test!2017_08_25_13_37_16-N-DD_HH_II_SS-DD_HH_II_SS.mp4").render(5, START, END));
+        assertEquals("obs!2017_08_15_15_25_36-12-25_12_57_06-25_13_07_06.mp4",
+            FileNameTemplate.compile("obs!2017_08_15_15_25_36-N-DD_HH_II_SS-DD_HH_II_SS.mp4").render(12, START, END));
+        assertEquals("plain.mp4", FileNameTemplate.compile("plain.mp4").render(1, START, END));
+        assertEquals("", FileNameTemplate.compile("").render(1, START, END));
+    }
+
+    /**
+     * Formats with repeated, overlapping and out of order fields give the same names as the replacement calls
+     */
+    public void testSameAsReplace() {
+        val formats = new String[] {
+            "NN", "DDD", "DDDD", "DDDDDD", "HHDDHH", "SSIIHHDD-SSIIHHDD", "IIIII", "NEWS_N.mp4", "D_D_H_H", "xDDxHHxIIxSSx",
+        };
+        for (val format : formats) {
+            assertEquals(format, replace(format, 3, START, END), FileNameTemplate.compile(format).render(3, START, END));
+        }
+
+        val random = new Random(42);
+        val alphabet = "NDHIS_-x";
+        for (int i = 0; i < 10000; i++) {
+            val format = new StringBuilder();
+            val length = random.nextInt(24);
+            for (int j = 0; j < length; j++) {
+                format.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            val number = random.nextInt(1000);
+            val end = END.plusSeconds(random.nextInt(100000));
+            val start = end.minusSeconds(random.nextInt(100000));
+            assertEquals(format.toString(), replace(format.toString(), number, start, end), FileNameTemplate.compile(format.toString()).render(number, start, end));
+        }
+    }
+
+    /**
+     * The file name format is compiled once per record settings object
+     */
+    public void testCompiledOnce() {
+        val settings = new RecordSettings("N-DD.mp4", 10, true, null, "hash", "hash2", "referer", null, null, null);
+
+        assertSame(settings.getFileNameTemplate(), settings.getFileNameTemplate());
+        assertEquals(new RecordSettings("N-DD.mp4", 10, true, null, "hash", "hash2", "referer", null, null, null), settings);
+    }
+
+    /**
+     * File name creation used before the formats were compiled
+     */
+    static String replace(String format, int number, DateTime start, DateTime end) {
+        return format
+            .replaceAll("N", String.format("%d", number))
+            .replaceFirst("DD", String.format("%02d", start.getDayOfMonth()))
+            .replaceFirst("HH", String.format("%02d", start.getHourOfDay()))
+            .replaceFirst("II", String.format("%02d", start.getMinuteOfHour()))
+            .replaceFirst("SS", String.format("%02d", start.getSecondOfMinute()))
+            .replaceFirst("DD", String.format("%02d", end.getDayOfMonth()))
+            .replaceFirst("HH", String.format("%02d", end.getHourOfDay()))
+            .replaceFirst("II", String.format("%02d", end.getMinuteOfHour()))
+            .replaceFirst("SS", String.format("%02d", end.getSecondOfMinute()));
+    }
+}
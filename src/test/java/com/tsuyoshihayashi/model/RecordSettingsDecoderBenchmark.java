@@ -0,0 +1,54 @@
+package com.tsuyoshihayashi.model;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record settings API response decoding: String and json-simple tree against the streaming {@link RecordSettingsDecoder}.
+ * Both start from the response bytes.
+ *
+ * Run the main method and compare the throughput and gc.alloc.rate.norm (bytes per decode).
+ *
+ * @author Alexey Donov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecordSettingsDecoderBenchmark {
+    private static final byte[] RESPONSE = ("{\"record_name\":\"test!2017_08_25_13_37_16-N-DD_HH_II_SS-DD_HH_II_SS.mp4\",\"limit\":10," +
+        "\"place\":\"https://www.videog.jp/system/api/widget/upload_api.php\",\"hash\":\"5f4dcc3b5aa765d61d8327deb882cf99\"," +
+        "\"hash2\":\"e99a18c428cb38d5f260853678922e03\",\"manual_start\":0,\"title\":\"\\u30ab\\u30e1\\u30e91\"," +
+        "\"comment\":\"entrance\",\"act\":\"shot\",\"status\":\"ok\",\"server\":{\"id\":52,\"tags\":[\"live\",\"rec\"]}}")
+        .getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public RecordSettings jsonSimple() throws ParseException {
+        return RecordSettings.fromJSON((JSONObject) new JSONParser().parse(new String(RESPONSE, StandardCharsets.UTF_8)), "referer");
+    }
+
+    @Benchmark
+    public RecordSettings decoder() throws IOException {
+        return RecordSettingsDecoder.decode(new ByteArrayInputStream(RESPONSE), "referer");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(RecordSettingsDecoderBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
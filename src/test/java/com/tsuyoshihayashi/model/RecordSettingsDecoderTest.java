@@ -0,0 +1,124 @@
+package com.tsuyoshihayashi.model;
+
+import junit.framework.TestCase;
+import lombok.val;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test for the streaming record settings decoder, which must read the same settings as {@link RecordSettings#fromJSON}
+ *
+ * @author Alexey Donov
+ */
+public class RecordSettingsDecoderTest extends TestCase {
+    private static final String MINIMAL = "{\"record_name\":\"\", \"limit\":0, \"hash\":\"hash\", \"hash2\":\"hash2\"";
+
+    /**
+     * Decoding an empty JSON
+     */
+    public void testInsufficientFieldSet() {
+        try {
+            RecordSettingsDecoder.decode("{}", "");
+            fail("Arguments are missing");
+        } catch (IllegalArgumentException ignore) {
+            // OK
+        }
+
+        try {
+            RecordSettingsDecoder.decode("{\"record_name\":\"\", \"limit\":0, \"hash\":null, \"hash2\":\"hash2\"}", "");
+            fail("Null is missing");
+        } catch (IllegalArgumentException ignore) {
+            // OK
+        }
+    }
+
+    /**
+     * Decoding a JSON with minimal set of parameters
+     */
+    public void testMinimalFieldSet() {
+        val settings = RecordSettingsDecoder.decode(MINIMAL + "}", "referer");
+        assertEquals("", settings.getFileNameFormat());
+        assertEquals(0, settings.getLimit());
+        assertEquals("hash", settings.getHash());
+        assertEquals("referer", settings.getReferer());
+        assertNull(settings.getUploadURL());
+    }
+
+    /**
+     * Manual and automatic record start parameter
+     */
+    public void testStart() {
+        assertFalse(RecordSettingsDecoder.decode(MINIMAL + ", \"manual_start\":1}", "").isAutoRecord());
+        assertFalse(RecordSettingsDecoder.decode(MINIMAL + ", \"manual_start\":\"1\"}", "").isAutoRecord());
+        assertTrue("No manual_start means autostart", RecordSettingsDecoder.decode(MINIMAL + "}", "").isAutoRecord());
+        assertTrue("manual_start == 0 means autostart", RecordSettingsDecoder.decode(MINIMAL + ", \"manual_start\":0}", "").isAutoRecord());
+        assertTrue("manual_start == false means autostart", RecordSettingsDecoder.decode(MINIMAL + ", \"manual_start\":\"false\"}", "").isAutoRecord());
+        assertTrue("manual_start == true means autostart", RecordSettingsDecoder.decode(MINIMAL + ", \"manual_start\":true}", "").isAutoRecord());
+    }
+
+    /**
+     * Responses give the same settings as the JSON object parsing
+     */
+    public void testSameAsJSON() throws Exception {
+        val responses = new String[]{
+            "{\"record_name\":\"test!Y_M_D-N.mp4\",\"limit\":\"10\",\"place\":\"http://localhost/upload\",\"hash\":\"a\",\"hash2\":\"b\"," +
+                "\"title\":\"\\u30c6\\u30b9\\u30c8\",\"comment\":\"line\\nnext \\\"quoted\\\" \\/ \\\\\",\"act\":\"shot\"}",
+            "{ \"extra\" : {\"nested\":[1, 2.5, -3e2, {\"a\":null}, [], {}]}, \"hash\" : 1234 , \"hash2\" : true,\n" +
+                "  \"record_name\" : \"カメラ-N.mp4\", \"limit\" : 60, \"title\" : null, \"list\" : [\"x\", false] }",
+            "{\"record_name\":\"first\",\"record_name\":\"second\",\"limit\":5,\"hash\":\"😀\",\"hash2\":\"h\",\"manual_start\":1.0}",
+        };
+
+        // Longer than the read buffer, with multibyte characters across its boundaries
+        val comment = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            comment.append("コメント");
+        }
+        responses[responses.length - 1] = responses[responses.length - 1].replace("}", ",\"comment\":\"" + comment + "\"}");
+
+        for (val response : responses) {
+            val expected = RecordSettings.fromJSON((JSONObject) new JSONParser().parse(response), "referer");
+            val settings = RecordSettingsDecoder.decode(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), "referer");
+            assertEquals(expected, settings);
+            assertEquals(expected.getTitle(), settings.getTitle());
+            assertEquals(expected.getComment(), settings.getComment());
+            assertEquals(expected.getAction(), settings.getAction());
+        }
+    }
+
+    /**
+     * Broken responses are refused
+     */
+    public void testInvalid() {
+        val responses = new String[]{"", "[]", MINIMAL, MINIMAL + "}}", MINIMAL + ",}", MINIMAL + ", \"title\":tru}",
+            MINIMAL + ", \"title\":\"\\x\"}", MINIMAL + ", \"title\":{\"a\":1}}", "{\"record_name\":\"\", \"limit\":\"x\", \"hash\":\"\", \"hash2\":\"\"}",
+            MINIMAL + ", \"title\":1-+e}", MINIMAL + ", \"title\":-}", MINIMAL + ", \"title\":01}", MINIMAL + ", \"title\":1.}",
+            MINIMAL + ", \"title\":1e}", MINIMAL + ", \"other\":.5}"};
+
+        for (val response : responses) {
+            try {
+                RecordSettingsDecoder.decode(response, "");
+                fail(String.format("Must be refused: %s", response));
+            } catch (IllegalArgumentException ignore) {
+                // OK
+            }
+        }
+    }
+
+    /**
+     * Settings of many streams, entries that are not settings are skipped
+     */
+    public void testDecodeAll() throws Exception {
+        val response = "{\"a\":" + MINIMAL + ", \"title\":\"a\"}, \"b\":" + MINIMAL + ", \"title\":\"b\"}, \"c\":{}, \"d\":1, \"e\":[{}]}";
+        val settings = RecordSettingsDecoder.decodeAll(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), "referer");
+
+        assertEquals(2, settings.size());
+        assertEquals("a", settings.get("a").getTitle());
+        assertEquals("b", settings.get("b").getTitle());
+
+        // Single settings response has no settings by stream name
+        assertTrue(RecordSettingsDecoder.decodeAll(new ByteArrayInputStream((MINIMAL + "}").getBytes(StandardCharsets.UTF_8)), "").isEmpty());
+    }
+}
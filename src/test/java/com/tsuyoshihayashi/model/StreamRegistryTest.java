@@ -0,0 +1,158 @@
+package com.tsuyoshihayashi.model;
+
+import com.wowza.wms.mediacaster.IMediaCaster;
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Testing the stream state registry, also under concurrent changes
+ *
+ * @author Alexey Donov
+ */
+public class StreamRegistryTest extends TestCase {
+    private static final String APP_INSTANCE = "live/_definst_";
+    private static final CameraInfo CAMERA = new CameraInfo("rtsp://camera/stream", null, null, null);
+
+    /**
+     * State exists while there is something to keep
+     */
+    public void testLifecycle() {
+        val registry = new StreamRegistry();
+
+        assertNull(registry.update(APP_INSTANCE, "stream", state -> state.setPublished(false)));
+        assertEquals(0, registry.size());
+
+        registry.update(APP_INSTANCE, "stream", state -> state.setCameraInfo(CAMERA));
+        registry.update(APP_INSTANCE, "stream", state -> state.setPublished(true));
+        assertEquals(CAMERA, registry.get(APP_INSTANCE, "stream").getCameraInfo());
+        assertNull(registry.get("other/_definst_", "stream"));
+
+        registry.update(APP_INSTANCE, "stream", state -> state.setCameraInfo(null));
+        assertNotNull(registry.get(APP_INSTANCE, "stream"));
+
+        registry.update(APP_INSTANCE, "stream", state -> state.setPublished(false));
+        assertNull(registry.get(APP_INSTANCE, "stream"));
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Stopped application instance keeps only the cameras
+     */
+    public void testReset() {
+        val registry = new StreamRegistry();
+        registry.update(APP_INSTANCE, "camera", state -> {
+            state.setCameraInfo(CAMERA);
+            state.setPublished(true);
+        });
+        registry.update(APP_INSTANCE, "stream", state -> state.setPublished(true));
+        registry.update("other/_definst_", "stream", state -> state.setPublished(true));
+
+        registry.reset(APP_INSTANCE);
+
+        assertEquals(2, registry.size());
+        assertFalse(registry.get(APP_INSTANCE, "camera").isPublished());
+        assertNull(registry.get(APP_INSTANCE, "stream"));
+        assertNotNull(registry.get("other/_definst_", "stream"));
+    }
+
+    /**
+     * Stream pulled by a Media Caster is kept until the caster is gone or its application instance stops
+     */
+    public void testMediaCaster() {
+        val registry = new StreamRegistry();
+        val caster = (IMediaCaster) Proxy.newProxyInstance(IMediaCaster.class.getClassLoader(), new Class<?>[]{IMediaCaster.class},
+            (proxy, method, args) -> null);
+
+        registry.update(APP_INSTANCE, "camera", state -> state.setMediaCaster(caster));
+        assertSame(caster, registry.get(APP_INSTANCE, "camera").getMediaCaster());
+
+        registry.reset(APP_INSTANCE);
+        assertNull(registry.get(APP_INSTANCE, "camera"));
+    }
+
+    /**
+     * Many threads publish, unpublish, record and read the same few streams.
+     * No change is lost and nothing is left behind.
+     */
+    public void testConcurrentChanges() throws Exception {
+        val registry = new StreamRegistry();
+        val threads = 16;
+        val iterations = 20000;
+        val streams = 8;
+
+        // Cameras keep their states alive, so their counters must not lose increments
+        for (int i = 0; i < streams; i++) {
+            registry.update(APP_INSTANCE, "camera" + i, state -> state.setCameraInfo(CAMERA));
+        }
+
+        val publishes = new AtomicLong();
+        val start = new CountDownLatch(1);
+        val executor = Executors.newFixedThreadPool(threads);
+        val futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                val random = ThreadLocalRandom.current();
+                for (int i = 0; i < iterations; i++) {
+                    val index = random.nextInt(streams);
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            // Publish and unpublish of a stream that is not a camera
+                            registry.update(APP_INSTANCE, "stream" + index, state -> state.setPublished(true));
+                            registry.update(APP_INSTANCE, "stream" + index, state -> state.setPublished(false));
+                            break;
+
+                        case 1:
+                            registry.update(APP_INSTANCE, "camera" + index, state -> state.getPublishCount().incrementAndGet());
+                            publishes.incrementAndGet();
+                            break;
+
+                        case 2:
+                            registry.update(APP_INSTANCE, "camera" + index, state -> state.setPublished(!state.isPublished()));
+                            break;
+
+                        default:
+                            // Readers never see a camera without its state
+                            val state = registry.get(APP_INSTANCE, "camera" + index);
+                            assertNotNull(state);
+                            assertEquals(CAMERA, state.getCameraInfo());
+                            registry.get(APP_INSTANCE, "stream" + index);
+                            break;
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (val future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        long counted = 0;
+        for (int i = 0; i < streams; i++) {
+            assertNull(registry.get(APP_INSTANCE, "stream" + i));
+            counted += registry.get(APP_INSTANCE, "camera" + i).getPublishCount().get();
+        }
+        assertEquals(publishes.get(), counted);
+
+        for (int i = 0; i < streams; i++) {
+            registry.update(APP_INSTANCE, "camera" + i, state -> {
+                state.setCameraInfo(null);
+                state.setPublished(false);
+            });
+        }
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,152 @@
+package com.tsuyoshihayashi.wowza;
+
+import junit.framework.TestCase;
+import lombok.val;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Testing the admission of automatic record starts
+ *
+ * @author Alexey Donov
+ */
+public class RecordAdmissionTest extends TestCase {
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, CompletableFuture<Boolean>> starts = new ConcurrentHashMap<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    private File stateFile;
+    private RecordAdmission admission;
+
+    @Override
+    protected void setUp() throws IOException {
+        stateFile = File.createTempFile("record-state", ".json");
+    }
+
+    @Override
+    protected void tearDown() {
+        if (admission != null) {
+            admission.shutdown();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        stateFile.delete();
+    }
+
+    /**
+     * No more than the maximum number of starts run at the same time, the rest wait
+     */
+    public void testConcurrency() throws Exception {
+        admission = new RecordAdmission(2, 10, null, 0);
+
+        for (int i = 0; i < 6; i++) {
+            submit("stream" + i);
+        }
+
+        awaitStarted(2);
+        Thread.sleep(50);
+        assertEquals(2, started.size());
+
+        for (int i = 0; i < 6; i++) {
+            awaitStarted(i + 1);
+            finish(started.get(i), true);
+        }
+
+        awaitStarted(6);
+        assertEquals(2, maxRunning.get());
+        assertEquals(6, ((JSONObject) admission.status().get("publish_to_record_ms")).size());
+    }
+
+    /**
+     * Streams recorded shortly before the start go first, the ones recorded long ago wait in order
+     */
+    @SuppressWarnings("unchecked")
+    public void testPriority() throws Exception {
+        val state = new JSONObject();
+        state.put("recent", System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+        state.put("old", System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        Files.write(stateFile.toPath(), state.toJSONString().getBytes(StandardCharsets.UTF_8));
+
+        admission = new RecordAdmission(1, 0, stateFile, TimeUnit.MINUTES.toMillis(10));
+
+        submit("first");
+        awaitStarted(1);
+        submit("old");
+        submit("other");
+        submit("recent");
+
+        assertEquals(3, ((JSONArray) admission.status().get("waiting")).size());
+        assertEquals("recent", ((JSONArray) admission.status().get("waiting")).get(0));
+
+        for (int i = 0; i < 4; i++) {
+            awaitStarted(i + 1);
+            finish(started.get(i), true);
+        }
+
+        assertEquals(Arrays.asList("first", "recent", "old", "other"), started);
+
+        // Streams recorded now go first after the next restart, the state is written when the admission stops
+        admission.shutdown();
+        val next = new RecordAdmission(1, 0, stateFile, TimeUnit.MINUTES.toMillis(10));
+        assertEquals(4, next.status().get("priority_streams"));
+        next.shutdown();
+    }
+
+    /**
+     * Stream that stopped publishing before its start was admitted is not started,
+     * stream that was not recorded is not counted
+     */
+    public void testCancel() throws Exception {
+        admission = new RecordAdmission(1, 0, null, 0);
+
+        submit("first");
+        awaitStarted(1);
+        submit("cancelled");
+        submit("second");
+        admission.cancel("cancelled");
+
+        finish("first", false);
+        awaitStarted(2);
+        finish("second", true);
+
+        assertEquals(Arrays.asList("first", "second"), started);
+        assertEquals(1, ((JSONObject) admission.status().get("publish_to_record_ms")).size());
+    }
+
+    private void submit(String streamName) {
+        admission.submit(streamName, () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            val future = new CompletableFuture<Boolean>();
+            starts.put(streamName, future);
+            started.add(streamName);
+            return future;
+        });
+    }
+
+    private void finish(String streamName, boolean recording) {
+        running.decrementAndGet();
+        starts.get(streamName).complete(recording);
+    }
+
+    private void awaitStarted(int count) throws InterruptedException {
+        val deadline = System.currentTimeMillis() + 5000;
+        while (started.size() < count) {
+            assertTrue("Start must be admitted", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Optional;
+
+/**
+ * Testing the cache of the uploaded segments
+ *
+ * @author Alexey Donov
+ */
+public class SegmentCacheTest extends TestCase {
+    private static final RecordSettings SETTINGS = new RecordSettings("name-N.mp4", 10, true, "http://localhost/upload", "hash", "hash2", "referer", "title", null, null);
+
+    private File root;
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = Files.createTempDirectory("segment-cache").toFile();
+        directory = new File(root, "cache");
+    }
+
+    @Override
+    protected void tearDown() {
+        delete(root);
+    }
+
+    /**
+     * The least recently used segments are evicted when the cache is full
+     */
+    public void testEviction() throws IOException {
+        val cache = new SegmentCache(directory, 250, 0);
+        cache.open();
+
+        cache.uploaded(segment("first.mp4", 100), SETTINGS);
+        cache.uploaded(segment("second.mp4", 100), SETTINGS);
+
+        // Re-uploading the first one makes it the most recently used
+        val first = cache.take(null, "first.mp4");
+        assertNotNull(first);
+        cache.uploaded(first.getFile(), SETTINGS);
+
+        cache.uploaded(segment("third.mp4", 100), SETTINGS);
+
+        assertTrue(new File(directory, "first.mp4").exists());
+        assertFalse(new File(directory, "second.mp4").exists());
+        assertFalse(new File(directory, "second.mp4.settings.json").exists());
+        assertTrue(new File(directory, "third.mp4").exists());
+
+        assertNull(cache.take(null, "second.mp4"));
+
+        val status = cache.status();
+        assertEquals(2, status.get("files"));
+        assertEquals(200L, status.get("size"));
+        assertEquals(1L, status.get("hits"));
+        assertEquals(1L, status.get("misses"));
+        assertEquals(1L, status.get("evictions"));
+    }
+
+    /**
+     * A segment whose upload from the cache failed is counted and evicted again, other files are not taken in
+     */
+    public void testAbandoned() throws IOException {
+        val cache = new SegmentCache(directory, 150, 0);
+        cache.open();
+
+        cache.uploaded(segment("first.mp4", 100), SETTINGS);
+        val first = cache.take(null, "first.mp4");
+        assertNotNull(first);
+        assertEquals(0, cache.status().get("files"));
+
+        cache.uploadAbandoned(first.getFile(), SETTINGS);
+        assertEquals(1, cache.status().get("files"));
+        assertEquals(100L, cache.status().get("size"));
+
+        val outside = new File(root, "outside.mp4");
+        Files.write(outside.toPath(), new byte[10]);
+        cache.uploadAbandoned(outside, SETTINGS);
+        assertEquals(1, cache.status().get("files"));
+
+        cache.uploaded(segment("second.mp4", 100), SETTINGS);
+        assertFalse(first.getFile().exists());
+        assertEquals(1L, cache.status().get("evictions"));
+    }
+
+    /**
+     * Segments older than the maximum age are evicted
+     */
+    public void testAge() throws Exception {
+        val cache = new SegmentCache(directory, 1000, 50);
+        cache.open();
+
+        cache.uploaded(segment("old.mp4", 10), SETTINGS);
+        Thread.sleep(100);
+
+        assertNull(cache.take(null, "old.mp4"));
+        assertFalse(new File(directory, "old.mp4").exists());
+        assertEquals(1L, cache.status().get("evictions"));
+    }
+
+    /**
+     * Segments left from the previous run can be uploaded again
+     */
+    public void testReopen() throws IOException {
+        val cache = new SegmentCache(directory, 1000, 0);
+        cache.open();
+        cache.uploaded(segment("first.mp4", 10), SETTINGS);
+
+        // File without record settings is kept but can not be uploaded
+        Files.write(new File(directory, "unknown.mp4").toPath(), new byte[5]);
+
+        val reopened = new SegmentCache(directory, 1000, 0);
+        reopened.open();
+        assertEquals(2, reopened.status().get("files"));
+        assertEquals(15L, reopened.status().get("size"));
+
+        val entry = reopened.take(null, "first.mp4");
+        assertNotNull(entry);
+        assertEquals(SETTINGS, entry.getSettings());
+        assertNull(reopened.take(null, "unknown.mp4"));
+    }
+
+    /**
+     * Segments of different streams with the same name are kept apart, the stream is needed to upload one of them again
+     */
+    public void testStreams() throws IOException {
+        val cache = new SegmentCache(directory, 1000, 0);
+        cache.open();
+
+        uploaded(cache, "camera/1", segment("1.mp4", 10));
+        uploaded(cache, "camera 2", segment("1.mp4", 20));
+        assertEquals(30L, cache.status().get("size"));
+
+        // The name alone is ambiguous
+        assertNull(cache.take(null, "1.mp4"));
+
+        val entry = cache.take("camera 2", "1.mp4");
+        assertNotNull(entry);
+        assertEquals(20L, entry.getSize());
+
+        // Uploaded again, the segment stays with its stream
+        cache.uploaded(entry.getFile(), SETTINGS);
+
+        val reopened = new SegmentCache(directory, 1000, 0);
+        reopened.open();
+        assertEquals(2, reopened.status().get("files"));
+        assertEquals(10L, reopened.take("camera/1", "1.mp4").getSize());
+        assertEquals(20L, reopened.take(null, "1.mp4").getSize());
+    }
+
+    private static void uploaded(SegmentCache cache, String streamName, File file) {
+        cache.uploading(file, streamName);
+        cache.uploaded(file, SETTINGS);
+        cache.uploadFinished(file);
+    }
+
+    private File segment(String name, int size) throws IOException {
+        val file = new File(root, name);
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+
+    private static void delete(File file) {
+        Optional.ofNullable(file.listFiles()).ifPresent(files -> {
+            for (val child : files) {
+                delete(child);
+            }
+        });
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
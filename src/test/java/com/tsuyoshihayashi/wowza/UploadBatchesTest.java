@@ -0,0 +1,118 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Testing the grouping of short segments into batches
+ *
+ * @author Alexey Donov
+ */
+public class UploadBatchesTest extends TestCase {
+    private static final RecordSettings SETTINGS = new RecordSettings("name-N.mp4", 1, true, "http://localhost/upload", "hash", "hash2", "referer", "title", null, null);
+    private static final RecordSettings OTHER_SETTINGS = new RecordSettings("name-N.mp4", 1, true, "http://localhost/upload", "other", "hash2", "referer", "title", null, null);
+
+    private final List<List<UploadJob>> passed = Collections.synchronizedList(new ArrayList<>());
+    private final List<File> files = new ArrayList<>();
+
+    @Override
+    protected void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        files.forEach(File::delete);
+    }
+
+    /**
+     * Batch is passed on when it has the maximum number of segments
+     */
+    public void testMaxFiles() throws IOException {
+        val batches = new UploadBatches(3, 1000, 60000, passed::add);
+
+        for (int i = 1; i <= 7; i++) {
+            batches.add(job("stream", i, 10, SETTINGS));
+        }
+        batches.add(job("other", 1, 10, SETTINGS));
+
+        assertEquals(2, passed.size());
+        assertEquals(3, passed.get(0).size());
+        assertEquals(1, passed.get(0).get(0).getSegmentNumber());
+        assertEquals(4, passed.get(1).get(0).getSegmentNumber());
+        assertEquals(2, batches.getWaitingCount());
+
+        batches.flush("stream");
+        assertEquals(3, passed.size());
+        assertEquals(7, passed.get(2).get(0).getSegmentNumber());
+        assertEquals(1, batches.getWaitingCount());
+        assertEquals(7, batches.getSegmentCount());
+
+        batches.shutdown();
+    }
+
+    /**
+     * Batch is passed on before it grows over the maximum size
+     */
+    public void testMaxSize() throws IOException {
+        val batches = new UploadBatches(10, 100, 60000, passed::add);
+        assertFalse(batches.accepts(100));
+
+        batches.add(job("stream", 1, 40, SETTINGS));
+        batches.add(job("stream", 2, 40, SETTINGS));
+        batches.add(job("stream", 3, 40, SETTINGS));
+
+        assertEquals(1, passed.size());
+        assertEquals(2, passed.get(0).size());
+
+        batches.shutdown();
+    }
+
+    /**
+     * Segments with different record settings are not uploaded together
+     */
+    public void testSettings() throws IOException {
+        val batches = new UploadBatches(10, 1000, 60000, passed::add);
+
+        batches.add(job("stream", 1, 10, SETTINGS));
+        batches.add(job("stream", 2, 10, OTHER_SETTINGS));
+
+        assertEquals(1, passed.size());
+        assertEquals(1, passed.get(0).get(0).getSegmentNumber());
+
+        batches.shutdown();
+    }
+
+    /**
+     * Batch is passed on when its first segment waited for the window
+     */
+    public void testWindow() throws Exception {
+        val batches = new UploadBatches(10, 1000, 50, passed::add);
+
+        batches.add(job("stream", 1, 10, SETTINGS));
+        batches.add(job("stream", 2, 10, SETTINGS));
+        assertTrue(passed.isEmpty());
+
+        for (int i = 0; i < 100 && passed.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, passed.size());
+        assertEquals(2, passed.get(0).size());
+        assertEquals(0, batches.getWaitingCount());
+
+        batches.shutdown();
+    }
+
+    private UploadJob job(String streamName, int segment, int size, RecordSettings settings) throws IOException {
+        val file = File.createTempFile("segment", ".mp4");
+        Files.write(file.toPath(), new byte[size]);
+        files.add(file);
+
+        return new UploadJob(streamName + segment, streamName, segment, file, settings, UploadPriority.AUTO, 0, 0);
+    }
+}
@@ -0,0 +1,129 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.api.ApiException;
+import junit.framework.TestCase;
+import lombok.val;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import javax.ws.rs.ProcessingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testing adaptive upload concurrency
+ *
+ * @author Alexey Donov
+ */
+public class UploadConcurrencyTest extends TestCase {
+    private static final long MB = 1024 * 1024;
+
+    private UploadExecutor executor;
+    private UploadConcurrency concurrency;
+    private long now;
+
+    @Override
+    protected void setUp() {
+        executor = new UploadExecutor(4, 1000, UploadExecutor.OverflowPolicy.REJECT);
+        concurrency = new UploadConcurrency(executor, 2, 8);
+        now = System.nanoTime();
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Steady uploads raise the limit by one per window up to the maximum
+     */
+    public void testAdditiveIncrease() {
+        for (int window = 0; window < 10; window++) {
+            window(0, 100);
+        }
+
+        assertEquals(8, concurrency.getLimit());
+        assertEquals(8, executor.getThreads());
+    }
+
+    /**
+     * Server errors halve the limit, never below the minimum
+     */
+    public void testMultiplicativeDecrease() {
+        window(1, 100);
+        assertEquals(2, concurrency.getLimit());
+        assertEquals(2, executor.getThreads());
+
+        window(1, 100);
+        assertEquals(2, concurrency.getLimit());
+    }
+
+    /**
+     * Latency far above the baseline lowers the limit
+     */
+    public void testLatency() {
+        window(0, 100);
+        assertEquals(5, concurrency.getLimit());
+
+        window(0, 500);
+        assertEquals(3, concurrency.getLimit());
+    }
+
+    /**
+     * An increase that did not raise the throughput is taken back
+     */
+    public void testThroughput() {
+        window(0, 100);
+        assertEquals(5, concurrency.getLimit());
+
+        // Same bytes in a longer window
+        window(0, 100, 2000);
+        assertEquals(4, concurrency.getLimit());
+    }
+
+    /**
+     * Changes are kept in the history
+     */
+    public void testHistory() {
+        window(0, 100);
+        window(1, 100);
+
+        val history = (JSONArray) concurrency.status().get("history");
+        assertEquals(3, history.size());
+        assertEquals("start", ((JSONObject) history.get(0)).get("reason"));
+        assertEquals("increase", ((JSONObject) history.get(1)).get("reason"));
+        assertEquals("errors", ((JSONObject) history.get(2)).get("reason"));
+        assertEquals(2, ((JSONObject) history.get(2)).get("limit"));
+    }
+
+    /**
+     * Only the failures caused by the server or the network lower the limit
+     */
+    public void testOverload() {
+        assertTrue(UploadPipeline.isOverload(new ProcessingException("Timeout")));
+        assertTrue(UploadPipeline.isOverload(new RuntimeException(new ApiException(503, "Service Unavailable"))));
+        assertTrue(UploadPipeline.isOverload(new ApiException(429, "Too Many Requests")));
+        assertFalse(UploadPipeline.isOverload(new ApiException(400, "Bad Request")));
+        assertFalse(UploadPipeline.isOverload(new RuntimeException("Unexpected API response")));
+    }
+
+    private void window(int errors, long latencyMillis) {
+        window(errors, latencyMillis, 1000);
+    }
+
+    /**
+     * Record a full window of uploads of one megabyte each
+     *
+     * @param errors Number of failed uploads in the window
+     * @param latencyMillis Duration of each successful upload
+     * @param windowMillis Duration of the window
+     */
+    private void window(int errors, long latencyMillis, long windowMillis) {
+        val size = Math.max(4, concurrency.getLimit());
+        now += TimeUnit.MILLISECONDS.toNanos(windowMillis);
+
+        for (int i = 0; i < size; i++) {
+            val failed = i < errors;
+            concurrency.record(failed ? 0 : MB, TimeUnit.MILLISECONDS.toNanos(latencyMillis), failed, now);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.tsuyoshihayashi.wowza;
+
+import com.tsuyoshihayashi.model.RecordSettings;
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Testing the upload journal replay
+ *
+ * @author Alexey Donov
+ */
+public class UploadJournalTest extends TestCase {
+    private static final RecordSettings SETTINGS = new RecordSettings("name-N.mp4", 10, true, "http://localhost/upload", "hash", "hash2", "referer", "title", null, null);
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("upload-journal", ".log");
+    }
+
+    @Override
+    protected void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Pending uploads survive reopening, finished ones do not
+     */
+    public void testReplay() {
+        val journal = new UploadJournal(file);
+        assertTrue(journal.open().isEmpty());
+
+        val first = new UploadJob("1", "stream", 1, new File("/tmp/first.mp4"), SETTINGS, UploadPriority.AUTO, 0, 0);
+        val second = new UploadJob("2", "stream", 2, new File("/tmp/second.mp4"), SETTINGS, UploadPriority.MANUAL, 0, 0);
+        val third = new UploadJob("3", "other", 1, new File("/tmp/third.mp4"), SETTINGS, UploadPriority.AUTO, 0, 0);
+        journal.add(first);
+        journal.add(second);
+        journal.add(third);
+        journal.done(first);
+        second.setAttempt(2);
+        second.setNextAttemptTime(12345);
+        journal.retry(second);
+        journal.close();
+
+        val replayed = new UploadJournal(file).open();
+        assertEquals(2, replayed.size());
+        assertEquals("3", replayed.get(0).getId());
+        assertEquals("2", replayed.get(1).getId());
+        assertEquals(2, replayed.get(1).getAttempt());
+        assertEquals(12345, replayed.get(1).getNextAttemptTime());
+        assertEquals(SETTINGS, replayed.get(1).getSettings());
+        assertEquals(new File("/tmp/second.mp4"), replayed.get(1).getFile());
+        assertEquals(UploadPriority.MANUAL, replayed.get(1).getPriority());
+        assertEquals(UploadPriority.AUTO, replayed.get(0).getPriority());
+    }
+
+    /**
+     * Failed uploads are not resumed, but they survive reopening and compaction until they are restored or dropped
+     */
+    public void testFailed() {
+        val journal = new UploadJournal(file);
+        journal.open();
+
+        val first = new UploadJob("1", "stream", 1, new File("/tmp/first.mp4"), SETTINGS, UploadPriority.AUTO, 0, 0);
+        val second = new UploadJob("2", "stream", 2, new File("/tmp/second.mp4"), SETTINGS, UploadPriority.AUTO, 0, 0);
+        journal.add(first);
+        journal.add(second);
+        first.setAttempt(10);
+        journal.failed(first);
+        journal.failed(second);
+        assertEquals(0, journal.getPendingCount());
+        journal.close();
+
+        val reopened = new UploadJournal(file);
+        assertTrue(reopened.open().isEmpty());
+        assertEquals(2, reopened.getFailed().size());
+        assertEquals(10, reopened.getFailed().get(0).getAttempt());
+
+        assertNull(reopened.restore("3"));
+        assertEquals(0, reopened.restore("1").getAttempt());
+        assertEquals("2", reopened.drop("2").getId());
+        assertNull(reopened.drop("1"));
+        reopened.close();
+
+        val replayed = new UploadJournal(file);
+        assertEquals(1, replayed.open().size());
+        assertTrue(replayed.getFailed().isEmpty());
+    }
+
+    /**
+     * A line torn by a crash is skipped
+     */
+    public void testTornLine() throws IOException {
+        val journal = new UploadJournal(file);
+        journal.open();
+        journal.add(new UploadJob("1", "stream", 1, new File("/tmp/first.mp4"), SETTINGS, UploadPriority.AUTO, 0, 0));
+        journal.close();
+
+        try (val writer = new FileWriter(file, true)) {
+            writer.write("{\"op\":\"done\",\"i");
+        }
+
+        assertEquals(1, new UploadJournal(file).open().size());
+    }
+
+    /**
+     * Journal is compacted while uploads are always pending
+     */
+    public void testCompactionWhilePending() throws IOException {
+        val journal = new UploadJournal(file);
+        journal.open();
+
+        UploadJob previous = null;
+        for (int i = 0; i < 2000; i++) {
+            val job = new UploadJob(String.valueOf(i), "stream", i, new File("/tmp/segment.mp4"), SETTINGS, UploadPriority.AUTO, 0, 0);
+            journal.add(job);
+            if (previous != null) {
+                journal.done(previous);
+            }
+            previous = job;
+        }
+        journal.close();
+
+        assertTrue(Files.readAllLines(file.toPath()).size() < 1000);
+        val replayed = new UploadJournal(file).open();
+        assertEquals(1, replayed.size());
+        assertEquals("1999", replayed.get(0).getId());
+    }
+
+    /**
+     * Instances sharing the configured path have files of their own
+     */
+    public void testInstanceFile() {
+        assertEquals(new File("/logs/upload-journal-live-_definst_.log"), InstanceFiles.forAppInstance("/logs/upload-journal.log", "live/_definst_"));
+        assertEquals(new File("/logs/state-app-room-1"), InstanceFiles.forAppInstance("/logs/state", "app/room 1"));
+    }
+}
@@ -0,0 +1,339 @@
+package com.tsuyoshihayashi.wowza;
+
+import junit.framework.TestCase;
+import lombok.val;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Testing per-stream upload lanes
+ *
+ * @author Alexey Donov
+ */
+public class UploadSchedulerTest extends TestCase {
+    private static final int SEGMENTS = 50;
+
+    /**
+     * Segments of a stream are uploaded one at a time in the submission order
+     */
+    public void testStreamOrder() throws InterruptedException {
+        val scheduler = new UploadScheduler(new UploadExecutor(4, 1000, UploadExecutor.OverflowPolicy.REJECT));
+        val uploaded = Collections.synchronizedList(new ArrayList<Integer>());
+        val running = new AtomicInteger();
+        val overlaps = new AtomicInteger();
+        val done = new CountDownLatch(SEGMENTS);
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            val segment = i;
+            submit(scheduler, "stream", () -> {
+                if (running.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                uploaded.add(segment);
+                running.decrementAndGet();
+                done.countDown();
+                return UploadScheduler.DONE;
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+
+        val expected = new ArrayList<Integer>();
+        for (int i = 0; i < SEGMENTS; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, uploaded);
+    }
+
+    /**
+     * A stream with a stuck upload does not block other streams
+     */
+    public void testStreamsInParallel() throws InterruptedException {
+        val scheduler = new UploadScheduler(new UploadExecutor(2, 1000, UploadExecutor.OverflowPolicy.REJECT));
+        val release = new CountDownLatch(1);
+        val done = new CountDownLatch(SEGMENTS);
+
+        submit(scheduler, "slow", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+                // No op
+            }
+            return UploadScheduler.DONE;
+        });
+        for (int i = 0; i < SEGMENTS; i++) {
+            submit(scheduler, "fast", () -> {
+                done.countDown();
+                return UploadScheduler.DONE;
+            });
+        }
+
+        assertTrue("Fast stream must not wait for the slow one", done.await(10, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    /**
+     * Uploads over the queue size are rejected
+     */
+    public void testQueueLimit() throws InterruptedException {
+        val scheduler = new UploadScheduler(new UploadExecutor(1, 2, UploadExecutor.OverflowPolicy.REJECT));
+        val release = new CountDownLatch(1);
+        val started = new CountDownLatch(1);
+
+        submit(scheduler, "stream", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+                // No op
+            }
+            return UploadScheduler.DONE;
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        submit(scheduler, "stream", () -> UploadScheduler.DONE);
+        submit(scheduler, "stream", () -> UploadScheduler.DONE);
+        try {
+            submit(scheduler, "stream", () -> UploadScheduler.DONE);
+            fail("Queue is full");
+        } catch (RejectedExecutionException ignore) {
+            // OK
+        }
+
+        release.countDown();
+    }
+
+    /**
+     * A repeated upload keeps the lane, so the next segment waits for it
+     */
+    public void testRetryKeepsOrder() throws InterruptedException {
+        val scheduler = new UploadScheduler(new UploadExecutor(4, 1000, UploadExecutor.OverflowPolicy.REJECT));
+        val uploaded = Collections.synchronizedList(new ArrayList<String>());
+        val attempts = new AtomicInteger();
+        val done = new CountDownLatch(1);
+
+        submit(scheduler, "stream", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                uploaded.add("failed");
+                return 10;
+            }
+            uploaded.add("first");
+            return UploadScheduler.DONE;
+        });
+        submit(scheduler, "stream", () -> {
+            uploaded.add("second");
+            done.countDown();
+            return UploadScheduler.DONE;
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("failed", "failed", "first", "second"), uploaded);
+    }
+
+    /**
+     * Segments of a failed batch go back to the head of the lane, before the segments submitted while the batch ran
+     */
+    public void testFailedBatchKeepsOrder() throws InterruptedException {
+        val scheduler = new UploadScheduler(new UploadExecutor(4, 1000, UploadExecutor.OverflowPolicy.REJECT));
+        val uploaded = Collections.synchronizedList(new ArrayList<String>());
+        val started = new CountDownLatch(1);
+        val release = new CountDownLatch(1);
+        val done = new CountDownLatch(3);
+
+        submit(scheduler, "stream", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+                // No op
+            }
+            uploaded.add("batch");
+
+            // The batch failed, its segments are uploaded one by one
+            for (val name : Arrays.asList("second", "first")) {
+                scheduler.submitFirst("stream", "tenant", UploadPriority.AUTO, 1, () -> {
+                    uploaded.add(name);
+                    done.countDown();
+                    return UploadScheduler.DONE;
+                });
+            }
+            return UploadScheduler.DONE;
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        submit(scheduler, "stream", () -> {
+            uploaded.add("third");
+            done.countDown();
+            return UploadScheduler.DONE;
+        });
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("batch", "first", "second", "third"), uploaded);
+        assertEquals(0, scheduler.status().get("pending"));
+    }
+
+    /**
+     * Upload waiting for its retry counts towards the queue size,
+     * so filling the queue does not leave its lane busy and the later segments of the stream are uploaded
+     */
+    public void testQueueFullDuringRetry() throws InterruptedException {
+        for (val policy : UploadExecutor.OverflowPolicy.values()) {
+            val scheduler = new UploadScheduler(new UploadExecutor(1, 2, policy));
+            val retrying = new CountDownLatch(1);
+            val release = new CountDownLatch(1);
+            val uploaded = Collections.synchronizedList(new ArrayList<String>());
+            val done = new CountDownLatch(2);
+
+            submit(scheduler, "stream", () -> {
+                if (retrying.getCount() > 0) {
+                    retrying.countDown();
+                    return 200;
+                }
+                uploaded.add("first");
+                done.countDown();
+                return UploadScheduler.DONE;
+            });
+            assertTrue(retrying.await(10, TimeUnit.SECONDS));
+            awaitPending(scheduler, 1);
+
+            // The retry and the next segment fill the queue
+            submit(scheduler, "stream", () -> {
+                uploaded.add("second");
+                done.countDown();
+                return UploadScheduler.DONE;
+            });
+            assertEquals(2, scheduler.status().get("pending"));
+            try {
+                submit(scheduler, "other", () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignore) {
+                        // No op
+                    }
+                    return UploadScheduler.DONE;
+                });
+                fail("Queue is full");
+            } catch (RejectedExecutionException ignore) {
+                // OK
+            }
+
+            assertTrue(policy.name(), done.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("first", "second"), uploaded);
+            assertEquals(0, scheduler.status().get("pending"));
+            release.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Manual recordings are uploaded before automatic ones that waited longer
+     */
+    public void testPriority() throws InterruptedException {
+        val scheduler = new UploadScheduler(new UploadExecutor(1, 1000, UploadExecutor.OverflowPolicy.REJECT));
+        val release = block(scheduler);
+        val uploaded = Collections.synchronizedList(new ArrayList<String>());
+        val done = new CountDownLatch(4);
+
+        for (int i = 0; i < 3; i++) {
+            val name = "auto" + i;
+            scheduler.submit(name, "tenant", UploadPriority.AUTO, 1, () -> {
+                uploaded.add(name);
+                done.countDown();
+                return UploadScheduler.DONE;
+            });
+        }
+        scheduler.submit("manual", "tenant", UploadPriority.MANUAL, 1, () -> {
+            uploaded.add("manual");
+            done.countDown();
+            return UploadScheduler.DONE;
+        });
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("manual", "auto0", "auto1", "auto2"), uploaded);
+    }
+
+    /**
+     * A tenant with many streams gets the same share as a tenant with one stream, adjusted by the weights
+     */
+    public void testTenantFairness() throws InterruptedException {
+        val weights = new HashMap<String, Integer>();
+        weights.put("heavy", 2);
+        val scheduler = new UploadScheduler(new UploadExecutor(1, 1000, UploadExecutor.OverflowPolicy.REJECT), weights);
+        val release = block(scheduler);
+        val uploaded = Collections.synchronizedList(new ArrayList<String>());
+        val done = new CountDownLatch(3 * SEGMENTS);
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            for (val tenant : Arrays.asList("many", "single", "heavy")) {
+                // The tenant "many" has a separate stream for each segment
+                val streamName = "many".equals(tenant) ? tenant + i : tenant;
+                scheduler.submit(streamName, tenant, UploadPriority.AUTO, 1000, () -> {
+                    uploaded.add(tenant);
+                    done.countDown();
+                    return UploadScheduler.DONE;
+                });
+            }
+        }
+
+        val status = scheduler.status();
+        assertEquals(3 * SEGMENTS, status.get("pending"));
+        for (val tenant : (JSONArray) status.get("tenants")) {
+            val depth = (JSONObject) tenant;
+            assertEquals("block".equals(depth.get("tenant")) ? 0 : SEGMENTS, depth.get("pending"));
+        }
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // While all tenants have uploads waiting, the heavy one gets twice the share of each other
+        val first = uploaded.subList(0, 40);
+        assertEquals(10, Collections.frequency(first, "many"));
+        assertEquals(10, Collections.frequency(first, "single"));
+        assertEquals(20, Collections.frequency(first, "heavy"));
+    }
+
+    private static void awaitPending(UploadScheduler scheduler, int count) throws InterruptedException {
+        val deadline = System.currentTimeMillis() + 10000;
+        while (!Integer.valueOf(count).equals(scheduler.status().get("pending"))) {
+            assertTrue("Upload must be pending", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void submit(UploadScheduler scheduler, String streamName, UploadScheduler.Upload upload) {
+        scheduler.submit(streamName, "tenant", UploadPriority.AUTO, 1, upload);
+    }
+
+    /**
+     * Occupy the single upload thread until released
+     */
+    private static CountDownLatch block(UploadScheduler scheduler) throws InterruptedException {
+        val started = new CountDownLatch(1);
+        val release = new CountDownLatch(1);
+
+        scheduler.submit("block", "block", UploadPriority.AUTO, 1, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+                // No op
+            }
+            return UploadScheduler.DONE;
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        return release;
+    }
+}